@@ -0,0 +1,698 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.scheduler;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.concurrent.locks.LockSupport;
+
+import org.opennms.core.concurrent.LogPreservingThreadFactory;
+import org.opennms.core.fiber.PausableFiber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link Scheduler} that keeps the scheduled {@link ReadyRunnable ready runnables}
+ * in a hierarchical timing wheel, as an alternative to the {@link LegacyScheduler}
+ * for daemons that schedule a large number of services.
+ *
+ * <p>The {@link LegacyScheduler} keeps one queue per interval, and its worker scans the head
+ * of every queue on each pass. Here, time is divided into ticks and each runnable is placed in the
+ * slot of the tick it is due at, so both scheduling and expiring a runnable are constant time
+ * operations. There are {@value #LEVELS} wheels of {@value #SLOTS} slots: the first one holds the
+ * runnables that are due within the next {@value #SLOTS} ticks, and the runnables held by the others
+ * are cascaded to the lower wheels as their time approaches. Stretches of ticks in which nothing can
+ * be cascaded or expired are skipped.</p>
+ *
+ * <p>{@link #schedule(long, ReadyRunnable)} only appends to a lock-free queue, the wheels are owned
+ * by the worker thread. Due runnables are handed to a thread pool with a bounded queue: when it is
+ * full, the worker waits for room instead of accumulating an unbounded backlog. Runnables that are
+ * due, but not {@link ReadyRunnable#isReady() ready}, are checked again after
+ * {@value #NOT_READY_DELAY} ms. The scheduler can also dispatch to another executor, like a
+ * {@link VirtualThreadExecutor}.</p>
+ *
+ * <p>The schedule lag, the time between the moment a runnable is due and the moment it starts to
+ * run, is tracked to tell when the threads can't keep up with the schedule.</p>
+ *
+ * <p>Runnables scheduled without delay, as done by the daemons for the first run of every service,
+ * can be spread over a start jitter so that they don't all become due at once.</p>
+ */
+public class TimingWheelScheduler implements Runnable, PausableFiber, Scheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheelScheduler.class);
+
+    /**
+     * The system property used to select the scheduler implementation of the daemons,
+     * set it to {@value #TIMING_WHEEL} to use this scheduler.
+     */
+    public static final String IMPLEMENTATION_PROPERTY = "org.opennms.netmgt.scheduler.implementation";
+
+    public static final String TIMING_WHEEL = "timing-wheel";
+
+    /** The duration of a tick, in milliseconds. */
+    public static final String TICK_PROPERTY = "org.opennms.netmgt.scheduler.timing-wheel.tick";
+
+    /** The maximum random delay, in milliseconds, applied to runnables scheduled without delay. */
+    public static final String START_JITTER_PROPERTY = "org.opennms.netmgt.scheduler.timing-wheel.start-jitter";
+
+    /** The number of runnables that can wait for a thread before the scheduler stops dispatching. */
+    public static final String QUEUE_CAPACITY_PROPERTY = "org.opennms.netmgt.scheduler.timing-wheel.queue-capacity";
+
+    private static final int WHEEL_BITS = 8;
+
+    static final int SLOTS = 1 << WHEEL_BITS;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    static final int LEVELS = 4;
+
+    /**
+     * The delay, in milliseconds, after which runnables that were not ready are checked again.
+     * This matches the pause of the {@link LegacyScheduler} when none of its runnables are ready.
+     */
+    static final long NOT_READY_DELAY = 1000;
+
+    /**
+     * A scheduled runnable, linked to the next runnable of its slot.
+     */
+    private final class Entry implements Runnable {
+        private final ReadyRunnable m_runnable;
+        private long m_due;
+        private long m_deadline;
+        private Entry m_next;
+
+        private Entry(final ReadyRunnable runnable, final long due) {
+            m_runnable = runnable;
+            m_due = due;
+            m_deadline = toTick(due);
+        }
+
+        @Override
+        public void run() {
+            final long lag = Math.max(0, m_clock.getAsLong() - m_due);
+            m_scheduleLag = lag;
+            m_totalScheduleLag.add(lag);
+            m_runnable.run();
+        }
+
+        @Override
+        public String toString() {
+            return m_runnable.toString();
+        }
+    }
+
+    /**
+     * The source of {@link System#nanoTime()}.
+     */
+    private final LongSupplier m_clock;
+
+    private final long m_tickNanos;
+
+    private final long m_startJitter;
+
+    private final long m_notReadyTicks;
+
+    private final long m_startNanos;
+
+    /**
+     * The runnables scheduled since the worker last looked, in the order they were scheduled.
+     */
+    private final Queue<Entry> m_inbox = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The first and last entries of each slot of each wheel. Only accessed by the worker.
+     */
+    private final Entry[][] m_heads = new Entry[LEVELS][SLOTS];
+
+    private final Entry[][] m_tails = new Entry[LEVELS][SLOTS];
+
+    /**
+     * The number of entries held by each wheel. Only accessed by the worker.
+     */
+    private final int[] m_sizes = new int[LEVELS];
+
+    /**
+     * The entries that are due beyond the range of the highest wheel. Only accessed by the worker.
+     */
+    private Entry m_overflowHead;
+
+    private Entry m_overflowTail;
+
+    /**
+     * The last tick that was expired. Only accessed by the worker.
+     */
+    private long m_currentTick;
+
+    /**
+     * The total number of runnables currently scheduled.
+     */
+    private final AtomicInteger m_scheduled = new AtomicInteger();
+
+    /**
+     * The pool of threads that are used to executed the runnable instances
+     * scheduled by the class' instance.
+     */
+    private final ExecutorService m_runner;
+
+    /**
+     * The status for this fiber.
+     */
+    private volatile int m_status;
+
+    /**
+     * The worker thread that executes this instance.
+     */
+    private volatile Thread m_worker;
+
+    /**
+     * Used to keep track of the number of tasks that have been executed.
+     */
+    private volatile long m_numTasksExecuted = 0;
+
+    /**
+     * The schedule lag of the last runnable that started, in nanoseconds.
+     */
+    private volatile long m_scheduleLag = 0;
+
+    /**
+     * The sum of the schedule lags of the runnables that started, in nanoseconds.
+     */
+    private final LongAdder m_totalScheduleLag = new LongAdder();
+
+    /**
+     * Returns true if the daemons are configured to use this scheduler.
+     *
+     * @return a boolean.
+     */
+    public static boolean isEnabled() {
+        return TIMING_WHEEL.equalsIgnoreCase(System.getProperty(IMPLEMENTATION_PROPERTY));
+    }
+
+    /**
+     * Constructs a new instance of the scheduler, configured by the system properties.
+     *
+     * @param parent
+     *            String prepended to "Scheduler" to create fiber name
+     * @param maxSize
+     *            The maximum size of the thread pool.
+     */
+    public TimingWheelScheduler(final String parent, final int maxSize) {
+        this(parent, maxSize,
+             Long.getLong(TICK_PROPERTY, 100L),
+             Long.getLong(START_JITTER_PROPERTY, 0L),
+             Integer.getInteger(QUEUE_CAPACITY_PROPERTY, 10000));
+    }
+
+    /**
+     * Constructs a new instance of the scheduler.
+     *
+     * @param parent
+     *            String prepended to "Scheduler" to create fiber name
+     * @param maxSize
+     *            The maximum size of the thread pool.
+     * @param tick
+     *            The duration of a tick, in milliseconds.
+     * @param startJitter
+     *            The maximum random delay, in milliseconds, applied to the
+     *            runnables scheduled without delay, or 0 to run them as soon as possible.
+     * @param queueCapacity
+     *            The number of runnables that can wait for a thread.
+     */
+    public TimingWheelScheduler(final String parent, final int maxSize, final long tick, final long startJitter, final int queueCapacity) {
+        this(new ThreadPoolExecutor(maxSize, maxSize, 0L, TimeUnit.MILLISECONDS,
+                                    new LinkedBlockingQueue<Runnable>(queueCapacity),
+                                    new LogPreservingThreadFactory(parent, maxSize),
+                                    new WaitForRoomPolicy()),
+             tick, startJitter);
+    }
+
+    /**
+     * Constructs a new instance of the scheduler that dispatches the due runnables
+     * to the given executor, configured by the system properties. The executor
+     * is shut down when the scheduler is stopped.
+     *
+     * @param runner
+     *            The executor that runs the runnables. Its {@link ExecutorService#execute(Runnable)}
+     *            method should wait rather than reject the runnables when it is saturated.
+     */
+    public TimingWheelScheduler(final ExecutorService runner) {
+        this(runner, Long.getLong(TICK_PROPERTY, 100L), Long.getLong(START_JITTER_PROPERTY, 0L));
+    }
+
+    /**
+     * Constructs a new instance of the scheduler that dispatches the due runnables
+     * to the given executor. The executor is shut down when the scheduler is stopped.
+     *
+     * @param runner
+     *            The executor that runs the runnables. Its {@link ExecutorService#execute(Runnable)}
+     *            method should wait rather than reject the runnables when it is saturated.
+     * @param tick
+     *            The duration of a tick, in milliseconds.
+     * @param startJitter
+     *            The maximum random delay, in milliseconds, applied to the
+     *            runnables scheduled without delay, or 0 to run them as soon as possible.
+     */
+    public TimingWheelScheduler(final ExecutorService runner, final long tick, final long startJitter) {
+        this(runner, tick, startJitter, System::nanoTime);
+    }
+
+    TimingWheelScheduler(final ExecutorService runner, final long tick, final long startJitter, final LongSupplier clock) {
+        Assert.notNull(runner, "The runner must not be null");
+        Assert.isTrue(tick > 0, "The tick must be positive");
+        Assert.isTrue(startJitter >= 0, "The start jitter must not be negative");
+
+        m_status = START_PENDING;
+        m_tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+        m_startJitter = startJitter;
+        m_notReadyTicks = Math.max(1, NOT_READY_DELAY / tick);
+        m_clock = clock;
+        m_startNanos = clock.getAsLong();
+        m_runner = runner;
+        m_currentTick = 0;
+        m_worker = null;
+    }
+
+    /**
+     * Waits for room in the queue of the thread pool instead of rejecting the runnable.
+     */
+    private static class WaitForRoomPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("The scheduler has been stopped");
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for a thread", e);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void schedule(final long interval, final ReadyRunnable runnable) {
+        long delay = interval;
+        if (delay <= 0 && m_startJitter > 0) {
+            delay = ThreadLocalRandom.current().nextLong(m_startJitter);
+        }
+        LOG.debug("schedule: Adding ready runnable {} in {}ms", runnable, delay);
+
+        m_inbox.offer(new Entry(runnable, m_clock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay))));
+        m_scheduled.incrementAndGet();
+    }
+
+    /**
+     * This method is used to schedule a ready runnable in the system. The
+     * runnable is executed as soon as it is ready. The interval is only
+     * kept for compatibility with the {@link LegacyScheduler}.
+     *
+     * @param runnable
+     *            The element to run when it is ready.
+     * @param interval
+     *            Ignored.
+     */
+    public void schedule(final ReadyRunnable runnable, final long interval) {
+        schedule(0, runnable);
+    }
+
+    /**
+     * <p>getCurrentTime</p>
+     *
+     * @return a long.
+     */
+    @Override
+    public long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * <p>start</p>
+     */
+    @Override
+    public synchronized void start() {
+        Assert.state(m_worker == null, "The fiber has already run or is running");
+
+        m_worker = new Thread(this, getName());
+        m_worker.start();
+        m_status = STARTING;
+
+        LOG.info("start: scheduler started");
+    }
+
+    /**
+     * <p>stop</p>
+     */
+    @Override
+    public synchronized void stop() {
+        Assert.state(m_worker != null, "The fiber has never been started");
+
+        m_status = STOP_PENDING;
+        m_worker.interrupt();
+        m_runner.shutdown();
+
+        LOG.info("stop: scheduler stopped");
+    }
+
+    /**
+     * <p>pause</p>
+     */
+    @Override
+    public synchronized void pause() {
+        Assert.state(m_worker != null, "The fiber has never been started");
+        Assert.state(m_status != STOPPED && m_status != STOP_PENDING, "The fiber is not running or a stop is pending");
+
+        if (m_status == PAUSED) {
+            return;
+        }
+
+        m_status = PAUSE_PENDING;
+        notifyAll();
+        LockSupport.unpark(m_worker);
+    }
+
+    /**
+     * <p>resume</p>
+     */
+    @Override
+    public synchronized void resume() {
+        Assert.state(m_worker != null, "The fiber has never been started");
+        Assert.state(m_status != STOPPED && m_status != STOP_PENDING, "The fiber is not running or a stop is pending");
+
+        if (m_status == RUNNING) {
+            return;
+        }
+
+        m_status = RESUME_PENDING;
+        notifyAll();
+    }
+
+    /**
+     * <p>getStatus</p>
+     *
+     * @return a int.
+     */
+    @Override
+    public synchronized int getStatus() {
+        if (m_worker != null && m_worker.isAlive() == false) {
+            m_status = STOPPED;
+        }
+        return m_status;
+    }
+
+    /**
+     * Returns the name of this fiber.
+     *
+     * @return a {@link java.lang.String} object.
+     */
+    @Override
+    public String getName() {
+        return m_runner.toString();
+    }
+
+    /**
+     * Returns total number of elements currently scheduled.
+     *
+     * @return the number of runnables that are scheduled, but not yet handed to the thread pool
+     */
+    public int getScheduled() {
+        return m_scheduled.get();
+    }
+
+    /**
+     * Returns the pool of threads that are used to executed the runnable
+     * instances scheduled by the class' instance.
+     *
+     * @return thread pool
+     */
+    public ExecutorService getRunner() {
+        return m_runner;
+    }
+
+    /**
+     * Returns the schedule lag of the last runnable that started to run.
+     *
+     * @return the time between the moment the runnable was due and the moment it started, in milliseconds
+     */
+    public long getScheduleLag() {
+        return TimeUnit.NANOSECONDS.toMillis(m_scheduleLag);
+    }
+
+    /**
+     * Returns the sum of the schedule lags of the runnables that started to run (counter).
+     *
+     * @return the total schedule lag, in milliseconds
+     */
+    public long getTotalScheduleLag() {
+        return TimeUnit.NANOSECONDS.toMillis(m_totalScheduleLag.sum());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getNumTasksExecuted() {
+        return m_numTasksExecuted;
+    }
+
+    /**
+     * The main method of the scheduler. This method is responsible for moving
+     * the scheduled runnables to the wheels, expiring the elapsed ticks and
+     * enqueuing the ready runnables into the thread pool for execution.
+     */
+    @Override
+    public void run() {
+        synchronized (this) {
+            m_status = RUNNING;
+        }
+
+        LOG.debug("run: scheduler running");
+
+        try {
+            for (;;) {
+                synchronized (this) {
+                    if (m_status != RUNNING && m_status != PAUSED && m_status != PAUSE_PENDING && m_status != RESUME_PENDING) {
+                        LOG.debug("run: status = {}, time to exit", m_status);
+                        break;
+                    }
+
+                    // if paused or pause pending then block
+                    while (m_status == PAUSE_PENDING || m_status == PAUSED) {
+                        if (m_status == PAUSE_PENDING) {
+                            LOG.debug("run: pausing.");
+                        }
+                        m_status = PAUSED;
+                        wait();
+                    }
+
+                    // if resume pending then change to running
+                    if (m_status == RESUME_PENDING) {
+                        LOG.debug("run: resuming.");
+                        m_status = RUNNING;
+                    }
+                }
+
+                // Expire the ticks that elapsed, including the ones that elapsed while paused
+                expireElapsedTicks();
+
+                final long sleep = m_startNanos + (m_currentTick + 1) * m_tickNanos - m_clock.getAsLong();
+                if (sleep > 0) {
+                    LockSupport.parkNanos(this, sleep);
+                }
+                if (Thread.interrupted()) {
+                    break;
+                }
+            }
+        } catch (final InterruptedException e) {
+            // exit
+        } catch (final RejectedExecutionException e) {
+            if (m_status != STOP_PENDING) {
+                throw new UndeclaredThrowableException(e);
+            }
+        }
+
+        LOG.debug("run: scheduler exiting, state = STOPPED");
+        synchronized (this) {
+            m_status = STOPPED;
+        }
+    }
+
+    /**
+     * Expires the ticks that elapsed since the last call and moves the runnables
+     * scheduled in the meantime to the wheels. Only called by the worker.
+     */
+    void expireElapsedTicks() {
+        final long tick = (m_clock.getAsLong() - m_startNanos) / m_tickNanos;
+        while (m_currentTick < tick) {
+            // Skip to the next tick at which the lowest wheel holding entries is cascaded, nothing
+            // happens before, so long pauses or sparse schedules don't require visiting every tick
+            int level = 0;
+            while (level < LEVELS && m_sizes[level] == 0) {
+                level++;
+            }
+            if (level > 0) {
+                if (level == LEVELS && m_overflowHead == null) {
+                    m_currentTick = tick;
+                    break;
+                }
+                final long next = (m_currentTick | ((1L << (WHEEL_BITS * level)) - 1)) + 1;
+                if (next > tick) {
+                    m_currentTick = tick;
+                    break;
+                }
+                m_currentTick = next - 1;
+            }
+            advance();
+        }
+        drainInbox();
+    }
+
+    private long toTick(final long nanos) {
+        // Round up, so that runnables never run early
+        final long elapsed = Math.max(0, nanos - m_startNanos);
+        return (elapsed + m_tickNanos - 1) / m_tickNanos;
+    }
+
+    private void drainInbox() {
+        Entry entry;
+        while ((entry = m_inbox.poll()) != null) {
+            insert(entry);
+        }
+    }
+
+    /**
+     * Moves to the next tick: cascades the slots of the higher wheels that
+     * start at this tick, and then expires the slot of the lowest wheel.
+     */
+    private void advance() {
+        final long tick = ++m_currentTick;
+
+        if ((tick & SLOT_MASK) == 0) {
+            int level = 1;
+            while (level < LEVELS && (tick & ((1L << (WHEEL_BITS * (level + 1))) - 1)) == 0) {
+                level++;
+            }
+            if (level == LEVELS) {
+                final Entry overflow = m_overflowHead;
+                m_overflowHead = m_overflowTail = null;
+                reinsert(overflow, -1);
+                level--;
+            }
+            // Cascade from the highest wheel, entries can land in the slots cascaded next
+            for (; level > 0; level--) {
+                final int slot = (int) (tick >>> (WHEEL_BITS * level)) & SLOT_MASK;
+                final Entry head = m_heads[level][slot];
+                m_heads[level][slot] = m_tails[level][slot] = null;
+                reinsert(head, level);
+            }
+        }
+
+        final int slot = (int) tick & SLOT_MASK;
+        Entry entry = m_heads[0][slot];
+        m_heads[0][slot] = m_tails[0][slot] = null;
+        while (entry != null) {
+            final Entry next = entry.m_next;
+            entry.m_next = null;
+            m_sizes[0]--;
+            expire(entry);
+            entry = next;
+        }
+    }
+
+    /**
+     * Inserts the entries taken from a slot of the given wheel again, or from the overflow if the level is negative.
+     */
+    private void reinsert(Entry entry, final int level) {
+        while (entry != null) {
+            final Entry next = entry.m_next;
+            entry.m_next = null;
+            if (level >= 0) {
+                m_sizes[level]--;
+            }
+            insert(entry);
+            entry = next;
+        }
+    }
+
+    private void insert(final Entry entry) {
+        if (entry.m_deadline <= m_currentTick) {
+            expire(entry);
+            return;
+        }
+
+        // The entry goes to the wheel of the highest digit in which its deadline differs from the current tick.
+        // All the higher digits are equal, so the slot is reached before the wheel wraps around.
+        final int level = (63 - Long.numberOfLeadingZeros(entry.m_deadline ^ m_currentTick)) / WHEEL_BITS;
+        if (level >= LEVELS) {
+            if (m_overflowTail == null) {
+                m_overflowHead = entry;
+            } else {
+                m_overflowTail.m_next = entry;
+            }
+            m_overflowTail = entry;
+            return;
+        }
+
+        final int slot = (int) (entry.m_deadline >>> (WHEEL_BITS * level)) & SLOT_MASK;
+        if (m_tails[level][slot] == null) {
+            m_heads[level][slot] = entry;
+        } else {
+            m_tails[level][slot].m_next = entry;
+        }
+        m_tails[level][slot] = entry;
+        m_sizes[level]++;
+    }
+
+    private void expire(final Entry entry) {
+        final ReadyRunnable readyRun = entry.m_runnable;
+        if (!readyRun.isReady()) {
+            entry.m_deadline = m_currentTick + m_notReadyTicks;
+            // The lag is measured from the check again, not from the first time the runnable was due
+            entry.m_due = m_startNanos + entry.m_deadline * m_tickNanos;
+            insert(entry);
+            return;
+        }
+
+        LOG.debug("run: found ready runnable {}", readyRun);
+        m_scheduled.decrementAndGet();
+        m_runner.execute(entry);
+        ++m_numTasksExecuted;
+    }
+}
@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.scheduler;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.opennms.core.concurrent.LogPreservingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.util.Assert;
+
+/**
+ * An executor that runs every task on a thread of its own, and limits the number of
+ * tasks that run concurrently with a semaphore instead of the size of a thread pool.
+ *
+ * <p>When the runtime supports them, the tasks run on virtual threads, so that tasks that
+ * spend most of their time waiting, like polls, don't tie up a platform thread each.
+ * Otherwise they run on a cached pool of platform threads, which grows with the
+ * number of tasks that run concurrently.</p>
+ *
+ * <p>{@link #execute(Runnable)} waits for a permit when the limit is reached, so that the
+ * caller is slowed down instead of accumulating an unbounded backlog.</p>
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadExecutor.class);
+
+    private final String m_name;
+
+    private final int m_maxConcurrency;
+
+    private final Semaphore m_permits;
+
+    /**
+     * The factory of virtual threads, or null if the runtime doesn't support them.
+     */
+    private final ThreadFactory m_virtualThreadFactory;
+
+    /**
+     * The pool of platform threads used when the runtime doesn't support virtual threads.
+     */
+    private final ThreadPoolExecutor m_platformThreads;
+
+    /**
+     * The logging context of the thread that created this executor, which is restored
+     * on the threads that run the tasks.
+     */
+    private final Map<String, String> m_mdc;
+
+    private final AtomicInteger m_active = new AtomicInteger();
+
+    private final AtomicInteger m_largest = new AtomicInteger();
+
+    private final LongAdder m_taskCount = new LongAdder();
+
+    private final LongAdder m_completedTaskCount = new LongAdder();
+
+    private volatile boolean m_shutdown = false;
+
+    /**
+     * Constructs a new executor.
+     *
+     * @param name
+     *            The prefix of the names of the threads.
+     * @param maxConcurrency
+     *            The maximum number of tasks that run concurrently.
+     */
+    public VirtualThreadExecutor(final String name, final int maxConcurrency) {
+        this(name, maxConcurrency, true);
+    }
+
+    /**
+     * Constructs a new executor.
+     *
+     * @param name
+     *            The prefix of the names of the threads.
+     * @param maxConcurrency
+     *            The maximum number of tasks that run concurrently.
+     * @param useVirtualThreads
+     *            false to use platform threads even if the runtime supports virtual threads.
+     */
+    public VirtualThreadExecutor(final String name, final int maxConcurrency, final boolean useVirtualThreads) {
+        Assert.isTrue(maxConcurrency > 0, "The maximum concurrency must be positive");
+
+        m_name = name;
+        m_maxConcurrency = maxConcurrency;
+        m_permits = new Semaphore(maxConcurrency);
+        m_mdc = MDC.getCopyOfContextMap();
+        m_virtualThreadFactory = useVirtualThreads ? createVirtualThreadFactory(name + "-Virtual-Thread-") : null;
+        if (m_virtualThreadFactory == null) {
+            // The semaphore bounds the concurrency, the pool is left unbounded since a permit
+            // is released before the thread that ran the task is idle again
+            m_platformThreads = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                                                       new SynchronousQueue<Runnable>(),
+                                                       new LogPreservingThreadFactory(name, Integer.MAX_VALUE));
+        } else {
+            m_platformThreads = null;
+        }
+    }
+
+    /**
+     * Returns a factory of virtual threads, or null if the runtime doesn't support them.
+     * They are looked up reflectively, so that this class still runs on the runtimes
+     * that predate them.
+     */
+    private static ThreadFactory createVirtualThreadFactory(final String prefix) {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Method name = builderClass.getMethod("name", String.class, long.class);
+            final Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(name.invoke(builder, prefix, 0L));
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Virtual threads are not supported by this runtime, using platform threads.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the tasks run on virtual threads.
+     *
+     * @return a boolean.
+     */
+    public boolean isVirtual() {
+        return m_virtualThreadFactory != null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void execute(final Runnable command) {
+        Assert.notNull(command, "The command must not be null");
+        if (m_shutdown) {
+            throw new RejectedExecutionException("The executor has been shut down");
+        }
+
+        try {
+            m_permits.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for a permit", e);
+        }
+
+        final int active = m_active.incrementAndGet();
+        m_largest.accumulateAndGet(active, Math::max);
+        try {
+            if (m_shutdown) {
+                throw new RejectedExecutionException("The executor has been shut down");
+            }
+            final Runnable task = () -> run(command);
+            m_taskCount.increment();
+            if (m_virtualThreadFactory != null) {
+                m_virtualThreadFactory.newThread(task).start();
+            } else {
+                m_platformThreads.execute(task);
+            }
+        } catch (final RuntimeException | Error e) {
+            release();
+            throw e;
+        }
+    }
+
+    private void run(final Runnable command) {
+        final Map<String, String> mdc = MDC.getCopyOfContextMap();
+        try {
+            setContextMap(m_mdc);
+            command.run();
+        } finally {
+            setContextMap(mdc);
+            m_completedTaskCount.increment();
+            release();
+        }
+    }
+
+    private void release() {
+        m_permits.release();
+        if (m_active.decrementAndGet() == 0 && m_shutdown) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private static void setContextMap(final Map<String, String> map) {
+        if (map == null) {
+            MDC.clear();
+        } else {
+            MDC.setContextMap(map);
+        }
+    }
+
+    /**
+     * Stops accepting new tasks. The running tasks are left to complete.
+     */
+    @Override
+    public void shutdown() {
+        m_shutdown = true;
+        if (m_platformThreads != null) {
+            m_platformThreads.shutdown();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stops accepting new tasks, and interrupts the running tasks if they run on
+     * platform threads. Tasks never wait in a queue, so none are returned.
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        if (m_platformThreads != null) {
+            m_platformThreads.shutdownNow();
+        }
+        return Collections.emptyList();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isShutdown() {
+        return m_shutdown;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isTerminated() {
+        return m_shutdown && m_active.get() == 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isTerminated()) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of tasks that are currently running.
+     *
+     * @return a int.
+     */
+    public int getActiveCount() {
+        return m_active.get();
+    }
+
+    /**
+     * Returns the largest number of tasks that ran concurrently.
+     *
+     * @return a int.
+     */
+    public int getLargestActiveCount() {
+        return m_largest.get();
+    }
+
+    /**
+     * Returns the maximum number of tasks that run concurrently.
+     *
+     * @return a int.
+     */
+    public int getMaxConcurrency() {
+        return m_maxConcurrency;
+    }
+
+    /**
+     * Returns the number of tasks that were started.
+     *
+     * @return a long.
+     */
+    public long getTaskCount() {
+        return m_taskCount.sum();
+    }
+
+    /**
+     * Returns the number of tasks that completed.
+     *
+     * @return a long.
+     */
+    public long getCompletedTaskCount() {
+        return m_completedTaskCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, %s threads, active = %d, max concurrency = %d, completed tasks = %d]",
+                             m_name, m_shutdown ? (isTerminated() ? "Terminated" : "Shutting down") : "Running",
+                             isVirtual() ? "virtual" : "platform",
+                             getActiveCount(), m_maxConcurrency, getCompletedTaskCount());
+    }
+}
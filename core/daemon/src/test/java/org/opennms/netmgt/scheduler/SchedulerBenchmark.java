@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.scheduler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Use the Java Microbenchmarking Harness (JMH) to compare the {@link LegacyScheduler}
+ * with the {@link TimingWheelScheduler}.
+ * <p>
+ * Each invocation schedules a large number of synthetic {@link ReadyRunnable}s, with delays
+ * spread over the given number of distinct intervals, and measures the time it takes until all
+ * of them ran. The runnables do nothing but count down, so the measured time is the overhead of
+ * the scheduler on top of the longest delay.
+ */
+public class SchedulerBenchmark {
+
+    private static final String LEGACY = "legacy";
+    private static final String TIMING_WHEEL = "timingWheel";
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args);
+    }
+
+    @State(Scope.Benchmark)
+    public static class SchedulerState {
+
+        @Param({LEGACY, TIMING_WHEEL})
+        public String scheduler;
+
+        @Param({"1000000"})
+        public int runnables;
+
+        // the delays are spread over this many milliseconds, one interval per millisecond
+        @Param({"1000"})
+        public int intervals;
+
+        @Param({"8"})
+        public int threads;
+
+        private Scheduler m_scheduler;
+
+        private CountDownLatch m_latch;
+
+        private ReadyRunnable[] m_runnables;
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            if (LEGACY.equals(scheduler)) {
+                m_scheduler = new LegacyScheduler("Benchmark", threads);
+            } else {
+                m_scheduler = new TimingWheelScheduler("Benchmark", threads, 10, 0, 10000);
+            }
+            m_scheduler.start();
+
+            final CountDownLatch latch = new CountDownLatch(runnables);
+            m_latch = latch;
+            m_runnables = new ReadyRunnable[runnables];
+            for (int i = 0; i < runnables; i++) {
+                m_runnables[i] = new ReadyRunnable() {
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void run() {
+                        latch.countDown();
+                    }
+                };
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            m_scheduler.stop();
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void scheduleAndRun(SchedulerState state) throws InterruptedException {
+        final Scheduler scheduler = state.m_scheduler;
+        final ReadyRunnable[] runnables = state.m_runnables;
+        for (int i = 0; i < runnables.length; i++) {
+            scheduler.schedule(i % state.intervals, runnables[i]);
+        }
+        state.m_latch.await();
+    }
+}
@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opennms.core.fiber.PausableFiber;
+
+public class TimingWheelSchedulerTest {
+
+    private TimingWheelScheduler m_scheduler;
+
+    @After
+    public void tearDown() {
+        if (m_scheduler != null && m_scheduler.getStatus() != PausableFiber.STOPPED) {
+            m_scheduler.stop();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void canRunRunnablesOnTime() throws InterruptedException {
+        // With 1ms ticks, the delays span the first two wheels
+        m_scheduler = new TimingWheelScheduler("Test", 4, 1, 0, 1000);
+        m_scheduler.start();
+
+        final long[] delays = new long[] { 0, 5, 100, 255, 256, 257, 300, 1000, 1500 };
+        final CountDownLatch latch = new CountDownLatch(delays.length);
+        final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        for (final long delay : delays) {
+            final long scheduledAt = System.nanoTime();
+            m_scheduler.schedule(delay, runnable(() -> {
+                final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduledAt);
+                if (elapsed < delay) {
+                    failures.add("ran after " + elapsed + "ms instead of " + delay + "ms");
+                }
+                latch.countDown();
+            }));
+        }
+
+        latch.await();
+        assertEquals(Collections.emptyList(), failures);
+        // The worker counts the tasks after handing them to the thread pool
+        while (m_scheduler.getNumTasksExecuted() < delays.length) {
+            Thread.sleep(10);
+        }
+        assertEquals(delays.length, m_scheduler.getNumTasksExecuted());
+        assertEquals(0, m_scheduler.getScheduled());
+    }
+
+    @Test(timeout = 30000)
+    public void canCascadeFromHigherWheelsAndOverflow() {
+        // Drive the wheels from the test with a controllable clock instead of the worker, with 1ms ticks
+        final AtomicLong clock = new AtomicLong();
+        final TimingWheelScheduler scheduler = new TimingWheelScheduler(new DirectExecutorService(), 1, 0, clock::get);
+
+        // Due in the second, third and fourth wheel, and beyond the range of the wheels (2^32 ticks)
+        final long[] delays = new long[] { 300, 65535, 65536, 70000, 16777215, 16777216, 20000000,
+                                           4294967295L, 4294967296L, 5000000000L };
+        final List<Long> runs = new ArrayList<>();
+        for (final long delay : delays) {
+            scheduler.schedule(delay, runnable(() -> runs.add(delay)));
+        }
+        scheduler.expireElapsedTicks();
+        assertEquals(delays.length, scheduler.getScheduled());
+
+        for (final long delay : delays) {
+            clock.set(TimeUnit.MILLISECONDS.toNanos(delay - 1));
+            scheduler.expireElapsedTicks();
+            assertFalse("ran before " + delay + "ms", runs.contains(delay));
+
+            clock.set(TimeUnit.MILLISECONDS.toNanos(delay));
+            scheduler.expireElapsedTicks();
+            assertTrue("did not run at " + delay + "ms", runs.contains(delay));
+        }
+        assertEquals(0, scheduler.getScheduled());
+
+        // The wheels keep working once the overflow has been cascaded
+        final long now = clock.get();
+        scheduler.schedule(1000, runnable(() -> runs.add(-1L)));
+        clock.set(now + TimeUnit.MILLISECONDS.toNanos(999));
+        scheduler.expireElapsedTicks();
+        assertFalse(runs.contains(-1L));
+        clock.set(now + TimeUnit.MILLISECONDS.toNanos(1000));
+        scheduler.expireElapsedTicks();
+        assertTrue(runs.contains(-1L));
+    }
+
+    @Test(timeout = 30000)
+    public void canRunRunnablesDueAtTheSameTimeInOrder() throws InterruptedException {
+        m_scheduler = new TimingWheelScheduler("Test", 1, 10, 0, 1000);
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch latch = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int index = i;
+            m_scheduler.schedule(50, runnable(() -> {
+                order.add(index);
+                latch.countDown();
+            }));
+        }
+        m_scheduler.start();
+
+        latch.await();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), order.get(i));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void canWaitForRunnablesToBeReady() throws InterruptedException {
+        m_scheduler = new TimingWheelScheduler("Test", 1, 10, 0, 1000);
+        m_scheduler.start();
+
+        final AtomicBoolean ready = new AtomicBoolean(false);
+        final CountDownLatch latch = new CountDownLatch(1);
+        m_scheduler.schedule(0, new ReadyRunnable() {
+            @Override
+            public boolean isReady() {
+                return ready.get();
+            }
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+
+        assertFalse(latch.await(TimingWheelScheduler.NOT_READY_DELAY * 2, TimeUnit.MILLISECONDS));
+        assertEquals(1, m_scheduler.getScheduled());
+
+        ready.set(true);
+        assertTrue(latch.await(TimingWheelScheduler.NOT_READY_DELAY * 5, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 30000)
+    public void canPauseAndResume() throws InterruptedException {
+        m_scheduler = new TimingWheelScheduler("Test", 1, 10, 0, 1000);
+        m_scheduler.start();
+        while (m_scheduler.getStatus() != PausableFiber.RUNNING) {
+            Thread.sleep(10);
+        }
+        m_scheduler.pause();
+
+        final AtomicInteger runs = new AtomicInteger();
+        m_scheduler.schedule(0, runnable(runs::incrementAndGet));
+        Thread.sleep(200);
+        assertEquals(0, runs.get());
+        assertEquals(PausableFiber.PAUSED, m_scheduler.getStatus());
+
+        m_scheduler.resume();
+        while (runs.get() == 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(PausableFiber.RUNNING, m_scheduler.getStatus());
+
+        m_scheduler.stop();
+        while (m_scheduler.getStatus() != PausableFiber.STOPPED) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void canSpreadStartsOverJitter() throws InterruptedException {
+        m_scheduler = new TimingWheelScheduler("Test", 4, 10, 500, 1000);
+        m_scheduler.start();
+
+        final long start = System.nanoTime();
+        final List<Long> startTimes = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch latch = new CountDownLatch(200);
+        for (int i = 0; i < 200; i++) {
+            m_scheduler.schedule(0, runnable(() -> {
+                startTimes.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                latch.countDown();
+            }));
+        }
+
+        latch.await();
+        // The odds of all the runnables being drawn in the first tenth of the jitter are negligible
+        assertTrue(startTimes.stream().anyMatch(t -> t >= 50));
+    }
+
+    @Test(timeout = 30000)
+    public void canTrackScheduleLag() throws InterruptedException {
+        m_scheduler = new TimingWheelScheduler(new VirtualThreadExecutor("Test", 1), 10, 0);
+        m_scheduler.start();
+
+        // The second runnable waits for the first one to release the only permit
+        final CountDownLatch latch = new CountDownLatch(2);
+        m_scheduler.schedule(0, runnable(() -> {
+            try {
+                Thread.sleep(500);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            latch.countDown();
+        }));
+        m_scheduler.schedule(0, runnable(latch::countDown));
+
+        latch.await();
+        assertTrue(m_scheduler.getScheduleLag() >= 400);
+        assertTrue(m_scheduler.getTotalScheduleLag() >= m_scheduler.getScheduleLag());
+    }
+
+    @Test(timeout = 30000)
+    public void doesNotCountNotReadyDelayAsScheduleLag() {
+        final AtomicLong clock = new AtomicLong();
+        final TimingWheelScheduler scheduler = new TimingWheelScheduler(new DirectExecutorService(), 1, 0, clock::get);
+
+        // Not ready the first time it is due, ready when it is checked again
+        final AtomicInteger checks = new AtomicInteger();
+        final AtomicBoolean ran = new AtomicBoolean(false);
+        scheduler.schedule(10, new ReadyRunnable() {
+            @Override
+            public boolean isReady() {
+                return checks.incrementAndGet() > 1;
+            }
+
+            @Override
+            public void run() {
+                ran.set(true);
+            }
+        });
+
+        clock.set(TimeUnit.MILLISECONDS.toNanos(10));
+        scheduler.expireElapsedTicks();
+        assertFalse(ran.get());
+
+        clock.set(TimeUnit.MILLISECONDS.toNanos(10 + TimingWheelScheduler.NOT_READY_DELAY));
+        scheduler.expireElapsedTicks();
+        assertTrue(ran.get());
+        assertEquals(0, scheduler.getScheduleLag());
+        assertEquals(0, scheduler.getTotalScheduleLag());
+    }
+
+    /**
+     * Runs the runnables in the thread handing them over, i.e. the test.
+     */
+    private static class DirectExecutorService extends AbstractExecutorService {
+        private volatile boolean m_shutdown;
+
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+            m_shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            m_shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return m_shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return m_shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(final long timeout, final TimeUnit unit) {
+            return m_shutdown;
+        }
+    }
+
+    private static ReadyRunnable runnable(final Runnable runnable) {
+        return new ReadyRunnable() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void run() {
+                runnable.run();
+            }
+        };
+    }
+}
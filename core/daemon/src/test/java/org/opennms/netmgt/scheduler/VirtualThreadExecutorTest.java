@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class VirtualThreadExecutorTest {
+
+    private VirtualThreadExecutor m_executor;
+
+    @After
+    public void tearDown() {
+        if (m_executor != null) {
+            m_executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void canBoundConcurrency() throws InterruptedException {
+        m_executor = new VirtualThreadExecutor("Test", 3);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(10);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final Thread submitter = new Thread(() -> {
+            for (int i = 0; i < 10; i++) {
+                m_executor.execute(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        release.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                });
+            }
+        });
+        submitter.start();
+
+        // The submitter waits for a permit once the limit is reached
+        while (m_executor.getActiveCount() < 3) {
+            Thread.sleep(10);
+        }
+        submitter.join(200);
+        assertTrue(submitter.isAlive());
+        assertEquals(3, m_executor.getTaskCount());
+
+        release.countDown();
+        done.await();
+        submitter.join();
+        assertEquals(3, maxRunning.get());
+        assertEquals(3, m_executor.getLargestActiveCount());
+        assertEquals(10, m_executor.getTaskCount());
+        while (m_executor.getCompletedTaskCount() < 10) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, m_executor.getActiveCount());
+    }
+
+    @Test(timeout = 30000)
+    public void canShutdown() throws InterruptedException {
+        m_executor = new VirtualThreadExecutor("Test", 2);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        m_executor.execute(() -> {
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        m_executor.shutdown();
+
+        try {
+            m_executor.execute(() -> {});
+            fail("The runnable should have been rejected");
+        } catch (final RejectedExecutionException e) {
+            // expected
+        }
+        assertFalse(m_executor.awaitTermination(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(m_executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(m_executor.isTerminated());
+    }
+}
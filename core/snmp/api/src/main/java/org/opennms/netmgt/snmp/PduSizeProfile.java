@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.snmp;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * The PDU sizes learned for an agent by the {@link SnmpWalker walkers}, when adaptive
+ * PDU sizing is enabled.
+ *
+ * <p>The sizes start from the configured max-vars-per-pdu and max-repetitions, and are adjusted
+ * after every response, additive increase, multiplicative decrease:</p>
+ * <ul>
+ * <li>a tooBig error or a timeout halves the repetitions of a GETBULK, or the varbinds
+ * once the repetitions are down to 1, or if the PDU is not a GETBULK,</li>
+ * <li>so does a smoothed latency above the target latency,</li>
+ * <li>a response below the target latency to a GETBULK that holds every requested repetition
+ * increases the repetitions by one, and a response to a full PDU increases the varbinds by
+ * one, up to their limits.</li>
+ * </ul>
+ *
+ * <p>The profiles are kept in a bounded cache, by agent address, so that the next walks
+ * of an agent start from the sizes learned by the previous ones.</p>
+ */
+public final class PduSizeProfile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PduSizeProfile.class);
+
+    /**
+     * The system property used to enable adaptive PDU sizing.
+     */
+    public static final String ENABLED_PROPERTY = "org.opennms.netmgt.snmp.adaptivePduSizing";
+
+    /** The largest number of varbinds per PDU that can be learned, if larger than the configured one. */
+    public static final String MAX_VARS_PER_PDU_PROPERTY = "org.opennms.netmgt.snmp.adaptivePduSizing.maxVarsPerPdu";
+
+    /** The largest number of repetitions that can be learned, if larger than the configured one. */
+    public static final String MAX_REPETITIONS_PROPERTY = "org.opennms.netmgt.snmp.adaptivePduSizing.maxRepetitions";
+
+    /** The latency, in milliseconds, above which the PDU sizes are reduced. */
+    public static final String TARGET_LATENCY_PROPERTY = "org.opennms.netmgt.snmp.adaptivePduSizing.targetLatency";
+
+    /** The maximum number of agents for which profiles are kept. */
+    public static final String MAX_PROFILES_PROPERTY = "org.opennms.netmgt.snmp.adaptivePduSizing.maxProfiles";
+
+    private static final Cache<InetAddress, PduSizeProfile> s_profiles = CacheBuilder.newBuilder()
+            .maximumSize(Long.getLong(MAX_PROFILES_PROPERTY, 10000L))
+            .build();
+
+    private final int m_configuredMaxVarsPerPdu;
+    private final int m_configuredMaxRepetitions;
+    private final int m_maxVarsPerPduLimit;
+    private final int m_maxRepetitionsLimit;
+    private final long m_targetLatency;
+
+    private int m_maxVarsPerPdu;
+    private int m_maxRepetitions;
+
+    /**
+     * The exponentially weighted moving average of the latency, in nanoseconds, or -1 if
+     * it must be measured again.
+     */
+    private long m_latency = -1;
+
+    /**
+     * Returns true if the walkers adapt their PDU sizes to the agents.
+     *
+     * @return a boolean.
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * Returns the profile of the agent, or a new one if the agent has none yet, or if
+     * its configured sizes changed since it was created.
+     *
+     * @param address the address of the agent
+     * @param maxVarsPerPdu the configured max-vars-per-pdu of the agent
+     * @param maxRepetitions the configured max-repetitions of the agent
+     * @return the profile of the agent
+     */
+    public static PduSizeProfile get(final InetAddress address, final int maxVarsPerPdu, final int maxRepetitions) {
+        synchronized (s_profiles) {
+            PduSizeProfile profile = s_profiles.getIfPresent(address);
+            if (profile == null || profile.m_configuredMaxVarsPerPdu != maxVarsPerPdu || profile.m_configuredMaxRepetitions != maxRepetitions) {
+                profile = new PduSizeProfile(maxVarsPerPdu, maxRepetitions,
+                                             Integer.getInteger(MAX_VARS_PER_PDU_PROPERTY, 100),
+                                             Integer.getInteger(MAX_REPETITIONS_PROPERTY, 50),
+                                             Long.getLong(TARGET_LATENCY_PROPERTY, 1000L));
+                s_profiles.put(address, profile);
+            }
+            return profile;
+        }
+    }
+
+    /**
+     * Forgets the profiles of all the agents.
+     */
+    public static void clear() {
+        s_profiles.invalidateAll();
+    }
+
+    PduSizeProfile(final int maxVarsPerPdu, final int maxRepetitions, final int maxVarsPerPduLimit, final int maxRepetitionsLimit, final long targetLatency) {
+        m_configuredMaxVarsPerPdu = maxVarsPerPdu;
+        m_configuredMaxRepetitions = maxRepetitions;
+        m_maxVarsPerPdu = Math.max(1, maxVarsPerPdu);
+        m_maxRepetitions = Math.max(1, maxRepetitions);
+        m_maxVarsPerPduLimit = Math.max(m_maxVarsPerPdu, maxVarsPerPduLimit);
+        m_maxRepetitionsLimit = Math.max(m_maxRepetitions, maxRepetitionsLimit);
+        m_targetLatency = TimeUnit.MILLISECONDS.toNanos(targetLatency);
+    }
+
+    public synchronized int getMaxVarsPerPdu() {
+        return m_maxVarsPerPdu;
+    }
+
+    public synchronized int getMaxRepetitions() {
+        return m_maxRepetitions;
+    }
+
+    /**
+     * Adjusts the sizes after a response without errors.
+     *
+     * @param latency the time between the request and the response, in nanoseconds
+     * @param bulk true if the request was a GETBULK
+     * @param varbinds the number of varbinds in the request
+     * @param expected the number of varbinds in the response if the agent returned every repetition
+     * @param received the number of varbinds in the response
+     */
+    public synchronized void onResponse(final long latency, final boolean bulk, final int varbinds, final int expected, final int received) {
+        m_latency = m_latency < 0 ? latency : m_latency + (latency - m_latency) / 4;
+        if (m_latency > m_targetLatency) {
+            decrease(bulk, "latency of " + TimeUnit.NANOSECONDS.toMillis(m_latency) + "ms");
+        } else if (bulk && received >= expected && m_maxRepetitions < m_maxRepetitionsLimit) {
+            m_maxRepetitions++;
+        } else if (varbinds >= m_maxVarsPerPdu && m_maxVarsPerPdu < m_maxVarsPerPduLimit) {
+            m_maxVarsPerPdu++;
+        }
+    }
+
+    /**
+     * Reduces the sizes after a tooBig error.
+     *
+     * @param bulk true if the request was a GETBULK
+     */
+    public synchronized void onTooBig(final boolean bulk) {
+        decrease(bulk, "tooBig error");
+    }
+
+    /**
+     * Reduces the sizes after a timeout.
+     *
+     * @param bulk true if the request was a GETBULK
+     */
+    public synchronized void onTimeout(final boolean bulk) {
+        decrease(bulk, "timeout");
+    }
+
+    private void decrease(final boolean bulk, final String reason) {
+        // The repetitions don't change the size of the other PDUs
+        if (bulk && m_maxRepetitions > 1) {
+            m_maxRepetitions /= 2;
+        } else {
+            m_maxVarsPerPdu = Math.max(1, m_maxVarsPerPdu / 2);
+        }
+        // Measure the latency of the smaller PDUs before adjusting again
+        m_latency = -1;
+        LOG.debug("Reduced the PDU size to {} varbinds and {} repetitions after a {}", m_maxVarsPerPdu, m_maxRepetitions, reason);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PduSizeProfile[maxVarsPerPdu=" + m_maxVarsPerPdu + ", maxRepetitions=" + m_maxRepetitions + "]";
+    }
+}
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.snmp;
+
+import java.net.InetAddress;
+
+/**
+ * A walker that sends the PDUs built by its tracker to the agent, one at a time.
+ */
+public abstract class PduWalker extends SnmpWalker {
+
+    protected abstract static class WalkerPduBuilder extends PduBuilder {
+        protected WalkerPduBuilder(int maxVarsPerPdu) {
+            super(maxVarsPerPdu);
+        }
+        
+        public abstract void reset();
+
+        /**
+         * Returns true if the PDUs are GETBULKs, whose responses hold several repetitions.
+         *
+         * @return a boolean.
+         */
+        public boolean isBulk() {
+            return false;
+        }
+    }
+
+    /**
+     * Records the size of the PDUs built by the trackers, for the {@link PduSizeProfile}.
+     */
+    private static class SizingPduBuilder extends PduBuilder {
+        private final WalkerPduBuilder m_delegate;
+        private int m_varbinds;
+        private int m_nonRepeaters;
+        private int m_maxRepetitions;
+        /** The max-vars-per-pdu set by the tracker after a tooBig error, for the rest of the walk. */
+        private int m_maxVarsPerPduLimit = Integer.MAX_VALUE;
+
+        private SizingPduBuilder(WalkerPduBuilder delegate) {
+            m_delegate = delegate;
+        }
+
+        private void reset() {
+            m_delegate.reset();
+            m_varbinds = 0;
+            m_nonRepeaters = 0;
+            m_maxRepetitions = 1;
+        }
+
+        /**
+         * Returns the number of varbinds of the response if the agent returns every repetition.
+         */
+        private int getExpectedResponseSize() {
+            if (!m_delegate.isBulk()) {
+                return m_varbinds;
+            }
+            return m_nonRepeaters + (m_varbinds - m_nonRepeaters) * m_maxRepetitions;
+        }
+
+        @Override
+        public void addOid(SnmpObjId snmpObjId) {
+            m_delegate.addOid(snmpObjId);
+            m_varbinds++;
+        }
+
+        @Override
+        public void setNonRepeaters(int numNonRepeaters) {
+            m_delegate.setNonRepeaters(numNonRepeaters);
+            m_nonRepeaters = numNonRepeaters;
+        }
+
+        @Override
+        public void setMaxRepetitions(int maxRepetitions) {
+            m_delegate.setMaxRepetitions(maxRepetitions);
+            m_maxRepetitions = maxRepetitions;
+        }
+
+        @Override
+        public int getMaxVarsPerPdu() {
+            return m_delegate.getMaxVarsPerPdu();
+        }
+
+        @Override
+        public void setMaxVarsPerPdu(int maxVarsPerPdu) {
+            m_delegate.setMaxVarsPerPdu(maxVarsPerPdu);
+            m_maxVarsPerPduLimit = maxVarsPerPdu;
+        }
+    }
+
+    private WalkerPduBuilder m_pduBuilder;
+    private ResponseProcessor m_responseProcessor;
+    private final int m_maxVarsPerPdu;
+
+    private final PduSizeProfile m_profile;
+    private SizingPduBuilder m_sizingPduBuilder;
+    private int m_maxRepetitions;
+    private long m_sentAt = 0;
+    private int m_received;
+    private boolean m_tooBig;
+
+    protected PduWalker(InetAddress address, String name, int maxVarsPerPdu, int maxRepetitions, int maxRetries, CollectionTracker tracker) {
+        super(address, name, tracker);
+
+        getTracker().setMaxRepetitions(maxRepetitions);
+        getTracker().setMaxRetries(maxRetries);
+        
+        m_maxVarsPerPdu = maxVarsPerPdu;
+        m_maxRepetitions = maxRepetitions;
+        m_profile = PduSizeProfile.isEnabled() ? PduSizeProfile.get(address, maxVarsPerPdu, maxRepetitions) : null;
+    }
+
+    protected abstract WalkerPduBuilder createPduBuilder(int maxVarsPerPdu);
+    
+    @Override
+    public void start() {
+        if (m_profile != null) {
+            m_pduBuilder = createPduBuilder(m_profile.getMaxVarsPerPdu());
+            m_sizingPduBuilder = new SizingPduBuilder(m_pduBuilder);
+        } else {
+            m_pduBuilder = createPduBuilder(m_maxVarsPerPdu);
+        }
+        try {
+            buildAndSendNextPdu();
+        } catch (Throwable e) {
+            handleFatalError(e);
+        }
+    }
+    
+    public final int getMaxVarsPerPdu() {
+        return (m_pduBuilder == null ? m_maxVarsPerPdu : m_pduBuilder.getMaxVarsPerPdu());
+    }
+
+    protected void buildAndSendNextPdu() throws SnmpException {
+        if (m_profile != null) {
+            buildAndSendNextSizedPdu();
+        } else if (getTracker().isFinished()) {
+            handleDone();
+        } else {
+            m_pduBuilder.reset();
+            m_responseProcessor = getTracker().buildNextPdu(m_pduBuilder);
+            sendNextPdu(m_pduBuilder);
+        }
+    }
+
+    /**
+     * Learns from the response to the previous PDU, and sizes the next one from the profile of the agent.
+     */
+    private void buildAndSendNextSizedPdu() throws SnmpException {
+        if (m_sentAt != 0 && !m_tooBig) {
+            m_profile.onResponse(System.nanoTime() - m_sentAt, m_pduBuilder.isBulk(), m_sizingPduBuilder.m_varbinds,
+                                 m_sizingPduBuilder.getExpectedResponseSize(), m_received);
+        }
+        m_sentAt = 0;
+
+        if (getTracker().isFinished()) {
+            handleDone();
+        } else {
+            // Never go above the size the tracker fell back to after a tooBig error
+            m_pduBuilder.setMaxVarsPerPdu(Math.min(m_profile.getMaxVarsPerPdu(), m_sizingPduBuilder.m_maxVarsPerPduLimit));
+            final int maxRepetitions = m_profile.getMaxRepetitions();
+            if (maxRepetitions != m_maxRepetitions) {
+                getTracker().setMaxRepetitions(maxRepetitions);
+                m_maxRepetitions = maxRepetitions;
+            }
+            m_sizingPduBuilder.reset();
+            m_responseProcessor = getTracker().buildNextPdu(m_sizingPduBuilder);
+            m_received = 0;
+            m_tooBig = false;
+            m_sentAt = System.nanoTime();
+            sendNextPdu(m_pduBuilder);
+        }
+    }
+
+    protected abstract void sendNextPdu(WalkerPduBuilder pduBuilder) throws SnmpException;
+
+    @Override
+    protected void handleTimeout(String msg) {
+        if (m_profile != null) {
+            m_profile.onTimeout(m_pduBuilder != null && m_pduBuilder.isBulk());
+        }
+        super.handleTimeout(msg);
+    }
+
+    // processErrors returns true if we need to retry the request and false otherwise
+    protected boolean processErrors(int errorStatus, int errorIndex) throws SnmpException {
+        if (m_profile != null && ErrorStatus.fromStatus(errorStatus) == ErrorStatus.TOO_BIG) {
+            m_tooBig = true;
+            m_profile.onTooBig(m_pduBuilder.isBulk());
+        }
+        return m_responseProcessor.processErrors(errorStatus, errorIndex);
+    }
+    
+    protected void processResponse(SnmpObjId receivedOid, SnmpValue val) throws SnmpException {
+        m_received++;
+        m_responseProcessor.processResponse(receivedOid, val);
+    }
+}
@@ -75,7 +75,12 @@ public abstract class SnmpUtils {
     }
     
     public static SnmpWalker createWalker(SnmpAgentConfig agentConfig, String name, CollectionTracker tracker) {
-        return getStrategy().createWalker(agentConfig, name, createTooBigTracker(agentConfig, tracker));
+        final TooBigReportingAggregator aggregator = createTooBigTracker(agentConfig, tracker);
+        if (tracker instanceof TableTracker && TableWalkCoordinator.isEnabled()) {
+            // The walkers of the shards report their tooBig errors to the aggregator
+            return new TableWalkCoordinator(agentConfig, name, (TableTracker)tracker, aggregator, getStrategy(), TableWalkCoordinator.getWindow()).getWalker();
+        }
+        return getStrategy().createWalker(agentConfig, name, aggregator);
     }
 
     private static TooBigReportingAggregator createTooBigTracker(SnmpAgentConfig agentConfig, CollectionTracker tracker) {
@@ -102,7 +102,7 @@ public class TableTracker extends CollectionTracker implements RowCallback, RowR
 
         List<ResponseProcessor> processors = new ArrayList<ResponseProcessor>(pduBuilder.getMaxVarsPerPdu());
 
-        for (ColumnTracker ct : getNextColumnTrackers(pduBuilder.getMaxVarsPerPdu())) {
+        for (ColumnTracker ct : getNextColumnTrackers(m_columnTrackers, pduBuilder.getMaxVarsPerPdu())) {
             processors.add(ct.buildNextPdu(pduBuilder));
         }
 
@@ -131,9 +131,9 @@ public class TableTracker extends CollectionTracker implements RowCallback, RowR
         return m_tableResult.createRowResult(columnCount, instance);
     }
 
-    private List<ColumnTracker> getNextColumnTrackers(int maxVarsPerPdu) {
+    private static List<ColumnTracker> getNextColumnTrackers(List<ColumnTracker> columnTrackers, int maxVarsPerPdu) {
         List<ColumnTracker> trackers = new ArrayList<ColumnTracker>(maxVarsPerPdu);
-        List<ColumnTracker> sortedTrackerList = new ArrayList<ColumnTracker>(m_columnTrackers);
+        List<ColumnTracker> sortedTrackerList = new ArrayList<ColumnTracker>(columnTrackers);
 
         Collections.sort(sortedTrackerList, new Comparator<ColumnTracker>() {
             @Override
@@ -202,6 +202,162 @@ public class TableTracker extends CollectionTracker implements RowCallback, RowR
 
     }
 
+    /**
+     * Returns a tracker that walks all of the columns of this table, but only
+     * for the given number of PDUs.
+     */
+    CollectionTracker getBatchTracker(int maxPdus) {
+        return new ShardTracker(m_columnTrackers, maxPdus);
+    }
+
+    /**
+     * Splits the columns that are not finished yet into (at most) the given
+     * number of trackers that can be walked concurrently. The rows are still
+     * merged in order by the table result, since a row is only complete once
+     * every column has gone past it.
+     */
+    synchronized List<CollectionTracker> getShardTrackers(int count) {
+        final List<ColumnTracker> unfinished = m_columnTrackers.stream()
+                .filter(ct -> !ct.isFinished())
+                .collect(Collectors.toList());
+        final int shards = Math.min(count, unfinished.size());
+
+        final List<List<ColumnTracker>> columns = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            columns.add(new ArrayList<ColumnTracker>());
+        }
+        for (int i = 0; i < unfinished.size(); i++) {
+            columns.get(i % shards).add(unfinished.get(i));
+        }
+
+        final List<CollectionTracker> trackers = new ArrayList<>(shards);
+        for (List<ColumnTracker> c : columns) {
+            trackers.add(new ShardTracker(c, 0));
+        }
+        return trackers;
+    }
+
+    /**
+     * Walks a subset of the columns of the table. The results of all of the
+     * shards of a table are processed while holding the lock of the table,
+     * since they are received on the threads of different walkers.
+     */
+    private class ShardTracker extends CollectionTracker {
+        private final List<ColumnTracker> m_shardColumnTrackers;
+        private final int m_maxPdus;
+        private int m_pdus = 0;
+
+        private ShardTracker(List<ColumnTracker> columnTrackers, int maxPdus) {
+            m_shardColumnTrackers = columnTrackers;
+            m_maxPdus = maxPdus;
+        }
+
+        @Override
+        public void setMaxRepetitions(int maxRepetitions) {
+            synchronized (TableTracker.this) {
+                for (ColumnTracker child : m_shardColumnTrackers) {
+                    child.setMaxRepetitions(maxRepetitions);
+                }
+            }
+        }
+
+        @Override
+        public void setMaxRetries(int maxRetries) {
+            synchronized (TableTracker.this) {
+                for (ColumnTracker child : m_shardColumnTrackers) {
+                    child.setMaxRetries(maxRetries);
+                }
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            synchronized (TableTracker.this) {
+                if (super.isFinished()) {
+                    return true;
+                }
+                if (m_maxPdus > 0 && m_pdus >= m_maxPdus) {
+                    return true;
+                }
+                for (ColumnTracker ct : m_shardColumnTrackers) {
+                    if (!ct.isFinished()) {
+                        return false;
+                    }
+                }
+                setFinished(true);
+                return true;
+            }
+        }
+
+        @Override
+        public ResponseProcessor buildNextPdu(PduBuilder pduBuilder) throws SnmpException {
+            if (pduBuilder.getMaxVarsPerPdu() < 1) {
+                throw new IllegalArgumentException("maxVarsPerPdu < 1");
+            }
+
+            synchronized (TableTracker.this) {
+                m_pdus++;
+
+                final List<ResponseProcessor> processors = new ArrayList<ResponseProcessor>(pduBuilder.getMaxVarsPerPdu());
+                for (ColumnTracker ct : getNextColumnTrackers(m_shardColumnTrackers, pduBuilder.getMaxVarsPerPdu())) {
+                    processors.add(ct.buildNextPdu(pduBuilder));
+                }
+                final ResponseProcessor processor = new CombinedColumnResponseProcessor(processors);
+
+                return new ResponseProcessor() {
+                    @Override
+                    public void processResponse(SnmpObjId responseObjId, SnmpValue val) throws SnmpException {
+                        synchronized (TableTracker.this) {
+                            processor.processResponse(responseObjId, val);
+                        }
+                    }
+
+                    @Override
+                    public boolean processErrors(int errorStatus, int errorIndex) throws SnmpException {
+                        synchronized (TableTracker.this) {
+                            return processor.processErrors(errorStatus, errorIndex);
+                        }
+                    }
+                };
+            }
+        }
+
+        @Override
+        public List<WalkRequest> getWalkRequests() {
+            synchronized (TableTracker.this) {
+                return m_shardColumnTrackers.stream()
+                        .filter(ct -> !ct.isFinished())
+                        .map(ct -> {
+                            WalkRequest walkRequest = new WalkRequest(ct.getBase());
+                            walkRequest.setMaxRepetitions(ct.getMaxRepetitions());
+                            return walkRequest;
+                        })
+                        .collect(Collectors.toList());
+            }
+        }
+
+        @Override
+        public void handleWalkResponses(List<WalkResponse> responses) {
+            synchronized (TableTracker.this) {
+                // The columns are walked again from their base, skip the rows that were already stored
+                for (ColumnTracker ct : m_shardColumnTrackers) {
+                    if (ct.isFinished()) {
+                        continue;
+                    }
+                    final SnmpInstId last = ct.getLastInstance();
+                    responses.stream()
+                        .flatMap(res -> res.getResults().stream())
+                        .filter(res -> ct.getBase().equals(res.getBase()))
+                        .filter(res -> last == null || res.getInstance().compareTo(last) > 0)
+                        .forEach(TableTracker.this::storeResult);
+                    m_tableResult.columnFinished(ct.getBase());
+                    ct.setFinished(true);
+                }
+                setFinished(true);
+            }
+        }
+    }
+
     @Override
     public List<WalkRequest> getWalkRequests() {
         return m_columnTrackers.stream()
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.snmp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Walks a table with several PDUs in flight.
+ *
+ * The first batch of the table is walked like any other table. If the
+ * table isn't finished by then, its remaining columns are split into
+ * shards that are walked concurrently by their own walkers, so there are
+ * at most {@link #WINDOW_PROPERTY} PDUs in flight for the walk of the
+ * table. The window is not shared by the walks of the same agent. The rows
+ * are still passed to the {@link RowCallback} in order.
+ *
+ * The walk is started, awaited and closed through the {@link #getWalker() walker}
+ * of the coordinator.
+ */
+final class TableWalkCoordinator {
+    private static final Logger LOG = LoggerFactory.getLogger(TableWalkCoordinator.class);
+
+    /**
+     * The number of PDUs that a table walk keeps in flight, 1 disables pipelining.
+     */
+    public static final String WINDOW_PROPERTY = "org.opennms.netmgt.snmp.tableWalkWindow";
+
+    private final SnmpAgentConfig m_agentConfig;
+    private final TableTracker m_tracker;
+    private final CollectionTracker m_parent;
+    private final SnmpStrategy m_strategy;
+    private final int m_window;
+    private final Walker m_walker;
+
+    private final List<SnmpWalker> m_walkers = new ArrayList<>();
+    private boolean m_closed = false;
+    private final AtomicInteger m_pending = new AtomicInteger();
+    private final AtomicBoolean m_done = new AtomicBoolean(false);
+
+    /**
+     * @param parent the tracker to which the walkers of the shards report their errors
+     */
+    TableWalkCoordinator(SnmpAgentConfig agentConfig, String name, TableTracker tracker, CollectionTracker parent, SnmpStrategy strategy, int window) {
+        m_agentConfig = agentConfig;
+        m_tracker = tracker;
+        m_parent = parent;
+        m_strategy = strategy;
+        m_window = window;
+        m_walker = new Walker(name);
+    }
+
+    public static int getWindow() {
+        return Math.max(1, Integer.getInteger(WINDOW_PROPERTY, 1));
+    }
+
+    public static boolean isEnabled() {
+        return getWindow() > 1;
+    }
+
+    /**
+     * Returns the walker that drives the walk of the whole table.
+     */
+    SnmpWalker getWalker() {
+        return m_walker;
+    }
+
+    private void start() {
+        try {
+            walk(m_tracker.getBatchTracker(1), this::batchCompleted);
+        } catch (Throwable e) {
+            walkFailed(e);
+        }
+    }
+
+    private void batchCompleted(SnmpWalker walker, Throwable t) {
+        if (t != null) {
+            walkFailed(walker);
+            return;
+        }
+
+        final List<CollectionTracker> shards = m_tracker.getShardTrackers(m_window);
+        if (shards.isEmpty()) {
+            tableCompleted();
+            return;
+        }
+
+        LOG.debug("Walking the remaining columns of table {} for {} in {} shards", m_walker.getName(), m_agentConfig.getAddress(), shards.size());
+        m_pending.set(shards.size());
+        try {
+            for (CollectionTracker shard : shards) {
+                walk(shard, this::shardCompleted);
+            }
+        } catch (Throwable e) {
+            walkFailed(e);
+        }
+    }
+
+    private void shardCompleted(SnmpWalker walker, Throwable t) {
+        if (t != null) {
+            walkFailed(walker);
+        } else if (m_pending.decrementAndGet() == 0) {
+            tableCompleted();
+        }
+    }
+
+    private void tableCompleted() {
+        if (m_done.compareAndSet(false, true)) {
+            // Flushes the rows that are still pending
+            m_tracker.isFinished();
+            m_walker.handleDone();
+        }
+    }
+
+    private void walkFailed(Throwable t) {
+        if (m_done.compareAndSet(false, true)) {
+            m_walker.handleFatalError(t);
+        }
+    }
+
+    private void walkFailed(SnmpWalker walker) {
+        if (m_done.compareAndSet(false, true)) {
+            if (walker.timedOut()) {
+                m_walker.handleTimeout(walker.getErrorMessage());
+            } else {
+                m_walker.handleError(walker.getErrorMessage(), walker.getErrorThrowable());
+            }
+        }
+    }
+
+    private void walk(CollectionTracker tracker, SnmpWalkCallback callback) {
+        // Handles the errors of the shard like any other walk
+        final SnmpWalker walker = m_strategy.createWalker(m_agentConfig, m_walker.getName(), new AggregateTracker(new CollectionTracker[] { tracker }, m_parent));
+        walker.setCallback(callback);
+        synchronized (m_walkers) {
+            if (m_closed) {
+                // The table walker was closed while the previous walk was in flight
+                walker.close();
+                return;
+            }
+            m_walkers.add(walker);
+        }
+        walker.start();
+    }
+
+    private void close() {
+        synchronized (m_walkers) {
+            m_closed = true;
+            for (SnmpWalker walker : m_walkers) {
+                walker.close();
+            }
+            m_walkers.clear();
+        }
+    }
+
+    /**
+     * The walker of the whole table, it completes once the batch and all of the shards are walked.
+     */
+    private final class Walker extends SnmpWalker {
+        private Walker(String name) {
+            super(m_agentConfig.getAddress(), name, m_tracker);
+        }
+
+        @Override
+        public void start() {
+            TableWalkCoordinator.this.start();
+        }
+
+        @Override
+        public void close() {
+            TableWalkCoordinator.this.close();
+        }
+    }
+}
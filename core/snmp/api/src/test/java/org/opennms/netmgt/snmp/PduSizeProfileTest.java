@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.snmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PduSizeProfileTest {
+
+    private static final SnmpObjId IF_INDEX = SnmpObjId.get(".1.3.6.1.2.1.2.2.1.1");
+
+    private static final SnmpObjId IF_DESCR = SnmpObjId.get(".1.3.6.1.2.1.2.2.1.2");
+
+    @Before
+    public void setUp() {
+        System.setProperty(PduSizeProfile.ENABLED_PROPERTY, "true");
+        PduSizeProfile.clear();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(PduSizeProfile.ENABLED_PROPERTY);
+        PduSizeProfile.clear();
+    }
+
+    @Test
+    public void canIncreaseAdditivelyAndDecreaseMultiplicatively() {
+        final PduSizeProfile profile = new PduSizeProfile(10, 2, 20, 8, 1000);
+        final long fast = TimeUnit.MILLISECONDS.toNanos(10);
+
+        // Full responses increase the repetitions up to their limit, then the varbinds
+        for (int i = 0; i < 6; i++) {
+            profile.onResponse(fast, true, 10, 10 * profile.getMaxRepetitions(), 10 * profile.getMaxRepetitions());
+        }
+        assertEquals(8, profile.getMaxRepetitions());
+        assertEquals(10, profile.getMaxVarsPerPdu());
+        profile.onResponse(fast, true, 10, 80, 80);
+        assertEquals(11, profile.getMaxVarsPerPdu());
+
+        // Partial responses to partial PDUs, like the end of a table, change nothing
+        profile.onResponse(fast, true, 3, 24, 5);
+        assertEquals(8, profile.getMaxRepetitions());
+        assertEquals(11, profile.getMaxVarsPerPdu());
+
+        // Errors halve the repetitions first, then the varbinds
+        profile.onTooBig(true);
+        assertEquals(4, profile.getMaxRepetitions());
+        profile.onTimeout(true);
+        profile.onTooBig(true);
+        assertEquals(1, profile.getMaxRepetitions());
+        assertEquals(11, profile.getMaxVarsPerPdu());
+        profile.onTooBig(true);
+        assertEquals(5, profile.getMaxVarsPerPdu());
+
+        // So does a slow agent
+        profile.onResponse(TimeUnit.SECONDS.toNanos(2), true, 5, 5, 5);
+        assertEquals(2, profile.getMaxVarsPerPdu());
+    }
+
+    @Test
+    public void canSizeGetNextRequests() {
+        final PduSizeProfile profile = new PduSizeProfile(10, 2, 20, 8, 1000);
+        final long fast = TimeUnit.MILLISECONDS.toNanos(10);
+
+        // Without repetitions, full responses increase the varbinds
+        profile.onResponse(fast, false, 10, 10, 10);
+        assertEquals(2, profile.getMaxRepetitions());
+        assertEquals(11, profile.getMaxVarsPerPdu());
+
+        // And errors halve them, whatever the repetitions
+        profile.onTooBig(false);
+        assertEquals(2, profile.getMaxRepetitions());
+        assertEquals(5, profile.getMaxVarsPerPdu());
+        profile.onTimeout(false);
+        assertEquals(2, profile.getMaxVarsPerPdu());
+    }
+
+    @Test
+    public void canResetProfileWhenConfigurationChanges() throws Exception {
+        final InetAddress address = InetAddress.getByName("127.0.0.1");
+        final PduSizeProfile profile = PduSizeProfile.get(address, 10, 2);
+        profile.onTooBig(true);
+
+        assertTrue(profile == PduSizeProfile.get(address, 10, 2));
+        assertEquals(1, PduSizeProfile.get(address, 10, 2).getMaxRepetitions());
+        assertFalse(profile == PduSizeProfile.get(address, 20, 2));
+        assertEquals(2, PduSizeProfile.get(address, 20, 2).getMaxRepetitions());
+    }
+
+    @Test
+    public void canConvergeInFewerRoundTrips() throws Exception {
+        // An agent with a 500 rows table that can't respond with more than 60 varbinds
+        final MockAgent agent = new MockAgent(500, 60);
+
+        final MockWalker first = walk(agent);
+        assertEquals(1000, first.getResults());
+        final MockWalker second = walk(agent);
+        assertEquals(1000, second.getResults());
+
+        // The second walk starts from the sizes learned by the first one
+        assertTrue("The second walk took " + second.getRoundTrips() + " round trips, the first one " + first.getRoundTrips(),
+                   second.getRoundTrips() < first.getRoundTrips());
+        final PduSizeProfile profile = PduSizeProfile.get(InetAddress.getByName("127.0.0.1"), 10, 2);
+        assertTrue(profile.getMaxRepetitions() * 2 <= 60);
+        assertTrue(profile.getMaxRepetitions() > 2);
+    }
+
+    @Test
+    public void canKeepVarbindsReducedByTracker() throws Exception {
+        // A GETNEXT agent that can't respond with more than 5 varbinds, walked with 8 columns
+        final MockAgent agent = new MockAgent(20, 5);
+        final GatheringTracker results = new GatheringTracker();
+        final Collectable[] columns = new Collectable[8];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new ColumnTracker(SnmpObjId.get(".1.3.6.1.2.1.2.2.1." + (i + 1)), 2, 0);
+        }
+        final MockWalker walker = new MockWalker(agent, new AggregateTracker(columns, results), results);
+        walker.m_bulk = false;
+        walker.start();
+        walker.waitFor();
+        assertFalse(walker.getErrorMessage(), walker.failed());
+
+        // A single tooBig halves the varbinds, not the repetitions, and the walker never goes above the tracker's size again
+        assertEquals(1, walker.getTooBigs());
+        assertEquals(5, walker.getMaxVarsPerPdu());
+        assertEquals(2, PduSizeProfile.get(InetAddress.getByName("127.0.0.1"), 10, 2).getMaxRepetitions());
+    }
+
+    private static MockWalker walk(final MockAgent agent) throws Exception {
+        final GatheringTracker results = new GatheringTracker();
+        final AggregateTracker tracker = new AggregateTracker(new Collectable[] {
+                new ColumnTracker(IF_INDEX, 2, 0),
+                new ColumnTracker(IF_DESCR, 2, 0)
+        }, results);
+        final MockWalker walker = new MockWalker(agent, tracker, results);
+        walker.start();
+        walker.waitFor();
+        assertFalse(walker.getErrorMessage(), walker.failed());
+        return walker;
+    }
+
+    private static class MockAgent {
+        private final NavigableMap<SnmpObjId, SnmpValue> m_values = new TreeMap<>();
+        private final int m_maxResponseSize;
+
+        private MockAgent(final int rows, final int maxResponseSize) {
+            final SnmpValue value = mock(SnmpValue.class);
+            for (int i = 1; i <= rows; i++) {
+                m_values.put(SnmpObjId.get(IF_INDEX, String.valueOf(i)), value);
+                m_values.put(SnmpObjId.get(IF_DESCR, String.valueOf(i)), value);
+            }
+            m_maxResponseSize = maxResponseSize;
+        }
+    }
+
+    private static class MockWalker extends PduWalker {
+        private final MockAgent m_agent;
+        private final GatheringTracker m_results;
+        private final SnmpValue m_endOfMib;
+        private final List<SnmpObjId> m_oids = new ArrayList<>();
+        private int m_maxRepetitions;
+        private boolean m_bulk = true;
+        private int m_roundTrips = 0;
+        private int m_tooBigs = 0;
+
+        private MockWalker(final MockAgent agent, final CollectionTracker tracker, final GatheringTracker results) throws Exception {
+            super(InetAddress.getByName("127.0.0.1"), "test", 10, 2, 0, tracker);
+            m_agent = agent;
+            m_results = results;
+            m_endOfMib = mock(SnmpValue.class);
+            when(m_endOfMib.isEndOfMib()).thenReturn(true);
+        }
+
+        private int getRoundTrips() {
+            return m_roundTrips;
+        }
+
+        private int getTooBigs() {
+            return m_tooBigs;
+        }
+
+        private int getResults() {
+            return m_results.getResults().size();
+        }
+
+        @Override
+        protected WalkerPduBuilder createPduBuilder(final int maxVarsPerPdu) {
+            return new WalkerPduBuilder(maxVarsPerPdu) {
+                @Override
+                public boolean isBulk() {
+                    return m_bulk;
+                }
+
+                @Override
+                public void reset() {
+                    m_oids.clear();
+                }
+
+                @Override
+                public void addOid(final SnmpObjId snmpObjId) {
+                    m_oids.add(snmpObjId);
+                }
+
+                @Override
+                public void setNonRepeaters(final int numNonRepeaters) {
+                    // The trackers of this test don't use non-repeaters
+                }
+
+                @Override
+                public void setMaxRepetitions(final int maxRepetitions) {
+                    m_maxRepetitions = maxRepetitions;
+                }
+            };
+        }
+
+        @Override
+        protected void sendNextPdu(final WalkerPduBuilder pduBuilder) throws SnmpException {
+            m_roundTrips++;
+
+            // Answer like a GETBULK, one row of the requested columns per repetition, or like a GETNEXT
+            final List<SnmpObjId> oids = new ArrayList<>();
+            final List<SnmpValue> values = new ArrayList<>();
+            final List<SnmpObjId> last = new ArrayList<>(m_oids);
+            for (int r = 0; r < (m_bulk ? m_maxRepetitions : 1); r++) {
+                for (int i = 0; i < last.size(); i++) {
+                    final SnmpObjId next = m_agent.m_values.higherKey(last.get(i));
+                    oids.add(next == null ? last.get(i) : next);
+                    values.add(next == null ? m_endOfMib : m_agent.m_values.get(next));
+                    last.set(i, next == null ? last.get(i) : next);
+                }
+            }
+
+            if (oids.size() > m_agent.m_maxResponseSize) {
+                m_tooBigs++;
+                if (processErrors(ErrorStatus.TOO_BIG.ordinal(), 0)) {
+                    buildAndSendNextPdu();
+                }
+                return;
+            }
+            processErrors(ErrorStatus.NO_ERROR.ordinal(), 0);
+            for (int i = 0; i < oids.size(); i++) {
+                processResponse(oids.get(i), values.get(i));
+            }
+            buildAndSendNextPdu();
+        }
+
+        @Override
+        public void close() {
+            // pass
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.snmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.netmgt.snmp.proxy.WalkRequest;
+import org.opennms.netmgt.snmp.proxy.WalkResponse;
+
+public class TableWalkCoordinatorTest {
+
+    private static final SnmpObjId IF_ENTRY = SnmpObjId.get(".1.3.6.1.2.1.2.2.1");
+
+    private static final SnmpObjId[] COLUMNS = new SnmpObjId[] {
+            SnmpObjId.get(IF_ENTRY, "1"),
+            SnmpObjId.get(IF_ENTRY, "2"),
+            SnmpObjId.get(IF_ENTRY, "3"),
+            SnmpObjId.get(IF_ENTRY, "4")
+    };
+
+    private ScheduledExecutorService m_executor;
+
+    private SnmpAgentConfig m_agentConfig;
+
+    @Before
+    public void setUp() throws Exception {
+        m_executor = Executors.newScheduledThreadPool(4);
+        m_agentConfig = new SnmpAgentConfig(InetAddress.getByName("127.0.0.1"));
+        m_agentConfig.setMaxVarsPerPdu(10);
+        m_agentConfig.setMaxRepetitions(5);
+        m_agentConfig.setRetries(0);
+    }
+
+    @After
+    public void tearDown() {
+        m_executor.shutdownNow();
+    }
+
+    @Test
+    public void canWalkTableWithSeveralPdusInFlight() throws Exception {
+        final MockAgent agent = new MockAgent(200, null);
+        final List<SnmpRowResult> rows = Collections.synchronizedList(new ArrayList<>());
+        final TableTracker tracker = new TableTracker(rows::add, COLUMNS);
+
+        try (SnmpWalker walker = createWalker(tracker, agent)) {
+            walker.start();
+            assertTrue(walker.waitFor(10000));
+            assertFalse(walker.getErrorMessage(), walker.failed());
+        }
+
+        // Every row is complete, and in order
+        assertEquals(200, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(new SnmpInstId(i + 1), rows.get(i).getInstance());
+            assertEquals(COLUMNS.length, rows.get(i).getResults().size());
+        }
+        assertTrue(tracker.isFinished());
+
+        // The window is filled, but never exceeded
+        assertEquals(2, agent.m_maxInFlight.get());
+    }
+
+    @Test
+    public void canReportTimeouts() throws Exception {
+        final MockAgent agent = new MockAgent(200, COLUMNS[3]);
+        final TableTracker tracker = new TableTracker(COLUMNS);
+
+        try (SnmpWalker walker = createWalker(tracker, agent)) {
+            walker.start();
+            assertTrue(walker.waitFor(10000));
+            assertTrue(walker.failed());
+            assertTrue(walker.timedOut());
+        }
+    }
+
+    @Test
+    public void canWalkShardsRemotely() throws Exception {
+        final MockAgent agent = new MockAgent(200, null);
+        final List<SnmpRowResult> rows = Collections.synchronizedList(new ArrayList<>());
+        final TableTracker tracker = new TableTracker(rows::add, COLUMNS);
+
+        // The first batch is walked locally, then the shards are walked from the base of their columns
+        try (SnmpWalker walker = new MockWalker(agent, new AggregateTracker(new CollectionTracker[] { tracker.getBatchTracker(1) }))) {
+            walker.start();
+            assertTrue(walker.waitFor(10000));
+        }
+        final List<CollectionTracker> shards = tracker.getShardTrackers(2);
+        assertEquals(2, shards.size());
+        for (CollectionTracker shard : shards) {
+            final List<WalkResponse> responses = new ArrayList<>();
+            for (WalkRequest request : shard.getWalkRequests()) {
+                final List<SnmpResult> results = new ArrayList<>();
+                agent.m_values.subMap(request.getBaseOid(), false, SnmpObjId.get(request.getBaseOid(), "999999"), false)
+                        .forEach((oid, value) -> results.add(new SnmpResult(request.getBaseOid(), oid.getInstance(request.getBaseOid()), value)));
+                responses.add(new WalkResponse(results));
+            }
+            shard.handleWalkResponses(responses);
+            assertTrue(shard.isFinished());
+        }
+
+        // Every row is complete, once, and in order
+        assertTrue(tracker.isFinished());
+        assertEquals(200, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(new SnmpInstId(i + 1), rows.get(i).getInstance());
+            assertEquals(COLUMNS.length, rows.get(i).getResults().size());
+        }
+    }
+
+    @Test
+    public void doesNotStartShardsOnceClosed() throws Exception {
+        final MockAgent agent = new MockAgent(200, null);
+        final TableTracker tracker = new TableTracker(COLUMNS);
+        final List<MockWalker> walkers = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch release = new CountDownLatch(1);
+        agent.m_release = release;
+
+        // Close the table walker while the first batch is still in flight
+        final SnmpWalker walker = createWalker(tracker, agent, walkers);
+        walker.start();
+        walker.close();
+        release.countDown();
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while ((walkers.size() < 3 || !walkers.stream().allMatch(w -> w.m_closed)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // The walkers of the shards are closed without being started
+        assertEquals(3, walkers.size());
+        for (MockWalker shardWalker : walkers) {
+            assertTrue(shardWalker.m_closed);
+        }
+        for (MockWalker shardWalker : walkers.subList(1, walkers.size())) {
+            assertEquals(0, shardWalker.m_sent.get());
+        }
+    }
+
+    private SnmpWalker createWalker(final TableTracker tracker, final MockAgent agent) {
+        return createWalker(tracker, agent, new ArrayList<>());
+    }
+
+    private SnmpWalker createWalker(final TableTracker tracker, final MockAgent agent, final List<MockWalker> walkers) {
+        final AggregateTracker parent = new AggregateTracker(new CollectionTracker[] { tracker });
+        return new TableWalkCoordinator(m_agentConfig, "test", tracker, parent, createStrategy(agent, walkers), 2).getWalker();
+    }
+
+    private SnmpStrategy createStrategy(final MockAgent agent, final List<MockWalker> walkers) {
+        final SnmpStrategy strategy = mock(SnmpStrategy.class);
+        when(strategy.createWalker(any(SnmpAgentConfig.class), any(String.class), any(CollectionTracker.class)))
+                .thenAnswer(invocation -> {
+                    final MockWalker walker = new MockWalker(agent, invocation.getArgument(2));
+                    walkers.add(walker);
+                    return walker;
+                });
+        return strategy;
+    }
+
+    private static class MockAgent {
+        private final NavigableMap<SnmpObjId, SnmpValue> m_values = new TreeMap<>();
+        private final AtomicInteger m_inFlight = new AtomicInteger();
+        private final AtomicInteger m_maxInFlight = new AtomicInteger();
+        private final SnmpObjId m_unresponsive;
+        private CountDownLatch m_release;
+
+        private MockAgent(final int rows, final SnmpObjId unresponsive) {
+            final SnmpValue value = mock(SnmpValue.class);
+            for (SnmpObjId column : COLUMNS) {
+                for (int i = 1; i <= rows; i++) {
+                    m_values.put(SnmpObjId.get(column, String.valueOf(i)), value);
+                }
+            }
+            m_unresponsive = unresponsive;
+        }
+    }
+
+    private class MockWalker extends PduWalker {
+        private final MockAgent m_agent;
+        private final SnmpValue m_endOfMib;
+        private final List<SnmpObjId> m_oids = new ArrayList<>();
+        private final AtomicInteger m_sent = new AtomicInteger();
+        private volatile boolean m_closed = false;
+        private int m_maxRepetitions;
+
+        private MockWalker(final MockAgent agent, final CollectionTracker tracker) throws Exception {
+            super(InetAddress.getByName("127.0.0.1"), "test", 10, 5, 0, tracker);
+            m_agent = agent;
+            m_endOfMib = mock(SnmpValue.class);
+            when(m_endOfMib.isEndOfMib()).thenReturn(true);
+        }
+
+        @Override
+        protected WalkerPduBuilder createPduBuilder(final int maxVarsPerPdu) {
+            return new WalkerPduBuilder(maxVarsPerPdu) {
+                @Override
+                public void reset() {
+                    m_oids.clear();
+                }
+
+                @Override
+                public void addOid(final SnmpObjId snmpObjId) {
+                    m_oids.add(snmpObjId);
+                }
+
+                @Override
+                public void setNonRepeaters(final int numNonRepeaters) {
+                    // The trackers of this test don't use non-repeaters
+                }
+
+                @Override
+                public void setMaxRepetitions(final int maxRepetitions) {
+                    m_maxRepetitions = maxRepetitions;
+                }
+            };
+        }
+
+        @Override
+        protected void sendNextPdu(final WalkerPduBuilder pduBuilder) throws SnmpException {
+            m_sent.incrementAndGet();
+            m_agent.m_maxInFlight.accumulateAndGet(m_agent.m_inFlight.incrementAndGet(), Math::max);
+            final List<SnmpObjId> requested = new ArrayList<>(m_oids);
+            m_executor.schedule(() -> respond(requested), 2, TimeUnit.MILLISECONDS);
+        }
+
+        private void respond(final List<SnmpObjId> requested) {
+            m_agent.m_inFlight.decrementAndGet();
+            try {
+                if (m_agent.m_release != null) {
+                    m_agent.m_release.await();
+                }
+                if (m_agent.m_unresponsive != null && requested.stream().anyMatch(m_agent.m_unresponsive::isPrefixOf)) {
+                    handleTimeout("No response");
+                    return;
+                }
+
+                // Answer like a GETBULK, one row of the requested columns per repetition
+                processErrors(ErrorStatus.NO_ERROR.ordinal(), 0);
+                final List<SnmpObjId> last = new ArrayList<>(requested);
+                for (int r = 0; r < m_maxRepetitions; r++) {
+                    for (int i = 0; i < last.size(); i++) {
+                        final SnmpObjId next = m_agent.m_values.higherKey(last.get(i));
+                        processResponse(next == null ? last.get(i) : next, next == null ? m_endOfMib : m_agent.m_values.get(next));
+                        last.set(i, next == null ? last.get(i) : next);
+                    }
+                }
+                buildAndSendNextPdu();
+            } catch (final Throwable t) {
+                handleFatalError(t);
+            }
+        }
+
+        @Override
+        public void close() {
+            m_closed = true;
+        }
+    }
+}
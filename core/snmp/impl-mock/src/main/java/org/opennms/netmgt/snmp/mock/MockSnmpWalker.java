@@ -36,16 +36,16 @@ import java.util.concurrent.Executors;
 import org.opennms.core.concurrent.LogPreservingThreadFactory;
 import org.opennms.netmgt.snmp.CollectionTracker;
 import org.opennms.netmgt.snmp.ErrorStatus;
+import org.opennms.netmgt.snmp.PduWalker;
 import org.opennms.netmgt.snmp.SnmpAgentAddress;
 import org.opennms.netmgt.snmp.SnmpAgentConfig;
 import org.opennms.netmgt.snmp.SnmpException;
 import org.opennms.netmgt.snmp.SnmpObjId;
 import org.opennms.netmgt.snmp.SnmpValue;
-import org.opennms.netmgt.snmp.SnmpWalker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class MockSnmpWalker extends SnmpWalker {
+public class MockSnmpWalker extends PduWalker {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(MockSnmpWalker.class);
 
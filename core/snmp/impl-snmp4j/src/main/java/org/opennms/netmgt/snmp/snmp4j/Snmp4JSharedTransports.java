@@ -0,0 +1,480 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.snmp.snmp4j;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.MessageDispatcher;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.UserTarget;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.mp.MPv1;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.security.SecurityProtocols;
+import org.snmp4j.security.USM;
+import org.snmp4j.security.UsmUser;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+import org.snmp4j.util.MultiThreadedMessageDispatcher;
+import org.snmp4j.util.ThreadPool;
+
+/**
+ * A small, fixed pool of SNMP sessions that are shared by all the requests, as an alternative
+ * to creating a session, with its own UDP transport, dispatcher and listen thread, for every
+ * request or walk.
+ *
+ * <p>Each agent is always served by the same session, so that its engine ID is only discovered
+ * once. The responses are matched to their requests by request ID by the session, and handed
+ * to a shared pool of threads. All the sessions share a single USM, in which the SNMPv3 users
+ * are added for the engine ID of each agent: this allows agents to use the same security name
+ * with different credentials, and the keys are only localized once per agent.</p>
+ *
+ * <p>The number of requests sent concurrently to an agent is limited. The requests above that
+ * limit wait in a queue of the agent, and are sent as the responses come back, without blocking
+ * the caller.</p>
+ */
+public class Snmp4JSharedTransports implements Snmp4JSharedTransportsMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Snmp4JSharedTransports.class);
+
+    /**
+     * The number of shared transports, 0 to create a session per request.
+     */
+    public static final String TRANSPORTS_PROPERTY = "org.opennms.snmp.snmp4j.sharedTransports";
+
+    /**
+     * The number of threads that process the responses received by the shared transports.
+     */
+    public static final String THREADS_PROPERTY = "org.opennms.snmp.snmp4j.sharedTransportThreads";
+
+    /**
+     * The maximum number of requests sent concurrently to an agent.
+     */
+    public static final String MAX_REQUESTS_PER_AGENT_PROPERTY = "org.opennms.snmp.snmp4j.maxRequestsPerAgent";
+
+    private static final String OBJECT_NAME = "OpenNMS:Name=Snmp4JSharedTransports";
+
+    private static volatile Snmp4JSharedTransports s_instance;
+
+    private final Snmp[] m_sessions;
+
+    private final ThreadPool m_threads;
+
+    private final USM m_usm;
+
+    private final int m_maxRequestsPerAgent;
+
+    /**
+     * The agents that have requests in flight.
+     */
+    private final ConcurrentHashMap<Address, AgentRequests> m_agents = new ConcurrentHashMap<>();
+
+    /**
+     * The credentials of the users added to the USM, by engine ID and security name.
+     */
+    private final ConcurrentHashMap<UserKey, UsmUser> m_users = new ConcurrentHashMap<>();
+
+    private final AtomicInteger m_inFlight = new AtomicInteger();
+
+    private final AtomicInteger m_pending = new AtomicInteger();
+
+    private final LongAdder m_requestsSent = new LongAdder();
+
+    /**
+     * Returns true if the requests use the shared transports.
+     *
+     * @return a boolean.
+     */
+    public static boolean isEnabled() {
+        return Integer.getInteger(TRANSPORTS_PROPERTY, 0) > 0;
+    }
+
+    /**
+     * Returns the shared transports, configured by the system properties. They are
+     * created, and registered as an MBean, the first time they are used.
+     *
+     * @return the shared transports
+     */
+    public static Snmp4JSharedTransports getInstance() {
+        if (s_instance == null) {
+            synchronized (Snmp4JSharedTransports.class) {
+                if (s_instance == null) {
+                    final Snmp4JSharedTransports instance;
+                    try {
+                        instance = new Snmp4JSharedTransports(Integer.getInteger(TRANSPORTS_PROPERTY, 0),
+                                                              Integer.getInteger(THREADS_PROPERTY, 8),
+                                                              Integer.getInteger(MAX_REQUESTS_PER_AGENT_PROPERTY, 4));
+                    } catch (final IOException e) {
+                        throw new IllegalStateException("Could not create the shared SNMP transports", e);
+                    }
+                    try {
+                        ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+                    } catch (final Exception e) {
+                        LOG.warn("Could not register the shared SNMP transports as {}", OBJECT_NAME, e);
+                    }
+                    s_instance = instance;
+                }
+            }
+        }
+        return s_instance;
+    }
+
+    /**
+     * Creates the shared transports, and starts listening.
+     *
+     * @param transports
+     *            The number of transports.
+     * @param threads
+     *            The number of threads that process the responses.
+     * @param maxRequestsPerAgent
+     *            The maximum number of requests sent concurrently to an agent.
+     * @throws IOException if a transport could not be bound
+     */
+    public Snmp4JSharedTransports(final int transports, final int threads, final int maxRequestsPerAgent) throws IOException {
+        if (transports < 1 || threads < 1 || maxRequestsPerAgent < 1) {
+            throw new IllegalArgumentException("The number of transports, threads and requests per agent must be positive");
+        }
+        m_maxRequestsPerAgent = maxRequestsPerAgent;
+        m_usm = new USM(SecurityProtocols.getInstance(), new OctetString(MPv3.createLocalEngineID()), 0);
+        m_threads = ThreadPool.create("SNMP4J-Shared-Transport", threads);
+        m_sessions = new Snmp[transports];
+        try {
+            for (int i = 0; i < transports; i++) {
+                final MessageDispatcher disp = new MultiThreadedMessageDispatcher(m_threads, new MessageDispatcherImpl());
+                disp.addMessageProcessingModel(new MPv1());
+                disp.addMessageProcessingModel(new MPv2c());
+                disp.addMessageProcessingModel(new MPv3(m_usm));
+                m_sessions[i] = new Snmp(disp, new DefaultUdpTransportMapping());
+                m_sessions[i].listen();
+            }
+        } catch (final IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a request to the agent, and hands the response, or the timeout, to the listener.
+     * If the maximum number of requests are already in flight for the agent, the request is
+     * queued, and the listener is given an event with the error if it can't be sent later.
+     *
+     * @param agentConfig
+     *            The configuration of the agent.
+     * @param pdu
+     *            The request.
+     * @param target
+     *            The target of the request, as returned by {@link Snmp4JAgentConfig#getTarget()}.
+     * @param listener
+     *            The listener of the response.
+     * @throws IOException if the request could not be sent immediately
+     */
+    public void send(final Snmp4JAgentConfig agentConfig, final PDU pdu, final Target target, final ResponseListener listener) throws IOException {
+        final Snmp session = getSession(target.getAddress());
+        if (target.getVersion() == SnmpConstants.version3 && !addUser(session, agentConfig, target)) {
+            // The agent didn't answer the engine ID discovery, report a timeout
+            listener.onResponse(new ResponseEvent(session, target.getAddress(), pdu, null, null));
+            return;
+        }
+
+        final Request request = new Request(session, pdu, target, listener);
+        if (acquire(target.getAddress(), request)) {
+            request.send();
+        }
+    }
+
+    /**
+     * Sends a request for which no response is expected, such as a trap.
+     *
+     * @param agentConfig
+     *            The configuration of the agent.
+     * @param pdu
+     *            The request.
+     * @param target
+     *            The target of the request.
+     * @throws IOException if the request could not be sent
+     */
+    public void send(final Snmp4JAgentConfig agentConfig, final PDU pdu, final Target target) throws IOException {
+        if (target.getVersion() == SnmpConstants.version3) {
+            // We are the authoritative engine of the messages that are not answered, the keys are localized for our engine ID
+            addUser(agentConfig, m_usm.getLocalEngineID());
+        }
+        getSession(target.getAddress()).send(pdu, target);
+        m_requestsSent.increment();
+    }
+
+    private Snmp getSession(final Address address) {
+        return m_sessions[Math.floorMod(address.hashCode(), m_sessions.length)];
+    }
+
+    /**
+     * Adds the user of the agent to the USM, for the engine ID of the agent.
+     *
+     * @return false if the engine ID of the agent could not be discovered
+     */
+    private boolean addUser(final Snmp session, final Snmp4JAgentConfig agentConfig, final Target target) {
+        final MPv3 mpv3 = (MPv3) session.getMessageProcessingModel(MPv3.ID);
+        OctetString engineId = mpv3.getEngineID(target.getAddress());
+        if (engineId == null) {
+            final byte[] discovered = session.discoverAuthoritativeEngineID(target.getAddress(), target.getTimeout());
+            if (discovered == null) {
+                LOG.debug("Could not discover the engine ID of {}", target.getAddress());
+                return false;
+            }
+            engineId = new OctetString(discovered);
+            mpv3.addEngineID(target.getAddress(), engineId);
+        }
+        ((UserTarget) target).setAuthoritativeEngineID(engineId.getValue());
+
+        addUser(agentConfig, engineId);
+        return true;
+    }
+
+    /**
+     * Adds the user of the agent to the USM, for the given engine ID.
+     */
+    private void addUser(final Snmp4JAgentConfig agentConfig, final OctetString engineId) {
+        final OctetString securityName = agentConfig.getSecurityName();
+        final UsmUser user = new UsmUser(securityName,
+                                         agentConfig.getAuthProtocol(),
+                                         agentConfig.getAuthPassPhrase(),
+                                         agentConfig.getPrivProtocol(),
+                                         agentConfig.getPrivPassPhrase());
+        m_users.compute(new UserKey(engineId, securityName), (key, current) -> {
+            if (current == null || !sameCredentials(current, user)) {
+                // Localizes the keys for the engine ID, replacing the previous credentials if they changed
+                m_usm.addUser(securityName, engineId, user);
+            }
+            return user;
+        });
+    }
+
+    private static boolean sameCredentials(final UsmUser a, final UsmUser b) {
+        return Objects.equals(a.getAuthenticationProtocol(), b.getAuthenticationProtocol())
+                && Objects.equals(a.getAuthenticationPassphrase(), b.getAuthenticationPassphrase())
+                && Objects.equals(a.getPrivacyProtocol(), b.getPrivacyProtocol())
+                && Objects.equals(a.getPrivacyPassphrase(), b.getPrivacyPassphrase());
+    }
+
+    /**
+     * Takes a request slot of the agent, or queues the request if there are none left.
+     *
+     * @return true if the request can be sent now
+     */
+    private boolean acquire(final Address address, final Request request) {
+        final boolean[] acquired = new boolean[1];
+        m_agents.compute(address, (key, agent) -> {
+            if (agent == null) {
+                agent = new AgentRequests();
+            }
+            if (agent.m_inFlight < m_maxRequestsPerAgent) {
+                agent.m_inFlight++;
+                acquired[0] = true;
+            } else {
+                agent.m_pending.add(request);
+            }
+            return agent;
+        });
+        if (acquired[0]) {
+            m_inFlight.incrementAndGet();
+        } else {
+            m_pending.incrementAndGet();
+        }
+        return acquired[0];
+    }
+
+    /**
+     * Releases a request slot of the agent, or hands it to the next queued request.
+     */
+    private void release(final Address address) {
+        final Request[] next = new Request[1];
+        m_agents.computeIfPresent(address, (key, agent) -> {
+            next[0] = agent.m_pending.poll();
+            if (next[0] != null) {
+                return agent;
+            }
+            agent.m_inFlight--;
+            return agent.m_inFlight == 0 ? null : agent;
+        });
+        if (next[0] == null) {
+            m_inFlight.decrementAndGet();
+        } else {
+            m_pending.decrementAndGet();
+            next[0].sendLater();
+        }
+    }
+
+    /**
+     * Closes the transports.
+     */
+    public void close() {
+        for (final Snmp session : m_sessions) {
+            if (session != null) {
+                try {
+                    session.close();
+                } catch (final IOException e) {
+                    LOG.warn("Could not close the shared SNMP session {}", session, e);
+                }
+            }
+        }
+        m_threads.stop();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getTransports() {
+        return m_sessions.length;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getMaxRequestsPerAgent() {
+        return m_maxRequestsPerAgent;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getInFlightRequests() {
+        return m_inFlight.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getPendingRequests() {
+        return m_pending.get();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getAgentsWithRequestsInFlight() {
+        return m_agents.size();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getRequestsSent() {
+        return m_requestsSent.sum();
+    }
+
+    /**
+     * The requests in flight, and queued, for an agent. Only accessed while computing its mapping.
+     */
+    private static class AgentRequests {
+        private int m_inFlight = 0;
+        private final Queue<Request> m_pending = new ArrayDeque<>();
+    }
+
+    private static class UserKey {
+        private final OctetString m_engineId;
+        private final OctetString m_securityName;
+
+        private UserKey(final OctetString engineId, final OctetString securityName) {
+            m_engineId = engineId;
+            m_securityName = securityName;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(m_engineId, m_securityName);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof UserKey)) {
+                return false;
+            }
+            final UserKey that = (UserKey) obj;
+            return Objects.equals(m_engineId, that.m_engineId) && Objects.equals(m_securityName, that.m_securityName);
+        }
+    }
+
+    /**
+     * A request that holds a request slot of its agent until its response, or its timeout, is received.
+     */
+    private class Request implements ResponseListener {
+        private final Snmp m_session;
+        private final PDU m_pdu;
+        private final Target m_target;
+        private final ResponseListener m_listener;
+
+        private Request(final Snmp session, final PDU pdu, final Target target, final ResponseListener listener) {
+            m_session = session;
+            m_pdu = pdu;
+            m_target = target;
+            m_listener = listener;
+        }
+
+        private void send() throws IOException {
+            try {
+                m_session.send(m_pdu, m_target, null, this);
+                m_requestsSent.increment();
+            } catch (final IOException | RuntimeException e) {
+                release(m_target.getAddress());
+                throw e;
+            }
+        }
+
+        private void sendLater() {
+            try {
+                send();
+            } catch (final IOException | RuntimeException e) {
+                LOG.debug("Failed to send the queued request {} to {}", m_pdu.getRequestID(), m_target.getAddress(), e);
+                m_listener.onResponse(new ResponseEvent(m_session, m_target.getAddress(), m_pdu, null, null, e));
+            }
+        }
+
+        @Override
+        public void onResponse(final ResponseEvent event) {
+            // The session keeps the request around until it is canceled
+            m_session.cancel(event.getRequest(), this);
+            release(m_target.getAddress());
+            m_listener.onResponse(event);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.snmp.snmp4j;
+
+/**
+ * The metrics of the {@link Snmp4JSharedTransports}.
+ */
+public interface Snmp4JSharedTransportsMBean {
+
+    /**
+     * @return The number of shared transports
+     */
+    int getTransports();
+
+    /**
+     * @return The maximum number of requests sent concurrently to an agent
+     */
+    int getMaxRequestsPerAgent();
+
+    /**
+     * @return The number of requests waiting for their response
+     */
+    int getInFlightRequests();
+
+    /**
+     * @return The number of requests queued because their agent has the maximum number of requests in flight
+     */
+    int getPendingRequests();
+
+    /**
+     * @return The number of agents that have requests in flight
+     */
+    int getAgentsWithRequestsInFlight();
+
+    /**
+     * @return The number of requests sent since startup (counter)
+     */
+    long getRequestsSent();
+}
@@ -315,6 +315,11 @@ public class Snmp4JStrategy implements SnmpStrategy {
     }
 
     private void send(Snmp4JAgentConfig agentConfig, PDU pdu, boolean expectResponse, CompletableFuture<SnmpValue[]> future) {
+        if (Snmp4JSharedTransports.isEnabled()) {
+            sendShared(agentConfig, pdu, expectResponse, future);
+            return;
+        }
+
         Snmp session;
 
         try {
@@ -379,6 +384,29 @@ public class Snmp4JStrategy implements SnmpStrategy {
         }
     }
 
+    private void sendShared(Snmp4JAgentConfig agentConfig, PDU pdu, boolean expectResponse, CompletableFuture<SnmpValue[]> future) {
+        try {
+            if (expectResponse) {
+                Snmp4JSharedTransports.getInstance().send(agentConfig, pdu, agentConfig.getTarget(), new ResponseListener() {
+                    @Override
+                    public void onResponse(final ResponseEvent responseEvent) {
+                        try {
+                            future.complete(processResponse(agentConfig, responseEvent, pdu));
+                        } catch (final Exception e) {
+                            future.completeExceptionally(new SnmpException(e));
+                        }
+                    }
+                });
+            } else {
+                Snmp4JSharedTransports.getInstance().send(agentConfig, pdu, agentConfig.getTarget());
+                future.complete(null);
+            }
+        } catch (final Exception e) {
+            LOG.error("send: error during SNMP operation", e);
+            future.completeExceptionally(new SnmpException(e));
+        }
+    }
+
     protected static PDU buildPdu(Snmp4JAgentConfig agentConfig, int pduType, SnmpObjId[] oids, SnmpValue[] values) {
         PDU pdu = agentConfig.createPdu(pduType);
         
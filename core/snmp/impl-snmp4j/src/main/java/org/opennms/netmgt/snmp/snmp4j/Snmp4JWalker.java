@@ -31,10 +31,10 @@ package org.opennms.netmgt.snmp.snmp4j;
 import java.io.IOException;
 
 import org.opennms.netmgt.snmp.CollectionTracker;
+import org.opennms.netmgt.snmp.PduWalker;
 import org.opennms.netmgt.snmp.SnmpException;
 import org.opennms.netmgt.snmp.SnmpObjId;
 import org.opennms.netmgt.snmp.SnmpValue;
-import org.opennms.netmgt.snmp.SnmpWalker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.snmp4j.PDU;
@@ -46,7 +46,7 @@ import org.snmp4j.mp.SnmpConstants;
 import org.snmp4j.smi.OID;
 import org.snmp4j.smi.VariableBinding;
 
-public class Snmp4JWalker extends SnmpWalker {
+public class Snmp4JWalker extends PduWalker {
 	
 	private static final transient Logger LOG = LoggerFactory.getLogger(Snmp4JWalker.class);
 	
@@ -102,6 +102,11 @@ public class Snmp4JWalker extends SnmpWalker {
             reset();
         }
         
+        @Override
+        public boolean isBulk() {
+            return true;
+        }
+
         @Override
         public void reset() {
             m_bulkPdu = m_agentConfig.createPdu(PDU.GETBULK);
@@ -162,8 +167,14 @@ public class Snmp4JWalker extends SnmpWalker {
 
         @Override
         public void onResponse(ResponseEvent responseEvent) {
-            // need to cancel the request here otherwise SNMP4J Keeps it around forever... go figure
-            m_session.cancel(responseEvent.getRequest(), this);
+            if (m_session != null) {
+                // need to cancel the request here otherwise SNMP4J Keeps it around forever... go figure
+                m_session.cancel(responseEvent.getRequest(), this);
+            } else if (m_closed) {
+                // The shared transports don't interrupt the requests of closed walkers, ignore their responses
+                LOG.debug("Ignoring a response for closed walker {}", getName());
+                return;
+            }
 
             // Check to see if we got an interrupted exception
             if (responseEvent.getError() instanceof InterruptedException) {
@@ -189,6 +200,7 @@ public class Snmp4JWalker extends SnmpWalker {
     }
     
     private Snmp m_session;
+    private volatile boolean m_closed = false;
     private final Target m_tgt;
     private final ResponseListener m_listener;
     private final Snmp4JAgentConfig m_agentConfig;
@@ -220,6 +232,18 @@ public class Snmp4JWalker extends SnmpWalker {
         @Override
     protected void sendNextPdu(WalkerPduBuilder pduBuilder) throws SnmpException {
         Snmp4JPduBuilder snmp4JPduBuilder = (Snmp4JPduBuilder)pduBuilder;
+        if (Snmp4JSharedTransports.isEnabled()) {
+            LOG.debug("Sending tracker pdu of size {} on the shared transports", snmp4JPduBuilder.getPdu().size());
+            try {
+                Snmp4JSharedTransports.getInstance().send(m_agentConfig, snmp4JPduBuilder.getPdu(), m_tgt, m_listener);
+            } catch (final IOException e) {
+                LOG.debug("Failed to send pdu of size {}", snmp4JPduBuilder.getPdu().size(), e);
+                close();
+                throw new SnmpException(e);
+            }
+            return;
+        }
+
         try {
             if (m_session == null) {
                 m_session = m_agentConfig.createSnmpSession();
@@ -247,6 +271,7 @@ public class Snmp4JWalker extends SnmpWalker {
 
     @Override
     public void close() {
+        m_closed = true;
         if (m_session != null) {
             try {
                 m_session.close();
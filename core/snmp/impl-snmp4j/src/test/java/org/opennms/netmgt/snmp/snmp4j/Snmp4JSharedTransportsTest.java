@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.snmp.snmp4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.netmgt.snmp.SnmpAgentConfig;
+import org.snmp4j.CommandResponderEvent;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.MessageException;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.mp.StatusInformation;
+import org.snmp4j.security.AuthMD5;
+import org.snmp4j.security.PrivDES;
+import org.snmp4j.security.SecurityProtocols;
+import org.snmp4j.security.USM;
+import org.snmp4j.security.UsmUser;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+public class Snmp4JSharedTransportsTest {
+
+    private static final OID OID = new OID(".1.3.6.1.2.1.1.7.0");
+
+    private ScheduledExecutorService m_executor;
+
+    private DefaultUdpTransportMapping m_agentTransport;
+
+    private Snmp m_agent;
+
+    private Snmp4JSharedTransports m_transports;
+
+    private final AtomicInteger m_outstanding = new AtomicInteger();
+
+    private final AtomicInteger m_maxOutstanding = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        m_executor = Executors.newScheduledThreadPool(4);
+        // Registered by the Snmp4JStrategy at startup
+        SecurityProtocols.getInstance().addDefaultProtocols();
+
+        // An agent that answers every GET with the request ID, after a delay
+        m_agentTransport = new DefaultUdpTransportMapping(new UdpAddress("127.0.0.1/0"));
+        final MessageDispatcherImpl disp = new MessageDispatcherImpl();
+        disp.addMessageProcessingModel(new MPv2c());
+        final USM usm = new USM(SecurityProtocols.getInstance(), new OctetString(MPv3.createLocalEngineID()), 0);
+        usm.addUser(new OctetString("opennms"), new UsmUser(new OctetString("opennms"), AuthMD5.ID, new OctetString("0p3nNMSv3"), PrivDES.ID, new OctetString("0p3nNMSv3")));
+        disp.addMessageProcessingModel(new MPv3(usm));
+        m_agent = new Snmp(disp, m_agentTransport);
+        m_agent.addCommandResponder(this::respond);
+        m_agent.listen();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (m_transports != null) {
+            m_transports.close();
+        }
+        m_agent.close();
+        m_executor.shutdownNow();
+    }
+
+    private void respond(final CommandResponderEvent event) {
+        event.setProcessed(true);
+        m_maxOutstanding.accumulateAndGet(m_outstanding.incrementAndGet(), Math::max);
+        m_executor.schedule(() -> {
+            final PDU response = (PDU) event.getPDU().clone();
+            response.setType(PDU.RESPONSE);
+            response.set(0, new VariableBinding(OID, new Integer32(event.getPDU().getRequestID().getValue())));
+            m_outstanding.decrementAndGet();
+            try {
+                event.getMessageDispatcher().returnResponsePdu(event.getMessageProcessingModel(), event.getSecurityModel(),
+                                                               event.getSecurityName(), event.getSecurityLevel(), response,
+                                                               event.getMaxSizeResponsePDU(), event.getStateReference(),
+                                                               new StatusInformation());
+            } catch (final MessageException e) {
+                throw new IllegalStateException(e);
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+    }
+
+    @Test(timeout = 30000)
+    public void canLimitRequestsPerAgent() throws Exception {
+        m_transports = new Snmp4JSharedTransports(2, 2, 2);
+
+        final SnmpAgentConfig config = new SnmpAgentConfig(InetAddress.getByName("127.0.0.1"));
+        config.setPort(m_agentTransport.getListenAddress().getPort());
+        config.setVersion(SnmpAgentConfig.VERSION2C);
+        config.setTimeout(5000);
+        config.setRetries(0);
+        final Snmp4JAgentConfig agentConfig = new Snmp4JAgentConfig(config);
+
+        final List<PDU> requests = new ArrayList<>();
+        final List<CompletableFuture<ResponseEvent>> responses = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final PDU pdu = agentConfig.createPdu(PDU.GET);
+            pdu.add(new VariableBinding(OID));
+            final CompletableFuture<ResponseEvent> response = new CompletableFuture<>();
+            m_transports.send(agentConfig, pdu, agentConfig.getTarget(), response::complete);
+            requests.add(pdu);
+            responses.add(response);
+        }
+        assertEquals(2, m_transports.getInFlightRequests());
+        assertEquals(8, m_transports.getPendingRequests());
+
+        // Every response is matched to its request
+        for (int i = 0; i < 10; i++) {
+            final ResponseEvent event = responses.get(i).get();
+            assertNotNull("Request " + i + " timed out", event.getResponse());
+            assertEquals(requests.get(i).getRequestID().getValue(), event.getResponse().get(0).getVariable().toInt());
+        }
+        assertEquals(2, m_maxOutstanding.get());
+        assertEquals(10, m_transports.getRequestsSent());
+        assertEquals(0, m_transports.getInFlightRequests());
+        assertEquals(0, m_transports.getPendingRequests());
+        assertEquals(0, m_transports.getAgentsWithRequestsInFlight());
+    }
+
+    @Test(timeout = 30000)
+    public void canSendV3Requests() throws Exception {
+        m_transports = new Snmp4JSharedTransports(1, 1, 2);
+
+        final SnmpAgentConfig config = new SnmpAgentConfig(InetAddress.getByName("127.0.0.1"));
+        config.setPort(m_agentTransport.getListenAddress().getPort());
+        config.setVersion(SnmpAgentConfig.VERSION3);
+        config.setSecurityLevel(SnmpAgentConfig.AUTH_PRIV);
+        config.setSecurityName("opennms");
+        config.setAuthProtocol("MD5");
+        config.setAuthPassPhrase("0p3nNMSv3");
+        config.setPrivProtocol("DES");
+        config.setPrivPassPhrase("0p3nNMSv3");
+        config.setTimeout(5000);
+        config.setRetries(0);
+        final Snmp4JAgentConfig agentConfig = new Snmp4JAgentConfig(config);
+
+        // The engine ID is discovered with the first request, and reused by the next ones
+        for (int i = 0; i < 3; i++) {
+            final PDU pdu = agentConfig.createPdu(PDU.GET);
+            pdu.add(new VariableBinding(OID));
+            final CompletableFuture<ResponseEvent> response = new CompletableFuture<>();
+            m_transports.send(agentConfig, pdu, agentConfig.getTarget(), response::complete);
+            assertNotNull("Request " + i + " timed out", response.get().getResponse());
+            assertEquals(PDU.RESPONSE, response.get().getResponse().getType());
+        }
+        assertEquals(3, m_transports.getRequestsSent());
+    }
+
+    @Test(timeout = 30000)
+    public void canSendV3Traps() throws Exception {
+        m_transports = new Snmp4JSharedTransports(1, 1, 1);
+
+        // A trap receiver that knows the user, but not the engine ID of the sender
+        final CompletableFuture<CommandResponderEvent> trap = new CompletableFuture<>();
+        final MessageDispatcherImpl disp = new MessageDispatcherImpl();
+        final USM usm = new USM(SecurityProtocols.getInstance(), new OctetString(MPv3.createLocalEngineID()), 0);
+        usm.addUser(new OctetString("opennms"), new UsmUser(new OctetString("opennms"), AuthMD5.ID, new OctetString("0p3nNMSv3"), PrivDES.ID, new OctetString("0p3nNMSv3")));
+        disp.addMessageProcessingModel(new MPv3(usm));
+        final DefaultUdpTransportMapping receiverTransport = new DefaultUdpTransportMapping(new UdpAddress("127.0.0.1/0"));
+        final Snmp receiver = new Snmp(disp, receiverTransport);
+        receiver.addCommandResponder(event -> {
+            event.setProcessed(true);
+            trap.complete(event);
+        });
+        receiver.listen();
+
+        try {
+            final SnmpAgentConfig config = new SnmpAgentConfig(InetAddress.getByName("127.0.0.1"));
+            config.setPort(receiverTransport.getListenAddress().getPort());
+            config.setVersion(SnmpAgentConfig.VERSION3);
+            config.setSecurityLevel(SnmpAgentConfig.AUTH_PRIV);
+            config.setSecurityName("opennms");
+            config.setAuthProtocol("MD5");
+            config.setAuthPassPhrase("0p3nNMSv3");
+            config.setPrivProtocol("DES");
+            config.setPrivPassPhrase("0p3nNMSv3");
+            final Snmp4JAgentConfig agentConfig = new Snmp4JAgentConfig(config);
+
+            final PDU pdu = agentConfig.createPdu(PDU.TRAP);
+            pdu.add(new VariableBinding(SnmpConstants.sysUpTime, new TimeTicks(0)));
+            pdu.add(new VariableBinding(SnmpConstants.snmpTrapOID, SnmpConstants.coldStart));
+            m_transports.send(agentConfig, pdu, agentConfig.getTarget());
+
+            final CommandResponderEvent event = trap.get(5, TimeUnit.SECONDS);
+            assertEquals(PDU.TRAP, event.getPDU().getType());
+            assertEquals("opennms", new String(event.getSecurityName()));
+            assertEquals(1, m_transports.getRequestsSent());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void canReportTimeouts() throws Exception {
+        m_transports = new Snmp4JSharedTransports(1, 1, 1);
+
+        // Nothing answers on the port of the agent once it is closed
+        final SnmpAgentConfig config = new SnmpAgentConfig(InetAddress.getByName("127.0.0.1"));
+        config.setPort(m_agentTransport.getListenAddress().getPort());
+        m_agent.close();
+        config.setVersion(SnmpAgentConfig.VERSION2C);
+        config.setTimeout(200);
+        config.setRetries(0);
+        final Snmp4JAgentConfig agentConfig = new Snmp4JAgentConfig(config);
+
+        final List<CompletableFuture<ResponseEvent>> responses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final PDU pdu = agentConfig.createPdu(PDU.GET);
+            pdu.add(new VariableBinding(OID));
+            final CompletableFuture<ResponseEvent> response = new CompletableFuture<>();
+            m_transports.send(agentConfig, pdu, agentConfig.getTarget(), response::complete);
+            responses.add(response);
+        }
+
+        // The queued requests are sent as the previous ones time out
+        for (final CompletableFuture<ResponseEvent> response : responses) {
+            assertTrue(response.get().getResponse() == null);
+        }
+        assertEquals(3, m_transports.getRequestsSent());
+        assertEquals(0, m_transports.getInFlightRequests());
+    }
+}
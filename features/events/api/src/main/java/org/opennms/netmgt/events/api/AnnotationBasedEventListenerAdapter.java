@@ -61,7 +61,7 @@ import org.springframework.util.ClassUtils;
  * @author brozow
  * @version $Id: $
  */
-public class AnnotationBasedEventListenerAdapter implements StoppableEventListener, ThreadAwareEventListener, InitializingBean, DisposableBean {
+public class AnnotationBasedEventListenerAdapter implements StoppableEventListener, KeyedEventListener, InitializingBean, DisposableBean {
     
 	
 	private static final Logger LOG = LoggerFactory.getLogger(AnnotationBasedEventListenerAdapter.class);
@@ -348,6 +348,15 @@ public class AnnotationBasedEventListenerAdapter implements StoppableEventListen
         return m_threads;
     }
 
+    @Override
+    public EventKey getEventKey() {
+        // Only dispatch over ordered lanes if the listener asks for it
+        if (m_annotatedListener instanceof KeyedEventListener) {
+            return ((KeyedEventListener) m_annotatedListener).getEventKey();
+        }
+        return null;
+    }
+
     private static class ClassComparator<T> implements Comparator<Class<? extends T>> {
         @Override
         public int compare(Class<? extends T> lhsType, Class<? extends T> rhsType) {
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.events.api;
+
+/**
+ * Optional interface which can be implemented by event listeners (and
+ * annotated event listeners) that are able to process events in parallel
+ * as long as the events sharing the same key are processed in order.
+ *
+ * When a key is returned, the events are dispatched over
+ * {@link #getNumThreads()} lanes, each of which is served by a single
+ * thread. All of the events that share the same key are dispatched to the
+ * same lane, and are delivered in the order in which they were broadcast.
+ *
+ * If this interface is not present (or if no key is returned) the events
+ * are dispatched as described in {@link ThreadAwareEventListener}.
+ */
+public interface KeyedEventListener extends ThreadAwareEventListener {
+
+    enum EventKey {
+        /**
+         * Events are keyed by node ID. Events without a node ID are keyed by UEI.
+         */
+        NODE_ID,
+        /**
+         * Events are keyed by UEI.
+         */
+        UEI
+    }
+
+    /**
+     * @return the key used to order the events, or <code>null</code> if the
+     * events should not be dispatched over ordered lanes
+     */
+    EventKey getEventKey();
+
+}
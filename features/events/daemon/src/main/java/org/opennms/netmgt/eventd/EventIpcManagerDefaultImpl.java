@@ -31,13 +31,14 @@ package org.opennms.netmgt.eventd;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
@@ -52,6 +53,7 @@ import org.opennms.netmgt.events.api.EventIpcBroadcaster;
 import org.opennms.netmgt.events.api.EventIpcManager;
 import org.opennms.netmgt.events.api.EventListener;
 import org.opennms.netmgt.events.api.EventProxyException;
+import org.opennms.netmgt.events.api.KeyedEventListener;
 import org.opennms.netmgt.events.api.ThreadAwareEventListener;
 import org.opennms.netmgt.events.api.model.IEvent;
 import org.opennms.netmgt.events.api.model.ImmutableMapper;
@@ -64,6 +66,7 @@ import org.springframework.util.StringUtils;
 
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 
 /**
  * An implementation of the EventIpcManager interface that can be used to
@@ -101,19 +104,22 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
     }
 
     /**
-     * Hash table of list of event listeners keyed by event UEI
+     * Hash table of list of event listeners keyed by event UEI.
+     *
+     * The listeners are (un)registered while holding the lock on this object,
+     * but the broadcasts read these collections without locking.
      */
-    private Map<String, List<EventListener>> m_ueiListeners = new HashMap<String, List<EventListener>>();
+    private Map<String, List<EventListener>> m_ueiListeners = new ConcurrentHashMap<String, List<EventListener>>();
 
     /**
      * The list of event listeners interested in all events
      */
-    private List<EventListener> m_listeners = new ArrayList<EventListener>();
+    private List<EventListener> m_listeners = new CopyOnWriteArrayList<EventListener>();
 
     /**
      * Hash table of event listener threads keyed by the listener's id
      */
-    private Map<String, EventListenerExecutor> m_listenerThreads = new HashMap<String, EventListenerExecutor>();
+    private Map<String, EventListenerExecutor> m_listenerThreads = new ConcurrentHashMap<String, EventListenerExecutor>();
 
     /**
      * The thread pool handling the events
@@ -133,6 +139,11 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
      * is added to an execution queue when the 'sendNow()' is called. The
      * ListenerThread reads events off of this queue and sends them to the
      * appropriate listener.
+     *
+     * Listeners that implement {@link KeyedEventListener} and return a key
+     * are served by one single-threaded lane per thread instead, and the
+     * events are assigned to the lanes by key so that the events sharing the
+     * same key are delivered in order.
      */
     private static class EventListenerExecutor {
         /**
@@ -141,22 +152,73 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
         private final EventListener m_listener;
 
         /**
-         * The thread that is running this runnable.
+         * The key used to assign the events to the lanes, or null when
+         * a single (possibly multi-threaded) lane is used.
+         */
+        private final KeyedEventListener.EventKey m_eventKey;
+
+        /**
+         * The threads that are running this runnable.
+         */
+        private final ThreadPoolExecutor[] m_lanes;
+
+        private final MetricRegistry m_registry;
+
+        private final List<String> m_metricNames = new ArrayList<>();
+
+        /**
+         * Time elapsed between queuing an event and having the listener process it
          */
-        private final ExecutorService m_delegateThread;
+        private final Timer m_latency;
 
         /**
          * Constructor
          */
-        EventListenerExecutor(EventListener listener, Integer handlerQueueLength) {
+        EventListenerExecutor(EventListener listener, Integer handlerQueueLength, MetricRegistry registry) {
             m_listener = listener;
+            m_registry = registry;
 
             int numThreads = 1;
             if (m_listener instanceof ThreadAwareEventListener) {
                 numThreads = ((ThreadAwareEventListener)m_listener).getNumThreads();
             }
 
-            m_delegateThread = new ThreadPoolExecutor(
+            KeyedEventListener.EventKey eventKey = null;
+            if (m_listener instanceof KeyedEventListener && numThreads > 1) {
+                eventKey = ((KeyedEventListener)m_listener).getEventKey();
+            }
+            m_eventKey = eventKey;
+
+            if (m_eventKey == null) {
+                m_lanes = new ThreadPoolExecutor[] { createLane(m_listener.getName(), numThreads, handlerQueueLength) };
+            } else {
+                LOG.debug("Dispatching events to listener {} over {} lanes keyed by {}", m_listener.getName(), numThreads, m_eventKey);
+                m_lanes = new ThreadPoolExecutor[numThreads];
+                for (int i = 0; i < numThreads; i++) {
+                    m_lanes[i] = createLane(m_listener.getName() + "-Lane-" + i, 1, handlerQueueLength);
+                }
+            }
+
+            for (int i = 0; i < m_lanes.length; i++) {
+                final ThreadPoolExecutor lane = m_lanes[i];
+                final String name = MetricRegistry.name("eventlisteners", m_listener.getName(), "lane" + i, "queued");
+                m_registry.remove(name);
+                m_registry.register(name, new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return lane.getQueue().size();
+                    }
+                });
+                m_metricNames.add(name);
+            }
+            final String latencyName = MetricRegistry.name("eventlisteners", m_listener.getName(), "latency");
+            m_registry.remove(latencyName);
+            m_latency = m_registry.timer(latencyName);
+            m_metricNames.add(latencyName);
+        }
+
+        private ThreadPoolExecutor createLane(String name, int numThreads, Integer handlerQueueLength) {
+            return new ThreadPoolExecutor(
                     numThreads,
                     numThreads,
                     0L,
@@ -166,7 +228,7 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
                     // is used for all events that this listener handles. Therefore, if Notifd
                     // registers for an event then all logs for handling that event will end up
                     // inside notifd.log.
-                    new LogPreservingThreadFactory(m_listener.getName(), numThreads),
+                    new LogPreservingThreadFactory(name, numThreads),
                     new RejectedExecutionHandler() {
                         @Override
                         public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
@@ -176,7 +238,22 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
             );
         }
 
+        private ExecutorService getLane(final IEvent event) {
+            if (m_lanes.length == 1) {
+                return m_lanes[0];
+            }
+            Object key = null;
+            if (m_eventKey == KeyedEventListener.EventKey.NODE_ID) {
+                key = event.getNodeid();
+            }
+            if (key == null) {
+                key = event.getUei();
+            }
+            return m_lanes[key == null ? 0 : Math.floorMod(key.hashCode(), m_lanes.length)];
+        }
+
         public CompletableFuture<Void> addEvent(final IEvent event) {
+            final long queuedAt = System.nanoTime();
             return CompletableFuture.runAsync(new Runnable() {
                 @Override
                 public void run() {
@@ -192,16 +269,23 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
                         }
                     } catch (Throwable t) {
                         LOG.warn("run: an unexpected error occured during ListenerThread {}", m_listener.getName(), t);
+                    } finally {
+                        m_latency.update(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
                     }
                 }
-            }, m_delegateThread);
+            }, getLane(event));
         }
 
         /**
          * Stops the execution of this listener.
          */
         public void stop() {
-            m_delegateThread.shutdown();
+            for (ThreadPoolExecutor lane : m_lanes) {
+                lane.shutdown();
+            }
+            for (String name : m_metricNames) {
+                m_registry.remove(name);
+            }
         }
     }
 
@@ -496,7 +580,7 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
             return;
         }
         
-        EventListenerExecutor listenerThread = new EventListenerExecutor(listener, m_handlerQueueLength);
+        EventListenerExecutor listenerThread = new EventListenerExecutor(listener, m_handlerQueueLength, m_registry);
         m_listenerThreads.put(listener.getName(), listenerThread);
     }
 
@@ -506,7 +590,7 @@ public class EventIpcManagerDefaultImpl implements EventIpcManager, EventIpcBroa
     private void addUeiForListener(String uei, EventListener listener) {
         // Ensure there is a list for this UEI
         if (!m_ueiListeners.containsKey(uei)) {
-            m_ueiListeners.put(uei, new ArrayList<EventListener>());
+            m_ueiListeners.put(uei, new CopyOnWriteArrayList<EventListener>());
         }
         
         List<EventListener> listenersList = m_ueiListeners.get(uei);
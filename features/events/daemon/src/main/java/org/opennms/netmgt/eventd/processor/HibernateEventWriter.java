@@ -132,7 +132,7 @@ public class HibernateEventWriter implements EventWriter {
      * @param logPrefix a {@link java.lang.String} object.
      * @return a boolean.
      */
-    private static boolean checkEventSanityAndDoWeProcess(Event event, String logPrefix) {
+    static boolean checkEventSanityAndDoWeProcess(Event event, String logPrefix) {
         Assert.notNull(event, "event argument must not be null");
 
         /*
@@ -232,7 +232,7 @@ public class HibernateEventWriter implements EventWriter {
      *                Thrown if a required resource cannot be found in the
      *                properties file.
      */
-    private OnmsEvent createOnmsEvent(final Header eventHeader, final Event event) {
+    protected OnmsEvent createOnmsEvent(final Header eventHeader, final Event event) {
 
         OnmsEvent ovent = new OnmsEvent();
 
@@ -0,0 +1,361 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.eventd.processor;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.netmgt.events.api.EventProcessorException;
+import org.opennms.netmgt.model.OnmsEvent;
+import org.opennms.netmgt.model.OnmsEventParameter;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Log;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionOperations;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.Timer.Context;
+
+/**
+ * An {@link EventWriter} that groups the events of concurrently processed
+ * event logs into micro-batches and stores them using JDBC batch inserts.
+ *
+ * The {@link HibernateEventWriter} opens one transaction per event log and
+ * issues one sequence lookup and one insert per event and per parameter.
+ * Here, the thread that acquires the flush lock writes the events of all the
+ * logs that are queued at that time (up to {@link #setMaxBatchSize(int)}
+ * events) in a single transaction: the event IDs are allocated as a block
+ * with a single query against the events sequence, and the events and their
+ * parameters are written with one batch insert each. While a batch is being
+ * written, the following logs accumulate in the queue and are written
+ * together by the next flush.
+ *
+ * {@link #process(Log)} only returns once the events of the given log are
+ * stored, so the database IDs are set on the events before they are
+ * broadcast.
+ *
+ * If a batch fails, the logs are retried one by one using the
+ * {@link HibernateEventWriter} so that a single bad event does not cause the
+ * other logs in the same batch to be lost.
+ */
+public class JdbcEventWriter extends HibernateEventWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(JdbcEventWriter.class);
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+
+    protected static final String ALLOCATE_IDS_SQL = "SELECT nextval('eventsNxtId') FROM generate_series(1, ?)";
+
+    protected static final String INSERT_EVENT_SQL = "INSERT INTO events ("
+            + "eventId, eventUei, nodeId, eventTime, eventHost, eventSource, ipAddr, systemId, eventSnmpHost, serviceId, "
+            + "eventSnmp, eventCreateTime, eventDescr, eventLogGroup, eventLogMsg, eventSeverity, ifIndex, eventPathOutage, "
+            + "eventCorrelation, eventSuppressedCount, eventOperInstruct, eventAutoAction, eventOperAction, "
+            + "eventOperActionMenuText, eventNotification, eventTTicket, eventTTicketState, eventForward, "
+            + "eventMouseOverText, eventLog, eventDisplay, eventAckUser, eventAckTime"
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    protected static final String INSERT_PARAMETER_SQL = "INSERT INTO event_parameters (eventID, name, value, type, position) VALUES (?, ?, ?, ?, ?)";
+
+    @Autowired
+    private TransactionOperations m_transactionManager;
+
+    @Autowired
+    private JdbcTemplate m_jdbcTemplate;
+
+    private final ConcurrentLinkedQueue<PendingLog> m_queue = new ConcurrentLinkedQueue<>();
+
+    private final ReentrantLock m_flushLock = new ReentrantLock();
+
+    private int m_maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    private final Timer m_writeTimer;
+
+    private final Histogram m_batchSizes;
+
+    private final Meter m_fallbacks;
+
+    public JdbcEventWriter(MetricRegistry registry) {
+        super(registry);
+        m_writeTimer = registry.timer("eventlogs.process.write.batch");
+        m_batchSizes = registry.histogram("eventlogs.process.write.batch-size");
+        m_fallbacks = registry.meter("eventlogs.process.write.fallbacks");
+    }
+
+    @Override
+    public void process(Log eventLog) throws EventProcessorException {
+        if (eventLog == null || eventLog.getEvents() == null || eventLog.getEvents().getEventCollection() == null) {
+            return;
+        }
+
+        // Find the events in the log that need to be persisted
+        final List<Event> eventsToPersist = eventLog.getEvents().getEventCollection().stream()
+                .filter(e -> checkEventSanityAndDoWeProcess(e, "JdbcEventWriter"))
+                .collect(Collectors.toList());
+
+        // If there are no events to persist, avoid creating a database transaction
+        if (eventsToPersist.isEmpty()) {
+            return;
+        }
+
+        final PendingLog pending = new PendingLog(eventLog, eventsToPersist);
+        m_queue.add(pending);
+
+        // Whoever holds the lock writes everything that is queued, including
+        // our log if it was queued before the current batch was drained
+        while (!pending.done) {
+            m_flushLock.lock();
+            try {
+                if (!pending.done) {
+                    flush();
+                }
+            } finally {
+                m_flushLock.unlock();
+            }
+        }
+
+        if (pending.exception != null) {
+            throw pending.exception;
+        }
+    }
+
+    private void flush() {
+        final List<PendingLog> batch = new ArrayList<>();
+        int eventCount = 0;
+        PendingLog next;
+        while (eventCount < m_maxBatchSize && (next = m_queue.poll()) != null) {
+            batch.add(next);
+            eventCount += next.events.size();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        m_batchSizes.update(eventCount);
+
+        try (Context context = m_writeTimer.time()) {
+            final int count = eventCount;
+            m_transactionManager.execute(status -> {
+                writeBatch(batch, count);
+                return null;
+            });
+
+            // Only expose the IDs once the transaction has been committed
+            for (final PendingLog pendingLog : batch) {
+                for (int i = 0; i < pendingLog.events.size(); i++) {
+                    pendingLog.events.get(i).setDbid(pendingLog.ids[i]);
+                }
+            }
+        } catch (Throwable t) {
+            LOG.warn("Failed to write a batch of {} events from {} event logs. Retrying the event logs individually.", eventCount, batch.size(), t);
+            for (final PendingLog pendingLog : batch) {
+                m_fallbacks.mark();
+                try {
+                    super.process(pendingLog.log);
+                } catch (EventProcessorException e) {
+                    pendingLog.exception = e;
+                } catch (RuntimeException e) {
+                    // i.e. the commit failed, report it to the thread that owns the log
+                    pendingLog.exception = new EventProcessorException(e);
+                }
+            }
+        } finally {
+            for (final PendingLog pendingLog : batch) {
+                pendingLog.done = true;
+            }
+        }
+    }
+
+    private void writeBatch(final List<PendingLog> batch, final int eventCount) {
+        final List<OnmsEvent> ovents = new ArrayList<>(eventCount);
+        for (final PendingLog pendingLog : batch) {
+            for (final Event event : pendingLog.events) {
+                LOG.debug("JdbcEventWriter: processing {}, nodeid: {}, ipaddr: {}, serviceid: {}, time: {}", event.getUei(), event.getNodeid(), event.getInterface(), event.getService(), event.getTime());
+                ovents.add(createOnmsEvent(pendingLog.log.getHeader(), event));
+            }
+        }
+
+        // Allocate all of the IDs for the batch with a single round trip
+        final List<Integer> ids = m_jdbcTemplate.queryForList(ALLOCATE_IDS_SQL, Integer.class, eventCount);
+        if (ids.size() != eventCount) {
+            throw new IllegalStateException("Expected " + eventCount + " event IDs, but got " + ids.size());
+        }
+        int k = 0;
+        for (final PendingLog pendingLog : batch) {
+            pendingLog.ids = new Integer[pendingLog.events.size()];
+            for (int i = 0; i < pendingLog.ids.length; i++, k++) {
+                pendingLog.ids[i] = ids.get(k);
+                ovents.get(k).setId(ids.get(k));
+            }
+        }
+
+        m_jdbcTemplate.batchUpdate(INSERT_EVENT_SQL, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                setEventValues(ps, ovents.get(i));
+            }
+
+            @Override
+            public int getBatchSize() {
+                return ovents.size();
+            }
+        });
+
+        final List<OnmsEventParameter> parameters = new ArrayList<>();
+        final List<Integer> positions = new ArrayList<>();
+        for (final OnmsEvent ovent : ovents) {
+            final List<OnmsEventParameter> eventParameters = ovent.getEventParameters();
+            if (eventParameters != null) {
+                for (int i = 0; i < eventParameters.size(); i++) {
+                    parameters.add(eventParameters.get(i));
+                    positions.add(i);
+                }
+            }
+        }
+        if (!parameters.isEmpty()) {
+            m_jdbcTemplate.batchUpdate(INSERT_PARAMETER_SQL, new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement ps, int i) throws SQLException {
+                    final OnmsEventParameter parameter = parameters.get(i);
+                    ps.setInt(1, parameter.getEvent().getId());
+                    ps.setString(2, parameter.getName());
+                    ps.setString(3, parameter.getValue());
+                    ps.setString(4, parameter.getType());
+                    ps.setInt(5, positions.get(i));
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return parameters.size();
+                }
+            });
+        }
+    }
+
+    private static void setEventValues(final PreparedStatement ps, final OnmsEvent ovent) throws SQLException {
+        ps.setInt(1, ovent.getId());
+        ps.setString(2, ovent.getEventUei());
+        setInteger(ps, 3, ovent.getNode() == null ? null : ovent.getNode().getId());
+        setTimestamp(ps, 4, ovent.getEventTime());
+        ps.setString(5, ovent.getEventHost());
+        ps.setString(6, ovent.getEventSource());
+        ps.setString(7, ovent.getIpAddr() == null ? null : InetAddressUtils.str(ovent.getIpAddr()));
+        ps.setString(8, ovent.getDistPoller() == null ? null : ovent.getDistPoller().getId());
+        ps.setString(9, ovent.getEventSnmpHost());
+        setInteger(ps, 10, ovent.getServiceType() == null ? null : ovent.getServiceType().getId());
+        ps.setString(11, ovent.getEventSnmp());
+        setTimestamp(ps, 12, ovent.getEventCreateTime());
+        ps.setString(13, ovent.getEventDescr());
+        ps.setString(14, ovent.getEventLogGroup());
+        ps.setString(15, ovent.getEventLogMsg());
+        setInteger(ps, 16, ovent.getEventSeverity());
+        setInteger(ps, 17, ovent.getIfIndex());
+        ps.setString(18, ovent.getEventPathOutage());
+        ps.setString(19, ovent.getEventCorrelation());
+        setInteger(ps, 20, ovent.getEventSuppressedCount());
+        ps.setString(21, ovent.getEventOperInstruct());
+        ps.setString(22, ovent.getEventAutoAction());
+        ps.setString(23, ovent.getEventOperAction());
+        ps.setString(24, ovent.getEventOperActionMenuText());
+        ps.setString(25, ovent.getEventNotification());
+        ps.setString(26, ovent.getEventTTicket());
+        setInteger(ps, 27, ovent.getEventTTicketState());
+        ps.setString(28, ovent.getEventForward());
+        ps.setString(29, ovent.getEventMouseOverText());
+        ps.setString(30, ovent.getEventLog());
+        ps.setString(31, ovent.getEventDisplay());
+        ps.setString(32, ovent.getEventAckUser());
+        setTimestamp(ps, 33, ovent.getEventAckTime());
+    }
+
+    private static void setInteger(final PreparedStatement ps, final int index, final Integer value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.INTEGER);
+        } else {
+            ps.setInt(index, value);
+        }
+    }
+
+    private static void setTimestamp(final PreparedStatement ps, final int index, final Date value) throws SQLException {
+        if (value == null) {
+            ps.setNull(index, Types.TIMESTAMP);
+        } else {
+            ps.setTimestamp(index, new Timestamp(value.getTime()));
+        }
+    }
+
+    @Override
+    public void setTransactionManager(TransactionOperations transactionManager) {
+        super.setTransactionManager(transactionManager);
+        m_transactionManager = transactionManager;
+    }
+
+    public void setJdbcTemplate(JdbcTemplate jdbcTemplate) {
+        m_jdbcTemplate = Objects.requireNonNull(jdbcTemplate);
+    }
+
+    /**
+     * Sets the maximum number of events that are written in a single batch.
+     * Event logs are never split, so a batch may exceed this size when a
+     * single log holds more events.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be strictly positive");
+        }
+        m_maxBatchSize = maxBatchSize;
+    }
+
+    private static class PendingLog {
+        private final Log log;
+        private final List<Event> events;
+        private Integer[] ids;
+        private volatile boolean done = false;
+        private EventProcessorException exception;
+
+        private PendingLog(final Log log, final List<Event> events) {
+            this.log = log;
+            this.events = events;
+        }
+    }
+}
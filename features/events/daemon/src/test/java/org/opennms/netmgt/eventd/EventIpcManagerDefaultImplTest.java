@@ -38,8 +38,10 @@ import static org.opennms.core.utils.InetAddressUtils.addr;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.RejectedExecutionException;
@@ -51,6 +53,7 @@ import org.junit.Test;
 import org.opennms.netmgt.events.api.EventConstants;
 import org.opennms.netmgt.events.api.EventHandler;
 import org.opennms.netmgt.events.api.EventListener;
+import org.opennms.netmgt.events.api.KeyedEventListener;
 import org.opennms.netmgt.events.api.ThreadAwareEventListener;
 import org.opennms.netmgt.events.api.model.IEvent;
 import org.opennms.netmgt.events.api.model.ImmutableMapper;
@@ -834,4 +837,87 @@ public class EventIpcManagerDefaultImplTest extends TestCase {
         // Release
         locker.release();
     }
+
+    private static class KeyedListener implements KeyedEventListener, EventListener {
+        private final int numThreads;
+        private final Map<Long, List<Integer>> eventsByNode = new ConcurrentHashMap<>();
+        private final Map<Long, String> threadsByNode = new ConcurrentHashMap<>();
+        private final Map<String, Boolean> threads = new ConcurrentHashMap<>();
+        private final AtomicInteger processed = new AtomicInteger();
+
+        public KeyedListener(int numThreads) {
+            this.numThreads = numThreads;
+        }
+
+        @Override
+        public String getName() {
+            return "keyed";
+        }
+
+        @Override
+        public void onEvent(IEvent e) {
+            final String thread = Thread.currentThread().getName();
+            threads.put(thread, true);
+            // Only ever touched by the lane that owns the node
+            eventsByNode.computeIfAbsent(e.getNodeid(), k -> new ArrayList<>()).add(Integer.valueOf(e.getParm("seq").getValue().getContent()));
+            final String previousThread = threadsByNode.putIfAbsent(e.getNodeid(), thread);
+            if (previousThread != null) {
+                assertEquals("events for the same node must be processed by the same lane", previousThread, thread);
+            }
+            processed.incrementAndGet();
+        }
+
+        @Override
+        public int getNumThreads() {
+            return numThreads;
+        }
+
+        @Override
+        public EventKey getEventKey() {
+            return EventKey.NODE_ID;
+        }
+    }
+
+    /**
+     * Verify that an event listener that implements the {@link KeyedEventListener} interface
+     * receives the events for a given key in order, over multiple lanes.
+     */
+    public void testKeyedEventListener() throws Exception {
+        final int numLanes = 4;
+        final int numNodes = 16;
+        final int numEventsPerNode = 50;
+
+        final KeyedListener listener = new KeyedListener(numLanes);
+        m_manager.addEventListener(listener);
+
+        for (int i = 0; i < numNodes * numEventsPerNode; i++) {
+            final EventBuilder bldr = new EventBuilder("uei.opennms.org/foo", "testKeyedEventListener");
+            bldr.setNodeid(i % numNodes);
+            bldr.addParam("seq", i / numNodes);
+            m_manager.broadcastNow(bldr.getEvent(), false);
+        }
+
+        await().atMost(10, TimeUnit.SECONDS).until(() -> listener.processed.get() == numNodes * numEventsPerNode);
+
+        assertEquals(numNodes, listener.eventsByNode.size());
+        for (List<Integer> events : listener.eventsByNode.values()) {
+            assertEquals(numEventsPerNode, events.size());
+            for (int k = 0; k < numEventsPerNode; k++) {
+                assertEquals("events for the same node must be delivered in order", Integer.valueOf(k), events.get(k));
+            }
+        }
+        assertTrue("events should have been dispatched over more than one lane", listener.threads.size() > 1);
+        assertTrue(listener.threads.size() <= numLanes);
+
+        // Lane depths and latency are exposed
+        for (int i = 0; i < numLanes; i++) {
+            assertTrue(m_registry.getGauges().containsKey("eventlisteners.keyed.lane" + i + ".queued"));
+        }
+        await().atMost(10, TimeUnit.SECONDS).until(() -> m_registry.timer("eventlisteners.keyed.latency").getCount() == numNodes * numEventsPerNode);
+
+        // The metrics are removed with the listener
+        m_manager.removeEventListener(listener);
+        assertFalse(m_registry.getGauges().containsKey("eventlisteners.keyed.lane0.queued"));
+        assertFalse(m_registry.getTimers().containsKey("eventlisteners.keyed.latency"));
+    }
 }
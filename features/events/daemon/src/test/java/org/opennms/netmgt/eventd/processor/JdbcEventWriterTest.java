@@ -0,0 +1,354 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.eventd.processor;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.netmgt.dao.api.EventDao;
+import org.opennms.netmgt.events.api.EventProcessorException;
+import org.opennms.netmgt.model.OnmsEvent;
+import org.opennms.netmgt.model.events.EventBuilder;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Events;
+import org.opennms.netmgt.xml.event.Header;
+import org.opennms.netmgt.xml.event.Log;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionOperations;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Verifies that the {@link JdbcEventWriter} groups the events of concurrent
+ * event logs into batches and sets their database IDs.
+ */
+public class JdbcEventWriterTest {
+
+    private MetricRegistry metrics;
+    private JdbcEventWriter eventWriter;
+    private TransactionOperations transactionManager;
+    private MockJdbcTemplate jdbcTemplate;
+
+    @Before
+    public void setUp() {
+        metrics = new MetricRegistry();
+        eventWriter = new JdbcEventWriter(metrics) {
+            @Override
+            protected OnmsEvent createOnmsEvent(Header eventHeader, Event event) {
+                final OnmsEvent ovent = new OnmsEvent();
+                ovent.setEventUei(event.getUei());
+                ovent.setEventSource(event.getSource());
+                ovent.setEventParametersFromEvent(event);
+                return ovent;
+            }
+        };
+        transactionManager = mock(TransactionOperations.class);
+        when(transactionManager.execute(any())).thenAnswer(invocation -> ((TransactionCallback<?>)invocation.getArgument(0)).doInTransaction(null));
+        eventWriter.setTransactionManager(transactionManager);
+        jdbcTemplate = new MockJdbcTemplate();
+        eventWriter.setJdbcTemplate(jdbcTemplate);
+    }
+
+    @Test
+    public void testNoTransactionOpened() throws EventProcessorException {
+        eventWriter.process(null);
+        eventWriter.process(new Log());
+
+        final EventBuilder bldr = new EventBuilder("testUei", "testSource");
+        bldr.setLogDest(HibernateEventWriter.LOG_MSG_DEST_DO_NOT_PERSIST);
+        eventWriter.process(bldr.getLog());
+
+        verify(transactionManager, never()).execute(any());
+    }
+
+    @Test
+    public void testEventsAndParametersAreWrittenInBatches() throws EventProcessorException {
+        final Log log = createLog(3);
+        eventWriter.process(log);
+
+        verify(transactionManager, times(1)).execute(any());
+        assertEquals(1, jdbcTemplate.idQueries.get());
+        assertEquals(3, jdbcTemplate.rowsFor(JdbcEventWriter.INSERT_EVENT_SQL));
+        assertEquals(6, jdbcTemplate.rowsFor(JdbcEventWriter.INSERT_PARAMETER_SQL));
+
+        final Set<Integer> ids = new HashSet<>();
+        for (Event event : log.getEvents().getEventCollection()) {
+            assertNotNull(event.getDbid());
+            ids.add(event.getDbid());
+        }
+        assertEquals(3, ids.size());
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentEventLogsAreGroupedIntoOneBatch() throws Exception {
+        // Hold the first batch open until all of the other writers are waiting
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean first = new AtomicBoolean(true);
+        doAnswer(invocation -> {
+            if (first.getAndSet(false)) {
+                release.await();
+            }
+            return ((TransactionCallback<?>)invocation.getArgument(0)).doInTransaction(null);
+        }).when(transactionManager).execute(any());
+
+        final List<Log> logs = IntStream.range(0, 10).mapToObj(i -> createLog(2)).collect(Collectors.toList());
+        final List<Thread> threads = new ArrayList<>();
+        final AtomicInteger failures = new AtomicInteger();
+        for (Log log : logs) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    eventWriter.process(log);
+                } catch (EventProcessorException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+            if (threads.size() == 1) {
+                await().atMost(10, TimeUnit.SECONDS).until(() -> first.get() == false);
+            }
+        }
+        await().atMost(10, TimeUnit.SECONDS).until(() -> threads.stream().skip(1).allMatch(t -> t.getState() == Thread.State.WAITING));
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        verify(transactionManager, times(2)).execute(any());
+        assertEquals(2, jdbcTemplate.idQueries.get());
+        assertEquals(20, jdbcTemplate.rowsFor(JdbcEventWriter.INSERT_EVENT_SQL));
+
+        final Set<Integer> ids = logs.stream()
+                .flatMap(l -> l.getEvents().getEventCollection().stream())
+                .map(Event::getDbid)
+                .collect(Collectors.toSet());
+        assertEquals(20, ids.size());
+    }
+
+    @Test
+    public void testMaxBatchSizeIsHonored() throws Exception {
+        eventWriter.setMaxBatchSize(1);
+        eventWriter.process(createLog(3));
+
+        // Event logs are never split
+        verify(transactionManager, times(1)).execute(any());
+        assertEquals(3, jdbcTemplate.rowsFor(JdbcEventWriter.INSERT_EVENT_SQL));
+    }
+
+    @Test
+    public void testFallsBackToIndividualWritesWhenTheBatchFails() throws Exception {
+        final EventDao eventDao = mock(EventDao.class);
+        final AtomicInteger nextId = new AtomicInteger(1000);
+        doAnswer(invocation -> {
+            ((OnmsEvent)invocation.getArgument(0)).setId(nextId.incrementAndGet());
+            return null;
+        }).when(eventDao).save(any(OnmsEvent.class));
+        ReflectionTestUtils.setField(eventWriter, "eventDao", eventDao);
+        jdbcTemplate.failInserts = true;
+
+        final Log log = createLog(2);
+        eventWriter.process(log);
+
+        verify(eventDao, times(2)).save(any(OnmsEvent.class));
+        assertEquals(Integer.valueOf(1001), log.getEvents().getEventCollection().get(0).getDbid());
+        assertEquals(Integer.valueOf(1002), log.getEvents().getEventCollection().get(1).getDbid());
+        assertEquals(1, metrics.meter("eventlogs.process.write.fallbacks").getCount());
+
+        // Errors on the fallback path are reported to the caller
+        doAnswer(invocation -> {
+            throw new IllegalStateException("boom");
+        }).when(eventDao).save(any(OnmsEvent.class));
+        try {
+            eventWriter.process(createLog(1));
+            fail("Expected an EventProcessorException");
+        } catch (EventProcessorException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testFallbackFailuresAreReportedToTheirOwnCaller() throws Exception {
+        final EventDao eventDao = mock(EventDao.class);
+        final AtomicInteger nextId = new AtomicInteger(1000);
+        final AtomicBoolean commitFails = new AtomicBoolean(false);
+        doAnswer(invocation -> {
+            final OnmsEvent ovent = invocation.getArgument(0);
+            ovent.setId(nextId.incrementAndGet());
+            if ("failingUei".equals(ovent.getEventUei())) {
+                commitFails.set(true);
+            }
+            return null;
+        }).when(eventDao).save(any(OnmsEvent.class));
+        ReflectionTestUtils.setField(eventWriter, "eventDao", eventDao);
+        jdbcTemplate.failInserts = true;
+
+        // Hold the first batch open until all of the other writers are waiting, so they are batched together
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean first = new AtomicBoolean(true);
+        doAnswer(invocation -> {
+            if (first.getAndSet(false)) {
+                release.await();
+            }
+            final Object result = ((TransactionCallback<?>)invocation.getArgument(0)).doInTransaction(null);
+            if (commitFails.getAndSet(false)) {
+                throw new DataAccessResourceFailureException("commit failed");
+            }
+            return result;
+        }).when(transactionManager).execute(any());
+
+        final List<Log> logs = IntStream.range(0, 4).mapToObj(i -> createLog(2, i == 2 ? "failingUei" : "testUei")).collect(Collectors.toList());
+        final Throwable[] results = new Throwable[logs.size()];
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < logs.size(); i++) {
+            final int index = i;
+            final Thread thread = new Thread(() -> {
+                try {
+                    eventWriter.process(logs.get(index));
+                } catch (Throwable t) {
+                    results[index] = t;
+                }
+            });
+            threads.add(thread);
+            thread.start();
+            if (threads.size() == 1) {
+                await().atMost(10, TimeUnit.SECONDS).until(() -> first.get() == false);
+            }
+        }
+        await().atMost(10, TimeUnit.SECONDS).until(() -> threads.stream().skip(1).allMatch(t -> t.getState() == Thread.State.WAITING));
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Only the owner of the failing log sees the failure
+        for (int i = 0; i < logs.size(); i++) {
+            if (i == 2) {
+                assertTrue(results[i] instanceof EventProcessorException);
+                assertTrue(results[i].getCause() instanceof DataAccessResourceFailureException);
+            } else {
+                assertNull(results[i]);
+                for (Event event : logs.get(i).getEvents().getEventCollection()) {
+                    assertNotNull(event.getDbid());
+                }
+            }
+        }
+    }
+
+    private static Log createLog(int numEvents) {
+        return createLog(numEvents, "testUei");
+    }
+
+    private static Log createLog(int numEvents, String uei) {
+        final Events events = new Events();
+        for (int i = 0; i < numEvents; i++) {
+            final EventBuilder bldr = new EventBuilder(uei, "testSource");
+            bldr.setLogDest(HibernateEventWriter.LOG_MSG_DEST_LOG_AND_DISPLAY);
+            bldr.addParam("param1", "value" + i);
+            bldr.addParam("param2", i);
+            events.addEvent(bldr.getEvent());
+        }
+        final Log log = new Log();
+        log.setEvents(events);
+        return log;
+    }
+
+    private static class MockJdbcTemplate extends JdbcTemplate {
+        private final AtomicInteger nextId = new AtomicInteger();
+        private final AtomicInteger idQueries = new AtomicInteger();
+        private final List<String> statements = new ArrayList<>();
+        private volatile boolean failInserts = false;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> List<T> queryForList(String sql, Class<T> elementType, Object... args) {
+            assertEquals(JdbcEventWriter.ALLOCATE_IDS_SQL, sql);
+            idQueries.incrementAndGet();
+            return (List<T>)IntStream.range(0, (Integer)args[0])
+                    .mapToObj(i -> nextId.incrementAndGet())
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public int[] batchUpdate(String sql, BatchPreparedStatementSetter pss) {
+            if (failInserts) {
+                throw new DataIntegrityViolationException("duplicate key");
+            }
+            final PreparedStatement ps = mock(PreparedStatement.class);
+            try {
+                for (int i = 0; i < pss.getBatchSize(); i++) {
+                    pss.setValues(ps, i);
+                    synchronized (statements) {
+                        statements.add(sql);
+                    }
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+            return new int[pss.getBatchSize()];
+        }
+
+        private long rowsFor(String sql) {
+            synchronized (statements) {
+                return statements.stream().filter(sql::equals).count();
+            }
+        }
+    }
+}
@@ -46,6 +46,8 @@ import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import com.google.common.base.Strings;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.cache.Cache;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.opennms.core.utils.InetAddressUtils;
@@ -347,7 +349,7 @@ public class ConvertToEvent {
         if (!parser.find()) {
             throw new MessageDiscardedException(String.format("Message does not match regex: '%s'", SyslogParser.fromByteBuffer(buffer).toString()));
         }
-        SyslogMessage message;
+        final SyslogMessage message;
         try {
             message = parser.parse();
         } catch (final SyslogParserException ex) {
@@ -400,13 +402,16 @@ public class ConvertToEvent {
 
         EventBuilder bldr = toEventBuilder(message, systemId, location, receivedTimestamp, m_locationAwareDnsLookupClient, dnsCache);
 
+        // Only resolve the host address if a hostaddr-match needs it
+        final Supplier<String> hostAddress = Suppliers.memoize(() -> str(message.getHostAddress()));
+
         final List<UeiMatch> ueiMatch = (config.getUeiList() == null ? Collections.emptyList() : config.getUeiList());
         for (final UeiMatch uei : ueiMatch) {
             final boolean messageMatchesUeiListEntry = containsIgnoreCase(uei.getFacilities(), facilityTxt) &&
                                               containsIgnoreCase(uei.getSeverities(), priorityTxt) &&
                                               matchProcess(uei.getProcessMatch().orElse(null), message.getProcessName()) &&
                                               matchHostname(uei.getHostnameMatch().orElse(null), message.getHostName()) &&
-                                              matchHostAddr(uei.getHostaddrMatch().orElse(null), str(message.getHostAddress()));
+                                              matchHostAddr(uei.getHostaddrMatch().orElse(null), hostAddress);
 
             if (messageMatchesUeiListEntry) {
                 if (uei.getMatch().getType().equals("substr")) {
@@ -478,9 +483,9 @@ public class ConvertToEvent {
         }
     }
 
-    private static boolean matchHostAddr(final HostaddrMatch hostaddrMatch, final String hostAddress) {
+    private static boolean matchHostAddr(final HostaddrMatch hostaddrMatch, final Supplier<String> hostAddress) {
         if (hostaddrMatch == null) return true;
-        return matchFind(hostaddrMatch.getExpression(), hostAddress, "hostaddr-match");
+        return matchFind(hostaddrMatch.getExpression(), hostAddress.get(), "hostaddr-match");
     }
 
     private static boolean matchHostname(final HostnameMatch hostnameMatch, final String hostName) {
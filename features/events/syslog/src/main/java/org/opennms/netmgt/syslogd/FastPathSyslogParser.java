@@ -0,0 +1,697 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.syslogd;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.time.zone.ZoneRulesException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opennms.core.time.ZonedDateTimeBuilder;
+import org.opennms.netmgt.config.SyslogdConfig;
+
+/**
+ * <p>This parser adds a fast path to the {@link RadixTreeSyslogParser} for the most
+ * common message formats: RFC 5424 messages and RFC 3164 messages with a
+ * <code>MMM dd HH:mm:ss</code> timestamp (optionally preceded by a message ID).</p>
+ *
+ * <p>The fast path works directly on the bytes of the {@link ByteBuffer} using state
+ * that is reused by each thread, instead of running the generic {@link ParserStage}
+ * operations of the grok patterns that accumulate each token in a {@link StringBuilder}.
+ * Numeric fields are parsed from the bytes and host names, process names and message
+ * IDs are interned, so the only strings that are allocated for most messages are the
+ * message itself and the values that were not seen before.</p>
+ *
+ * <p>The fast path produces the same results as the default grok patterns. Messages
+ * that do not match one of the supported formats, or that contain constructs where
+ * the outcome of the patterns is not obvious, are handed to the {@link RadixTreeSyslogParser}.
+ * The fast path is disabled when the grok patterns have been customized.</p>
+ */
+public class FastPathSyslogParser extends RadixTreeSyslogParser {
+
+	private static final ThreadLocal<FastPathState> STATE = ThreadLocal.withInitial(FastPathState::new);
+
+	public FastPathSyslogParser(SyslogdConfig config, ByteBuffer syslogString) {
+		super(config, syslogString);
+	}
+
+	@Override
+	public SyslogMessage parse() {
+		if (isUsingDefaultPatterns()) {
+			final SyslogMessage message = STATE.get().parse(getText());
+			if (message != null) {
+				trimStructuredData(message);
+				setTimezoneIfNeeded(message);
+				setYearIfNeeded(message);
+				return message;
+			}
+		}
+		return super.parse();
+	}
+
+	/**
+	 * Interns ASCII strings directly from their bytes, so that no {@link String}
+	 * is created for values that were already seen. This is a direct mapped table:
+	 * on collisions, the last value wins.
+	 */
+	static class AsciiInterner {
+		private final String[] m_table;
+		private final int m_mask;
+
+		AsciiInterner(int capacity) {
+			if (Integer.bitCount(capacity) != 1) {
+				throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+			}
+			m_table = new String[capacity];
+			m_mask = capacity - 1;
+		}
+
+		String intern(byte[] bytes, int from, int to) {
+			// Same as String.hashCode() for ASCII values
+			int hash = 0;
+			for (int i = from; i < to; i++) {
+				hash = 31 * hash + bytes[i];
+			}
+			final int index = (hash ^ (hash >>> 16)) & m_mask;
+			final String candidate = m_table[index];
+			if (candidate != null && candidate.length() == to - from) {
+				boolean same = true;
+				for (int i = 0; i < candidate.length(); i++) {
+					if (candidate.charAt(i) != bytes[from + i]) {
+						same = false;
+						break;
+					}
+				}
+				if (same) {
+					return candidate;
+				}
+			}
+			final String value = new String(bytes, from, to - from, StandardCharsets.US_ASCII);
+			m_table[index] = value;
+			return value;
+		}
+	}
+
+	/**
+	 * The parser state for a single thread. The fields are reset
+	 * before each message is parsed.
+	 *
+	 * Each parsing method returns the position after the token it consumed,
+	 * or {@link #FAIL} if the message does not have the expected format.
+	 */
+	static class FastPathState {
+		private static final int FAIL = -1;
+		private static final int NONE = -1;
+		private static final int MAX_ZONE_IDS = 256;
+
+		private final AsciiInterner m_hostNames = new AsciiInterner(1024);
+		private final AsciiInterner m_processNames = new AsciiInterner(1024);
+		private final AsciiInterner m_messageIds = new AsciiInterner(256);
+		private final AsciiInterner m_zoneNames = new AsciiInterner(64);
+		private final Map<String, ZoneId> m_zoneIds = new HashMap<>();
+
+		private byte[] m_scratch = new byte[2048];
+
+		private byte[] buf;
+		private int end;
+
+		private int priority;
+		private int version;
+		private int year;
+		private int month;
+		private int day;
+		private int hour;
+		private int minute;
+		private int second;
+		private int millisecond;
+		private ZoneId zoneId;
+		private int hostStart;
+		private int hostEnd;
+		private int processNameStart;
+		private int processNameEnd;
+		private int processIdStart;
+		private int processIdEnd;
+		private int processId;
+		private int messageIdStart;
+		private int messageIdEnd;
+		private int messageStart;
+
+		/**
+		 * @return the parsed message, or null if the buffer could not be parsed by the fast path
+		 */
+		SyslogMessage parse(ByteBuffer buffer) {
+			final int length = buffer.remaining();
+			final int start;
+			if (buffer.hasArray()) {
+				buf = buffer.array();
+				start = buffer.arrayOffset() + buffer.position();
+			} else {
+				if (m_scratch.length < length) {
+					m_scratch = new byte[Math.max(length, m_scratch.length * 2)];
+				}
+				buffer.duplicate().get(m_scratch, 0, length);
+				buf = m_scratch;
+				start = 0;
+			}
+			end = start + length;
+
+			try {
+				reset();
+				return parseHeader(start) ? toMessage() : null;
+			} finally {
+				// Don't hold on to the message
+				buf = null;
+			}
+		}
+
+		private void reset() {
+			version = NONE;
+			millisecond = NONE;
+			zoneId = null;
+			processNameStart = NONE;
+			processIdStart = NONE;
+			processId = NONE;
+			messageIdStart = NONE;
+		}
+
+		private boolean parseHeader(int p) {
+			// <%{INT:facilityPriority}>
+			if (p >= end || buf[p] != '<') {
+				return false;
+			}
+			int q = digits(p + 1);
+			if (q == FAIL || q >= end || buf[q] != '>') {
+				return false;
+			}
+			priority = toInt(p + 1, q);
+			p = q + 1;
+
+			if (p >= end) {
+				return false;
+			} else if (isDigit(buf[p])) {
+				return parseRfc5424(p);
+			} else if (!isWhitespace(buf[p])) {
+				// %{NOSPACE:messageId}: followed by the timestamp
+				q = until(p, (byte)':');
+				if (q == FAIL) {
+					return false;
+				} else if (buf[q] == ':') {
+					if (q == p || !isAscii(p, q)) {
+						return false;
+					}
+					if (!isDash(p, q)) {
+						messageIdStart = p;
+						messageIdEnd = q;
+					}
+					p = q + 1;
+				}
+			}
+			return parseRfc3164(p);
+		}
+
+		/**
+		 * %{MONTH:month} %{INT:day} %{INT:hour}:%{INT:minute}:%{INT:second} %{HOSTNAMEORIP:hostname} ...
+		 */
+		private boolean parseRfc3164(int p) {
+			p = whitespace(p);
+			if (p == FAIL || (month = month(p)) == 0) {
+				return false;
+			}
+			p = whitespace(p + 3);
+			if (p == FAIL) {
+				return false;
+			}
+			int q = untilWhitespace(p);
+			if (q == FAIL || !isDigits(p, q)) {
+				return false;
+			}
+			day = toInt(p, q);
+			p = whitespace(q);
+			if (p == FAIL) {
+				return false;
+			}
+			q = digits(p);
+			if (q == FAIL || q >= end || buf[q] != ':') {
+				return false;
+			}
+			hour = toInt(p, q);
+			p = q + 1;
+			q = digits(p);
+			if (q == FAIL || q >= end || buf[q] != ':') {
+				return false;
+			}
+			minute = toInt(p, q);
+			p = q + 1;
+			q = untilWhitespace(p);
+			if (q == FAIL || !isDigits(p, q)) {
+				return false;
+			}
+			second = toInt(p, q);
+			p = whitespace(q);
+			if (p == FAIL) {
+				return false;
+			}
+			q = hostname(p);
+			if (q == FAIL) {
+				return false;
+			}
+			hostStart = p;
+			hostEnd = q;
+			p = whitespace(q);
+			if (p == FAIL) {
+				return false;
+			}
+
+			// The remaining patterns are tried in order, like the radix tree would
+			// %{NOSPACE:processName}[%{INT:processId}]: %{STRING:message}
+			q = until(p, (byte)'[');
+			if (q != FAIL && q > p && buf[q] == '[') {
+				if (!isAscii(p, q)) {
+					return false;
+				}
+				final int r = processIdAndMessage(q);
+				if (r != FAIL) {
+					setProcessName(p, q);
+					messageStart = r;
+					return true;
+				}
+			}
+			// [%{INT:processId}]: %{STRING:message}
+			if (buf[p] == '[') {
+				final int r = processIdAndMessage(p);
+				if (r != FAIL) {
+					messageStart = r;
+					return true;
+				}
+			}
+			// %{NOSPACE:processName}: %{STRING:message}
+			q = until(p, (byte)':');
+			if (q != FAIL && q > p && buf[q] == ':') {
+				if (!isAscii(p, q)) {
+					return false;
+				}
+				final int r = whitespace(q + 1);
+				if (r != FAIL) {
+					setProcessName(p, q);
+					messageStart = r;
+					return true;
+				}
+			}
+			// %{STRING:message}
+			processId = NONE;
+			messageStart = p;
+			return true;
+		}
+
+		/**
+		 * [%{INT:processId}]: %{STRING:message}
+		 */
+		private int processIdAndMessage(int p) {
+			final int q = digits(p + 1);
+			if (q == FAIL || q + 1 >= end || buf[q] != ']' || buf[q + 1] != ':') {
+				return FAIL;
+			}
+			processId = toInt(p + 1, q);
+			return whitespace(q + 2);
+		}
+
+		/**
+		 * %{INT:version} %{INT:year}-%{INT:month}-%{INT:day}T%{INT:hour}:%{INT:minute}:%{INT:second}[.%{INT:secondFraction}]%{STRING:timezone}
+		 * %{HOSTNAMEORIP:hostname} %{STRING:processName} %{STRING:processId} %{STRING:messageId} [- ]%{STRING:message}
+		 */
+		private boolean parseRfc5424(int p) {
+			int q = untilWhitespace(p);
+			if (q == FAIL || !isDigits(p, q)) {
+				return false;
+			}
+			version = toInt(p, q);
+			p = whitespace(q);
+			if (p == FAIL) {
+				return false;
+			}
+			if ((q = delimitedInt(p, (byte)'-')) == FAIL) {
+				return false;
+			}
+			year = toInt(p, q);
+			p = q + 1;
+			if ((q = delimitedInt(p, (byte)'-')) == FAIL) {
+				return false;
+			}
+			month = toInt(p, q);
+			p = q + 1;
+			if ((q = delimitedInt(p, (byte)'T')) == FAIL) {
+				return false;
+			}
+			day = toInt(p, q);
+			p = q + 1;
+			if ((q = delimitedInt(p, (byte)':')) == FAIL) {
+				return false;
+			}
+			hour = toInt(p, q);
+			p = q + 1;
+			if ((q = delimitedInt(p, (byte)':')) == FAIL) {
+				return false;
+			}
+			minute = toInt(p, q);
+			p = q + 1;
+			q = digits(p);
+			if (q == FAIL || q >= end) {
+				return false;
+			}
+			second = toInt(p, q);
+			p = q;
+			if (buf[p] == '.') {
+				q = digits(p + 1);
+				if (q == FAIL) {
+					return false;
+				}
+				final int fraction = toInt(p + 1, q);
+				millisecond = fraction >= 1000 ? Math.round(fraction / 1000f) : fraction;
+				p = q;
+			}
+			// %{STRING:timezone}
+			q = untilWhitespace(p);
+			if (q == FAIL || q == p || !isAscii(p, q) || (zoneId = zoneId(p, q)) == null) {
+				return false;
+			}
+			p = whitespace(q);
+			if (p == FAIL) {
+				return false;
+			}
+			q = hostname(p);
+			if (q == FAIL) {
+				return false;
+			}
+			hostStart = p;
+			hostEnd = q;
+			p = whitespace(q);
+			if (p == FAIL) {
+				return false;
+			}
+			// %{STRING:processName}
+			q = untilWhitespace(p);
+			if (q == FAIL || !isAscii(p, q)) {
+				return false;
+			}
+			setProcessName(p, q);
+			p = whitespace(q);
+			if (p == FAIL) {
+				return false;
+			}
+			// %{STRING:processId}
+			q = untilWhitespace(p);
+			if (q == FAIL || !isAscii(p, q)) {
+				return false;
+			}
+			if (!isDash(p, q)) {
+				processIdStart = p;
+				processIdEnd = q;
+			}
+			p = whitespace(q);
+			if (p == FAIL) {
+				return false;
+			}
+			// %{STRING:messageId}
+			q = untilWhitespace(p);
+			if (q == FAIL || !isAscii(p, q)) {
+				return false;
+			}
+			if (!isDash(p, q)) {
+				messageIdStart = p;
+				messageIdEnd = q;
+			}
+			p = whitespace(q);
+			if (p == FAIL) {
+				return false;
+			}
+			// - %{STRING:message}
+			if (buf[p] == '-') {
+				q = whitespace(p + 1);
+				if (q != FAIL) {
+					messageStart = q;
+					return true;
+				}
+			}
+			// %{STRING:message}
+			messageStart = p;
+			return true;
+		}
+
+		private SyslogMessage toMessage() {
+			final SyslogMessage message = new SyslogMessage();
+			message.setFacility(SyslogFacility.getFacilityForCode(priority));
+			message.setSeverity(SyslogSeverity.getSeverityForCode(priority));
+			if (version != NONE) {
+				message.setVersion(version);
+				message.setYear(year);
+			}
+			message.setMonth(month);
+			message.setDayOfMonth(day);
+			message.setHourOfDay(hour);
+			message.setMinute(minute);
+			message.setSecond(second);
+			if (millisecond != NONE) {
+				message.setMillisecond(millisecond);
+			}
+			message.setZoneId(zoneId);
+			message.setHostName(m_hostNames.intern(buf, hostStart, hostEnd));
+			if (processNameStart != NONE) {
+				message.setProcessName(m_processNames.intern(buf, processNameStart, processNameEnd));
+			}
+			if (processId != NONE) {
+				message.setProcessId(String.valueOf(processId));
+			} else if (processIdStart != NONE) {
+				message.setProcessId(new String(buf, processIdStart, processIdEnd - processIdStart, StandardCharsets.US_ASCII));
+			}
+			if (messageIdStart != NONE) {
+				message.setMessageID(m_messageIds.intern(buf, messageIdStart, messageIdEnd));
+			}
+			message.setMessage(decodeTrimmed(messageStart, end));
+			return message;
+		}
+
+		private void setProcessName(int from, int to) {
+			if (!isDash(from, to)) {
+				processNameStart = from;
+				processNameEnd = to;
+			}
+		}
+
+		private ZoneId zoneId(int from, int to) {
+			final String name = m_zoneNames.intern(buf, from, to);
+			ZoneId zone = m_zoneIds.get(name);
+			if (zone == null) {
+				try {
+					try {
+						zone = ZonedDateTimeBuilder.parseZoneId(name);
+					} catch (ZoneRulesException e) {
+						zone = ZonedDateTimeBuilder.parseZoneId(name.toUpperCase());
+					}
+				} catch (DateTimeException e) {
+					// Let the radix tree parser deal with it
+					return null;
+				}
+				if (m_zoneIds.size() >= MAX_ZONE_IDS) {
+					m_zoneIds.clear();
+				}
+				m_zoneIds.put(name, zone);
+			}
+			return zone;
+		}
+
+		/**
+		 * Decodes the given range like the {@link ParserStage} operations do, i.e. by
+		 * casting every byte to a char, and trims it like {@link String#trim()}.
+		 */
+		private String decodeTrimmed(int from, int to) {
+			while (from < to && isTrimmable(buf[from])) {
+				from++;
+			}
+			while (to > from && isTrimmable(buf[to - 1])) {
+				to--;
+			}
+			if (isAscii(from, to)) {
+				return new String(buf, from, to - from, StandardCharsets.ISO_8859_1);
+			}
+			final char[] chars = new char[to - from];
+			for (int i = from; i < to; i++) {
+				chars[i - from] = (char)buf[i];
+			}
+			return new String(chars);
+		}
+
+		/**
+		 * Matches 0...n whitespace characters, the match fails if the end of
+		 * the buffer is reached.
+		 */
+		private int whitespace(int p) {
+			while (p < end && isWhitespace(buf[p])) {
+				p++;
+			}
+			return p < end ? p : FAIL;
+		}
+
+		/**
+		 * Matches 1...9 digits, followed by any other character.
+		 */
+		private int digits(int p) {
+			int q = p;
+			while (q < end && isDigit(buf[q])) {
+				q++;
+			}
+			return q == p || q - p > 9 || q >= end ? FAIL : q;
+		}
+
+		private int delimitedInt(int p, byte delimiter) {
+			final int q = digits(p);
+			return q == FAIL || buf[q] != delimiter ? FAIL : q;
+		}
+
+		/**
+		 * Matches any characters until whitespace or the given character.
+		 */
+		private int until(int p, byte delimiter) {
+			while (p < end && buf[p] != delimiter && !isWhitespace(buf[p])) {
+				p++;
+			}
+			return p < end ? p : FAIL;
+		}
+
+		private int untilWhitespace(int p) {
+			while (p < end && !isWhitespace(buf[p])) {
+				p++;
+			}
+			return p < end ? p : FAIL;
+		}
+
+		/**
+		 * Matches 1...n host name or IP address characters, followed by any other character.
+		 */
+		private int hostname(int p) {
+			int q = p;
+			while (q < end && isHostnameChar(buf[q])) {
+				q++;
+			}
+			// Bytes outside of the ASCII range may be mapped to letters by the radix tree parser
+			return q == p || q >= end || buf[q] < 0 ? FAIL : q;
+		}
+
+		/**
+		 * Matches a 3-character en_us month string as specified in syslog RFC 3164.
+		 *
+		 * @return the month, or 0 if there is no month at the given position
+		 */
+		private int month(int p) {
+			if (p + 3 > end) {
+				return 0;
+			}
+			final byte a = buf[p], b = buf[p + 1], c = buf[p + 2];
+			switch (a) {
+			case 'J': case 'j':
+				if (b == 'a' && c == 'n') return 1;
+				if (b == 'u' && c == 'n') return 6;
+				if (b == 'u' && c == 'l') return 7;
+				return 0;
+			case 'F': case 'f':
+				return b == 'e' && c == 'b' ? 2 : 0;
+			case 'M': case 'm':
+				if (b == 'a' && c == 'r') return 3;
+				if (b == 'a' && c == 'y') return 5;
+				return 0;
+			case 'A': case 'a':
+				if (b == 'p' && c == 'r') return 4;
+				if (b == 'u' && c == 'g') return 8;
+				return 0;
+			case 'S': case 's':
+				return b == 'e' && c == 'p' ? 9 : 0;
+			case 'O': case 'o':
+				return b == 'c' && c == 't' ? 10 : 0;
+			case 'N': case 'n':
+				return b == 'o' && c == 'v' ? 11 : 0;
+			case 'D': case 'd':
+				return b == 'e' && c == 'c' ? 12 : 0;
+			default:
+				return 0;
+			}
+		}
+
+		private int toInt(int from, int to) {
+			int value = 0;
+			for (int i = from; i < to; i++) {
+				value = value * 10 + (buf[i] - '0');
+			}
+			return value;
+		}
+
+		private boolean isDigits(int from, int to) {
+			if (to - from > 9) {
+				return false;
+			}
+			for (int i = from; i < to; i++) {
+				if (!isDigit(buf[i])) {
+					return false;
+				}
+			}
+			return to > from;
+		}
+
+		private boolean isAscii(int from, int to) {
+			for (int i = from; i < to; i++) {
+				if (buf[i] < 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean isDash(int from, int to) {
+			return to - from == 1 && buf[from] == '-';
+		}
+
+		private static boolean isDigit(byte b) {
+			return b >= '0' && b <= '9';
+		}
+
+		private static boolean isWhitespace(byte b) {
+			return b == ' ' || b == '\t';
+		}
+
+		private static boolean isTrimmable(byte b) {
+			return b >= 0 && b <= ' ';
+		}
+
+		private static boolean isHostnameChar(byte b) {
+			return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || isDigit(b) ||
+					b == '-' || b == '.' || b == '_' || b == ':';
+		}
+	}
+}
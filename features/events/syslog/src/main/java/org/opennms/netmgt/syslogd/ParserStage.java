@@ -77,4 +77,28 @@ public interface ParserStage {
 	 * that the next stage can continue processing.
 	 */
 	ParserState apply(ParserState state);
+
+	/**
+	 * Determine how this stage handles the given character if it is
+	 * the first character of its input. This is used to decide which
+	 * stages of a {@link ParserStageAutomaton} can match at all.
+	 */
+	AcceptResult acceptFirst(char c);
+
+	/**
+	 * Match this stage against a range of bytes without producing any values.
+	 * 
+	 * @return The position after the matched characters, or -1 if the stage
+	 * does not match
+	 */
+	int match(byte[] bytes, int position, int limit);
+
+	/**
+	 * Match this stage against a range of bytes and pass the matched value
+	 * to the consumer of the stage.
+	 * 
+	 * @return The position after the matched characters, or -1 if the stage
+	 * does not match or if the value cannot be consumed
+	 */
+	int capture(ParserState state, byte[] bytes, int position, int limit);
 }
\ No newline at end of file
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.syslogd;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.opennms.core.collections.RadixTreeNode;
+import org.opennms.netmgt.syslogd.RadixTreeParser.CompositeParserStage;
+
+/**
+ * <p>This class is compiled from the tree of {@link ParserStage} sequences
+ * of a {@link RadixTreeParser}. Each node of the tree becomes a state of the
+ * automaton and each state has a transition table that maps the next byte of
+ * the input to the child states that can possibly match it. The tables are
+ * computed once by asking each stage how it would handle every possible first
+ * character, so branches whose patterns cannot match the input are never
+ * entered.</p>
+ * 
+ * <p>Matching works directly on the bytes of the message: the stages of a
+ * state only advance a position in the input and do not clone the
+ * {@link ParserState} or accumulate any values. The values are only consumed
+ * once an accepting state is reached, by replaying the stages of the matched
+ * path. If a value cannot be consumed, the automaton continues with the next
+ * alternative, so the result is always the same as the result of
+ * {@link RadixTreeParser#parse(ByteBuffer)}: the first complete parse in the
+ * order that the patterns were taught.</p>
+ */
+public class ParserStageAutomaton implements ByteBufferParser<SyslogMessage> {
+
+	/**
+	 * Index of the transition that is used at the end of the input.
+	 */
+	private static final int END_OF_INPUT = 256;
+
+	private static final ParserStage[] NO_STAGES = new ParserStage[0];
+
+	// The stages of each state, indexed by state
+	private final ParserStage[][] m_stages;
+
+	// The child states of each state, indexed by state and next byte
+	private final int[][][] m_transitions;
+
+	// The maximum number of states on a path through the automaton
+	private final int m_depth;
+
+	ParserStageAutomaton(RadixTreeNode<ParserStage> root) {
+		final List<RadixTreeNode<ParserStage>> nodes = new ArrayList<>();
+		final List<int[]> children = new ArrayList<>();
+		m_depth = number(root, nodes, children);
+
+		m_stages = new ParserStage[nodes.size()][];
+		for (int i = 0; i < nodes.size(); i++) {
+			m_stages[i] = flatten(nodes.get(i).getContent());
+		}
+
+		// Determine which states can start with each character
+		final boolean[][] startsWith = new boolean[nodes.size()][];
+		for (int i = nodes.size() - 1; i >= 0; i--) {
+			startsWith[i] = new boolean[END_OF_INPUT];
+			for (int b = 0; b < END_OF_INPUT; b++) {
+				startsWith[i][b] = startsWith(m_stages[i], children.get(i), startsWith, (char)(byte)b);
+			}
+		}
+
+		// Share identical transitions between states
+		final Map<List<Integer>, int[]> transitions = new HashMap<>();
+		m_transitions = new int[nodes.size()][][];
+		for (int i = 0; i < nodes.size(); i++) {
+			final int[] next = children.get(i);
+			m_transitions[i] = new int[END_OF_INPUT + 1][];
+			for (int b = 0; b <= END_OF_INPUT; b++) {
+				final List<Integer> targets = new ArrayList<>(next.length);
+				for (int child : next) {
+					// At the end of the input, only terminal or optional stages can
+					// complete so every child has to be considered
+					if (b == END_OF_INPUT || startsWith[child][b]) {
+						targets.add(child);
+					}
+				}
+				m_transitions[i][b] = transitions.computeIfAbsent(targets, t -> t.stream().mapToInt(Integer::intValue).toArray());
+			}
+		}
+	}
+
+	/**
+	 * Assign state numbers to the node and its children in depth-first order, so
+	 * that the children of a state always have higher numbers than the state.
+	 * 
+	 * @return The maximum depth of the subtree
+	 */
+	private static int number(RadixTreeNode<ParserStage> node, List<RadixTreeNode<ParserStage>> nodes, List<int[]> children) {
+		final int state = nodes.size();
+		nodes.add(node);
+		children.add(null);
+
+		final Collection<RadixTreeNode<ParserStage>> nodeChildren = node.getChildren() == null ? Collections.emptySet() : node.getChildren();
+		final int[] next = new int[nodeChildren.size()];
+		int depth = 0;
+		int i = 0;
+		for (RadixTreeNode<ParserStage> child : nodeChildren) {
+			next[i++] = nodes.size();
+			depth = Math.max(depth, number(child, nodes, children));
+		}
+		children.set(state, next);
+		return depth + 1;
+	}
+
+	private static ParserStage[] flatten(ParserStage stage) {
+		if (stage == null) {
+			return NO_STAGES;
+		} else if (stage instanceof CompositeParserStage) {
+			return ((CompositeParserStage)stage).members.toArray(NO_STAGES);
+		} else {
+			return new ParserStage[] { stage };
+		}
+	}
+
+	/**
+	 * @return False if the stages of a state certainly cannot match an input
+	 * that starts with the given character
+	 */
+	private static boolean startsWith(ParserStage[] stages, int[] children, boolean[][] startsWith, char c) {
+		for (ParserStage stage : stages) {
+			switch(stage.acceptFirst(c)) {
+				case CANCEL:
+					return false;
+				case COMPLETE_WITHOUT_CONSUMING:
+					// The next stage gets the same character
+					continue;
+				default:
+					return true;
+			}
+		}
+
+		// A complete parse does not need to consume the character
+		if (children.length == 0) {
+			return true;
+		}
+		for (int child : children) {
+			if (startsWith[child][c & 0xff]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public CompletableFuture<SyslogMessage> parse(ByteBuffer buffer) {
+		return CompletableFuture.completedFuture(match(buffer));
+	}
+
+	/**
+	 * @return The message of the first complete parse, or null if no
+	 * parse is possible
+	 */
+	public SyslogMessage match(ByteBuffer buffer) {
+		final byte[] bytes;
+		final int position;
+		final int limit;
+		if (buffer.hasArray()) {
+			bytes = buffer.array();
+			position = buffer.arrayOffset() + buffer.position();
+			limit = position + buffer.remaining();
+		} else {
+			bytes = new byte[buffer.remaining()];
+			buffer.duplicate().get(bytes);
+			position = 0;
+			limit = bytes.length;
+		}
+		return match(buffer, bytes, limit, 0, position, 0, new int[m_depth], new int[m_depth]);
+	}
+
+	private SyslogMessage match(ByteBuffer buffer, byte[] bytes, int limit, int state, int position, int depth, int[] path, int[] starts) {
+		int current = position;
+		for (ParserStage stage : m_stages[state]) {
+			current = stage.match(bytes, current, limit);
+			if (current < 0) {
+				return null;
+			}
+		}
+		path[depth] = state;
+		starts[depth] = position;
+
+		final int[] next = m_transitions[state][current < limit ? bytes[current] & 0xff : END_OF_INPUT];
+		if (next.length == 0) {
+			// Only accept states have no transitions at all
+			return m_transitions[state][END_OF_INPUT].length == 0 ? capture(buffer, bytes, limit, depth, path, starts) : null;
+		}
+		for (int child : next) {
+			final SyslogMessage message = match(buffer, bytes, limit, child, current, depth + 1, path, starts);
+			if (message != null) {
+				return message;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Replay the stages of the matched path and pass their values to the
+	 * stage consumers.
+	 */
+	private SyslogMessage capture(ByteBuffer buffer, byte[] bytes, int limit, int depth, int[] path, int[] starts) {
+		final ParserState state = new ParserState(buffer);
+		for (int i = 0; i <= depth; i++) {
+			int position = starts[i];
+			for (ParserStage stage : m_stages[path[i]]) {
+				position = stage.capture(state, bytes, position, limit);
+				if (position < 0) {
+					return null;
+				}
+			}
+		}
+		return state.message;
+	}
+}
@@ -37,7 +37,6 @@ import java.util.EmptyStackException;
 import java.util.List;
 import java.util.Objects;
 import java.util.Stack;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
@@ -89,23 +88,36 @@ public class ParserStageSequenceBuilder {
 	private static class ParserStageState {
 		public final ByteBuffer buffer;
 
+		// If true, only the size of the value is accumulated
+		private final boolean discardValue;
+
 		private StringBuilder accumulatedValue = null;
-		private AtomicInteger accumulatedSize = null;
+		private int accumulatedSize = 0;
 
 		// Only used by MatchMonth
 		public RadixTreeNode<CharacterWithValue> currentNode = null; 
 
+		// Only used when matching byte arrays
+		public boolean completed = false;
+
 		public ParserStageState(ByteBuffer input) {
+			this(input, false);
+		}
+
+		public ParserStageState(ByteBuffer input, boolean discardValue) {
 			buffer = input;
+			this.discardValue = discardValue;
 		}
 
 		public void accumulate(char c) {
-			accessAccumulatedValue().append(c);
-			accessAccumulatedSize().incrementAndGet();
+			if (!discardValue) {
+				accessAccumulatedValue().append(c);
+			}
+			accumulatedSize++;
 		}
 
 		public int getAccumulatedSize() {
-			return accessAccumulatedSize().get();
+			return accumulatedSize;
 		}
 
 		private final StringBuilder accessAccumulatedValue() {
@@ -115,18 +127,11 @@ public class ParserStageSequenceBuilder {
 			return accumulatedValue;
 		}
 
-		private final AtomicInteger accessAccumulatedSize() {
-			if (accumulatedSize == null) {
-				accumulatedSize = new AtomicInteger();
-			}
-			return accumulatedSize;
-		}
-
 		@Override
 		public String toString() {
 			return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
 				.append("accumulatedValue", accumulatedValue == null ? "null" : accumulatedValue.toString())
-				.append("accumulatedSize", accumulatedSize == null ? 0 : accumulatedSize.get())
+				.append("accumulatedSize", accumulatedSize)
 				.toString();
 		}
 	}
@@ -439,6 +444,74 @@ public class ParserStageSequenceBuilder {
 			}
 		}
 
+		@Override
+		public AcceptResult acceptFirst(char c) {
+			final AcceptResult result = acceptChar(new ParserStageState(null), c);
+			if (result == AcceptResult.CANCEL && m_optional) {
+				return AcceptResult.COMPLETE_WITHOUT_CONSUMING;
+			} else {
+				return result;
+			}
+		}
+
+		@Override
+		public final int match(byte[] bytes, int position, int limit) {
+			return scan(new ParserStageState(null, true), bytes, position, limit);
+		}
+
+		@Override
+		public final int capture(ParserState state, byte[] bytes, int position, int limit) {
+			if (m_resultConsumer == null) {
+				return match(bytes, position, limit);
+			}
+
+			final ParserStageState stageState = new ParserStageState(null);
+			final int end = scan(stageState, bytes, position, limit);
+			if (end >= 0 && stageState.completed) {
+				try {
+					m_resultConsumer.accept(state, getValue(stageState));
+				} catch (Exception e) {
+					// Conversion to value failed
+					LOG.trace("Parse failed on result consumer: {}", stageState, e);
+					return -1;
+				}
+			}
+			return end;
+		}
+
+		/**
+		 * Performs the same steps as {@link #apply(ParserState)} on a range of bytes,
+		 * without invoking the consumer.
+		 * 
+		 * @return The position after the matched characters, or -1 if the stage
+		 * does not match
+		 */
+		private int scan(ParserStageState stageState, byte[] bytes, int position, int limit) {
+			for (int i = position; i < limit; i++) {
+				switch (acceptChar(stageState, (char)bytes[i])) {
+					case CONTINUE:
+						continue;
+					case COMPLETE_AFTER_CONSUMING:
+						stageState.completed = true;
+						return i + 1;
+					case COMPLETE_WITHOUT_CONSUMING:
+						stageState.completed = true;
+						return i;
+					case CANCEL:
+						// Optional stages continue before the current character
+						return m_optional ? i : -1;
+				}
+			}
+
+			// Reached the end of the buffer
+			if (m_terminal) {
+				stageState.completed = true;
+				return limit;
+			} else {
+				return m_optional ? limit : -1;
+			}
+		}
+
 		public void reset(ParserStageState state) {
 			// Do nothing by default
 		}
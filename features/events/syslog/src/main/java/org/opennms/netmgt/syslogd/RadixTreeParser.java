@@ -112,6 +112,15 @@ public class RadixTreeParser implements ByteBufferParser<SyslogMessage> {
 		tree.addChildren(stages);
 	}
 
+	/**
+	 * Compile the current tree of stages into a {@link ParserStageAutomaton}.
+	 * Stages that are taught to this parser afterwards are not part of the
+	 * automaton.
+	 */
+	public ParserStageAutomaton compile() {
+		return new ParserStageAutomaton(tree);
+	}
+
 	public void performEdgeCompression() {
 		for (RadixTreeNode<ParserStage> child : tree.getChildren()) {
 			compressNode(child);
@@ -147,7 +156,7 @@ public class RadixTreeParser implements ByteBufferParser<SyslogMessage> {
 		}
 	}
 
-	private static class CompositeParserStage implements ParserStage {
+	static class CompositeParserStage implements ParserStage {
 
 		public final List<ParserStage> members = new ArrayList<>();
 
@@ -160,6 +169,39 @@ public class RadixTreeParser implements ByteBufferParser<SyslogMessage> {
 			return currentState;
 		}
 
+		@Override
+		public AcceptResult acceptFirst(char c) {
+			for (ParserStage member : members) {
+				final AcceptResult result = member.acceptFirst(c);
+				if (result != AcceptResult.COMPLETE_WITHOUT_CONSUMING) {
+					return result;
+				}
+			}
+			return AcceptResult.COMPLETE_WITHOUT_CONSUMING;
+		}
+
+		@Override
+		public int match(byte[] bytes, int position, int limit) {
+			for (ParserStage member : members) {
+				position = member.match(bytes, position, limit);
+				if (position < 0) {
+					break;
+				}
+			}
+			return position;
+		}
+
+		@Override
+		public int capture(ParserState state, byte[] bytes, int position, int limit) {
+			for (ParserStage member : members) {
+				position = member.capture(state, bytes, position, limit);
+				if (position < 0) {
+					break;
+				}
+			}
+			return position;
+		}
+
 		@Override
 		public void setOptional(boolean optional) {
 			throw new UnsupportedOperationException();
@@ -60,6 +60,17 @@ public class RadixTreeSyslogParser extends SyslogParser {
 
 	private static RadixTreeParser radixParser = new RadixTreeParser();
 
+	/**
+	 * The patterns of {@link #radixParser} compiled into an automaton.
+	 */
+	private static ParserStageAutomaton automaton;
+
+	/**
+	 * True when the parser was taught the default patterns from the
+	 * <i>grok-patterns.txt</i> classpath resource.
+	 */
+	private static boolean usingDefaultPatterns = false;
+
 	static {
 		try {
 			File configFile = ConfigFileConstants.getFile(ConfigFileConstants.SYSLOGD_GROK_PATTERNS_FILE_NAME);
@@ -92,9 +103,11 @@ public class RadixTreeSyslogParser extends SyslogParser {
 		// After we have taught all of the patterns to the parser, perform
 		// edge compression to optimize the tree
 		radixParser.performEdgeCompression();
+		automaton = radixParser.compile();
 	}
 
 	private static final void teachDefaultPatterns() {
+		usingDefaultPatterns = true;
 		new BufferedReader(new InputStreamReader(RadixTreeSyslogParser.class.getClassLoader().getResourceAsStream("org/opennms/netmgt/syslogd/grok-patterns.txt"))).lines().forEach(pattern -> {
 			// Ignore comments and blank lines
 			if (pattern == null || pattern.trim().length() == 0 || pattern.trim().startsWith("#")) {
@@ -114,6 +127,16 @@ public class RadixTreeSyslogParser extends SyslogParser {
 
 	public static void setRadixParser(RadixTreeParser radixParser) {
 		RadixTreeSyslogParser.radixParser = radixParser;
+		RadixTreeSyslogParser.automaton = radixParser.compile();
+		RadixTreeSyslogParser.usingDefaultPatterns = false;
+	}
+
+	/**
+	 * @return true if the parser is using the default set of grok patterns,
+	 * false if the patterns were customized
+	 */
+	public static boolean isUsingDefaultPatterns() {
+		return usingDefaultPatterns;
 	}
 
 	/**
@@ -127,18 +150,10 @@ public class RadixTreeSyslogParser extends SyslogParser {
 
 	@Override
 	public SyslogMessage parse() {
-		SyslogMessage retval = radixParser.parse(getText()).join();
+		SyslogMessage retval = automaton.match(getText());
 
 		if (retval != null) {
-			// Trim off the RFC 5424 structured data to emulate the behavior of the legacy parser (for now)
-			String message = retval.getMessage();
-			if (message != null && message.startsWith("[")) {
-				Matcher matcher = STRUCTURED_DATA.matcher(message);
-				if (matcher.find()) {
-					String newMessage = matcher.group(1);
-					retval.setMessage(newMessage == null ? null : newMessage);
-				}
-			}
+			trimStructuredData(retval);
 			setTimezoneIfNeeded(retval);
 			setYearIfNeeded(retval);
 		}
@@ -146,7 +161,21 @@ public class RadixTreeSyslogParser extends SyslogParser {
 		return retval;
 	}
 
-	private void setYearIfNeeded(SyslogMessage message) {
+	/**
+	 * Trim off the RFC 5424 structured data to emulate the behavior of the legacy parser (for now).
+	 */
+	protected static void trimStructuredData(SyslogMessage message) {
+		String text = message.getMessage();
+		if (text != null && text.startsWith("[")) {
+			Matcher matcher = STRUCTURED_DATA.matcher(text);
+			if (matcher.find()) {
+				String newMessage = matcher.group(1);
+				message.setMessage(newMessage == null ? null : newMessage);
+			}
+		}
+	}
+
+	protected void setYearIfNeeded(SyslogMessage message) {
 	    boolean hasTimeinformation =
 	            message.getMonth() != null ||
 	            message.getDayOfMonth() != null ||
@@ -159,7 +188,7 @@ public class RadixTreeSyslogParser extends SyslogParser {
 	    }
 	}
 
-	private void setTimezoneIfNeeded(SyslogMessage message){
+	protected void setTimezoneIfNeeded(SyslogMessage message){
         boolean hasTimeinformation = // to no break logic in ConvertToEvent
 		        message.getYear() != null ||
 				message.getMonth() != null ||
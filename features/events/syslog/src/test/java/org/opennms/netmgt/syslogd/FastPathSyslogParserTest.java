@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.syslogd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.core.test.ConfigurationTestUtils;
+import org.opennms.netmgt.config.SyslogdConfigFactory;
+
+public class FastPathSyslogParserTest {
+
+    private SyslogdConfigFactory m_config;
+
+    @Before
+    public void setUp() throws IOException {
+        final String configuration = "<syslogd-configuration><configuration syslog-port=\"10514\"/></syslogd-configuration>";
+        final InputStream stream = new ByteArrayInputStream(configuration.getBytes());
+        m_config = new SyslogdConfigFactory(stream);
+    }
+
+    /**
+     * Every message in the test corpus must be parsed to the same result
+     * as the {@link RadixTreeSyslogParser}, whether the fast path handles
+     * it or not.
+     */
+    @Test
+    public void shouldMatchRadixTreeParserForAllMessages() throws IOException {
+        final List<String> messages = getMessages();
+        messages.addAll(Arrays.asList(
+                "<34>Oct 11 22:14:15 mymachine su[1234]: 'su root' failed for lonvick on /dev/pts/8",
+                "<34> Oct  1 22:14:15 mymachine [1234]: no process name",
+                "<34>  oct 11 22:14:15   mymachine su:   'su root' failed   ",
+                "<34>Oct 11 22:14:15 mymachine just a message",
+                "<34>Oct 11 22:14:15 mymachine su[abc]: not a process ID",
+                "<34>Oct 11 22:14:15 mymachine su[1234]:",
+                "<34>Oct 11 22:14:15 mymachine ",
+                "<34>Oct 11 22:14:15 my_machine.example.org:8080 su: host with port",
+                "<34>Oct 11 22:14:15 10.0.0.1 su: \u00e9t\u00e9",
+                "<34>Oct 11 22:14:15 h\u00e9st su: non-ASCII host",
+                "<34>Oct 11 22:14:15 mymachine s\u00fc: non-ASCII process",
+                "<34>Foo 11 22:14:15 mymachine su: not a month",
+                "<34>%ASA-3-321: Oct 11 22:14:15 mymachine su[1234]: message ID",
+                "<34>-: Oct 11 22:14:15 mymachine su[1234]: dash message ID",
+                "<34>: Oct 11 22:14:15 mymachine su[1234]: empty message ID",
+                "<34>1 2003-10-11T22:14:15.003Z mymachine.example.com su - ID47 - 'su root' failed",
+                "<34>1 2003-10-11T22:14:15.003123Z mymachine.example.com su 1234 ID47 - microseconds",
+                "<34>1 2003-10-11T22:14:15.003-07:00 mymachine.example.com su - - - offset",
+                "<34>1 2003-10-11T22:14:15Europe/Berlin mymachine.example.com su - - [id@1 a=\"b\"] \uFEFFstructured data",
+                "<34>1 2003-10-11T22:14:15utc mymachine.example.com su - - - lower case zone",
+                "<34>1 2003-10-11T22:14:15Nowhere/Special mymachine.example.com su - - - invalid zone",
+                "<34>1 2003-10-11T22:14:15 mymachine.example.com su - - - no zone",
+                "<34>1 2003-10-11T22:14:15.Z mymachine.example.com su - - - empty fraction",
+                "<34>1 2003-10-11T22:14:15.003Z mymachine.example.com su - -",
+                "<34>1 2003-10-11T22:14:15.003Z mymachine.example.com -",
+                "<34>12345678901 2003-10-11T22:14:15.003Z mymachine.example.com su - - - long version",
+                "<34> 2003-10-11T22:14:15.003Z mymachine.example.com su[1234]: no version",
+                "<1234567890>1 2003-10-11T22:14:15.003Z mymachine.example.com su - - - long priority",
+                "<34>"
+        ));
+
+        int fastPathHits = 0;
+        for (String message : messages) {
+            for (Charset charset : Arrays.asList(StandardCharsets.US_ASCII, StandardCharsets.UTF_8)) {
+                final ByteBuffer buffer = SyslogdTestUtils.toByteBuffer(message, charset);
+                if (new FastPathSyslogParser.FastPathState().parse(buffer.duplicate()) != null) {
+                    fastPathHits++;
+                }
+                final SyslogMessage expected = new RadixTreeSyslogParser(m_config, buffer.duplicate()).parse();
+                final SyslogMessage actual = new FastPathSyslogParser(m_config, buffer.duplicate()).parse();
+                assertEquals(message, toString(expected), toString(actual));
+            }
+        }
+        assertTrue("Fast path was only used " + fastPathHits + " times", fastPathHits > messages.size() / 2);
+    }
+
+    @Test
+    public void shouldParseDirectBuffers() {
+        final byte[] bytes = "<34>1 2003-10-11T22:14:15.003Z mymachine.example.com su 1234 ID47 - 'su root' failed".getBytes(StandardCharsets.US_ASCII);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+
+        final SyslogMessage message = new FastPathSyslogParser(m_config, buffer).parse();
+        assertEquals("mymachine.example.com", message.getHostName());
+        assertEquals("su", message.getProcessName());
+        assertEquals("1234", message.getProcessId());
+        assertEquals("ID47", message.getMessageID());
+        assertEquals(Integer.valueOf(3), message.getMillisecond());
+        assertEquals("'su root' failed", message.getMessage());
+    }
+
+    @Test
+    public void shouldInternRepeatedValues() {
+        final FastPathSyslogParser.FastPathState state = new FastPathSyslogParser.FastPathState();
+        final SyslogMessage first = state.parse(SyslogdTestUtils.toByteBuffer("<34>Oct 11 22:14:15 mymachine su[1234]: first"));
+        final SyslogMessage second = state.parse(SyslogdTestUtils.toByteBuffer("<34>Oct 11 22:14:16 mymachine su[1235]: second"));
+        assertNotNull(first);
+        assertNotNull(second);
+        assertSame(first.getHostName(), second.getHostName());
+        assertSame(first.getProcessName(), second.getProcessName());
+        assertEquals("first", first.getMessage());
+        assertEquals("second", second.getMessage());
+    }
+
+    @Test
+    public void shouldNotUseFastPathForUnknownFormats() {
+        final FastPathSyslogParser.FastPathState state = new FastPathSyslogParser.FastPathState();
+        assertNull(state.parse(SyslogdTestUtils.toByteBuffer("<187>2765: .Jan  7 12:36:39: %LINK-3-UPDOWN: Interface GigabitEthernet0, changed state to up")));
+        assertNull(state.parse(SyslogdTestUtils.toByteBuffer("not a syslog message")));
+    }
+
+    private static String toString(SyslogMessage message) {
+        // Strip the identity hash code
+        return Objects.toString(message).replaceFirst("@[0-9a-f]+\\[", "[");
+    }
+
+    private List<String> getMessages() throws IOException {
+        final Path resource = ConfigurationTestUtils.getFileForResource(this, "/syslogMessages.txt").toPath();
+        return Files.lines(resource)
+                // Ignore comments and blank lines
+                .filter(syslog -> syslog.trim().length() > 0 && !syslog.trim().startsWith("#"))
+                .map(syslog -> syslog.replaceAll("\\\\u0000", "\u0000").replaceAll("\\\\uFEFF", "\uFEFF"))
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+}
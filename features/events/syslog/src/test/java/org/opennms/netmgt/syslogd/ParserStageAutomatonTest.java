@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.syslogd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.junit.Test;
+import org.opennms.core.test.ConfigurationTestUtils;
+import org.opennms.netmgt.syslogd.ParserStageSequenceBuilder.MatchChar;
+
+public class ParserStageAutomatonTest {
+
+	/**
+	 * The automaton must produce the same result as the {@link RadixTreeParser}
+	 * for every message in the test corpus.
+	 */
+	@Test
+	public void shouldMatchRadixTreeParserForAllMessages() throws IOException {
+		final RadixTreeParser radixParser = RadixTreeSyslogParser.getRadixParser();
+		final ParserStageAutomaton automaton = radixParser.compile();
+
+		final Path resource = ConfigurationTestUtils.getFileForResource(this, "/syslogMessages.txt").toPath();
+		Files.lines(resource).forEach(syslog -> {
+			// Ignore comments and blank lines
+			if (syslog.trim().length() == 0 || syslog.trim().startsWith("#")) {
+				return;
+			}
+			syslog = syslog.replaceAll("\\\\u0000", "\u0000");
+			syslog = syslog.replaceAll("\\\\uFEFF", "\uFEFF");
+
+			for (Charset charset : Arrays.asList(StandardCharsets.US_ASCII, StandardCharsets.UTF_8)) {
+				final ByteBuffer buffer = SyslogdTestUtils.toByteBuffer(syslog, charset);
+				assertEquals(syslog, toString(radixParser.parse(buffer.duplicate()).join()), toString(automaton.match(buffer.duplicate())));
+				// Buffers that are not backed by an accessible array are copied
+				assertEquals(syslog, toString(radixParser.parse(buffer.duplicate()).join()), toString(automaton.match(buffer.asReadOnlyBuffer())));
+			}
+		});
+	}
+
+	@Test
+	public void shouldMatchParserStages() {
+		ParserStage a = new MatchChar('a');
+		ParserStage b = new MatchChar('b');
+		ParserStage c = new MatchChar('c');
+		ParserStage d = new MatchChar('d');
+
+		c.setTerminal(true);
+		d.setTerminal(true);
+
+		RadixTreeParser treeParser = new RadixTreeParser();
+		treeParser.teach(new ParserStage[] { a });
+		treeParser.teach(new ParserStage[] { b, c });
+		treeParser.teach(new ParserStage[] { b, a, d });
+		treeParser.teach(new ParserStage[] { b, d });
+		treeParser.teach(new ParserStage[] { c });
+
+		assertNotNull("One pattern should match", treeParser.compile().match(ByteBuffer.wrap("bad".getBytes())));
+		assertNull("No pattern should match", treeParser.compile().match(ByteBuffer.wrap("bbd".getBytes())));
+		assertNotNull("Terminal stages match at the end of the input", treeParser.compile().match(ByteBuffer.wrap("".getBytes())));
+
+		treeParser.performEdgeCompression();
+
+		assertNotNull("One pattern should match", treeParser.compile().match(ByteBuffer.wrap("bad".getBytes())));
+		assertNull("No pattern should match", treeParser.compile().match(ByteBuffer.wrap("bbd".getBytes())));
+	}
+
+	@Test
+	public void shouldMatchOptionalStages() {
+		RadixTreeParser treeParser = new RadixTreeParser();
+		treeParser.teach(new ParserStageSequenceBuilder()
+			.stringUntil("\\s[:", (s,v) -> { s.message.setProcessName(v); })
+			.optional().character('[')
+			.optional().integer((s,v) -> { s.message.setProcessId(String.valueOf(v)); })
+			.optional().character(']')
+			.character(':')
+			.whitespace()
+			.terminal().string((s,v) -> { s.message.setMessage(v); })
+			.getStages().toArray(new ParserStage[0]));
+		final ParserStageAutomaton automaton = treeParser.compile();
+
+		for (String message : Arrays.asList("sshd[123]: hello", "sshd: hello", "sshd[: hello", "sshd[123: hello", "sshd hello", "sshd:")) {
+			final ByteBuffer buffer = ByteBuffer.wrap(message.getBytes(StandardCharsets.US_ASCII));
+			assertEquals(message, toString(treeParser.parse(buffer.duplicate()).join()), toString(automaton.match(buffer.duplicate())));
+		}
+		assertEquals("123", automaton.match(ByteBuffer.wrap("sshd[123]: hello".getBytes())).getProcessId());
+	}
+
+	/**
+	 * If a value cannot be consumed, the next pattern must be tried.
+	 * 
+	 * @see BufferParserTest#testHostnameVersusTimezoneNms9522()
+	 */
+	@Test
+	public void shouldTryNextPatternIfValueCannotBeConsumed() {
+		RadixTreeParser radixParser = new RadixTreeParser();
+		radixParser.teach(GrokParserStageSequenceBuilder.parseGrok("<%{INT:facilityPriority}> %{MONTH:month} %{INT:day} %{INT:hour}:%{INT:minute}:%{INT:second} %{STRING:timezone} %{NOSPACE:processName}[%{INT:processId}]: %{STRING:message}").toArray(new ParserStage[0]));
+		radixParser.teach(GrokParserStageSequenceBuilder.parseGrok("<%{INT:facilityPriority}> %{MONTH:month} %{INT:day} %{INT:hour}:%{INT:minute}:%{INT:second} %{STRING:hostname} %{NOSPACE:processName}[%{INT:processId}]: %{STRING:message}").toArray(new ParserStage[0]));
+		radixParser.performEdgeCompression();
+		final ParserStageAutomaton automaton = radixParser.compile();
+
+		SyslogMessage message = automaton.match(ByteBuffer.wrap("<14> Nov 16 00:01:25 localhost postfix/smtpd[1713]: connect from www.opennms.org[10.1.1.1]".getBytes(StandardCharsets.US_ASCII)));
+		assertNotNull(message);
+		assertNull(message.getZoneId());
+		assertEquals("localhost", message.getHostName());
+		assertEquals("postfix/smtpd", message.getProcessName());
+
+		message = automaton.match(ByteBuffer.wrap("<19> Nov 17 14:28:48 CST %AUTHPRIV-3-SYSTEM_MSG[0]: Authentication failed".getBytes(StandardCharsets.US_ASCII)));
+		assertNotNull(message);
+		assertNotNull(message.getZoneId());
+		assertNull(message.getHostName());
+	}
+
+	@Test
+	public void shouldMatchEverythingWithEmptyParser() {
+		final RadixTreeParser radixParser = new RadixTreeParser();
+		assertEquals(toString(radixParser.parse(ByteBuffer.wrap("foo".getBytes())).join()), toString(radixParser.compile().match(ByteBuffer.wrap("foo".getBytes()))));
+	}
+
+	private static String toString(SyslogMessage message) {
+		// Strip the identity hash code
+		return Objects.toString(message).replaceFirst("@[0-9a-f]+\\[", "[");
+	}
+}
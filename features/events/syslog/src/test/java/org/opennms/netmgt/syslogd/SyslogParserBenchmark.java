@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.syslogd;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.opennms.core.test.ConfigurationTestUtils;
+import org.opennms.netmgt.config.SyslogdConfigFactory;
+
+/**
+ * Use the Java Microbenchmarking Harness (JMH) to measure the performance of the
+ * syslog parsers.
+ * <p>
+ * The messages of the syslogMessages.txt test resource, a mix of RFC 3164, RFC 5424
+ * and vendor specific formats, are repeated to fill a batch. Each of them is parsed from
+ * a {@link ByteBuffer} by the regex based {@link CustomSyslogParser}, by walking the tree of
+ * the {@link RadixTreeParser}, by the {@link RadixTreeSyslogParser} which uses the compiled
+ * {@link ParserStageAutomaton}, or by the {@link FastPathSyslogParser}. The benchmark
+ * reports the number of parsed messages per second.
+ */
+public class SyslogParserBenchmark {
+
+    // the number of messages that are parsed in a single benchmark method call
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String CUSTOM_PARSER = "custom";
+    private static final String RADIX_TREE_PARSER = "radixTree";
+    private static final String AUTOMATON_PARSER = "automaton";
+    private static final String FAST_PATH_PARSER = "fastPath";
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args);
+    }
+
+    @State(Scope.Benchmark)
+    public static class BState {
+
+        @Param({CUSTOM_PARSER, RADIX_TREE_PARSER, AUTOMATON_PARSER, FAST_PATH_PARSER})
+        public String parser;
+
+        private SyslogdConfigFactory config;
+
+        private ByteBuffer[] messages;
+
+        @Setup
+        public void setup() throws Exception {
+            config = new SyslogdConfigFactory(ConfigurationTestUtils.getInputStreamForResource(this, "/etc/syslogd-configuration.xml"));
+
+            final Path resource = ConfigurationTestUtils.getFileForResource(this, "/syslogMessages.txt").toPath();
+            final List<String> corpus = Files.lines(resource)
+                    .filter(syslog -> syslog.trim().length() > 0 && !syslog.trim().startsWith("#"))
+                    .map(syslog -> syslog.replaceAll("\\\\u0000", "").replaceAll("\\\\uFEFF", "\uFEFF"))
+                    .collect(Collectors.toList());
+            messages = new ByteBuffer[BATCH_SIZE];
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                messages[i] = ByteBuffer.wrap(corpus.get(i % corpus.size()).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        private SyslogMessage parse(final ByteBuffer message) throws SyslogParserException {
+            switch (parser) {
+                case CUSTOM_PARSER:
+                    final SyslogParser customParser = new CustomSyslogParser(config, message.duplicate());
+                    return customParser.find() ? customParser.parse() : null;
+                case RADIX_TREE_PARSER:
+                    return RadixTreeSyslogParser.getRadixParser().parse(message.duplicate()).join();
+                case AUTOMATON_PARSER:
+                    return new RadixTreeSyslogParser(config, message.duplicate()).parse();
+                default:
+                    return new FastPathSyslogParser(config, message.duplicate()).parse();
+            }
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 2)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void parse(BState state, Blackhole blackhole) throws SyslogParserException {
+        for (final ByteBuffer message : state.messages) {
+            blackhole.consume(state.parse(message));
+        }
+    }
+}
@@ -32,6 +32,7 @@ import static org.opennms.core.utils.InetAddressUtils.str;
 
 import java.net.InetAddress;
 import java.util.Date;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 
@@ -46,15 +47,28 @@ import org.opennms.netmgt.snmp.SnmpObjId;
 import org.opennms.netmgt.snmp.SnmpResult;
 import org.opennms.netmgt.snmp.SnmpValue;
 import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.eventconf.Events;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 class EventCreator {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(EventCreator.class);
 
+    /**
+     * Maximum number of conversion plans, bounds the memory used by agents that send
+     * traps with many distinct identities.
+     */
+    private static final long MAX_CONVERSION_PLANS = Long.getLong("org.opennms.netmgt.trapd.maxConversionPlans", 10000L);
+
     private final InterfaceToNodeCache cache;
     private final EventConfDao eventConfDao;
+    private final Cache<TrapConversionPlan.Key, TrapConversionPlan> conversionPlans = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CONVERSION_PLANS)
+            .build();
 
     public EventCreator(InterfaceToNodeCache cache, EventConfDao eventConfDao) {
         this.cache = Objects.requireNonNull(cache);
@@ -84,11 +98,21 @@ class EventCreator {
             eventBuilder.setTrapOID(trapIdentity.getTrapOID());
         }
 
+        // Read the stamp before any lookup, so that plans built while the
+        // event definitions are being reloaded are never considered current
+        final long stamp = getInitializationStamp();
+        final TrapConversionPlan plan = getConversionPlan(trapIdentity, location, stamp);
+
         // Handle var bindings
-        for (SnmpResult eachResult : trapDTO.getResults()) {
-            final SnmpObjId name = eachResult.getBase();
-            final SnmpValue value = eachResult.getValue();
-            eventBuilder.addParam(SyntaxToEvent.processSyntax(name.toString(), value));
+        final List<SnmpResult> results = trapDTO.getResults();
+        for (int i = 0; i < results.size(); i++) {
+            final SnmpObjId name = results.get(i).getBase();
+            final SnmpValue value = results.get(i).getValue();
+            if (plan != null) {
+                eventBuilder.addParam(plan.toParm(i, name, value));
+            } else {
+                eventBuilder.addParam(SyntaxToEvent.processSyntax(name.toString(), value));
+            }
             if (EventConstants.OID_SNMP_IFINDEX.isPrefixOf(name)) {
                 eventBuilder.setIfIndex(value.toInt());
             }
@@ -107,15 +131,44 @@ class EventCreator {
 
         // Get event template and set uei, if unknown
         final Event event = eventBuilder.getEvent();
-        final org.opennms.netmgt.xml.eventconf.Event econf = eventConfDao.findByEvent(event);
-        if (econf == null || econf.getUei() == null) {
-            event.setUei("uei.opennms.org/default/trap");
+        if (plan != null) {
+            event.setUei(plan.getUei(event, eventConfDao));
+        } else if (trapIdentity != null && stamp != 0) {
+            final TrapConversionPlan newPlan = TrapConversionPlan.create(stamp, results, event, eventConfDao);
+            LOG.debug("Created conversion plan for {} at location {}, resolved by identity: {}", trapIdentity, location, newPlan.isResolved());
+            conversionPlans.put(new TrapConversionPlan.Key(trapIdentity, location), newPlan);
         } else {
-            event.setUei(econf.getUei());
+            event.setUei(TrapConversionPlan.lookupUei(event, eventConfDao));
         }
         return event;
     }
 
+    /**
+     * Returns true if the event created from the given trap must be discarded, i.e.
+     * if the matching event definition has a logmsg with dest == discardtraps.
+     */
+    public boolean shouldDiscard(final TrapDTO trapDTO, final String location, final Event event) {
+        final TrapConversionPlan plan = getConversionPlan(trapDTO.getTrapIdentity(), location, getInitializationStamp());
+        if (plan != null) {
+            return plan.shouldDiscard(event, eventConfDao);
+        }
+        return TrapConversionPlan.isDiscarded(event, eventConfDao);
+    }
+
+    private long getInitializationStamp() {
+        final Events events = eventConfDao.getRootEvents();
+        return events == null ? 0 : events.getInitializationStamp();
+    }
+
+    private TrapConversionPlan getConversionPlan(TrapIdentityDTO trapIdentity, String location, long stamp) {
+        if (trapIdentity == null || stamp == 0) {
+            return null;
+        }
+        final TrapConversionPlan plan = conversionPlans.getIfPresent(new TrapConversionPlan.Key(trapIdentity, location));
+        // Plans built against other event definitions are stale, and replaced on the next trap
+        return plan != null && plan.getStamp() == stamp ? plan : null;
+    }
+
     private Optional<Integer> resolveNodeId(String location, InetAddress trapAddress) {
         // If there was no location in the trap message, assume that
         // it was generated in the default location
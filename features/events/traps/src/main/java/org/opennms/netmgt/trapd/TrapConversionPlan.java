@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.trapd;
+
+import static org.opennms.netmgt.xml.eventconf.Maskelement.TAG_SNMP_EID;
+import static org.opennms.netmgt.xml.eventconf.Maskelement.TAG_SNMP_GENERIC;
+import static org.opennms.netmgt.xml.eventconf.Maskelement.TAG_SNMP_SPECIFIC;
+import static org.opennms.netmgt.xml.eventconf.Maskelement.TAG_SNMP_TRAPOID;
+import static org.opennms.netmgt.xml.eventconf.Maskelement.TAG_SOURCE;
+import static org.opennms.netmgt.xml.eventconf.Maskelement.TAG_UEI;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import org.opennms.netmgt.config.api.EventConfDao;
+import org.opennms.netmgt.model.events.snmp.SyntaxToEvent;
+import org.opennms.netmgt.snmp.SnmpObjId;
+import org.opennms.netmgt.snmp.SnmpResult;
+import org.opennms.netmgt.snmp.SnmpValue;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Parm;
+import org.opennms.netmgt.xml.eventconf.Events;
+import org.opennms.netmgt.xml.eventconf.LogDestType;
+import org.opennms.netmgt.xml.eventconf.Logmsg;
+import org.opennms.netmgt.xml.eventconf.Mask;
+import org.opennms.netmgt.xml.eventconf.Maskelement;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Precomputed conversion of the traps that share a {@link TrapIdentityDTO} and a location.
+ *
+ * A plan is built from the first trap seen for a given key and remembers:
+ * <ul>
+ *     <li>the parameter names of the varbinds of that trap, so that traps with the same
+ *     varbind layout don't need to format and classify the same OIDs again</li>
+ *     <li>the UEI of the matching event definition and whether the trap must be discarded,
+ *     provided the event definitions are such that both only depend on the trap identity</li>
+ * </ul>
+ *
+ * When a mask that could match the identity also tests varbinds, or any other field that
+ * varies from one trap to the next, the plan falls back to looking up the event definition
+ * for every trap.
+ *
+ * Plans are only valid for the event definitions they were built against, as identified
+ * by {@link Events#getInitializationStamp()}.
+ */
+class TrapConversionPlan {
+
+    static final String DEFAULT_TRAP_UEI = "uei.opennms.org/default/trap";
+
+    /**
+     * Mask elements that evaluate to the same value for all the traps that share the same identity:
+     * the UEI is either unset, or derived from the identity, and the source is always "trapd".
+     */
+    private static final Set<String> IDENTITY_FIELDS = ImmutableSet.of(TAG_UEI, TAG_SOURCE, TAG_SNMP_EID,
+            TAG_SNMP_GENERIC, TAG_SNMP_SPECIFIC, TAG_SNMP_TRAPOID);
+
+    private final long stamp;
+
+    private final SnmpObjId[] varbindNames;
+
+    private final String[] parmNames;
+
+    private final boolean[] macAddressNames;
+
+    private final boolean resolved;
+
+    private final String uei;
+
+    private final boolean discard;
+
+    private TrapConversionPlan(long stamp, List<SnmpResult> results, boolean resolved, String uei, boolean discard) {
+        this.stamp = stamp;
+        this.varbindNames = new SnmpObjId[results.size()];
+        this.parmNames = new String[results.size()];
+        this.macAddressNames = new boolean[results.size()];
+        for (int i = 0; i < results.size(); i++) {
+            varbindNames[i] = results.get(i).getBase();
+            parmNames[i] = varbindNames[i].toString();
+            macAddressNames[i] = SyntaxToEvent.isMacAddressName(parmNames[i]);
+        }
+        this.resolved = resolved;
+        this.uei = uei;
+        this.discard = discard;
+    }
+
+    /**
+     * Builds the plan for the given trap and sets the UEI of the given event.
+     *
+     * @param stamp the initialization stamp of the event definitions, read before any lookup
+     * @param results the varbinds of the trap
+     * @param event the event created from the trap, without UEI
+     * @param eventConfDao the event definitions
+     * @return the plan for all the traps with the same identity and location
+     */
+    static TrapConversionPlan create(long stamp, List<SnmpResult> results, Event event, EventConfDao eventConfDao) {
+        final Events events = eventConfDao.getRootEvents();
+        final boolean ueiResolved = isDeterminedByIdentity(events, event);
+        final String uei = lookupUei(event, eventConfDao);
+        event.setUei(uei);
+        final boolean resolved = ueiResolved
+                && (events.getEventByUeiOptimistic(uei) != null || isDeterminedByIdentity(events, event));
+        return new TrapConversionPlan(stamp, results, resolved, uei, isDiscarded(event, eventConfDao));
+    }
+
+    long getStamp() {
+        return stamp;
+    }
+
+    boolean isResolved() {
+        return resolved;
+    }
+
+    Parm toParm(int index, SnmpObjId name, SnmpValue value) {
+        if (index < varbindNames.length
+                && varbindNames[index].getClass() == name.getClass()
+                && varbindNames[index].equals(name)) {
+            return SyntaxToEvent.processSyntax(parmNames[index], macAddressNames[index], value);
+        }
+        return SyntaxToEvent.processSyntax(name.toString(), value);
+    }
+
+    String getUei(Event event, EventConfDao eventConfDao) {
+        return resolved ? uei : lookupUei(event, eventConfDao);
+    }
+
+    boolean shouldDiscard(Event event, EventConfDao eventConfDao) {
+        return resolved ? discard : isDiscarded(event, eventConfDao);
+    }
+
+    static String lookupUei(Event event, EventConfDao eventConfDao) {
+        final org.opennms.netmgt.xml.eventconf.Event econf = eventConfDao.findByEvent(event);
+        if (econf == null || econf.getUei() == null) {
+            return DEFAULT_TRAP_UEI;
+        }
+        return econf.getUei();
+    }
+
+    static boolean isDiscarded(Event event, EventConfDao eventConfDao) {
+        final org.opennms.netmgt.xml.eventconf.Event econf = eventConfDao.findByEvent(event);
+        if (econf != null) {
+            final Logmsg logmsg = econf.getLogmsg();
+            return logmsg != null && LogDestType.DISCARDTRAPS.equals(logmsg.getDest());
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the outcome of looking up the given event only depends on the fields
+     * that are the same for all traps with the same identity, that is when no definition
+     * that accepts these fields also tests any other field.
+     */
+    private static boolean isDeterminedByIdentity(Events events, Event event) {
+        return events.forEachEvent(Boolean.TRUE, (determined, econf) -> determined && !dependsOnOtherFields(econf, event));
+    }
+
+    private static boolean dependsOnOtherFields(org.opennms.netmgt.xml.eventconf.Event econf, Event event) {
+        final Mask mask = econf.getMask();
+        if (mask == null || mask.getMaskelements().isEmpty()) {
+            // Definitions without mask elements are matched by UEI
+            return false;
+        }
+        boolean dependsOnOtherFields = !mask.getVarbinds().isEmpty();
+        for (final Maskelement element : mask.getMaskelements()) {
+            if (IDENTITY_FIELDS.contains(element.getMename())) {
+                if (!element.constructMatcher().matches(event).matched()) {
+                    // Can't match any trap with this identity
+                    return false;
+                }
+            } else {
+                dependsOnOtherFields = true;
+            }
+        }
+        return dependsOnOtherFields;
+    }
+
+    static final class Key {
+        private final TrapIdentityDTO trapIdentity;
+        private final String location;
+
+        Key(TrapIdentityDTO trapIdentity, String location) {
+            this.trapIdentity = Objects.requireNonNull(trapIdentity);
+            this.location = location;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key that = (Key) o;
+            return Objects.equals(trapIdentity, that.trapIdentity)
+                    && Objects.equals(location, that.location);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(trapIdentity, location);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.trapd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.core.utils.InetAddressUtils;
+import org.opennms.netmgt.config.DefaultEventConfDao;
+import org.opennms.netmgt.dao.api.InterfaceToNodeCache;
+import org.opennms.netmgt.model.events.snmp.SyntaxToEvent;
+import org.opennms.netmgt.snmp.SnmpObjId;
+import org.opennms.netmgt.snmp.SnmpResult;
+import org.opennms.netmgt.snmp.SnmpValue;
+import org.opennms.netmgt.snmp.snmp4j.Snmp4JValueFactory;
+import org.opennms.netmgt.xml.event.Event;
+import org.opennms.netmgt.xml.event.Parm;
+import org.opennms.netmgt.xml.eventconf.Mask;
+import org.opennms.netmgt.xml.eventconf.Maskelement;
+import org.springframework.core.io.ClassPathResource;
+
+public class EventCreatorTest {
+
+    private static final String BGP_ID = ".1.3.6.1.2.1.15.7";
+    private static final String HP_ID = ".1.3.6.1.4.1.11.2.14.12.1";
+    private static final String OTHER_ID = ".1.3.6.1.4.1.5813";
+
+    private final Snmp4JValueFactory valueFactory = new Snmp4JValueFactory();
+
+    private final InetAddress trapAddress = InetAddressUtils.addr("192.0.2.1");
+
+    private DefaultEventConfDao eventConfDao;
+
+    private EventCreator eventCreator;
+
+    @Before
+    public void setUp() throws Exception {
+        final DefaultEventConfDao dao = new DefaultEventConfDao();
+        dao.setConfigResource(new ClassPathResource("/org/opennms/netmgt/trapd/eventconf.xml"));
+        dao.afterPropertiesSet();
+        eventConfDao = spy(dao);
+
+        final InterfaceToNodeCache interfaceToNodeCache = mock(InterfaceToNodeCache.class);
+        when(interfaceToNodeCache.getFirstNodeId(any(), any())).thenReturn(Optional.empty());
+
+        eventCreator = new EventCreator(interfaceToNodeCache, eventConfDao);
+    }
+
+    @Test
+    public void canReuseLookupsDeterminedByIdentity() {
+        final Event first = createEvent(trap(BGP_ID, 6, 1, 1, 6));
+        assertEquals("uei.opennms.org/IETF/BGP/traps/bgpEstablished", first.getUei());
+
+        clearInvocations(eventConfDao);
+        final TrapDTO trap = trap(BGP_ID, 6, 1, 3, 1);
+        final Event second = eventCreator.createEventFrom(trap, null, null, trapAddress);
+        assertEquals("uei.opennms.org/IETF/BGP/traps/bgpEstablished", second.getUei());
+        assertFalse(eventCreator.shouldDiscard(trap, null, second));
+
+        final TrapDTO discarded = trap(BGP_ID, 6, 2, 1, 6);
+        final Event backwardTransition = eventCreator.createEventFrom(discarded, null, null, trapAddress);
+        assertEquals("uei.opennms.org/IETF/BGP/traps/bgpBackwardTransition", backwardTransition.getUei());
+        assertTrue(eventCreator.shouldDiscard(discarded, null, backwardTransition));
+        assertTrue(eventCreator.shouldDiscard(discarded, null, eventCreator.createEventFrom(discarded, null, null, trapAddress)));
+
+        // Only the first bgpBackwardTransition trap required lookups
+        verify(eventConfDao, times(2)).findByEvent(any());
+    }
+
+    @Test
+    public void canLookupEveryTrapWhenMasksDependOnVarbinds() {
+        assertEquals("uei.opennms.org/vendor/HP/traps/hpicfFaultFinderTrap", createEvent(trap(HP_ID, 6, 5, 1, 1, 5)).getUei());
+        assertEquals("uei.opennms.org/default/trap", createEvent(trap(HP_ID, 6, 5, 1, 1, 4)).getUei());
+        assertEquals("uei.opennms.org/vendor/HP/traps/hpicfFaultFinderTrap", createEvent(trap(HP_ID, 6, 5, 2, 2, 5)).getUei());
+
+        clearInvocations(eventConfDao);
+        createEvent(trap(HP_ID, 6, 5, 1, 1, 5));
+        verify(eventConfDao, times(1)).findByEvent(any());
+    }
+
+    @Test
+    public void canInvalidatePlansWhenEventDefinitionsChange() {
+        assertEquals("uei.opennms.org/default/trap", createEvent(trap(OTHER_ID, 6, 99, 1)).getUei());
+        assertEquals("uei.opennms.org/default/trap", createEvent(trap(OTHER_ID, 6, 99, 2)).getUei());
+
+        final org.opennms.netmgt.xml.eventconf.Event econf = new org.opennms.netmgt.xml.eventconf.Event();
+        econf.setUei("uei.opennms.org/test/traps/other");
+        econf.setMask(new Mask());
+        econf.getMask().addMaskelement(maskElement("id", OTHER_ID));
+        econf.getMask().addMaskelement(maskElement("specific", "99"));
+        eventConfDao.addEvent(econf);
+
+        assertEquals("uei.opennms.org/test/traps/other", createEvent(trap(OTHER_ID, 6, 99, 3)).getUei());
+
+        eventConfDao.reload();
+        clearInvocations(eventConfDao);
+        assertEquals("uei.opennms.org/default/trap", createEvent(trap(OTHER_ID, 6, 99, 4)).getUei());
+        verify(eventConfDao, times(2)).findByEvent(any());
+    }
+
+    @Test
+    public void canKeepVarbindParameters() {
+        // The second and third traps only share part of the layout of the first one
+        final TrapDTO[] traps = new TrapDTO[] {
+                trap(BGP_ID, 6, 1, 1, 6),
+                trap(BGP_ID, 6, 1, 1),
+                trap(BGP_ID, 6, 1, 1, 6, 7),
+        };
+        traps[1].getResults().add(new SnmpResult(SnmpObjId.get(".1.3.6.1.4.1.9.9.1.2.3"), null, valueFactory.getOctetString("mac".getBytes(StandardCharsets.US_ASCII))));
+        for (final TrapDTO trap : traps) {
+            final Event event = createEvent(trap);
+            assertEquals(trap.getResults().size(), event.getParmCollection().size());
+            for (int i = 0; i < trap.getResults().size(); i++) {
+                final SnmpResult result = trap.getResults().get(i);
+                final Parm expected = SyntaxToEvent.processSyntax(result.getBase().toString(), result.getValue());
+                final Parm actual = event.getParmCollection().get(i);
+                assertEquals(expected.getParmName(), actual.getParmName());
+                assertEquals(expected.getValue().getType(), actual.getValue().getType());
+                assertEquals(expected.getValue().getEncoding(), actual.getValue().getEncoding());
+                assertEquals(expected.getValue().getContent(), actual.getValue().getContent());
+            }
+        }
+    }
+
+    @Test
+    public void canCreateEventsWithoutIdentity() {
+        final TrapDTO trap = trap(BGP_ID, 6, 1, 1);
+        trap.setTrapIdentity(null);
+        assertEquals("uei.opennms.org/default/trap", createEvent(trap).getUei());
+        assertEquals("uei.opennms.org/default/trap", createEvent(trap).getUei());
+        verify(eventConfDao, times(2)).findByEvent(any());
+    }
+
+    private Event createEvent(TrapDTO trap) {
+        return eventCreator.createEventFrom(trap, null, null, trapAddress);
+    }
+
+    private TrapDTO trap(String enterpriseId, int generic, int specific, int... varbinds) {
+        final TrapIdentityDTO trapIdentity = new TrapIdentityDTO();
+        trapIdentity.setEnterpriseId(enterpriseId);
+        trapIdentity.setGeneric(generic);
+        trapIdentity.setSpecific(specific);
+
+        final TrapDTO trap = new TrapDTO();
+        trap.setAgentAddress(trapAddress);
+        trap.setCommunity("public");
+        trap.setVersion("v1");
+        trap.setCreationTime(System.currentTimeMillis());
+        trap.setTrapIdentity(trapIdentity);
+        for (int i = 0; i < varbinds.length; i++) {
+            final SnmpValue value = valueFactory.getInt32(varbinds[i]);
+            trap.getResults().add(new SnmpResult(SnmpObjId.get(enterpriseId + "." + (i + 1)), null, value));
+        }
+        return trap;
+    }
+
+    private static Maskelement maskElement(String name, String value) {
+        final Maskelement maskElement = new Maskelement();
+        maskElement.setMename(name);
+        maskElement.addMevalue(value);
+        return maskElement;
+    }
+}
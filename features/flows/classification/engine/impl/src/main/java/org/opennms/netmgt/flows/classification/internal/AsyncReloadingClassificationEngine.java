@@ -48,6 +48,9 @@ import org.slf4j.LoggerFactory;
  * depending on the enabled rules. In order to keep the front-end responsive, reloads are done asynchronously.
  * Usages of the classification engine are blocked until ongoing reloads did finish. If a reload fails then
  * future usages of this classification engine also fail until a following reload succeeds.
+ * <p>
+ * Reloads include the compilation of the decision tree if the delegate is configured to do so
+ * (cf. {@link DefaultClassificationEngine#setCompiled(boolean)}). Hence, compilation does not block the front-end either.
  */
 public class AsyncReloadingClassificationEngine implements ClassificationEngine {
 
@@ -38,6 +38,7 @@ import org.opennms.netmgt.flows.classification.ClassificationEngine;
 import org.opennms.netmgt.flows.classification.ClassificationRequest;
 import org.opennms.netmgt.flows.classification.ClassificationRuleProvider;
 import org.opennms.netmgt.flows.classification.FilterService;
+import org.opennms.netmgt.flows.classification.internal.decision.CompiledTree;
 import org.opennms.netmgt.flows.classification.internal.decision.PreprocessedRule;
 import org.opennms.netmgt.flows.classification.internal.decision.Tree;
 import org.opennms.netmgt.flows.classification.persistence.api.Rule;
@@ -49,17 +50,22 @@ import com.google.common.collect.Lists;
 /**
  * A classification engine that uses a decision tree to select applicable classification rules.
  * <p>
+ * Optionally, the decision tree is compiled into a flat state machine on reload (cf. {@link CompiledTree}). Compiled
+ * trees yield the same results but avoid walking the object graph of the tree for every classification.
+ * <p>
  * The implementation is thread-safe.
  */
 public class DefaultClassificationEngine implements ClassificationEngine {
 
     private static Logger LOG = LoggerFactory.getLogger(DefaultClassificationEngine.class);
 
-    private final AtomicReference<TreeAndInvalidRules> treeAndInvalidRules = new AtomicReference<>(new TreeAndInvalidRules(Tree.EMPTY, Collections.emptyList()));
+    private final AtomicReference<TreeAndInvalidRules> treeAndInvalidRules = new AtomicReference<>(new TreeAndInvalidRules(Tree.EMPTY, null, Collections.emptyList()));
 
     private final ClassificationRuleProvider ruleProvider;
     private final FilterService filterService;
 
+    private volatile boolean compiled = false;
+
     public DefaultClassificationEngine(final ClassificationRuleProvider ruleProvider, final FilterService filterService) throws InterruptedException {
         this(ruleProvider, filterService, true);
     }
@@ -95,6 +101,8 @@ public class DefaultClassificationEngine implements ClassificationEngine {
 
         var tree = Tree.of(preprocessedRules, filterService);
 
+        var compiledTree = compiled ? CompiledTree.of(tree) : null;
+
         var elapsed = System.currentTimeMillis() - start;
         if (LOG.isInfoEnabled()) {
             var sb = new StringBuilder();
@@ -113,11 +121,12 @@ public class DefaultClassificationEngine implements ClassificationEngine {
                     .append("avgComp  : " + (double) tree.info.sumComp / tree.info.leaves).append('\n')
                     .append("minLeafSize : " + tree.info.minLeafSize).append('\n')
                     .append("maxLeafSize : " + tree.info.maxLeafSize).append('\n')
-                    .append("avgLeafSize : " + (double) tree.info.sumLeafSize / tree.info.leaves).append('\n');
+                    .append("avgLeafSize : " + (double) tree.info.sumLeafSize / tree.info.leaves).append('\n')
+                    .append("compiled    : " + (compiledTree != null ? compiledTree : "no")).append('\n');
             LOG.info(sb.toString());
         }
 
-        treeAndInvalidRules.set(new TreeAndInvalidRules(tree, invalid));
+        treeAndInvalidRules.set(new TreeAndInvalidRules(tree, compiledTree, invalid));
     }
 
     @Override
@@ -129,16 +138,33 @@ public class DefaultClassificationEngine implements ClassificationEngine {
         return treeAndInvalidRules.get().tree;
     }
 
+    public boolean isCompiled() {
+        return compiled;
+    }
+
+    /**
+     * Determines if the decision tree is compiled into a flat state machine. Takes effect on the next reload.
+     */
+    public void setCompiled(boolean compiled) {
+        this.compiled = compiled;
+    }
+
     @Override
     public String classify(ClassificationRequest classificationRequest) {
-        return treeAndInvalidRules.get().tree.classify(classificationRequest);
+        var current = treeAndInvalidRules.get();
+        if (current.compiledTree != null) {
+            return current.compiledTree.classify(classificationRequest);
+        }
+        return current.tree.classify(classificationRequest);
     }
 
     private static class TreeAndInvalidRules {
         private final Tree tree;
+        private final CompiledTree compiledTree;
         private final List<Rule> invalidRules;
-        public TreeAndInvalidRules(Tree tree, List<Rule> invalidRules) {
+        public TreeAndInvalidRules(Tree tree, CompiledTree compiledTree, List<Rule> invalidRules) {
             this.tree = tree;
+            this.compiledTree = compiledTree;
             this.invalidRules = invalidRules;
         }
     }
@@ -0,0 +1,432 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2017-2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.netmgt.flows.classification.internal.decision;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.netmgt.flows.classification.ClassificationRequest;
+import org.opennms.netmgt.flows.classification.IpAddr;
+
+/**
+ * A decision tree that was compiled into a flat state machine.
+ * <p>
+ * The nodes of a {@link Tree} are laid out in a single int array in depth first order. Each node occupies
+ * {@link #NODE_SIZE} slots: the kind of its threshold, the threshold value (or the index of the threshold address),
+ * and references to its lt, eq, gt, and na children. Child references that are non-negative point to another node;
+ * negative references point to leaves (cf. {@link #leafRef(int)}). Leaves are ranges of a flat classifier array.
+ * <p>
+ * Classification does not recurse and does not dispatch on threshold objects. Instead the values of a request are
+ * extracted once and compared against the primitive thresholds while walking the node array. Pending "na" subtrees are
+ * kept on an explicit stack. The classifiers of the reached leaves are merged by their precomputed ranks which yields
+ * exactly the same order (including the order of classifiers with the same priority) as {@link Tree#classify(ClassificationRequest)}.
+ */
+public final class CompiledTree {
+
+    private static final int PROTOCOL = 0;
+    private static final int SRC_PORT = 1;
+    private static final int DST_PORT = 2;
+    private static final int SRC_ADDR = 3;
+    private static final int DST_ADDR = 4;
+
+    private static final int NODE_SIZE = 6;
+
+    private static final int KIND = 0;
+    private static final int VALUE = 1;
+    private static final int LT = 2;
+    private static final int EQ = 3;
+    private static final int GT = 4;
+    private static final int NA = 5;
+
+    // reference to a subtree that can not contain any classifier
+    private static final int NONE = Integer.MIN_VALUE;
+
+    // value used for absent protocols and ports; valid values are never negative
+    private static final int ABSENT = -1;
+
+    private final int[] nodes;
+    private final IpAddr[] addresses;
+    private final int[] leafStart;
+    private final Classifier[] classifiers;
+    private final int[] ranks;
+    private final int root;
+    private final int maxLeaves;
+
+    private CompiledTree(int[] nodes, IpAddr[] addresses, int[] leafStart, Classifier[] classifiers, int[] ranks, int root, int maxLeaves) {
+        this.nodes = nodes;
+        this.addresses = addresses;
+        this.leafStart = leafStart;
+        this.classifiers = classifiers;
+        this.ranks = ranks;
+        this.root = root;
+        this.maxLeaves = maxLeaves;
+    }
+
+    /**
+     * Compiles the given decision tree.
+     */
+    public static CompiledTree of(Tree tree) {
+        var compiler = new Compiler();
+        var root = tree.accept(compiler);
+        var maxLeaves = tree.accept(new MaxLeavesVisitor());
+        return compiler.build(root, maxLeaves);
+    }
+
+    /**
+     * Classifies a flow.
+     * <p>
+     * Yields the same results as {@link Tree#classify(ClassificationRequest)} for the tree this state machine was compiled from.
+     *
+     * @return Returns <code>null</code> if the request does not match a rule
+     */
+    public String classify(ClassificationRequest request) {
+        if (root == NONE) {
+            return null;
+        }
+
+        final var protocol = request.getProtocol() != null ? request.getProtocol().getDecimal() : ABSENT;
+        final var srcPort = request.getSrcPort() != null ? request.getSrcPort() : ABSENT;
+        final var dstPort = request.getDstPort() != null ? request.getDstPort() : ABSENT;
+        final var srcAddr = request.getSrcAddress();
+        final var dstAddr = request.getDstAddress();
+
+        // the reached leaves in the order in which the recursive traversal would have merged their classifiers
+        final var leaves = new int[maxLeaves];
+        // the pending "na" subtrees; their number is also bounded by maxLeaves
+        final var pending = new int[maxLeaves];
+        var leafCount = 0;
+        var pendingCount = 0;
+
+        var ref = root;
+        while (true) {
+            if (ref >= 0) {
+                final var kind = nodes[ref + KIND];
+                final var value = nodes[ref + VALUE];
+                int c;
+                switch (kind) {
+                    case PROTOCOL:
+                        c = protocol == ABSENT ? NA : compare(protocol, value);
+                        break;
+                    case SRC_PORT:
+                        c = srcPort == ABSENT ? NA : compare(srcPort, value);
+                        break;
+                    case DST_PORT:
+                        c = dstPort == ABSENT ? NA : compare(dstPort, value);
+                        break;
+                    case SRC_ADDR:
+                        c = srcAddr == null ? NA : compare(srcAddr, addresses[value]);
+                        break;
+                    case DST_ADDR:
+                        c = dstAddr == null ? NA : compare(dstAddr, addresses[value]);
+                        break;
+                    default:
+                        throw new IllegalStateException("unexpected threshold kind: " + kind);
+                }
+                if (c != NA) {
+                    // the "na" subtree of the node is visited after the selected subtree has been completely traversed
+                    final var na = nodes[ref + NA];
+                    if (na != NONE) {
+                        pending[pendingCount++] = na;
+                    }
+                }
+                ref = nodes[ref + c];
+                continue;
+            }
+            if (ref != NONE) {
+                leaves[leafCount++] = leafIndex(ref);
+            }
+            if (pendingCount == 0) {
+                break;
+            }
+            ref = pending[--pendingCount];
+        }
+
+        switch (leafCount) {
+            case 0:
+                return null;
+            case 1:
+                return classify(request, leafStart[leaves[0]], leafStart[leaves[0] + 1]);
+            default:
+                return classify(request, leaves, leafCount);
+        }
+    }
+
+    private static int compare(int requestValue, int threshold) {
+        return requestValue < threshold ? LT : requestValue == threshold ? EQ : GT;
+    }
+
+    private static int compare(IpAddr requestValue, IpAddr threshold) {
+        final var c = requestValue.compareTo(threshold);
+        return c < 0 ? LT : c == 0 ? EQ : GT;
+    }
+
+    /**
+     * Classifies a request by the classifiers of a single leaf.
+     */
+    private String classify(ClassificationRequest request, int from, int to) {
+        var rank = -1;
+        Classifier.Result result = null;
+        for (var i = from; i < to; i++) {
+            if (ranks[i] != rank) {
+                // the current result can not be overruled by classifiers with lower priority
+                if (result != null) {
+                    return result.name;
+                }
+                rank = ranks[i];
+            }
+            var r = classifiers[i].classify(request);
+            if (r != null && (result == null || r.matchedAspects > result.matchedAspects)) {
+                result = r;
+            }
+        }
+        return result != null ? result.name : null;
+    }
+
+    /**
+     * Classifies a request by merging the classifiers of several leaves.
+     * <p>
+     * Classifiers with equal ranks are taken from the leaves in the given order.
+     */
+    private String classify(ClassificationRequest request, int[] leaves, int leafCount) {
+        final var pos = new int[leafCount];
+        final var end = new int[leafCount];
+        for (var l = 0; l < leafCount; l++) {
+            pos[l] = leafStart[leaves[l]];
+            end[l] = leafStart[leaves[l] + 1];
+        }
+        var rank = -1;
+        Classifier.Result result = null;
+        while (true) {
+            var next = -1;
+            for (var l = 0; l < leafCount; l++) {
+                if (pos[l] < end[l] && (next == -1 || ranks[pos[l]] < ranks[pos[next]])) {
+                    next = l;
+                }
+            }
+            if (next == -1) {
+                break;
+            }
+            final var i = pos[next]++;
+            if (ranks[i] != rank) {
+                if (result != null) {
+                    return result.name;
+                }
+                rank = ranks[i];
+            }
+            var r = classifiers[i].classify(request);
+            if (r != null && (result == null || r.matchedAspects > result.matchedAspects)) {
+                result = r;
+            }
+        }
+        return result != null ? result.name : null;
+    }
+
+    private static int leafRef(int leafIndex) {
+        return -leafIndex - 1;
+    }
+
+    private static int leafIndex(int ref) {
+        return -ref - 1;
+    }
+
+    public int getNodeCount() {
+        return nodes.length / NODE_SIZE;
+    }
+
+    public int getLeafCount() {
+        return leafStart.length - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledTree{" +
+               "nodes=" + getNodeCount() +
+               ", leaves=" + getLeafCount() +
+               ", classifiers=" + classifiers.length +
+               ", maxLeaves=" + maxLeaves +
+               '}';
+    }
+
+    /**
+     * Lays out the nodes and leaves of a tree into flat arrays and returns the reference of each visited subtree.
+     */
+    private static class Compiler implements Tree.Visitor<Integer> {
+
+        private int[] nodes = new int[NODE_SIZE * 64];
+        private int nodeCount = 0;
+        private final List<IpAddr> addresses = new ArrayList<>();
+        private final Map<IpAddr, Integer> addressIndexes = new HashMap<>();
+        private final List<Classifier> classifiers = new ArrayList<>();
+        private final List<Integer> leafStart = new ArrayList<>();
+
+        private int allocateNode(Threshold threshold) {
+            if ((nodeCount + 1) * NODE_SIZE > nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+            }
+            final var ref = nodeCount++ * NODE_SIZE;
+            if (threshold instanceof Threshold.Protocol) {
+                nodes[ref + KIND] = PROTOCOL;
+                nodes[ref + VALUE] = ((Threshold.Protocol) threshold).getThreshold();
+            } else if (threshold instanceof Threshold.SrcPort) {
+                nodes[ref + KIND] = SRC_PORT;
+                nodes[ref + VALUE] = ((Threshold.SrcPort) threshold).getThreshold();
+            } else if (threshold instanceof Threshold.DstPort) {
+                nodes[ref + KIND] = DST_PORT;
+                nodes[ref + VALUE] = ((Threshold.DstPort) threshold).getThreshold();
+            } else if (threshold instanceof Threshold.SrcAddress) {
+                nodes[ref + KIND] = SRC_ADDR;
+                nodes[ref + VALUE] = addressIndex(((Threshold.SrcAddress) threshold).getThreshold());
+            } else if (threshold instanceof Threshold.DstAddress) {
+                nodes[ref + KIND] = DST_ADDR;
+                nodes[ref + VALUE] = addressIndex(((Threshold.DstAddress) threshold).getThreshold());
+            } else {
+                throw new IllegalArgumentException("unsupported threshold: " + threshold);
+            }
+            return ref;
+        }
+
+        private int addressIndex(IpAddr address) {
+            return addressIndexes.computeIfAbsent(address, a -> {
+                addresses.add(a);
+                return addresses.size() - 1;
+            });
+        }
+
+        private int link(int ref, int lt, int eq, int gt, int na) {
+            nodes[ref + LT] = lt;
+            nodes[ref + EQ] = eq;
+            nodes[ref + GT] = gt;
+            nodes[ref + NA] = na;
+            return ref;
+        }
+
+        @Override
+        public Integer visit(Tree.Node.WithChoice node) {
+            final var ref = allocateNode(node.threshold);
+            // children must be compiled before the node array is accessed because it may be reallocated meanwhile
+            final int lt = node.lt.accept(this), eq = node.eq.accept(this), gt = node.gt.accept(this), na = node.na.accept(this);
+            return link(ref, lt, eq, gt, na);
+        }
+
+        @Override
+        public Integer visit(Tree.Node.WithoutChoice node) {
+            final var ref = allocateNode(node.threshold);
+            final int lt = node.lt.accept(this), eq = node.eq.accept(this), gt = node.gt.accept(this);
+            return link(ref, lt, eq, gt, NONE);
+        }
+
+        @Override
+        public Integer visit(Tree.Leaf.Empty leaf) {
+            return NONE;
+        }
+
+        @Override
+        public Integer visit(Tree.Leaf.WithClassifiers leaf) {
+            if (leaf.classifiers.isEmpty()) {
+                return NONE;
+            }
+            leafStart.add(classifiers.size());
+            classifiers.addAll(leaf.classifiers);
+            return leafRef(leafStart.size() - 1);
+        }
+
+        private CompiledTree build(int root, int maxLeaves) {
+            final var classifierArray = classifiers.toArray(new Classifier[0]);
+            final var leafStartArray = new int[leafStart.size() + 1];
+            for (var i = 0; i < leafStart.size(); i++) {
+                leafStartArray[i] = leafStart.get(i);
+            }
+            leafStartArray[leafStart.size()] = classifierArray.length;
+            return new CompiledTree(
+                    Arrays.copyOf(nodes, nodeCount * NODE_SIZE),
+                    addresses.toArray(new IpAddr[0]),
+                    leafStartArray,
+                    classifierArray,
+                    ranks(classifierArray),
+                    root,
+                    Math.max(maxLeaves, 1)
+            );
+        }
+
+        /**
+         * Replaces the priority ordering of classifiers by dense ranks such that classifiers can be ordered by
+         * comparing ints. Classifiers that compare equal get the same rank.
+         */
+        private static int[] ranks(Classifier[] classifiers) {
+            final var sorted = new Classifier[classifiers.length];
+            System.arraycopy(classifiers, 0, sorted, 0, classifiers.length);
+            Arrays.sort(sorted);
+            final var rankOf = new IdentityHashMap<Classifier, Integer>();
+            var rank = 0;
+            for (var i = 0; i < sorted.length; i++) {
+                if (i > 0 && sorted[i].compareTo(sorted[i - 1]) != 0) {
+                    rank++;
+                }
+                rankOf.put(sorted[i], rank);
+            }
+            final var ranks = new int[classifiers.length];
+            for (var i = 0; i < classifiers.length; i++) {
+                ranks[i] = rankOf.get(classifiers[i]);
+            }
+            return ranks;
+        }
+    }
+
+    /**
+     * Determines an upper bound for the number of leaves that are reached by a single classification.
+     * <p>
+     * Each node with a "na" subtree is accounted for with an additional leaf. The result is therefore also an upper
+     * bound for the number of "na" subtrees that are pending during a classification.
+     */
+    private static class MaxLeavesVisitor implements Tree.Visitor<Integer> {
+
+        @Override
+        public Integer visit(Tree.Node.WithChoice node) {
+            return Math.max(Math.max(node.lt.accept(this), node.eq.accept(this)), node.gt.accept(this)) + node.na.accept(this) + 1;
+        }
+
+        @Override
+        public Integer visit(Tree.Node.WithoutChoice node) {
+            return Math.max(Math.max(node.lt.accept(this), node.eq.accept(this)), node.gt.accept(this));
+        }
+
+        @Override
+        public Integer visit(Tree.Leaf.Empty leaf) {
+            return 0;
+        }
+
+        @Override
+        public Integer visit(Tree.Leaf.WithClassifiers leaf) {
+            return 1;
+        }
+    }
+}
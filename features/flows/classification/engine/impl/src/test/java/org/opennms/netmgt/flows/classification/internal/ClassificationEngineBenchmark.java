@@ -29,12 +29,19 @@ package org.opennms.netmgt.flows.classification.internal;
 
 import static org.easymock.EasyMock.createNiceMock;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
@@ -51,23 +58,33 @@ import org.opennms.netmgt.flows.classification.internal.validation.RuleValidator
 import org.opennms.netmgt.flows.classification.persistence.api.GroupBuilder;
 import org.opennms.netmgt.flows.classification.persistence.api.Groups;
 import org.opennms.netmgt.flows.classification.persistence.api.Rule;
+import org.opennms.netmgt.flows.classification.persistence.api.RuleBuilder;
 
 /**
  * Use the Java Microbenchmarking Harness (JMH) to measure classification performance.
  * <p>
  * Rule sets are loaded from csv files and classification is done with randomly generated flows based on the
- * protocols, ports, and addresses found in the loaded rule sets.
+ * protocols, ports, and addresses found in the loaded rule sets. In addition, a rule set with 10.000 generated rules
+ * is used.
+ * <p>
+ * Each rule set is classified by the decision tree and by the compiled decision tree. The benchmark reports the
+ * number of classified flows per second.
  */
 public class ClassificationEngineBenchmark {
 
     // the number of classification request that are processed in a single benchmark method call
-    // -> the reported number of operations per second must be multiplied by this number to get
-    //    the number of classifications per second
+    // -> the benchmark method is annotated by @OperationsPerInvocation(BATCH_SIZE), i.e. the reported number of
+    //    operations per second is the number of classifications per second
     private static final int BATCH_SIZE = 1000;
 
     // the benchmark is run for different rule sets
     private static final String EXAMPLE_RULES_RESOURCE = "/example-rules.csv";
     private static final String PRE_DEFINED_RULES_RESOURCE = "/pre-defined-rules.csv";
+    private static final String GENERATED_10K_RULES = "generated-10000";
+
+    // the benchmark is run with and without compiling the decision tree
+    private static final String TREE_MODE = "tree";
+    private static final String COMPILED_MODE = "compiled";
 
     public static void main(String[] args) throws Exception {
         org.openjdk.jmh.Main.main(args);
@@ -84,22 +101,62 @@ public class ClassificationEngineBenchmark {
         return rules;
     }
 
+    /**
+     * Generates a rule set that resembles typical application rules.
+     * <p>
+     * Most rules match a protocol and a destination port or a small destination port range. Some rules are restricted
+     * to source or destination networks.
+     */
+    public static List<Rule> generateRules(int count, long seed) {
+        var random = new Random(seed);
+        var rules = new ArrayList<Rule>(count);
+        for (int i = 0; i < count; i++) {
+            var builder = new RuleBuilder()
+                    .withName("app" + i)
+                    .withPosition(i)
+                    .withProtocol(random.nextInt(4) == 0 ? "tcp,udp" : random.nextBoolean() ? "tcp" : "udp")
+                    .withOmnidirectional(random.nextInt(4) == 0);
+            var port = 1 + random.nextInt(65000);
+            if (random.nextInt(5) == 0) {
+                builder.withDstPort(port + "-" + (port + random.nextInt(100)));
+            } else {
+                builder.withDstPort(port);
+            }
+            if (random.nextInt(10) == 0) {
+                var net = "10." + random.nextInt(256);
+                builder.withSrcAddress(net + ".0.0-" + net + ".255.255");
+            }
+            if (random.nextInt(10) == 0) {
+                var net = "192.168." + random.nextInt(256);
+                builder.withDstAddress(net + ".0-" + net + ".255");
+            }
+            rules.add(builder.build());
+        }
+        return rules;
+    }
+
     @State(Scope.Benchmark)
     public static class BState {
 
         @Param({"0", "1"})
         public int index;
 
-        @Param({EXAMPLE_RULES_RESOURCE, PRE_DEFINED_RULES_RESOURCE})
+        @Param({EXAMPLE_RULES_RESOURCE, PRE_DEFINED_RULES_RESOURCE, GENERATED_10K_RULES})
         public String ruleSet;
 
+        @Param({TREE_MODE, COMPILED_MODE})
+        public String mode;
+
         private ClassificationEngine classificationEngine;
         private List<ClassificationRequest> classificationRequests;
 
         @Setup
         public void setup() throws InterruptedException {
-            var rules = getRules(ruleSet);
-            classificationEngine = new DefaultClassificationEngine(() -> rules, createNiceMock(FilterService.class));
+            var rules = GENERATED_10K_RULES.equals(ruleSet) ? generateRules(10000, 654321l) : getRules(ruleSet);
+            var engine = new DefaultClassificationEngine(() -> rules, createNiceMock(FilterService.class), false);
+            engine.setCompiled(COMPILED_MODE.equals(mode));
+            engine.reload();
+            classificationEngine = engine;
             classificationRequests = RandomClassificationEngineTest.streamOfclassificationRequests(rules, 123456l).skip(index * BATCH_SIZE).limit(BATCH_SIZE).collect(Collectors.toList());
         }
 
@@ -114,6 +171,9 @@ public class ClassificationEngineBenchmark {
     }
 
     @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH_SIZE)
     @Fork(value = 1)
     @Warmup(iterations = 1)
     @Measurement(iterations = 2)
@@ -31,6 +31,7 @@ import static org.easymock.EasyMock.createNiceMock;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.Stack;
 import java.util.stream.Collectors;
@@ -38,7 +39,9 @@ import java.util.stream.Stream;
 
 import org.junit.Test;
 import org.opennms.netmgt.flows.classification.FilterService;
+import org.opennms.netmgt.flows.classification.internal.decision.CompiledTree;
 import org.opennms.netmgt.flows.classification.internal.decision.Tree;
+import org.opennms.netmgt.flows.classification.persistence.api.Rule;
 
 public class ExampleRulesTest {
 
@@ -47,6 +50,31 @@ public class ExampleRulesTest {
         testRuleSet("/example-rules.csv");
     }
 
+    @Test
+    public void compiledTreeForExampleRuleSet() throws InterruptedException {
+        testCompiledTree(ClassificationEngineBenchmark.getRules("/example-rules.csv"));
+    }
+
+    @Test
+    public void compiledTreeForPreDefinedRuleSet() throws InterruptedException {
+        testCompiledTree(ClassificationEngineBenchmark.getRules("/pre-defined-rules.csv"));
+    }
+
+    @Test
+    public void compiledTreeForGeneratedRuleSet() throws InterruptedException {
+        testCompiledTree(ClassificationEngineBenchmark.generateRules(10000, 654321l));
+    }
+
+    public void testCompiledTree(List<Rule> rules) throws InterruptedException {
+        var classificationEngine = new DefaultClassificationEngine(() -> rules, createNiceMock(FilterService.class));
+        var tree = classificationEngine.getTree();
+        var compiledTree = CompiledTree.of(tree);
+
+        RandomClassificationEngineTest.streamOfclassificationRequests(rules, 123456l).limit(100000).forEach(cr -> {
+            assertThat("classification request: " + cr, compiledTree.classify(cr), is(tree.classify(cr)));
+        });
+    }
+
     public void testRuleSet(String resource) throws InterruptedException {
         var rules = ClassificationEngineBenchmark.getRules(resource);
         var classificationEngine = new DefaultClassificationEngine(() -> rules, createNiceMock(FilterService.class));
@@ -145,6 +145,27 @@ public class RandomClassificationEngineTest {
         return res;
     }
 
+    @Property
+    public boolean compiledTree(
+            @ForAll("rulesAndRequests") Tuple.Tuple2<List<Rule>, List<ClassificationRequest>> rulesAndRequests
+    ) throws InterruptedException {
+        var ce = new DefaultClassificationEngine(() -> rulesAndRequests.get1(), FILTER_SERVICE, false);
+        ce.setCompiled(true);
+        ce.reload();
+
+        var classifiers = rulesAndRequests.get1().stream()
+                .flatMap(r -> r.isOmnidirectional() ? Stream.of(r, r.reversedRule()) : Stream.of(r))
+                .map(r -> RandomClassificationEngineTest.classifier(r))
+                .sorted()
+                .collect(Collectors.toList());
+
+        return rulesAndRequests.get2().stream().allMatch(r -> {
+            var appByCompiledTree = Optional.ofNullable(ce.classify(r));
+            var appDirect = classifiers.stream().map(c -> c.classify(r)).filter(s -> s != null).findFirst().map(cr -> cr.name);
+            return Objects.equals(appByCompiledTree, appDirect);
+        });
+    }
+
     @Provide
     public Arbitrary<Tuple.Tuple2<List<Rule>, List<ClassificationRequest>>> rulesAndRequests() {
         return rules(0, MAX_RULES, MAX_PROTOCOL, MAX_PORT, MAX_ADDR).flatMap(rules -> classificationRequest(rules).list().map(requests -> Tuple.of(rules, requests)));
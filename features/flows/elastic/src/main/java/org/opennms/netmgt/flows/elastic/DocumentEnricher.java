@@ -33,10 +33,15 @@ import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 import org.opennms.core.cache.Cache;
@@ -86,6 +91,15 @@ public class DocumentEnricher {
 
     private final long clockSkewCorrectionThreshold;
 
+    /**
+     * Batches smaller than this are classified on the calling thread.
+     */
+    private static final int MIN_PARALLEL_BATCH_SIZE = 64;
+
+    private volatile int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private ForkJoinPool forkJoinPool;
+
     public DocumentEnricher(MetricRegistry metricRegistry, NodeDao nodeDao, InterfaceToNodeCache interfaceToNodeCache,
                             SessionUtils sessionUtils, ClassificationEngine classificationEngine,
                             CacheConfig cacheConfig,
@@ -125,64 +139,129 @@ public class DocumentEnricher {
             return Collections.emptyList();
         }
 
-        return sessionUtils.withTransaction(() -> flows.stream().map(flow -> {
-            final FlowDocument document = FlowDocument.from(flow);
-            // Metadata from message
-            document.setHost(source.getSourceAddress());
-            document.setLocation(source.getLocation());
-
-            // Node data
-            getNodeInfoFromCache(source.getLocation(), source.getSourceAddress(), source.getContextKey(), flow.getNodeIdentifier()).ifPresent(document::setNodeExporter);
-            if (document.getDstAddr() != null) {
-                getNodeInfoFromCache(source.getLocation(), document.getDstAddr(), null, null).ifPresent(document::setNodeDst);
-            }
-            if (document.getSrcAddr() != null) {
-                getNodeInfoFromCache(source.getLocation(), document.getSrcAddr(), null, null).ifPresent(document::setNodeSrc);
+        final List<FlowDocument> documents = sessionUtils.withTransaction(() -> {
+            final List<FlowDocument> docs = new ArrayList<>(flows.size());
+            for (final Flow flow : flows) {
+                final FlowDocument document = FlowDocument.from(flow);
+                // Metadata from message
+                document.setHost(source.getSourceAddress());
+                document.setLocation(source.getLocation());
+                docs.add(document);
             }
 
-            // Locality
-            if (document.getSrcAddr() != null) {
-                document.setSrcLocality(isPrivateAddress(document.getSrcAddr()) ? Locality.PRIVATE : Locality.PUBLIC);
-            }
-            if (document.getDstAddr() != null) {
-                document.setDstLocality(isPrivateAddress(document.getDstAddr()) ? Locality.PRIVATE : Locality.PUBLIC);
+            // Node data - all addresses of the batch are resolved at once
+            final Set<String> addresses = new HashSet<>();
+            addresses.add(source.getSourceAddress());
+            for (final FlowDocument document : docs) {
+                if (document.getDstAddr() != null) {
+                    addresses.add(document.getDstAddr());
+                }
+                if (document.getSrcAddr() != null) {
+                    addresses.add(document.getSrcAddr());
+                }
             }
+            final Map<String, Optional<NodeDocument>> nodesByAddress = getNodeInfosFromCache(source.getLocation(), addresses);
+            final Map<String, Optional<NodeDocument>> nodesByIdentifier = new HashMap<>();
+
+            for (final FlowDocument document : docs) {
+                Optional<NodeDocument> exporter = Optional.empty();
+                final String nodeIdentifier = document.getFlow().getNodeIdentifier();
+                if (source.getContextKey() != null && !Strings.isNullOrEmpty(nodeIdentifier)) {
+                    exporter = nodesByIdentifier.computeIfAbsent(nodeIdentifier, value -> getNodeInfoFromMetadataCache(source.getContextKey(), value));
+                }
+                if (!exporter.isPresent()) {
+                    exporter = nodesByAddress.get(source.getSourceAddress());
+                }
+                exporter.ifPresent(document::setNodeExporter);
 
-            if (Locality.PUBLIC.equals(document.getDstLocality()) || Locality.PUBLIC.equals(document.getSrcLocality())) {
-                document.setFlowLocality(Locality.PUBLIC);
-            } else if (Locality.PRIVATE.equals(document.getDstLocality()) || Locality.PRIVATE.equals(document.getSrcLocality())) {
-                document.setFlowLocality(Locality.PRIVATE);
+                if (document.getDstAddr() != null) {
+                    nodesByAddress.get(document.getDstAddr()).ifPresent(document::setNodeDst);
+                }
+                if (document.getSrcAddr() != null) {
+                    nodesByAddress.get(document.getSrcAddr()).ifPresent(document::setNodeSrc);
+                }
             }
+            return docs;
+        });
+
+        // The remaining steps do not touch the database and are spread over the pool for larger batches
+        if (documents.size() < MIN_PARALLEL_BATCH_SIZE || parallelism <= 1) {
+            documents.forEach(this::enrich);
+        } else {
+            getForkJoinPool().submit(() -> documents.parallelStream().forEach(this::enrich)).join();
+        }
 
-            final ClassificationRequest classificationRequest = createClassificationRequest(document);
+        return documents;
+    }
 
-            // Check whether classification is possible
-            if (classificationRequest.isClassifiable()) {
-                // Apply Application mapping
-                document.setApplication(classificationEngine.classify(classificationRequest));
-            }
+    private void enrich(final FlowDocument document) {
+        // Locality
+        if (document.getSrcAddr() != null) {
+            document.setSrcLocality(isPrivateAddress(document.getSrcAddr()) ? Locality.PRIVATE : Locality.PUBLIC);
+        }
+        if (document.getDstAddr() != null) {
+            document.setDstLocality(isPrivateAddress(document.getDstAddr()) ? Locality.PRIVATE : Locality.PUBLIC);
+        }
 
-            // Conversation tagging
-            document.setConvoKey(ConversationKeyUtils.getConvoKeyAsJsonString(document));
-
-            // Fix skewed clock
-            // If received time and export time differ to much, correct all timestamps by the difference
-            if (this.clockSkewCorrectionThreshold > 0) {
-                final long skew = flow.getTimestamp() - flow.getReceivedAt();
-                if (Math.abs(skew) >= this.clockSkewCorrectionThreshold) {
-                    // The applied correction the the negative skew
-                    document.setClockCorrection(-skew);
-
-                    // Fix the skew on all timestamps of the flow
-                    document.setTimestamp(document.getTimestamp() - skew);
-                    document.setFirstSwitched(document.getFirstSwitched() - skew);
-                    document.setDeltaSwitched(document.getDeltaSwitched() - skew);
-                    document.setLastSwitched(document.getLastSwitched() - skew);
-                }
+        if (Locality.PUBLIC.equals(document.getDstLocality()) || Locality.PUBLIC.equals(document.getSrcLocality())) {
+            document.setFlowLocality(Locality.PUBLIC);
+        } else if (Locality.PRIVATE.equals(document.getDstLocality()) || Locality.PRIVATE.equals(document.getSrcLocality())) {
+            document.setFlowLocality(Locality.PRIVATE);
+        }
+
+        final ClassificationRequest classificationRequest = createClassificationRequest(document);
+
+        // Check whether classification is possible
+        if (classificationRequest.isClassifiable()) {
+            // Apply Application mapping
+            document.setApplication(classificationEngine.classify(classificationRequest));
+        }
+
+        // Conversation tagging
+        document.setConvoKey(ConversationKeyUtils.getConvoKeyAsJsonString(document));
+
+        // Fix skewed clock
+        // If received time and export time differ to much, correct all timestamps by the difference
+        if (this.clockSkewCorrectionThreshold > 0) {
+            final Flow flow = document.getFlow();
+            final long skew = flow.getTimestamp() - flow.getReceivedAt();
+            if (Math.abs(skew) >= this.clockSkewCorrectionThreshold) {
+                // The applied correction the the negative skew
+                document.setClockCorrection(-skew);
+
+                // Fix the skew on all timestamps of the flow
+                document.setTimestamp(document.getTimestamp() - skew);
+                document.setFirstSwitched(document.getFirstSwitched() - skew);
+                document.setDeltaSwitched(document.getDeltaSwitched() - skew);
+                document.setLastSwitched(document.getLastSwitched() - skew);
             }
+        }
+    }
 
-            return document;
-        }).collect(Collectors.toList()));
+    private synchronized ForkJoinPool getForkJoinPool() {
+        if (forkJoinPool == null) {
+            forkJoinPool = new ForkJoinPool(parallelism);
+        }
+        return forkJoinPool;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public synchronized void setParallelism(final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be >= 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        destroy();
+    }
+
+    public synchronized void destroy() {
+        if (forkJoinPool != null) {
+            forkJoinPool.shutdown();
+            forkJoinPool = null;
+        }
     }
 
     private static boolean isPrivateAddress(String ipAddress) {
@@ -190,34 +269,49 @@ public class DocumentEnricher {
         return inetAddress.isLoopbackAddress() || inetAddress.isLinkLocalAddress() || inetAddress.isSiteLocalAddress();
     }
 
-    private Optional<NodeDocument> getNodeInfoFromCache(final String location, final String ipAddress, final ContextKey contextKey, final String value) {
+    private Map<String, Optional<NodeDocument>> getNodeInfosFromCache(final String location, final Set<String> ipAddresses) {
+        final Map<String, Optional<NodeDocument>> result = new HashMap<>(ipAddresses.size());
 
-        Optional<NodeDocument> nodeDocument = Optional.empty();
-        if (contextKey != null && !Strings.isNullOrEmpty(value)) {
-            final NodeMetadataKey metadataKey = new NodeMetadataKey(contextKey, value);
-            try {
-                nodeDocument = nodeMetadataCache.get(metadataKey);
-            } catch (ExecutionException e) {
-                LOG.error("Error while retrieving NodeDocument from NodeMetadataCache: {}.", e.getMessage(), e);
-                throw new RuntimeException(e);
-            }
-            if(nodeDocument.isPresent()) {
-                return nodeDocument;
+        final Map<InetAddress, String> addresses = new HashMap<>(ipAddresses.size());
+        for (final String ipAddress : ipAddresses) {
+            final InetAddress address = InetAddressUtils.addr(ipAddress);
+            if (address != null) {
+                addresses.put(address, ipAddress);
+            } else {
+                result.put(ipAddress, Optional.empty());
             }
         }
 
-        final Optional<Integer> nodeId = interfaceToNodeCache.getFirstNodeId(location, InetAddressUtils.addr(ipAddress));
-        if(nodeId.isPresent()) {
-            try {
-                return nodeInfoCache.get(nodeId.get());
-            } catch (ExecutionException e) {
-                LOG.error("Error while retrieving NodeDocument from NodeInfoCache: {}.", e.getMessage(), e);
-                throw new RuntimeException(e);
-            }
+        final Map<InetAddress, Integer> nodeIds = interfaceToNodeCache.getFirstNodeIds(location, addresses.keySet());
+
+        // Different addresses often belong to the same node
+        final Map<Integer, Optional<NodeDocument>> nodes = new HashMap<>();
+        for (final Map.Entry<InetAddress, String> address : addresses.entrySet()) {
+            final Integer nodeId = nodeIds.get(address.getKey());
+            result.put(address.getValue(), nodeId != null
+                    ? nodes.computeIfAbsent(nodeId, this::getNodeInfoFromCache)
+                    : Optional.empty());
         }
-        return nodeDocument;
+        return result;
     }
 
+    private Optional<NodeDocument> getNodeInfoFromCache(final Integer nodeId) {
+        try {
+            return nodeInfoCache.get(nodeId);
+        } catch (ExecutionException e) {
+            LOG.error("Error while retrieving NodeDocument from NodeInfoCache: {}.", e.getMessage(), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Optional<NodeDocument> getNodeInfoFromMetadataCache(final ContextKey contextKey, final String value) {
+        try {
+            return nodeMetadataCache.get(new NodeMetadataKey(contextKey, value));
+        } catch (ExecutionException e) {
+            LOG.error("Error while retrieving NodeDocument from NodeMetadataCache: {}.", e.getMessage(), e);
+            throw new RuntimeException(e);
+        }
+    }
 
     // Key class, which is used to cache NodeInfo for a given node metadata.
     private static class NodeMetadataKey {
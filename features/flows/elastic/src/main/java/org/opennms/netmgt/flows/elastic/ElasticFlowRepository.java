@@ -62,6 +62,7 @@ import org.opennms.netmgt.flows.api.Flow;
 import org.opennms.netmgt.flows.api.FlowException;
 import org.opennms.netmgt.flows.api.FlowRepository;
 import org.opennms.netmgt.flows.api.FlowSource;
+import org.opennms.netmgt.flows.elastic.memory.FlowAggregateStore;
 import org.opennms.netmgt.model.OnmsNode;
 import org.opennms.netmgt.model.OnmsSnmpInterface;
 import org.slf4j.Logger;
@@ -162,6 +163,11 @@ public class ElasticFlowRepository implements FlowRepository {
      */
     private boolean skipElasticsearchPersistence = false;
 
+    /**
+     * Optional store keeping in-memory aggregates of the recent flows.
+     */
+    private FlowAggregateStore aggregateStore;
+
     /**
      * Cache for marking nodes and interfaces as having flows.
      *
@@ -326,6 +332,10 @@ public class ElasticFlowRepository implements FlowRepository {
             flowDocuments.stream().map(FlowDocument::buildEnrichedFlow).forEach(enrichedFlowForwarder::forward);
         }
 
+        if (aggregateStore != null) {
+            aggregateStore.ingest(flowDocuments);
+        }
+
         if (skipElasticsearchPersistence) {
             RATE_LIMITED_LOGGER.info("Flow persistence disabled. Dropping {} flow documents.", flowDocuments.size());
         } else {
@@ -512,4 +522,12 @@ public class ElasticFlowRepository implements FlowRepository {
     public void setSkipElasticsearchPersistence(boolean skipElasticsearchPersistence) {
         this.skipElasticsearchPersistence = skipElasticsearchPersistence;
     }
+
+    public FlowAggregateStore getAggregateStore() {
+        return aggregateStore;
+    }
+
+    public void setAggregateStore(FlowAggregateStore aggregateStore) {
+        this.aggregateStore = aggregateStore;
+    }
 }
@@ -43,6 +43,7 @@ import org.opennms.netmgt.flows.api.FlowQueryService;
 import org.opennms.netmgt.flows.api.Host;
 import org.opennms.netmgt.flows.api.LimitedCardinalityField;
 import org.opennms.netmgt.flows.api.TrafficSummary;
+import org.opennms.netmgt.flows.elastic.memory.InMemoryFlowQueryService;
 import org.opennms.netmgt.flows.filter.api.Filter;
 import org.opennms.netmgt.flows.filter.api.TimeRangeFilter;
 
@@ -58,10 +59,12 @@ public class SmartQueryService implements FlowQueryService {
 
     private final FlowQueryService rawQueryService;
     private final FlowQueryService aggQueryService;
+    private InMemoryFlowQueryService memoryQueryService;
 
     public enum QueryServiceType {
         RAW,
-        AGG
+        AGG,
+        MEMORY
     }
 
     private boolean alwaysUseAggForQueries = false;
@@ -74,6 +77,8 @@ public class SmartQueryService implements FlowQueryService {
     private final Timer rawQueryFailureTimer;
     private final Timer aggregatedQuerySuccessTimer;
     private final Timer aggregatedQueryFailureTimer;
+    private final Timer memoryQuerySuccessTimer;
+    private final Timer memoryQueryFailureTimer;
 
     public SmartQueryService(MetricRegistry metricRegistry, FlowQueryService rawQueryService, FlowQueryService aggQueryService) {
         this.rawQueryService = Objects.requireNonNull(rawQueryService);
@@ -83,6 +88,8 @@ public class SmartQueryService implements FlowQueryService {
         rawQueryFailureTimer = metricRegistry.timer("rawQueryFailure");
         aggregatedQuerySuccessTimer = metricRegistry.timer("aggregatedQuerySuccess");
         aggregatedQueryFailureTimer = metricRegistry.timer("aggregatedQueryFailure");
+        memoryQuerySuccessTimer = metricRegistry.timer("memoryQuerySuccess");
+        memoryQueryFailureTimer = metricRegistry.timer("memoryQueryFailure");
     }
 
     private QueryServiceType getDelegate(List<Filter> filters, boolean isQueryForSpecificEntities) {
@@ -93,12 +100,19 @@ public class SmartQueryService implements FlowQueryService {
             return QueryServiceType.AGG;
         }
 
+        // Prefer the in-memory aggregates whenever they hold the whole time range
+        final Optional<TimeRangeFilter> timeRangeFilter = Filter.find(filters, TimeRangeFilter.class);
+        if (memoryQueryService != null
+                && timeRangeFilter.isPresent()
+                && memoryQueryService.getStore().covers(timeRangeFilter.get().getStart())) {
+            return QueryServiceType.MEMORY;
+        }
+
         // We do not currently support queries for specific entities in the agg service - use the raw
         if (isQueryForSpecificEntities) {
             return QueryServiceType.RAW;
         }
 
-        final Optional<TimeRangeFilter> timeRangeFilter = Filter.find(filters, TimeRangeFilter.class);
         // We currently require a time filter for aggregated queries
         if (!timeRangeFilter.isPresent()) {
             return QueryServiceType.RAW;
@@ -121,6 +135,9 @@ public class SmartQueryService implements FlowQueryService {
                                                      Function<FlowQueryService, CompletableFuture<T>> query) {
         final QueryServiceType queryServiceType = getDelegate(filters, isQueryForSpecificEntities);
         switch(queryServiceType) {
+            case MEMORY:
+                return timeAsync(memoryQuerySuccessTimer, memoryQueryFailureTimer,
+                        () -> query.apply(memoryQueryService));
             case AGG:
                 return timeAsync(aggregatedQuerySuccessTimer, aggregatedQueryFailureTimer,
                         () -> query.apply(aggQueryService));
@@ -269,6 +286,14 @@ public class SmartQueryService implements FlowQueryService {
         }
     }
 
+    public InMemoryFlowQueryService getMemoryQueryService() {
+        return memoryQueryService;
+    }
+
+    public void setMemoryQueryService(InMemoryFlowQueryService memoryQueryService) {
+        this.memoryQueryService = memoryQueryService;
+    }
+
     public long getTimeRangeDurationAggregateThresholdMs() {
         return timeRangeDurationAggregateThresholdMs;
     }
@@ -292,6 +317,7 @@ public class SmartQueryService implements FlowQueryService {
                 ", alwaysUseRawForQueries=" + alwaysUseRawForQueries +
                 ", timeRangeDurationAggregateThresholdMs=" + timeRangeDurationAggregateThresholdMs +
                 ", timeRangeEndpointAggregateThresholdMs=" + timeRangeEndpointAggregateThresholdMs +
+                ", memoryQueryService=" + memoryQueryService +
                 '}';
     }
 
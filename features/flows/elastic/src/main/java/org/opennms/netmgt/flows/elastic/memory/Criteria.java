@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.flows.elastic.memory;
+
+/**
+ * The filters of a query, resolved against the values stored in the minute slices.
+ */
+class Criteria {
+
+    /**
+     * Used as exporter if the filter references a node the store has never seen.
+     */
+    static final int UNKNOWN_EXPORTER = -2;
+
+    private final long start;
+    private final long end;
+    private final Integer exporter;
+    private final Integer ifIndex;
+    private final boolean[] dscps;
+
+    Criteria(final long start, final long end, final Integer exporter, final Integer ifIndex, final boolean[] dscps) {
+        this.start = start;
+        this.end = end;
+        this.exporter = exporter;
+        this.ifIndex = ifIndex;
+        this.dscps = dscps;
+    }
+
+    long getStart() {
+        return this.start;
+    }
+
+    long getEnd() {
+        return this.end;
+    }
+
+    /**
+     * Returns the fraction of the given minute covered by the time range.
+     */
+    double overlap(final long minute) {
+        final long from = Math.max(minute, this.start);
+        final long to = Math.min(minute + FlowAggregateStore.MINUTE_MS, this.end);
+        return to <= from ? 0.0 : (double) (to - from) / FlowAggregateStore.MINUTE_MS;
+    }
+
+    boolean matches(final int exporter, final int ifIndex, final int dscp) {
+        if (this.exporter != null && this.exporter != exporter) {
+            return false;
+        }
+        if (this.ifIndex != null && this.ifIndex != ifIndex) {
+            return false;
+        }
+        if (this.dscps != null && (dscp < 0 || !this.dscps[dscp])) {
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,344 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.flows.elastic.memory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+import org.opennms.netmgt.flows.elastic.Direction;
+import org.opennms.netmgt.flows.elastic.FlowDocument;
+import org.opennms.netmgt.flows.elastic.NodeDocument;
+import org.opennms.netmgt.flows.elastic.RawFlowQueryService;
+import org.opennms.netmgt.flows.filter.api.DscpFilter;
+import org.opennms.netmgt.flows.filter.api.ExporterNodeFilter;
+import org.opennms.netmgt.flows.filter.api.Filter;
+import org.opennms.netmgt.flows.filter.api.FilterVisitor;
+import org.opennms.netmgt.flows.filter.api.NodeCriteria;
+import org.opennms.netmgt.flows.filter.api.SnmpInterfaceIdFilter;
+import org.opennms.netmgt.flows.filter.api.TimeRangeFilter;
+
+/**
+ * Keeps rolling per-minute aggregates of the enriched flows for a limited retention period.
+ *
+ * The traffic of every flow is distributed proportionally over the minutes between its delta switched and last
+ * switched timestamps and added to the rows of the application, the conversation and both hosts in the
+ * corresponding {@link MinuteSlice}. The slices are kept in a ring which is indexed by minute, so expired minutes
+ * are replaced as time advances without any additional housekeeping.
+ */
+public class FlowAggregateStore {
+
+    static final long MINUTE_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final long retentionMs;
+
+    private final LongSupplier clock;
+
+    private final AtomicReferenceArray<MinuteSlice> slices;
+
+    /**
+     * Maps the foreign source and foreign id of the exporters seen so far to their node ids.
+     */
+    private final ConcurrentMap<String, Integer> exporters = new ConcurrentHashMap<>();
+
+    /**
+     * The first minute which has been completely observed by the store, or {@link Long#MAX_VALUE} before anything
+     * was ingested. Flows which ended before the store started ingesting are missing in all minutes before.
+     */
+    private final AtomicLong firstCompleteMinute = new AtomicLong(Long.MAX_VALUE);
+
+    public FlowAggregateStore(final int retentionHours) {
+        this(retentionHours, System::currentTimeMillis);
+    }
+
+    FlowAggregateStore(final int retentionHours, final LongSupplier clock) {
+        if (retentionHours < 0) {
+            throw new IllegalArgumentException("Retention must be >= 0: " + retentionHours);
+        }
+        this.retentionMs = TimeUnit.HOURS.toMillis(retentionHours);
+        this.clock = clock;
+        // Keep room for the current minute and for flows slightly ahead of the local clock
+        this.slices = new AtomicReferenceArray<>(retentionHours > 0 ? (int) (this.retentionMs / MINUTE_MS) + 2 : 0);
+    }
+
+    public boolean isEnabled() {
+        return this.retentionMs > 0;
+    }
+
+    public long getRetentionMs() {
+        return this.retentionMs;
+    }
+
+    /**
+     * Returns true if the store is enabled and holds all of the traffic starting at the given timestamp, i.e. the
+     * timestamp is neither out of retention nor before the store started ingesting.
+     */
+    public boolean covers(final long start) {
+        return this.isEnabled()
+                && start >= this.firstCompleteMinute.get()
+                && start > floorMinute(this.clock.getAsLong()) - this.retentionMs;
+    }
+
+    public void ingest(final Collection<FlowDocument> documents) {
+        if (!this.isEnabled()) {
+            return;
+        }
+
+        final long now = this.clock.getAsLong();
+        // The minute we are in has only been seen partially
+        this.firstCompleteMinute.compareAndSet(Long.MAX_VALUE, floorMinute(now) + MINUTE_MS);
+
+        for (final FlowDocument document : documents) {
+            this.ingest(document, now);
+        }
+    }
+
+    private void ingest(final FlowDocument document, final long now) {
+        if (document.getDirection() == null || document.getBytes() == null) {
+            return;
+        }
+
+        final long last = document.getLastSwitched() != null ? document.getLastSwitched() : document.getTimestamp();
+        final long first = Math.min(last, document.getDeltaSwitched() != null ? document.getDeltaSwitched()
+                : document.getFirstSwitched() != null ? document.getFirstSwitched()
+                : last);
+
+        final double samplingInterval = document.getSamplingInterval() != null && document.getSamplingInterval() > 1.0
+                ? document.getSamplingInterval()
+                : 1.0;
+        final long bytes = Math.round(document.getBytes() * samplingInterval);
+
+        final boolean ingress = document.getDirection() == Direction.INGRESS;
+        final Integer ifIndex = ingress ? document.getInputSnmp() : document.getOutputSnmp();
+        final int flags = (ingress ? MinuteSlice.FLAG_INGRESS : 0)
+                | (document.getEcn() != null && document.getEcn() == 0 ? MinuteSlice.FLAG_NON_ECT : 0)
+                | (document.getEcn() != null && document.getEcn() == 3 ? MinuteSlice.FLAG_CONGESTION_ENCOUNTERED : 0);
+        final int dscp = document.getDscp() != null ? document.getDscp() : -1;
+        final int exporter = this.exporter(document.getNodeExporter());
+        final String application = document.getApplication() != null
+                ? document.getApplication()
+                : RawFlowQueryService.UNKNOWN_APPLICATION_NAME;
+        final Set<String> hosts = document.getHosts();
+
+        // Skip the minutes which are already out of retention, but account for their share of the traffic
+        final long duration = last - first;
+        final long lastMinute = floorMinute(last);
+        final long firstMinute = Math.max(floorMinute(first), floorMinute(now) - this.retentionMs + MINUTE_MS);
+        long assigned = firstMinute > first ? Math.round((double) bytes * (firstMinute - first) / duration) : 0;
+
+        for (long minute = firstMinute; minute <= lastMinute; minute += MINUTE_MS) {
+            final long share;
+            if (minute == lastMinute) {
+                share = bytes - assigned;
+            } else {
+                share = Math.round((double) bytes * (minute + MINUTE_MS - first) / duration) - assigned;
+            }
+            assigned += share;
+
+            final MinuteSlice slice = this.slice(minute, now);
+            if (slice == null) {
+                continue;
+            }
+
+            // Only count the flow once, in the minute it ended
+            final int flows = minute == lastMinute ? 1 : 0;
+
+            slice.add(Dimension.APPLICATION, application, exporter, ifIndex != null ? ifIndex : -1, dscp, flags, share, flows);
+            if (document.getConvoKey() != null) {
+                slice.add(Dimension.CONVERSATION, document.getConvoKey(), exporter, ifIndex != null ? ifIndex : -1, dscp, flags, share, 0);
+            }
+            if (hosts != null) {
+                for (final String host : hosts) {
+                    slice.add(Dimension.HOST, host, exporter, ifIndex != null ? ifIndex : -1, dscp, flags, share, 0);
+                }
+            }
+
+            if (flows > 0) {
+                slice.addHostname(document.getSrcAddr(), document.getSrcAddrHostname());
+                slice.addHostname(document.getDstAddr(), document.getDstAddrHostname());
+            }
+        }
+    }
+
+    private int exporter(final NodeDocument node) {
+        if (node == null || node.getNodeId() == null) {
+            return -1;
+        }
+        if (node.getForeignSource() != null && node.getForeignId() != null) {
+            this.exporters.putIfAbsent(node.getForeignSource() + ":" + node.getForeignId(), node.getNodeId());
+        }
+        return node.getNodeId();
+    }
+
+    private MinuteSlice slice(final long minute, final long now) {
+        final long current = floorMinute(now);
+        if (minute > current + MINUTE_MS || minute <= current - this.retentionMs) {
+            return null;
+        }
+
+        final int index = (int) Math.floorMod(minute / MINUTE_MS, (long) this.slices.length());
+        while (true) {
+            final MinuteSlice slice = this.slices.get(index);
+            if (slice != null && slice.getStart() == minute) {
+                return slice;
+            }
+            if (slice != null && slice.getStart() > minute) {
+                // The slot has already been taken over by a newer minute
+                return null;
+            }
+            final MinuteSlice created = new MinuteSlice(minute);
+            if (this.slices.compareAndSet(index, slice, created)) {
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Returns all slices still within the retention period, newest first.
+     */
+    private List<MinuteSlice> slices() {
+        final long current = floorMinute(this.clock.getAsLong());
+        final List<MinuteSlice> result = new ArrayList<>(this.slices.length());
+        for (int i = 0; i < this.slices.length(); i++) {
+            final MinuteSlice slice = this.slices.get(i);
+            if (slice != null && slice.getStart() > current - this.retentionMs) {
+                result.add(slice);
+            }
+        }
+        result.sort(Comparator.comparingLong(MinuteSlice::getStart).reversed());
+        return result;
+    }
+
+    /**
+     * Sums up the traffic of all entities of the given dimension.
+     *
+     * @param step the width of the buckets of the resulting series or 0 to get a single bucket starting at the
+     *             beginning of the queried time range
+     * @return the totals by entity and bucket
+     */
+    Map<String, Map<Long, Totals>> aggregate(final Dimension dimension, final Criteria criteria, final long step) {
+        final Map<String, Map<Long, Totals>> totals = new HashMap<>();
+        for (final MinuteSlice slice : this.slices()) {
+            final double weight = criteria.overlap(slice.getStart());
+            if (weight <= 0.0) {
+                continue;
+            }
+            final long bucket = step > 0
+                    ? slice.getStart() - Math.floorMod(slice.getStart(), step)
+                    : criteria.getStart();
+            slice.aggregate(dimension, criteria, weight, bucket, totals);
+        }
+        return totals;
+    }
+
+    long countFlows(final Criteria criteria) {
+        long count = 0;
+        for (final MinuteSlice slice : this.slices()) {
+            if (criteria.overlap(slice.getStart()) > 0.0) {
+                count += slice.countFlows(criteria);
+            }
+        }
+        return count;
+    }
+
+    String getHostname(final String address) {
+        for (final MinuteSlice slice : this.slices()) {
+            final String hostname = slice.getHostname(address);
+            if (hostname != null) {
+                return hostname;
+            }
+        }
+        return null;
+    }
+
+    Criteria criteria(final List<Filter> filters) {
+        final long current = floorMinute(this.clock.getAsLong());
+
+        final long[] range = new long[] { current - this.retentionMs + MINUTE_MS, current + 2 * MINUTE_MS };
+        final Integer[] exporter = new Integer[1];
+        final Integer[] ifIndex = new Integer[1];
+        final boolean[][] dscps = new boolean[1][];
+
+        for (final Filter filter : filters) {
+            filter.visit(new FilterVisitor<Void>() {
+                @Override
+                public Void visit(final ExporterNodeFilter exporterNodeFilter) {
+                    final NodeCriteria nodeCriteria = exporterNodeFilter.getCriteria();
+                    if (nodeCriteria.getNodeId() != null) {
+                        exporter[0] = nodeCriteria.getNodeId();
+                    } else {
+                        exporter[0] = exporters.getOrDefault(nodeCriteria.getForeignSource() + ":" + nodeCriteria.getForeignId(),
+                                Criteria.UNKNOWN_EXPORTER);
+                    }
+                    return null;
+                }
+
+                @Override
+                public Void visit(final TimeRangeFilter timeRangeFilter) {
+                    range[0] = timeRangeFilter.getStart();
+                    range[1] = timeRangeFilter.getEnd();
+                    return null;
+                }
+
+                @Override
+                public Void visit(final SnmpInterfaceIdFilter snmpInterfaceIdFilter) {
+                    ifIndex[0] = snmpInterfaceIdFilter.getSnmpInterfaceId();
+                    return null;
+                }
+
+                @Override
+                public Void visit(final DscpFilter dscpFilter) {
+                    dscps[0] = new boolean[64];
+                    for (final Integer dscp : dscpFilter.getDscp()) {
+                        if (dscp != null && dscp >= 0 && dscp < 64) {
+                            dscps[0][dscp] = true;
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+
+        return new Criteria(range[0], range[1], exporter[0], ifIndex[0], dscps[0]);
+    }
+
+    private static long floorMinute(final long timestamp) {
+        return timestamp - Math.floorMod(timestamp, MINUTE_MS);
+    }
+}
@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.flows.elastic.memory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.opennms.netmgt.flows.api.Conversation;
+import org.opennms.netmgt.flows.api.ConversationKey;
+import org.opennms.netmgt.flows.api.Directional;
+import org.opennms.netmgt.flows.api.FlowQueryService;
+import org.opennms.netmgt.flows.api.Host;
+import org.opennms.netmgt.flows.api.LimitedCardinalityField;
+import org.opennms.netmgt.flows.api.TrafficSummary;
+import org.opennms.netmgt.flows.elastic.ConversationKeyUtils;
+import org.opennms.netmgt.flows.elastic.RawFlowQueryService;
+import org.opennms.netmgt.flows.filter.api.Filter;
+
+import com.google.common.collect.ImmutableTable;
+import com.google.common.collect.Table;
+
+/**
+ * Answers flow queries from the per-minute aggregates kept in a {@link FlowAggregateStore}.
+ *
+ * The results mirror the ones of the {@link RawFlowQueryService}, but are limited to the retention period of the
+ * store and to a resolution of one minute.
+ */
+public class InMemoryFlowQueryService implements FlowQueryService {
+
+    private static final String OTHER_NAME = RawFlowQueryService.OTHER_NAME;
+
+    private final FlowAggregateStore store;
+
+    public InMemoryFlowQueryService(final FlowAggregateStore store) {
+        this.store = Objects.requireNonNull(store);
+    }
+
+    public FlowAggregateStore getStore() {
+        return this.store;
+    }
+
+    @Override
+    public CompletableFuture<Long> getFlowCount(final List<Filter> filters) {
+        return query(() -> this.store.countFlows(this.store.criteria(filters)));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getApplications(final String matchingPrefix, final long limit, final List<Filter> filters) {
+        final String prefix = matchingPrefix.toLowerCase(Locale.ROOT);
+        return query(() -> this.keys(Dimension.APPLICATION, application -> application.toLowerCase(Locale.ROOT).startsWith(prefix), limit, filters));
+    }
+
+    @Override
+    public CompletableFuture<List<TrafficSummary<String>>> getTopNApplicationSummaries(final int N, final boolean includeOther, final List<Filter> filters) {
+        return query(() -> this.topNSummaries(Dimension.APPLICATION, N, includeOther, filters, Function.identity()));
+    }
+
+    @Override
+    public CompletableFuture<List<TrafficSummary<String>>> getApplicationSummaries(final Set<String> applications, final boolean includeOther, final List<Filter> filters) {
+        return query(() -> this.summaries(Dimension.APPLICATION, applications, includeOther, filters, Function.identity()));
+    }
+
+    @Override
+    public CompletableFuture<Table<Directional<String>, Long, Double>> getApplicationSeries(final Set<String> applications, final long step, final boolean includeOther, final List<Filter> filters) {
+        return query(() -> this.series(Dimension.APPLICATION, applications, step, includeOther, filters, Function.identity()));
+    }
+
+    @Override
+    public CompletableFuture<Table<Directional<String>, Long, Double>> getTopNApplicationSeries(final int N, final long step, final boolean includeOther, final List<Filter> filters) {
+        return query(() -> this.topNSeries(Dimension.APPLICATION, N, step, includeOther, filters, Function.identity()));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getConversations(final String locationPattern, final String protocolPattern,
+                                                            final String lowerIPPattern, final String upperIPPattern,
+                                                            String applicationPattern, final long limit, final List<Filter> filters) {
+        // Match the keys the same way the raw query service does, but without the escaping required by the JSON query
+        if (applicationPattern.equals(".*")) {
+            applicationPattern = String.format("(\"%s\"|null)", applicationPattern);
+        } else if (!applicationPattern.equals("null")) {
+            applicationPattern = String.format("\"%s\"", applicationPattern);
+        }
+
+        final Pattern pattern = Pattern.compile(String.format("\\[\"%s\",%s,\"%s\",\"%s\",%s\\]",
+                locationPattern,
+                protocolPattern,
+                lowerIPPattern,
+                upperIPPattern,
+                applicationPattern));
+        return query(() -> this.keys(Dimension.CONVERSATION, convoKey -> pattern.matcher(convoKey).matches(), limit, filters));
+    }
+
+    @Override
+    public CompletableFuture<List<TrafficSummary<Conversation>>> getTopNConversationSummaries(final int N, final boolean includeOther, final List<Filter> filters) {
+        return query(() -> this.topNSummaries(Dimension.CONVERSATION, N, includeOther, filters, this::toConversation));
+    }
+
+    @Override
+    public CompletableFuture<List<TrafficSummary<Conversation>>> getConversationSummaries(final Set<String> conversations, final boolean includeOther, final List<Filter> filters) {
+        return query(() -> this.summaries(Dimension.CONVERSATION, unescapeConversations(conversations), includeOther, filters, this::toConversation));
+    }
+
+    @Override
+    public CompletableFuture<Table<Directional<Conversation>, Long, Double>> getConversationSeries(final Set<String> conversations, final long step, final boolean includeOther, final List<Filter> filters) {
+        return query(() -> this.series(Dimension.CONVERSATION, unescapeConversations(conversations), step, includeOther, filters, this::toConversation));
+    }
+
+    @Override
+    public CompletableFuture<Table<Directional<Conversation>, Long, Double>> getTopNConversationSeries(final int N, final long step, final boolean includeOther, final List<Filter> filters) {
+        return query(() -> this.topNSeries(Dimension.CONVERSATION, N, step, includeOther, filters, this::toConversation));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getHosts(final String regex, final long limit, final List<Filter> filters) {
+        final Pattern pattern = Pattern.compile(regex);
+        return query(() -> this.keys(Dimension.HOST, host -> pattern.matcher(host).matches(), limit, filters));
+    }
+
+    @Override
+    public CompletableFuture<List<TrafficSummary<Host>>> getTopNHostSummaries(final int N, final boolean includeOther, final List<Filter> filters) {
+        return query(() -> this.topNSummaries(Dimension.HOST, N, includeOther, filters, this::toHost));
+    }
+
+    @Override
+    public CompletableFuture<List<TrafficSummary<Host>>> getHostSummaries(final Set<String> hosts, final boolean includeOther, final List<Filter> filters) {
+        return query(() -> this.summaries(Dimension.HOST, hosts, includeOther, filters, this::toHost));
+    }
+
+    @Override
+    public CompletableFuture<Table<Directional<Host>, Long, Double>> getHostSeries(final Set<String> hosts, final long step, final boolean includeOther, final List<Filter> filters) {
+        return query(() -> this.series(Dimension.HOST, hosts, step, includeOther, filters, this::toHost));
+    }
+
+    @Override
+    public CompletableFuture<Table<Directional<Host>, Long, Double>> getTopNHostSeries(final int N, final long step, final boolean includeOther, final List<Filter> filters) {
+        return query(() -> this.topNSeries(Dimension.HOST, N, step, includeOther, filters, this::toHost));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getFieldValues(final LimitedCardinalityField field, final List<Filter> filters) {
+        return query(() -> sortedAsInts(this.totals(dimension(field), this.store.criteria(filters)).keySet()));
+    }
+
+    @Override
+    public CompletableFuture<List<TrafficSummary<String>>> getFieldSummaries(final LimitedCardinalityField field, final List<Filter> filters) {
+        return query(() -> {
+            final Map<String, Totals> totals = this.totals(dimension(field), this.store.criteria(filters));
+            return toSummaries(sortedAsInts(totals.keySet()), totals, false, Function.identity());
+        });
+    }
+
+    @Override
+    public CompletableFuture<Table<Directional<String>, Long, Double>> getFieldSeries(final LimitedCardinalityField field, final long step, final List<Filter> filters) {
+        return query(() -> {
+            final Map<String, Map<Long, Totals>> buckets = this.store.aggregate(dimension(field), this.store.criteria(filters), step);
+            return toTable(sortedAsInts(buckets.keySet()), buckets, false, Function.identity());
+        });
+    }
+
+    private List<String> keys(final Dimension dimension, final Predicate<String> predicate,
+                              final long limit, final List<Filter> filters) {
+        final Map<String, Totals> totals = this.totals(dimension, this.store.criteria(filters));
+        totals.keySet().removeIf(predicate.negate());
+        return ranked(totals, limit);
+    }
+
+    private <T> List<TrafficSummary<T>> topNSummaries(final Dimension dimension, final int N, final boolean includeOther,
+                                                      final List<Filter> filters, final Function<String, T> mapper) {
+        final Map<String, Totals> totals = this.totals(dimension, this.store.criteria(filters));
+        return toSummaries(ranked(totals, N), totals, includeOther, mapper);
+    }
+
+    private <T> List<TrafficSummary<T>> summaries(final Dimension dimension, final Collection<String> entities, final boolean includeOther,
+                                                  final List<Filter> filters, final Function<String, T> mapper) {
+        final Map<String, Totals> totals = this.totals(dimension, this.store.criteria(filters));
+        return toSummaries(entities, totals, includeOther, mapper);
+    }
+
+    private <T> Table<Directional<T>, Long, Double> topNSeries(final Dimension dimension, final int N, final long step, final boolean includeOther,
+                                                               final List<Filter> filters, final Function<String, T> mapper) {
+        final Criteria criteria = this.store.criteria(filters);
+        final List<String> topN = ranked(this.totals(dimension, criteria), N);
+        return toTable(topN, this.store.aggregate(dimension, criteria, step), includeOther, mapper);
+    }
+
+    private <T> Table<Directional<T>, Long, Double> series(final Dimension dimension, final Collection<String> entities, final long step, final boolean includeOther,
+                                                           final List<Filter> filters, final Function<String, T> mapper) {
+        return toTable(entities, this.store.aggregate(dimension, this.store.criteria(filters), step), includeOther, mapper);
+    }
+
+    /**
+     * Collapses the single bucket aggregation of the store into totals by entity.
+     */
+    private Map<String, Totals> totals(final Dimension dimension, final Criteria criteria) {
+        final Map<String, Totals> totals = new HashMap<>();
+        this.store.aggregate(dimension, criteria, 0).forEach((key, buckets) -> {
+            final Totals total = new Totals();
+            buckets.values().forEach(total::merge);
+            totals.put(key, total);
+        });
+        return totals;
+    }
+
+    private static List<String> ranked(final Map<String, Totals> totals, final long limit) {
+        if (limit < 1) {
+            return new ArrayList<>();
+        }
+        return totals.entrySet().stream()
+                .sorted(Comparator.<Map.Entry<String, Totals>>comparingDouble(e -> e.getValue().getTotal()).reversed()
+                        .thenComparing(Map.Entry::getKey))
+                .limit(limit)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private static <T> List<TrafficSummary<T>> toSummaries(final Collection<String> entities, final Map<String, Totals> totals,
+                                                           final boolean includeOther, final Function<String, T> mapper) {
+        final List<TrafficSummary<T>> summaries = new ArrayList<>(entities.size() + 1);
+        for (final String entity : entities) {
+            final Totals total = totals.get(entity);
+            if (total != null) {
+                summaries.add(total.toSummary(mapper.apply(entity)));
+            }
+        }
+
+        if (includeOther) {
+            final Totals other = new Totals();
+            totals.forEach((entity, total) -> {
+                if (!entities.contains(entity)) {
+                    other.merge(total);
+                }
+            });
+            summaries.add(other.toSummary(mapper.apply(OTHER_NAME)));
+        }
+
+        return summaries;
+    }
+
+    private static <T> Table<Directional<T>, Long, Double> toTable(final Collection<String> entities, final Map<String, Map<Long, Totals>> buckets,
+                                                                   final boolean includeOther, final Function<String, T> mapper) {
+        final Map<String, Map<Long, Totals>> rows = new LinkedHashMap<>();
+        for (final String entity : entities) {
+            final Map<Long, Totals> row = buckets.get(entity);
+            if (row != null) {
+                rows.put(entity, row);
+            }
+        }
+
+        if (includeOther) {
+            final Map<Long, Totals> other = new HashMap<>();
+            buckets.forEach((entity, row) -> {
+                if (!entities.contains(entity)) {
+                    row.forEach((bucket, total) -> other.computeIfAbsent(bucket, b -> new Totals()).merge(total));
+                }
+            });
+            if (!other.isEmpty()) {
+                rows.put(OTHER_NAME, other);
+            }
+        }
+
+        // Fill in missing cells with NaN values, the same way the elastic query services do
+        final Set<Long> columns = new TreeSet<>();
+        rows.values().forEach(row -> columns.addAll(row.keySet()));
+
+        final ImmutableTable.Builder<Directional<T>, Long, Double> table = ImmutableTable.builder();
+        rows.forEach((entity, row) -> {
+            final T value = mapper.apply(entity);
+            final Directional<T> ingress = new Directional<>(value, true);
+            final Directional<T> egress = new Directional<>(value, false);
+            for (final Long column : columns) {
+                final Totals total = row.get(column);
+                table.put(ingress, column, total != null ? total.getBytesIn() : Double.NaN);
+                table.put(egress, column, total != null ? total.getBytesOut() : Double.NaN);
+            }
+        });
+        return table.build();
+    }
+
+    private Conversation toConversation(final String convoKey) {
+        if (OTHER_NAME.equals(convoKey)) {
+            return Conversation.forOther().build();
+        }
+
+        final ConversationKey key = ConversationKeyUtils.fromJsonString(convoKey);
+        final Conversation.Builder conversation = Conversation.from(key);
+        final String lowerHostname = this.store.getHostname(key.getLowerIp());
+        if (lowerHostname != null) {
+            conversation.withLowerHostname(lowerHostname);
+        }
+        final String upperHostname = this.store.getHostname(key.getUpperIp());
+        if (upperHostname != null) {
+            conversation.withUpperHostname(upperHostname);
+        }
+        return conversation.build();
+    }
+
+    private Host toHost(final String ip) {
+        if (OTHER_NAME.equals(ip)) {
+            return Host.forOther().build();
+        }
+        return Host.from(ip)
+                .withHostname(this.store.getHostname(ip))
+                .build();
+    }
+
+    private static Dimension dimension(final LimitedCardinalityField field) {
+        switch (field) {
+            case DSCP:
+                return Dimension.DSCP;
+            default:
+                throw new IllegalArgumentException("Unsupported field: " + field);
+        }
+    }
+
+    private static List<String> sortedAsInts(final Collection<String> values) {
+        return values.stream()
+                .sorted(Comparator.comparingInt(Integer::parseInt))
+                .collect(Collectors.toList());
+    }
+
+    private static Set<String> unescapeConversations(final Set<String> conversations) {
+        // freemarker template is going to auto-escape the string so we need to remove the explicit escaped quotes first
+        return conversations.stream()
+                .map(conversation -> conversation.replace("\\\"", "\""))
+                .collect(Collectors.toSet());
+    }
+
+    private static <T> CompletableFuture<T> query(final Supplier<T> query) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(query.get());
+        } catch (final Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
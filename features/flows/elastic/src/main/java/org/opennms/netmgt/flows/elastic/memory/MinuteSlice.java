@@ -0,0 +1,260 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.flows.elastic.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the aggregated traffic of a single minute.
+ *
+ * Every row combines the bytes of all flows sharing the same dimension, key, exporter, interface, DSCP value and
+ * direction. The rows are stored column-wise in direct buffers so the heap only holds the key dictionary, the
+ * hostnames and a small open-addressing index used to find the row to update during ingestion.
+ */
+class MinuteSlice {
+
+    static final int FLAG_INGRESS = 0x1;
+    static final int FLAG_NON_ECT = 0x2;
+    static final int FLAG_CONGESTION_ENCOUNTERED = 0x4;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final long start;
+
+    private int rows = 0;
+    private int capacity = 0;
+
+    // The columns
+    private ByteBuffer dimensions;
+    private ByteBuffer keys;
+    private ByteBuffer exporters;
+    private ByteBuffer ifIndexes;
+    private ByteBuffer dscps;
+    private ByteBuffer flags;
+    private ByteBuffer bytes;
+    private ByteBuffer flows;
+
+    /**
+     * Maps the hash of a row key to the row index plus one, zero marks a free slot.
+     */
+    private int[] index = new int[INITIAL_CAPACITY * 2];
+
+    private final Map<String, Integer> keyIds = new HashMap<>();
+    private final List<String> keyNames = new ArrayList<>();
+
+    private final Map<String, String> hostnames = new HashMap<>();
+
+    MinuteSlice(final long start) {
+        this.start = start;
+        this.allocate(INITIAL_CAPACITY);
+    }
+
+    long getStart() {
+        return this.start;
+    }
+
+    synchronized int getRows() {
+        return this.rows;
+    }
+
+    synchronized void add(final Dimension dimension, final String key, final int exporter, final int ifIndex,
+                          final int dscp, final int flags, final long bytes, final int flows) {
+        final int keyId = this.keyIds.computeIfAbsent(key, k -> {
+            this.keyNames.add(k);
+            return this.keyNames.size() - 1;
+        });
+
+        final int ingress = flags & FLAG_INGRESS;
+        final int mask = this.index.length - 1;
+        int slot = hash(dimension.ordinal(), keyId, exporter, ifIndex, dscp, ingress) & mask;
+        while (this.index[slot] != 0) {
+            final int row = this.index[slot] - 1;
+            if (this.dimensions.get(row) == dimension.ordinal()
+                    && this.keys.getInt(row * 4) == keyId
+                    && this.exporters.getInt(row * 4) == exporter
+                    && this.ifIndexes.getInt(row * 4) == ifIndex
+                    && this.dscps.get(row) == dscp
+                    && (this.flags.get(row) & FLAG_INGRESS) == ingress) {
+                this.flags.put(row, (byte) (this.flags.get(row) | flags));
+                this.bytes.putLong(row * 8, this.bytes.getLong(row * 8) + bytes);
+                this.flows.putInt(row * 4, this.flows.getInt(row * 4) + flows);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (this.rows == this.capacity) {
+            this.allocate(this.capacity * 2);
+        }
+
+        final int row = this.rows++;
+        this.dimensions.put(row, (byte) dimension.ordinal());
+        this.keys.putInt(row * 4, keyId);
+        this.exporters.putInt(row * 4, exporter);
+        this.ifIndexes.putInt(row * 4, ifIndex);
+        this.dscps.put(row, (byte) dscp);
+        this.flags.put(row, (byte) flags);
+        this.bytes.putLong(row * 8, bytes);
+        this.flows.putInt(row * 4, flows);
+
+        if (this.rows * 2 > this.index.length) {
+            this.rehash();
+        } else {
+            this.index[slot] = row + 1;
+        }
+    }
+
+    synchronized void addHostname(final String address, final String hostname) {
+        if (address != null && hostname != null) {
+            this.hostnames.put(address, hostname);
+        }
+    }
+
+    synchronized String getHostname(final String address) {
+        return this.hostnames.get(address);
+    }
+
+    /**
+     * Adds the bytes of all rows of the given dimension matching the criteria to the given totals.
+     *
+     * @param weight the fraction of this minute covered by the queried time range
+     */
+    synchronized void aggregate(final Dimension dimension, final Criteria criteria, final double weight, final long bucket,
+                                final Map<String, Map<Long, Totals>> totals) {
+        // Aggregate by key id first, so the dictionary is only consulted once per key
+        final Totals[] byKey = new Totals[dimension == Dimension.DSCP ? 64 : this.keyNames.size()];
+        final int source = dimension.getSource().ordinal();
+
+        for (int row = 0; row < this.rows; row++) {
+            if (this.dimensions.get(row) != source) {
+                continue;
+            }
+
+            final int flags = this.flags.get(row);
+            final int dscp = this.dscps.get(row);
+            if (!criteria.matches(this.exporters.getInt(row * 4), this.ifIndexes.getInt(row * 4), dscp)) {
+                continue;
+            }
+
+            final int key;
+            if (dimension == Dimension.DSCP) {
+                if (dscp < 0) {
+                    continue;
+                }
+                key = dscp;
+            } else {
+                key = this.keys.getInt(row * 4);
+            }
+
+            if (byKey[key] == null) {
+                byKey[key] = new Totals();
+            }
+            byKey[key].add(this.bytes.getLong(row * 8) * weight, flags);
+        }
+
+        for (int key = 0; key < byKey.length; key++) {
+            if (byKey[key] == null) {
+                continue;
+            }
+            final String name = dimension == Dimension.DSCP ? Integer.toString(key) : this.keyNames.get(key);
+            totals.computeIfAbsent(name, k -> new HashMap<>())
+                    .computeIfAbsent(bucket, b -> new Totals())
+                    .merge(byKey[key]);
+        }
+    }
+
+    synchronized long countFlows(final Criteria criteria) {
+        final int source = Dimension.APPLICATION.ordinal();
+
+        long count = 0;
+        for (int row = 0; row < this.rows; row++) {
+            if (this.dimensions.get(row) == source
+                    && criteria.matches(this.exporters.getInt(row * 4), this.ifIndexes.getInt(row * 4), this.dscps.get(row))) {
+                count += this.flows.getInt(row * 4);
+            }
+        }
+        return count;
+    }
+
+    private void allocate(final int capacity) {
+        this.dimensions = grow(this.dimensions, capacity);
+        this.keys = grow(this.keys, capacity * 4);
+        this.exporters = grow(this.exporters, capacity * 4);
+        this.ifIndexes = grow(this.ifIndexes, capacity * 4);
+        this.dscps = grow(this.dscps, capacity);
+        this.flags = grow(this.flags, capacity);
+        this.bytes = grow(this.bytes, capacity * 8);
+        this.flows = grow(this.flows, capacity * 4);
+        this.capacity = capacity;
+    }
+
+    private void rehash() {
+        this.index = new int[this.index.length * 2];
+        final int mask = this.index.length - 1;
+        for (int row = 0; row < this.rows; row++) {
+            int slot = hash(this.dimensions.get(row),
+                            this.keys.getInt(row * 4),
+                            this.exporters.getInt(row * 4),
+                            this.ifIndexes.getInt(row * 4),
+                            this.dscps.get(row),
+                            this.flags.get(row) & FLAG_INGRESS) & mask;
+            while (this.index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            this.index[slot] = row + 1;
+        }
+    }
+
+    private static ByteBuffer grow(final ByteBuffer column, final int size) {
+        final ByteBuffer grown = ByteBuffer.allocateDirect(size);
+        if (column != null) {
+            final ByteBuffer source = column.duplicate();
+            source.clear();
+            grown.put(source);
+            grown.clear();
+        }
+        return grown;
+    }
+
+    private static int hash(final int dimension, final int key, final int exporter, final int ifIndex, final int dscp, final int ingress) {
+        int h = dimension;
+        h = 31 * h + key;
+        h = 31 * h + exporter;
+        h = 31 * h + ifIndex;
+        h = 31 * h + dscp;
+        h = 31 * h + ingress;
+        // Spread the bits, as consecutive keys would otherwise cluster in the table
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
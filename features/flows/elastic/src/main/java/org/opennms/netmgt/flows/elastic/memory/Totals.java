@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.flows.elastic.memory;
+
+import org.opennms.netmgt.flows.api.TrafficSummary;
+
+/**
+ * Accumulates the traffic of an entity while answering a query.
+ */
+class Totals {
+    private double bytesIn;
+    private double bytesOut;
+    private boolean congestionEncountered;
+    private boolean nonEcnCapableTransport;
+
+    void add(final double bytes, final int flags) {
+        if ((flags & MinuteSlice.FLAG_INGRESS) != 0) {
+            this.bytesIn += bytes;
+        } else {
+            this.bytesOut += bytes;
+        }
+        this.congestionEncountered |= (flags & MinuteSlice.FLAG_CONGESTION_ENCOUNTERED) != 0;
+        this.nonEcnCapableTransport |= (flags & MinuteSlice.FLAG_NON_ECT) != 0;
+    }
+
+    void merge(final Totals other) {
+        this.bytesIn += other.bytesIn;
+        this.bytesOut += other.bytesOut;
+        this.congestionEncountered |= other.congestionEncountered;
+        this.nonEcnCapableTransport |= other.nonEcnCapableTransport;
+    }
+
+    double getBytesIn() {
+        return this.bytesIn;
+    }
+
+    double getBytesOut() {
+        return this.bytesOut;
+    }
+
+    double getTotal() {
+        return this.bytesIn + this.bytesOut;
+    }
+
+    <T> TrafficSummary<T> toSummary(final T entity) {
+        return TrafficSummary.from(entity)
+                .withBytes(Math.round(this.bytesIn), Math.round(this.bytesOut))
+                .withCongestionEncountered(this.congestionEncountered)
+                .withNonEcnCapableTransport(this.nonEcnCapableTransport)
+                .build();
+    }
+}
@@ -95,6 +95,50 @@ public class DocumentEnricherTest {
 
     }
 
+    @Test
+    public void canEnrichLargeBatchesInParallel() throws InterruptedException {
+        final MockDocumentEnricherFactory factory = new MockDocumentEnricherFactory();
+        final DocumentEnricher enricher = factory.getEnricher();
+        enricher.setParallelism(4);
+        final NodeDao nodeDao = factory.getNodeDao();
+        final InterfaceToNodeCache interfaceToNodeCache = factory.getInterfaceToNodeCache();
+        final AtomicInteger nodeDaoGetCounter = factory.getNodeDaoGetCounter();
+
+        interfaceToNodeCache.setNodeId("Default", InetAddressUtils.addr("10.0.0.1"), 1);
+        interfaceToNodeCache.setNodeId("Default", InetAddressUtils.addr("10.0.0.2"), 2);
+        nodeDao.save(createOnmsNode(1, "my-requisition"));
+        nodeDao.save(createOnmsNode(2, "my-requisition"));
+
+        final List<Flow> flows = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            flows.add(new TestFlow(createFlowDocument("10.0.0.1", i % 2 == 0 ? "10.0.0.2" : "10.0.1." + (i % 200))));
+        }
+
+        try {
+            final List<FlowDocument> docs = enricher.enrich(flows, new FlowSource("Default", "127.0.0.1", null));
+            assertEquals(1000, docs.size());
+            for (int i = 0; i < docs.size(); i++) {
+                final FlowDocument doc = docs.get(i);
+                // Documents must stay in the order of the flows
+                assertEquals(flows.get(i).getDstAddr(), doc.getDstAddr());
+                assertEquals(Integer.valueOf(1), doc.getNodeSrc().getNodeId());
+                if (i % 2 == 0) {
+                    assertEquals(Integer.valueOf(2), doc.getNodeDst().getNodeId());
+                } else {
+                    assertEquals(null, doc.getNodeDst());
+                }
+                assertEquals(Locality.PRIVATE, doc.getFlowLocality());
+                assertEquals(ConversationKeyUtils.getConvoKeyAsJsonString(doc), doc.getConvoKey());
+            }
+
+            // Each node is only loaded once, no matter how many flows reference it
+            // get is also called for each save, so we account for those as well
+            assertEquals(4, nodeDaoGetCounter.get());
+        } finally {
+            enricher.destroy();
+        }
+    }
+
     private static FlowDocument createFlowDocument(String sourceIp, String destIp) {
         final FlowDocument document = new FlowDocument();
         document.setTimestamp(System.currentTimeMillis());
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.flows.elastic.memory;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.netmgt.flows.api.Conversation;
+import org.opennms.netmgt.flows.api.Directional;
+import org.opennms.netmgt.flows.api.Host;
+import org.opennms.netmgt.flows.api.LimitedCardinalityField;
+import org.opennms.netmgt.flows.api.TrafficSummary;
+import org.opennms.netmgt.flows.elastic.ConversationKeyUtils;
+import org.opennms.netmgt.flows.elastic.Direction;
+import org.opennms.netmgt.flows.elastic.FlowDocument;
+import org.opennms.netmgt.flows.elastic.NodeDocument;
+import org.opennms.netmgt.flows.filter.api.ExporterNodeFilter;
+import org.opennms.netmgt.flows.filter.api.Filter;
+import org.opennms.netmgt.flows.filter.api.NodeCriteria;
+import org.opennms.netmgt.flows.filter.api.SnmpInterfaceIdFilter;
+import org.opennms.netmgt.flows.filter.api.TimeRangeFilter;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
+
+public class InMemoryFlowQueryServiceTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long NOW = 1600000000000L - 1600000000000L % MINUTE;
+
+    private final AtomicLong clock = new AtomicLong(NOW);
+
+    private FlowAggregateStore store;
+    private InMemoryFlowQueryService queryService;
+
+    @Before
+    public void setUp() {
+        store = new FlowAggregateStore(1, clock::get);
+        queryService = new InMemoryFlowQueryService(store);
+
+        store.ingest(Arrays.asList(
+                // Spans two minutes
+                flow("http", "10.0.0.1", "10.0.0.2", Direction.INGRESS, 600, NOW - 3 * MINUTE, NOW - MINUTE - 1, 1, 0),
+                flow("ssh", "10.0.0.1", "10.0.0.3", Direction.EGRESS, 100, NOW - 2 * MINUTE + 10, NOW - 2 * MINUTE + 10, 1, 3),
+                flow(null, "10.0.0.4", "10.0.0.5", Direction.INGRESS, 50, NOW - MINUTE + 10, NOW - MINUTE + 20, 2, (46 << 2) | 1)));
+    }
+
+    @Test
+    public void canCountFlows() throws Exception {
+        assertThat(queryService.getFlowCount(range()).get(), equalTo(3L));
+        assertThat(queryService.getFlowCount(range(new SnmpInterfaceIdFilter(2))).get(), equalTo(1L));
+        assertThat(queryService.getFlowCount(range(new ExporterNodeFilter(new NodeCriteria("fs", "exporter")))).get(), equalTo(3L));
+        assertThat(queryService.getFlowCount(range(new ExporterNodeFilter(new NodeCriteria("fs", "unknown")))).get(), equalTo(0L));
+    }
+
+    @Test
+    public void canGetTopNApplications() throws Exception {
+        final List<TrafficSummary<String>> summaries = queryService.getTopNApplicationSummaries(1, true, range()).get();
+        assertThat(summaries, contains(
+                TrafficSummary.from("http").withBytes(600, 0).withNonEcnCapableTransport(true).build(),
+                TrafficSummary.from("Other").withBytes(50, 100).withCongestionEncountered(true).build()));
+
+        assertThat(queryService.getApplications("S", 10, range()).get(), contains("ssh"));
+        assertThat(queryService.getApplications("", 10, range()).get(), contains("http", "ssh", "Unknown"));
+    }
+
+    @Test
+    public void canDistributeTrafficOverSeries() throws Exception {
+        final Table<Directional<String>, Long, Double> series = queryService.getApplicationSeries(Sets.newHashSet("http"), MINUTE, false, range()).get();
+        assertThat(series.row(new Directional<>("http", true)).get(NOW - 3 * MINUTE), equalTo(300d));
+        assertThat(series.row(new Directional<>("http", true)).get(NOW - 2 * MINUTE), equalTo(300d));
+        assertThat(series.columnKeySet(), contains(NOW - 3 * MINUTE, NOW - 2 * MINUTE));
+
+        // Only half of the first minute is part of the range
+        final List<TrafficSummary<String>> summaries = queryService.getApplicationSummaries(Collections.singleton("http"), false,
+                Collections.singletonList(new TimeRangeFilter(NOW - 3 * MINUTE + MINUTE / 2, NOW))).get();
+        assertThat(summaries.get(0).getBytesIn(), equalTo(450L));
+    }
+
+    @Test
+    public void canGetConversationsAndHosts() throws Exception {
+        final List<TrafficSummary<Conversation>> conversations = queryService.getTopNConversationSummaries(1, false, range()).get();
+        assertThat(conversations.get(0).getEntity().getApplication(), equalTo("http"));
+        assertThat(conversations.get(0).getEntity().getLowerHostname().get(), equalTo("10.0.0.1.example.org"));
+
+        assertThat(queryService.getConversations(".*", ".*", "10.0.0.1", ".*", "ssh", 10, range()).get().size(), equalTo(1));
+        assertThat(queryService.getConversations(".*", ".*", ".*", ".*", ".*", 10, range()).get().size(), equalTo(3));
+
+        final List<TrafficSummary<Host>> hosts = queryService.getTopNHostSummaries(1, false, range()).get();
+        assertThat(hosts, contains(TrafficSummary.from(new Host("10.0.0.1", "10.0.0.1.example.org"))
+                .withBytes(600, 100)
+                .withCongestionEncountered(true)
+                .withNonEcnCapableTransport(true)
+                .build()));
+        assertThat(queryService.getHosts("10\\.0\\.0\\.[45]", 10, range()).get(), contains("10.0.0.4", "10.0.0.5"));
+    }
+
+    @Test
+    public void canGetDscpValues() throws Exception {
+        assertThat(queryService.getFieldValues(LimitedCardinalityField.DSCP, range()).get(), contains("0", "46"));
+        assertThat(queryService.getFieldSummaries(LimitedCardinalityField.DSCP, range()).get(), contains(
+                TrafficSummary.from("0").withBytes(600, 100).withNonEcnCapableTransport(true).withCongestionEncountered(true).build(),
+                TrafficSummary.from("46").withBytes(50, 0).build()));
+    }
+
+    @Test
+    public void canOnlyCoverMinutesSeenCompletely() {
+        // Nothing ingested yet
+        assertThat(new FlowAggregateStore(1, clock::get).covers(NOW), equalTo(false));
+
+        // Ingesting started during the minute starting at NOW, so everything before the next minute is incomplete
+        assertThat(store.covers(NOW - 3 * MINUTE), equalTo(false));
+        assertThat(store.covers(NOW), equalTo(false));
+        assertThat(store.covers(NOW + MINUTE), equalTo(true));
+    }
+
+    @Test
+    public void canExpireAggregates() throws Exception {
+        clock.set(NOW + 5 * MINUTE);
+        assertThat(store.covers(NOW + MINUTE), equalTo(true));
+
+        clock.set(NOW + TimeUnit.HOURS.toMillis(1) + 2 * MINUTE);
+        assertThat(store.covers(NOW + MINUTE), equalTo(false));
+        assertThat(queryService.getFlowCount(Collections.emptyList()).get(), equalTo(0L));
+    }
+
+    private static List<Filter> range(final Filter... filters) {
+        final List<Filter> result = Lists.newArrayList(filters);
+        result.add(new TimeRangeFilter(NOW - TimeUnit.HOURS.toMillis(1), NOW));
+        return result;
+    }
+
+    private static FlowDocument flow(final String application, final String srcAddr, final String dstAddr, final Direction direction,
+                                     final long bytes, final long deltaSwitched, final long lastSwitched, final int ifIndex, final int tos) {
+        final NodeDocument exporter = new NodeDocument();
+        exporter.setNodeId(1);
+        exporter.setForeignSource("fs");
+        exporter.setForeignId("exporter");
+
+        final FlowDocument document = new FlowDocument();
+        document.setLocation("Default");
+        document.setProtocol(6);
+        document.setApplication(application);
+        document.setSrcAddr(srcAddr);
+        document.setSrcAddrHostname(srcAddr + ".example.org");
+        document.setDstAddr(dstAddr);
+        document.setHosts(Sets.newHashSet(srcAddr, dstAddr));
+        document.setDirection(direction);
+        document.setBytes(bytes);
+        document.setDeltaSwitched(deltaSwitched);
+        document.setFirstSwitched(deltaSwitched);
+        document.setLastSwitched(lastSwitched);
+        document.setInputSnmp(direction == Direction.INGRESS ? ifIndex : 0);
+        document.setOutputSnmp(direction == Direction.EGRESS ? ifIndex : 0);
+        document.setTos(tos);
+        document.setNodeExporter(exporter);
+        document.setConvoKey(ConversationKeyUtils.getConvoKeyAsJsonString(document));
+        return document;
+    }
+}
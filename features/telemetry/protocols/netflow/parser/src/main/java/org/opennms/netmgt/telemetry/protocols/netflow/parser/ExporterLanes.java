@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.telemetry.protocols.netflow.parser;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * A set of single-threaded, ordered execution lanes.
+ *
+ * Work is assigned to a lane by a key (i.e. the exporter) so all work of the same key is executed in order by a single
+ * thread. A lane only holds a thread while it has work queued: the thread is started on demand and released after
+ * being idle for a while. This lets the number of running threads follow the backlog.
+ *
+ * The number of lanes itself is fixed. Changing it would move keys to other lanes while work for them may still be
+ * queued on the old lane, which breaks the ordering per key. The lane count therefore is the upper bound of threads and
+ * scaling happens by starting and releasing the lane threads.
+ *
+ * Each lane blocks the submitting thread if its queue is full.
+ */
+public class ExporterLanes {
+
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private static final long KEEP_ALIVE_SECONDS = 60L;
+
+    private final Lane[] lanes;
+
+    private final MetricRegistry metricRegistry;
+
+    private final String metricPrefix;
+
+    private final String activeThreadsMetric;
+
+    public ExporterLanes(final int count,
+                         final int queueSize,
+                         final ThreadFactory threadFactory,
+                         final MetricRegistry metricRegistry,
+                         final String metricPrefix) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Lanes must be >= 1");
+        }
+        this.metricRegistry = Objects.requireNonNull(metricRegistry);
+        this.metricPrefix = Objects.requireNonNull(metricPrefix);
+
+        this.lanes = new Lane[count];
+        for (int i = 0; i < count; i++) {
+            this.lanes[i] = new Lane(i, queueSize, threadFactory);
+        }
+
+        this.activeThreadsMetric = MetricRegistry.name(metricPrefix, "lanes", "activeThreads");
+        this.metricRegistry.remove(this.activeThreadsMetric);
+        this.metricRegistry.register(this.activeThreadsMetric, (Gauge<Integer>) this::getActiveThreads);
+    }
+
+    public Executor lane(final int key) {
+        return this.lanes[Math.floorMod(key, this.lanes.length)];
+    }
+
+    public int size() {
+        return this.lanes.length;
+    }
+
+    public int getActiveThreads() {
+        int active = 0;
+        for (final Lane lane : this.lanes) {
+            active += lane.executor.getPoolSize();
+        }
+        return active;
+    }
+
+    public void shutdown() {
+        for (final Lane lane : this.lanes) {
+            lane.executor.shutdown();
+            this.metricRegistry.remove(lane.queueDepthMetric);
+        }
+        this.metricRegistry.remove(this.activeThreadsMetric);
+    }
+
+    private class Lane implements Executor {
+        private final ThreadPoolExecutor executor;
+
+        private final Timer latency;
+
+        private final String queueDepthMetric;
+
+        private Lane(final int index, final int queueSize, final ThreadFactory threadFactory) {
+            this.executor = new ThreadPoolExecutor(
+                    // No core thread - the lane thread is released if there is no backlog
+                    0, 1,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(queueSize),
+                    threadFactory,
+                    (r, executor) -> {
+                        // We enter this block when the queue is full and the caller is attempting to submit additional tasks
+                        try {
+                            // If we're not shutdown, then block until there's room in the queue
+                            if (!executor.isShutdown()) {
+                                executor.getQueue().put(r);
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException("Executor interrupted while waiting for capacity in the work queue.", e);
+                        }
+                    });
+
+            this.latency = ExporterLanes.this.metricRegistry.timer(MetricRegistry.name(ExporterLanes.this.metricPrefix, "lanes", Integer.toString(index), "latency"));
+
+            // Replace the gauge of a previous instance (i.e. the parser has been restarted)
+            this.queueDepthMetric = MetricRegistry.name(ExporterLanes.this.metricPrefix, "lanes", Integer.toString(index), "queueDepth");
+            ExporterLanes.this.metricRegistry.remove(this.queueDepthMetric);
+            ExporterLanes.this.metricRegistry.register(this.queueDepthMetric, (Gauge<Integer>) () -> this.executor.getQueue().size());
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            // Measures the time from submission until the work has been done
+            final Timer.Context context = this.latency.time();
+            this.executor.execute(() -> {
+                try {
+                    command.run();
+                } finally {
+                    context.stop();
+                }
+            });
+        }
+    }
+}
@@ -38,6 +38,7 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
@@ -57,6 +58,7 @@ import org.opennms.netmgt.telemetry.api.receiver.TelemetryMessage;
 import org.opennms.netmgt.telemetry.protocols.netflow.parser.ie.RecordProvider;
 import org.opennms.netmgt.telemetry.protocols.netflow.parser.session.SequenceNumberTracker;
 import org.opennms.netmgt.telemetry.protocols.netflow.parser.session.Session;
+import org.opennms.netmgt.telemetry.protocols.netflow.parser.transport.FlowMessageEncoder;
 import org.opennms.netmgt.telemetry.protocols.netflow.parser.transport.MessageBuilder;
 import org.opennms.netmgt.telemetry.protocols.netflow.transport.FlowMessage;
 import org.slf4j.Logger;
@@ -105,6 +107,8 @@ public abstract class ParserBase implements Parser {
 
     private final DnsResolver dnsResolver;
 
+    private final MetricRegistry metricRegistry;
+
     private final Meter recordsReceived;
 
     private final Meter recordsScheduled;
@@ -137,6 +141,16 @@ public abstract class ParserBase implements Parser {
 
     private boolean dnsLookupsEnabled = true;
 
+    private boolean pooledEncodingEnabled = false;
+
+    private int encoderPoolSize = FlowMessageEncoder.DEFAULT_POOL_SIZE;
+
+    private FlowMessageEncoder encoder;
+
+    private boolean exporterAffinityEnabled = false;
+
+    private ExporterLanes lanes;
+
     private LoadingCache<InetAddress, Optional<Instant>> clockSkewEventCache;
 
     private LoadingCache<InetAddress, Optional<Instant>> illegalFlowEventCache;
@@ -156,7 +170,7 @@ public abstract class ParserBase implements Parser {
         this.eventForwarder = Objects.requireNonNull(eventForwarder);
         this.identity = Objects.requireNonNull(identity);
         this.dnsResolver = Objects.requireNonNull(dnsResolver);
-        Objects.requireNonNull(metricRegistry);
+        this.metricRegistry = Objects.requireNonNull(metricRegistry);
 
         // Create a thread factory that sets a thread local variable when the thread is created
         // This variable is used to identify the thread as one that belongs to this class
@@ -191,29 +205,45 @@ public abstract class ParserBase implements Parser {
 
     @Override
     public void start(ScheduledExecutorService executorService) {
-        executor = new ThreadPoolExecutor(
-                // corePoolSize must be > 0 since we use the RejectedExecutionHandler to block when the queue is full
-                1, threads,
-                60L, TimeUnit.SECONDS,
-                new SynchronousQueue<>(),
-                threadFactory,
-                (r, executor) -> {
-                    // We enter this block when the queue is full and the caller is attempting to submit additional tasks
-                    try {
-                        // If we're not shutdown, then block until there's room in the queue
-                        if (!executor.isShutdown()) {
-                            executor.getQueue().put(r);
+        if (exporterAffinityEnabled) {
+            // Each lane is bound to a single thread which is only alive while the lane has a backlog
+            lanes = new ExporterLanes(threads, ExporterLanes.DEFAULT_QUEUE_SIZE, threadFactory, metricRegistry, MetricRegistry.name("parsers", name));
+            executor = null;
+        } else {
+            lanes = null;
+            executor = new ThreadPoolExecutor(
+                    // corePoolSize must be > 0 since we use the RejectedExecutionHandler to block when the queue is full
+                    1, threads,
+                    60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(),
+                    threadFactory,
+                    (r, executor) -> {
+                        // We enter this block when the queue is full and the caller is attempting to submit additional tasks
+                        try {
+                            // If we're not shutdown, then block until there's room in the queue
+                            if (!executor.isShutdown()) {
+                                executor.getQueue().put(r);
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException("Executor interrupted while waiting for capacity in the work queue.", e);
                         }
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        throw new RejectedExecutionException("Executor interrupted while waiting for capacity in the work queue.", e);
-                    }
-                });
+                    });
+        }
+
+        encoder = pooledEncodingEnabled
+                ? new FlowMessageEncoder(encoderPoolSize, FlowMessageEncoder.DEFAULT_BUFFER_SIZE)
+                : null;
     }
 
     @Override
     public void stop() {
-        executor.shutdown();
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (lanes != null) {
+            lanes.shutdown();
+        }
     }
 
     @Override
@@ -280,6 +310,33 @@ public abstract class ParserBase implements Parser {
         this.dnsLookupsEnabled = dnsLookupsEnabled;
     }
 
+    public boolean getPooledEncodingEnabled() {
+        return pooledEncodingEnabled;
+    }
+
+    public void setPooledEncodingEnabled(boolean pooledEncodingEnabled) {
+        this.pooledEncodingEnabled = pooledEncodingEnabled;
+    }
+
+    public int getEncoderPoolSize() {
+        return encoderPoolSize;
+    }
+
+    public void setEncoderPoolSize(int encoderPoolSize) {
+        if (encoderPoolSize < 1) {
+            throw new IllegalArgumentException("Encoder pool size must be >= 1");
+        }
+        this.encoderPoolSize = encoderPoolSize;
+    }
+
+    public boolean getExporterAffinityEnabled() {
+        return exporterAffinityEnabled;
+    }
+
+    public void setExporterAffinityEnabled(boolean exporterAffinityEnabled) {
+        this.exporterAffinityEnabled = exporterAffinityEnabled;
+    }
+
     public int getThreads() {
         return threads;
     }
@@ -291,17 +348,35 @@ public abstract class ParserBase implements Parser {
         this.threads = threads;
     }
 
-    protected CompletableFuture<?> transmit(final RecordProvider packet, final Session session, final InetSocketAddress remoteAddress) {
+    private void verifySequenceNumber(final RecordProvider packet, final Session session) {
         // Verify that flows sequences are in order
         if (!session.verifySequenceNumber(packet.getObservationDomainId(), packet.getSequenceNumber())) {
             SEQUENCE_ERRORS_LOGGER.warn("Error in flow sequence detected: from {}", session.getRemoteAddress());
             this.sequenceErrors.inc();
         }
+    }
+
+    protected CompletableFuture<?> transmit(final RecordProvider packet, final Session session, final InetSocketAddress remoteAddress) {
+        final ExporterLanes lanes = this.lanes;
+
+        final Executor executor;
+        if (lanes != null) {
+            // All packets of an exporter are handled by the same lane, so the sequence check is done by a single
+            // thread in packet order
+            executor = lanes.lane(31 * session.getRemoteAddress().hashCode() + Long.hashCode(packet.getObservationDomainId()));
+        } else {
+            executor = this.executor;
+            this.verifySequenceNumber(packet, session);
+        }
 
         // The packets are coming in hot - performance here is critical
         //   LOG.trace("Got packet: {}", packet);
         // Perform the record enrichment and serialization in a thread pool allowing these to be parallelized
         final CompletableFuture<CompletableFuture[]> futureOfFutures = CompletableFuture.supplyAsync(() -> {
+            if (lanes != null) {
+                this.verifySequenceNumber(packet, session);
+            }
+
             return packet.getRecords().map(record -> {
                 this.recordsReceived.mark();
 
@@ -363,7 +438,19 @@ public abstract class ParserBase implements Parser {
                         }
 
                         // Build the message to dispatch
-                        final TelemetryMessage msg = new TelemetryMessage(remoteAddress, ByteBuffer.wrap(flowMessage.build().toByteArray()));
+                        final FlowMessageEncoder encoder = this.encoder;
+                        final ByteBuffer buffer;
+                        if (encoder != null) {
+                            // Write the wire format straight into a pooled buffer
+                            try {
+                                buffer = encoder.encode(flowMessage.build());
+                            } catch (final Exception e) {
+                                throw new RuntimeException(e);
+                            }
+                        } else {
+                            buffer = ByteBuffer.wrap(flowMessage.build().toByteArray());
+                        }
+                        final TelemetryMessage msg = new TelemetryMessage(remoteAddress, buffer);
 
                         // Dispatch
                         dispatcher.send(msg).whenComplete((b, exx) -> {
@@ -371,6 +458,12 @@ public abstract class ParserBase implements Parser {
                                 this.recordDispatchErrors.inc();
                                 future.completeExceptionally(exx);
                             } else {
+                                // The sink module copies the buffer while aggregating (or queueing) the message, so
+                                // the buffer can be recycled once the dispatch succeeded. Failed dispatches may
+                                // still hold a reference and are left to the garbage collector.
+                                if (encoder != null) {
+                                    encoder.release(buffer);
+                                }
                                 this.recordsCompleted.mark();
                                 future.complete(null);
                             }
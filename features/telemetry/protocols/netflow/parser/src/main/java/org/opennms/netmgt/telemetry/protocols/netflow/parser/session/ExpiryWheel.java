@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.telemetry.protocols.netflow.parser.session;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timer wheel used to expire entries without scanning all of them.
+ *
+ * Entries are placed in the bucket of the tick their deadline falls into. Advancing the wheel only visits the buckets
+ * of the ticks passed since the last advance. Entries whose deadline lies more than one revolution ahead stay in their
+ * bucket until their round has come.
+ *
+ * The expiry callback decides whether the entry is actually gone. If the callback returns a new deadline, the entry is
+ * re-scheduled. This allows to refresh entries without touching the wheel at all.
+ */
+class ExpiryWheel<T> {
+
+    public interface Expiry<T> {
+        /**
+         * Called for an entry whose deadline has passed.
+         *
+         * @return the new deadline of the entry or a negative value if the entry has been expired
+         */
+        long expire(final T entry, final long now);
+    }
+
+    private static final class Scheduled<T> {
+        private final T entry;
+        private final long deadline;
+
+        private Scheduled(final T entry, final long deadline) {
+            this.entry = entry;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMillis;
+
+    private final Queue<Scheduled<T>>[] buckets;
+
+    private final int mask;
+
+    private long cursor;
+
+    @SuppressWarnings("unchecked")
+    public ExpiryWheel(final long tickMillis, final int size, final long now) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tick must be >= 1ms");
+        }
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size must be a power of two");
+        }
+
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+
+        this.buckets = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            this.buckets[i] = new ConcurrentLinkedQueue<>();
+        }
+
+        this.cursor = tick(now) - 1;
+    }
+
+    private long tick(final long time) {
+        return time / this.tickMillis;
+    }
+
+    public void schedule(final T entry, final long deadline) {
+        Objects.requireNonNull(entry);
+        this.buckets[(int) (tick(deadline) & this.mask)].add(new Scheduled<>(entry, deadline));
+    }
+
+    /**
+     * Visits all buckets up to (and including) the tick of the given time.
+     *
+     * The bucket of the current tick is visited again by the next advance as entries with a deadline later in the
+     * same tick may have been kept.
+     *
+     * @return the number of expired entries
+     */
+    public synchronized int advance(final long now, final Expiry<T> expiry) {
+        final long until = tick(now);
+        final long from = Math.max(this.cursor + 1, until - this.mask);
+
+        int expired = 0;
+        for (long tick = from; tick <= until; tick++) {
+            final Queue<Scheduled<T>> bucket = this.buckets[(int) (tick & this.mask)];
+
+            // Only process the entries present right now - re-scheduled entries may end up in the same bucket
+            for (int n = bucket.size(); n > 0; n--) {
+                final Scheduled<T> scheduled = bucket.poll();
+                if (scheduled == null) {
+                    break;
+                }
+
+                if (scheduled.deadline > now) {
+                    // Not yet due - wait for the next round
+                    bucket.add(scheduled);
+                    continue;
+                }
+
+                final long deadline = expiry.expire(scheduled.entry, now);
+                if (deadline < 0) {
+                    expired++;
+                } else {
+                    this.schedule(scheduled.entry, deadline);
+                }
+            }
+        }
+
+        this.cursor = until - 1;
+        return expired;
+    }
+
+    public int size() {
+        int size = 0;
+        for (final Queue<Scheduled<T>> bucket : this.buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+}
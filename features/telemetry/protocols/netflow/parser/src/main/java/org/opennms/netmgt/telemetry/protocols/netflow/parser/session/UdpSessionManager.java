@@ -32,6 +32,7 @@ import java.net.InetAddress;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -39,7 +40,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -48,66 +49,148 @@ import org.opennms.netmgt.telemetry.protocols.netflow.parser.ie.Value;
 import org.opennms.netmgt.telemetry.protocols.netflow.parser.state.ExporterState;
 import org.opennms.netmgt.telemetry.protocols.netflow.parser.state.OptionState;
 import org.opennms.netmgt.telemetry.protocols.netflow.parser.state.ParserState;
+import org.opennms.netmgt.telemetry.protocols.netflow.parser.state.TemplateState;
 
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
-import org.opennms.netmgt.telemetry.protocols.netflow.parser.state.TemplateState;
 
+/**
+ * Keeps track of templates, options and sequence numbers of UDP based exporters.
+ *
+ * State is held per exporter and observation domain. Exporters are kept in a concurrent map, the observation domains
+ * of an exporter are kept in a copy-on-write table keyed by the primitive domain ID. This allows lookups of templates
+ * and sequence numbers without allocating keys and without locks.
+ *
+ * Templates are expired using a {@link ExpiryWheel} so housekeeping only visits templates which are due instead of
+ * scanning all known templates. Exporters are expired the same way once they have not been seen for the timeout and
+ * have no templates left.
+ */
 public class UdpSessionManager {
-    final Map<TemplateKey, TimeWrapper<TemplateOptions>> templates = Maps.newConcurrentMap();
-    private final Map<DomainKey, SequenceNumberTracker> sequenceNumbers = Maps.newConcurrentMap();
+    private static final long EXPIRY_TICK_MS = 1000;
+    private static final int EXPIRY_WHEEL_SIZE = 1024;
+
+    private final ConcurrentMap<SessionKey, Exporter> exporters = Maps.newConcurrentMap();
+    private final ExpiryWheel<TemplateEntry> expiryWheel;
+    private final ExpiryWheel<Exporter> exporterExpiryWheel;
     private final Duration timeout;
     private final Supplier<SequenceNumberTracker> sequenceNumberTracker;
 
     public UdpSessionManager(final Duration timeout, final Supplier<SequenceNumberTracker> sequenceNumberTracker) {
         this.timeout = timeout;
         this.sequenceNumberTracker = Objects.requireNonNull(sequenceNumberTracker);
+        this.expiryWheel = new ExpiryWheel<>(EXPIRY_TICK_MS, EXPIRY_WHEEL_SIZE, System.currentTimeMillis());
+        this.exporterExpiryWheel = new ExpiryWheel<>(EXPIRY_TICK_MS, EXPIRY_WHEEL_SIZE, System.currentTimeMillis());
     }
 
     public void doHousekeeping() {
-        final Instant timeout = Instant.now().minus(this.timeout);
-        this.removeTemplateIf(e -> e.getValue().time.isBefore(timeout));
+        final long now = System.currentTimeMillis();
+        this.expiryWheel.advance(now, this::expire);
+        this.exporterExpiryWheel.advance(now, this::expireExporter);
+    }
+
+    private long deadline(final TimeWrapper<?> wrapper) {
+        return wrapper.time.toEpochMilli() + this.timeout.toMillis();
+    }
+
+    private long expire(final TemplateEntry entry, final long now) {
+        final TemplateEntry current = entry.domain.templates.computeIfPresent(entry.templateId, (id, e) -> {
+            if (e != entry) {
+                // Template was removed and added again - this entry is stale and the new one has its own schedule
+                return e;
+            }
+            return deadline(e.wrapper) <= now ? null : e;
+        });
+
+        if (current != entry) {
+            return -1;
+        }
+
+        // Template has been refreshed in the meantime
+        return deadline(entry.wrapper);
     }
 
-    private void removeTemplateIf(final Predicate<Map.Entry<TemplateKey, TimeWrapper<TemplateOptions>>> predicate) {
-        UdpSessionManager.this.templates.entrySet().removeIf(predicate);
+    private long expireExporter(final Exporter exporter, final long now) {
+        final Exporter current = this.exporters.computeIfPresent(exporter.sessionKey, (key, e) -> {
+            if (e != exporter) {
+                // Exporter was dropped and seen again - the new one has its own schedule
+                return e;
+            }
+            return exporter.lastSeen + this.timeout.toMillis() <= now && exporter.isEmpty() ? null : e;
+        });
+
+        if (current != exporter) {
+            return -1;
+        }
+
+        // Exporter has been seen in the meantime or still has templates which expire on their own
+        return Math.max(exporter.lastSeen + this.timeout.toMillis(), now + EXPIRY_TICK_MS);
     }
 
     public Session getSession(final SessionKey sessionKey) {
-        return new UdpSession(sessionKey);
+        final long now = System.currentTimeMillis();
+
+        // Touching the exporter must be atomic with respect to its expiry, otherwise a session could continue to use an
+        // exporter which is no longer known
+        final Exporter[] created = new Exporter[1];
+        final Exporter exporter = this.exporters.compute(sessionKey, (key, e) -> {
+            if (e == null) {
+                e = created[0] = new Exporter(key);
+            }
+            e.lastSeen = now;
+            return e;
+        });
+
+        if (created[0] != null) {
+            this.exporterExpiryWheel.schedule(created[0], now + this.timeout.toMillis());
+        }
+
+        return new UdpSession(exporter);
     }
 
     public void drop(final SessionKey sessionKey) {
-        removeTemplateIf(e -> Objects.equals(e.getKey().observationDomainId.sessionKey, sessionKey));
+        final Exporter exporter = this.exporters.remove(sessionKey);
+        if (exporter != null) {
+            for (final Domain domain : exporter.domains()) {
+                domain.templates.clear();
+            }
+        }
     }
 
     public int count() {
-        return this.templates.size();
+        int count = 0;
+        for (final Exporter exporter : this.exporters.values()) {
+            for (final Domain domain : exporter.domains()) {
+                count += domain.templates.size();
+            }
+        }
+        return count;
     }
 
     public Object dumpInternalState() {
         final ParserState.Builder parser = ParserState.builder();
 
-        final Map<DomainKey, List<Map.Entry<TemplateKey, TimeWrapper<TemplateOptions>>>> sessions = this.templates.entrySet().stream()
-                .collect(Collectors.groupingBy(e -> e.getKey().observationDomainId));
+        for (final Exporter exporter : this.exporters.values()) {
+            for (final Domain domain : exporter.domains()) {
+                if (domain.templates.isEmpty()) {
+                    continue;
+                }
 
-        for (final var entry : sessions.entrySet()) {
-            final String key = String.format("%s#%s",
-                    entry.getKey().sessionKey.getDescription(),
-                    entry.getKey().observationDomainId);
+                final String key = String.format("%s#%s",
+                        exporter.sessionKey.getDescription(),
+                        domain.observationDomainId);
 
-            final ExporterState.Builder exporter = ExporterState.builder(key);
+                final ExporterState.Builder exporterState = ExporterState.builder(key);
 
-            entry.getValue().forEach(e -> {
-                exporter.withTemplate(TemplateState.builder(e.getKey().templateId).withInsertionTime(e.getValue().time));
-                e.getValue().wrapped.options.forEach((selectors, values) ->
-                        exporter.withOptions(OptionState.builder(e.getKey().templateId)
-                                .withInsertionTime(values.time)
-                                .withSelectors(selectors)
-                                .withValues(values.wrapped)));
-            });
+                domain.templates.forEach((templateId, e) -> {
+                    exporterState.withTemplate(TemplateState.builder(templateId).withInsertionTime(e.wrapper.time));
+                    e.wrapper.wrapped.options.forEach((selectors, values) ->
+                            exporterState.withOptions(OptionState.builder(templateId)
+                                    .withInsertionTime(values.time)
+                                    .withSelectors(selectors)
+                                    .withValues(values.wrapped)));
+                });
 
-            parser.withExporter(exporter);
+                parser.withExporter(exporterState);
+            }
         }
 
         return parser.build();
@@ -119,110 +202,181 @@ public class UdpSessionManager {
         InetAddress getRemoteAddress();
     }
 
-    private final static class DomainKey {
-        public final SessionKey sessionKey;
-        public final long observationDomainId;
+    public final static class TimeWrapper<T> {
+        public final Instant time;
+        public final T wrapped;
 
-        private DomainKey(final SessionKey sessionKey,
-                          final long observationDomainId) {
-            this.sessionKey = Objects.requireNonNull(sessionKey);
-            this.observationDomainId = observationDomainId;
+        private TimeWrapper(final T wrapped) {
+            this.time = Instant.now();
+            this.wrapped = wrapped;
         }
+    }
 
-        @Override
-        public boolean equals(final Object o) {
-            if (this == o) {
-                return true;
-            }
-            if (!(o instanceof DomainKey)) {
-                return false;
-            }
+    public static class TemplateOptions {
+        public final Template template;
+        public final Map<Set<Value<?>>, TimeWrapper<List<Value<?>>>> options;
 
-            final DomainKey that = (DomainKey) o;
-            return Objects.equals(this.observationDomainId, that.observationDomainId) &&
-                   Objects.equals(this.sessionKey, that.sessionKey);
+        public TemplateOptions(final Template template) {
+            this.template = Objects.requireNonNull(template);
+            this.options = Maps.newConcurrentMap();
         }
+    }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(this.sessionKey, this.observationDomainId);
+    /**
+     * A template of an observation domain.
+     *
+     * The entry stays the same if the template is re-declared by the exporter, only the wrapped template is replaced.
+     * Therefore, there is exactly one entry in the expiry wheel for every known template.
+     */
+    private final static class TemplateEntry {
+        private final Domain domain;
+        private final int templateId;
+
+        private volatile TimeWrapper<TemplateOptions> wrapper;
+
+        private TemplateEntry(final Domain domain, final int templateId) {
+            this.domain = Objects.requireNonNull(domain);
+            this.templateId = templateId;
         }
     }
 
-    final static class TemplateKey {
-        public final DomainKey observationDomainId;
-        public final int templateId;
+    private final static class Domain {
+        private final long observationDomainId;
 
-        TemplateKey(final SessionKey sessionKey,
-                    final long observationDomainId,
-                    final int templateId) {
-            this.observationDomainId = new DomainKey(sessionKey, observationDomainId);
-            this.templateId = templateId;
+        private final ConcurrentMap<Integer, TemplateEntry> templates = Maps.newConcurrentMap();
+
+        private final SequenceNumberTracker sequenceNumberTracker;
+
+        private Domain(final long observationDomainId, final SequenceNumberTracker sequenceNumberTracker) {
+            this.observationDomainId = observationDomainId;
+            this.sequenceNumberTracker = Objects.requireNonNull(sequenceNumberTracker);
         }
+    }
 
-        @Override
-        public boolean equals(final Object o) {
-            if (this == o) {
-                return true;
+    /**
+     * The observation domains of an exporter.
+     *
+     * The domains are kept in an immutable table sorted by domain ID which is replaced on modification. Exporters
+     * rarely use more than a handful of domains and new domains show up rarely, so reads are lock-free and need no
+     * boxing of the domain ID.
+     */
+    private final class Exporter {
+        private final SessionKey sessionKey;
+
+        private volatile DomainTable table = new DomainTable(new long[0], new Domain[0]);
+
+        private volatile long lastSeen;
+
+        private Exporter(final SessionKey sessionKey) {
+            this.sessionKey = Objects.requireNonNull(sessionKey);
+        }
+
+        private Domain lookup(final long observationDomainId) {
+            return this.table.lookup(observationDomainId);
+        }
+
+        private Domain domain(final long observationDomainId) {
+            final Domain domain = this.lookup(observationDomainId);
+            if (domain != null) {
+                return domain;
             }
-            if (!(o instanceof TemplateKey)) {
-                return false;
+
+            synchronized (this) {
+                final DomainTable table = this.table;
+
+                final int index = Arrays.binarySearch(table.ids, observationDomainId);
+                if (index >= 0) {
+                    return table.domains[index];
+                }
+
+                final int insert = -(index + 1);
+                final int length = table.ids.length;
+
+                final long[] ids = new long[length + 1];
+                System.arraycopy(table.ids, 0, ids, 0, insert);
+                System.arraycopy(table.ids, insert, ids, insert + 1, length - insert);
+                ids[insert] = observationDomainId;
+
+                final Domain[] domains = new Domain[length + 1];
+                System.arraycopy(table.domains, 0, domains, 0, insert);
+                System.arraycopy(table.domains, insert, domains, insert + 1, length - insert);
+                domains[insert] = new Domain(observationDomainId, UdpSessionManager.this.sequenceNumberTracker.get());
+
+                this.table = new DomainTable(ids, domains);
+
+                return domains[insert];
             }
+        }
 
-            final TemplateKey that = (TemplateKey) o;
-            return Objects.equals(this.observationDomainId, that.observationDomainId) &&
-                    Objects.equals(this.templateId, that.templateId);
+        private List<Domain> domains() {
+            return Arrays.asList(this.table.domains);
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(this.observationDomainId, this.templateId);
+        private boolean isEmpty() {
+            for (final Domain domain : this.table.domains) {
+                if (!domain.templates.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
-    public final static class TimeWrapper<T> {
-        public final Instant time;
-        public final T wrapped;
+    private final static class DomainTable {
+        private final long[] ids;
+        private final Domain[] domains;
 
-        private TimeWrapper(final T wrapped) {
-            this.time = Instant.now();
-            this.wrapped = wrapped;
+        private DomainTable(final long[] ids, final Domain[] domains) {
+            this.ids = ids;
+            this.domains = domains;
         }
-    }
 
-    public static class TemplateOptions {
-        public final Template template;
-        public final Map<Set<Value<?>>, TimeWrapper<List<Value<?>>>> options;
-
-        public TemplateOptions(final Template template) {
-            this.template = Objects.requireNonNull(template);
-            this.options = Maps.newConcurrentMap();
+        private Domain lookup(final long observationDomainId) {
+            final int index = Arrays.binarySearch(this.ids, observationDomainId);
+            return index >= 0 ? this.domains[index] : null;
         }
     }
 
     private final class UdpSession implements Session {
-        private final SessionKey sessionKey;
+        private final Exporter exporter;
 
-        public UdpSession(final SessionKey sessionKey) {
-            this.sessionKey = Objects.requireNonNull(sessionKey);
+        public UdpSession(final Exporter exporter) {
+            this.exporter = Objects.requireNonNull(exporter);
+        }
+
+        private Domain domain(final long observationDomainId) {
+            return this.exporter.domain(observationDomainId);
         }
 
         @Override
         public void addTemplate(final long observationDomainId, final Template template) {
-            final TemplateKey key = new TemplateKey(this.sessionKey, observationDomainId, template.id);
-            UdpSessionManager.this.templates.put(key, new TimeWrapper<>(new TemplateOptions(template)));
+            final Domain domain = this.domain(observationDomainId);
+            final TimeWrapper<TemplateOptions> wrapper = new TimeWrapper<>(new TemplateOptions(template));
+
+            final TemplateEntry[] created = new TemplateEntry[1];
+            domain.templates.compute(template.id, (id, e) -> {
+                if (e == null) {
+                    e = created[0] = new TemplateEntry(domain, id);
+                }
+                e.wrapper = wrapper;
+                return e;
+            });
+
+            if (created[0] != null) {
+                UdpSessionManager.this.expiryWheel.schedule(created[0], deadline(wrapper));
+            }
         }
 
         @Override
         public void removeTemplate(final long observationDomainId, final int templateId) {
-            final TemplateKey key = new TemplateKey(this.sessionKey, observationDomainId, templateId);
-            UdpSessionManager.this.templates.remove(key);
+            final Domain domain = this.domain(observationDomainId);
+            domain.templates.remove(templateId);
         }
 
         @Override
         public void removeAllTemplate(final long observationDomainId, final Template.Type type) {
-            final DomainKey domainKey = new DomainKey(this.sessionKey, observationDomainId);
-            UdpSessionManager.this.removeTemplateIf(e -> domainKey.equals(e.getKey().observationDomainId) && e.getValue().wrapped.template.type == type);
+            final Domain domain = this.domain(observationDomainId);
+            domain.templates.values().removeIf(e -> e.wrapper.wrapped.template.type == type);
         }
 
         @Override
@@ -230,43 +384,37 @@ public class UdpSessionManager {
                                final int templateId,
                                final Collection<Value<?>> scopes,
                                final List<Value<?>> values) {
-            final TemplateKey key = new TemplateKey(this.sessionKey, observationDomainId, templateId);
-            UdpSessionManager.this.templates.get(key).wrapped.options.put(new HashSet<>(scopes), new TimeWrapper<>(values));
+            final Domain domain = this.domain(observationDomainId);
+            domain.templates.get(templateId).wrapper.wrapped.options.put(new HashSet<>(scopes), new TimeWrapper<>(values));
         }
 
         @Override
         public Session.Resolver getResolver(final long observationDomainId) {
-            return new Resolver(observationDomainId);
+            return new Resolver(this.domain(observationDomainId));
         }
 
         @Override
         public InetAddress getRemoteAddress() {
-            return this.sessionKey.getRemoteAddress();
+            return this.exporter.sessionKey.getRemoteAddress();
         }
 
         @Override
         public boolean verifySequenceNumber(final long observationDomainId, final long sequenceNumber) {
-            final DomainKey key = new DomainKey(this.sessionKey, observationDomainId);
-            final SequenceNumberTracker tracker = UdpSessionManager.this.sequenceNumbers.computeIfAbsent(key, (k) -> UdpSessionManager.this.sequenceNumberTracker.get());
-            return tracker.verify(sequenceNumber);
+            return this.domain(observationDomainId).sequenceNumberTracker.verify(sequenceNumber);
         }
 
         private final class Resolver implements Session.Resolver {
-            private final long observationDomainId;
+            private final Domain domain;
 
-            private Resolver(final long observationDomainId) {
-                this.observationDomainId = observationDomainId;
-            }
-
-            private TemplateKey key(final int templateId) {
-                return new TemplateKey(UdpSession.this.sessionKey, this.observationDomainId, templateId);
+            private Resolver(final Domain domain) {
+                this.domain = Objects.requireNonNull(domain);
             }
 
             @Override
             public Template lookupTemplate(final int templateId) throws MissingTemplateException {
-                final TimeWrapper<TemplateOptions> templateOptions = UdpSessionManager.this.templates.get(key(templateId));
-                if (templateOptions != null) {
-                    return templateOptions.wrapped.template;
+                final TemplateEntry entry = this.domain.templates.get(templateId);
+                if (entry != null) {
+                    return entry.wrapper.wrapped.template;
                 } else {
                     throw new MissingTemplateException(templateId);
                 }
@@ -278,11 +426,9 @@ public class UdpSessionManager {
 
                 final Set<String> scoped = values.stream().map(Value::getName).collect(Collectors.toSet());
 
-                for (final var e : Iterables.filter(UdpSessionManager.this.templates.entrySet(),
-                        e -> Objects.equals(e.getKey().observationDomainId.sessionKey, UdpSession.this.sessionKey) &&
-                                Objects.equals(e.getKey().observationDomainId.observationDomainId, this.observationDomainId))) {
-
-                    final Template template = e.getValue().wrapped.template;
+                for (final TemplateEntry e : this.domain.templates.values()) {
+                    final TemplateOptions templateOptions = e.wrapper.wrapped;
+                    final Template template = templateOptions.template;
 
                     if (scoped.containsAll(template.scopeNames)) {
                         // Found option template where scoped fields is subset of actual data fields
@@ -290,7 +436,7 @@ public class UdpSessionManager {
                                 .filter(s -> template.scopeNames.contains(s.getName()))
                                 .collect(Collectors.toSet());
 
-                        final TimeWrapper<List<Value<?>>> optionValues = e.getValue().wrapped.options.get(scopeValues);
+                        final TimeWrapper<List<Value<?>>> optionValues = templateOptions.options.get(scopeValues);
                         if (optionValues != null) {
                             for (final Value<?> value : optionValues.wrapped) {
                                 options.put(value.getName(), value);
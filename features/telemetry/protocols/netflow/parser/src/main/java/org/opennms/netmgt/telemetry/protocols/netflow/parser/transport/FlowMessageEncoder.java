@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.telemetry.protocols.netflow.parser.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.opennms.netmgt.telemetry.protocols.netflow.transport.FlowMessage;
+
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Writes the wire format of {@link FlowMessage}s directly into pooled, reusable buffers.
+ *
+ * This avoids the intermediate byte array created by {@link FlowMessage#toByteArray()} for every record. Buffers
+ * returned by {@link #encode(FlowMessage)} must be handed back using {@link #release(ByteBuffer)} as soon as the
+ * content has been consumed. Messages which do not fit into a pooled buffer are encoded into a dedicated buffer
+ * which is silently dropped on release.
+ */
+public class FlowMessageEncoder {
+
+    public static final int DEFAULT_POOL_SIZE = 4096;
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private final int bufferSize;
+
+    private final BlockingQueue<ByteBuffer> pool;
+
+    public FlowMessageEncoder() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_BUFFER_SIZE);
+    }
+
+    public FlowMessageEncoder(final int poolSize, final int bufferSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be >= 1");
+        }
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be >= 1");
+        }
+        this.bufferSize = bufferSize;
+        this.pool = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    public ByteBuffer encode(final FlowMessage message) throws IOException {
+        Objects.requireNonNull(message);
+
+        final int size = message.getSerializedSize();
+
+        final ByteBuffer buffer;
+        if (size <= this.bufferSize) {
+            final ByteBuffer pooled = this.pool.poll();
+            buffer = pooled != null ? pooled : ByteBuffer.allocate(this.bufferSize);
+        } else {
+            buffer = ByteBuffer.allocate(size);
+        }
+
+        buffer.clear();
+
+        final CodedOutputStream output = CodedOutputStream.newInstance(buffer);
+        message.writeTo(output);
+        output.flush();
+
+        buffer.flip();
+        return buffer;
+    }
+
+    public void release(final ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != this.bufferSize || !buffer.hasArray()) {
+            return;
+        }
+
+        buffer.clear();
+        this.pool.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    public int getPooled() {
+        return this.pool.size();
+    }
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.telemetry.protocols.netflow.parser;
+
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class ExporterLanesTest {
+
+    @Test
+    public void testOrderPerKey() throws Exception {
+        final ExporterLanes lanes = new ExporterLanes(4, 16, Executors.defaultThreadFactory(), new MetricRegistry(), "test");
+
+        final int keys = 8;
+        final int tasks = 1000;
+
+        final List<List<Integer>> results = new ArrayList<>();
+        for (int k = 0; k < keys; k++) {
+            results.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        final CountDownLatch latch = new CountDownLatch(keys * tasks);
+        for (int i = 0; i < tasks; i++) {
+            for (int k = 0; k < keys; k++) {
+                final int key = k;
+                final int value = i;
+                lanes.lane(key).execute(() -> {
+                    results.get(key).add(value);
+                    latch.countDown();
+                });
+            }
+        }
+
+        assertThat(latch.await(1, TimeUnit.MINUTES), is(true));
+
+        for (int k = 0; k < keys; k++) {
+            assertThat(results.get(k).size(), is(tasks));
+            for (int i = 0; i < tasks; i++) {
+                assertThat(results.get(k).get(i), is(i));
+            }
+        }
+
+        lanes.shutdown();
+    }
+
+    @Test
+    public void testSameLaneForSameKey() {
+        final ExporterLanes lanes = new ExporterLanes(4, 16, Executors.defaultThreadFactory(), new MetricRegistry(), "test");
+
+        assertThat(lanes.lane(5) == lanes.lane(5), is(true));
+        assertThat(lanes.lane(-3) == lanes.lane(1), is(true));
+
+        lanes.shutdown();
+    }
+
+    @Test
+    public void testMetrics() {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+
+        final ExporterLanes lanes = new ExporterLanes(2, 16, Executors.defaultThreadFactory(), metricRegistry, "parsers.test");
+        assertThat(metricRegistry.getGauges(), hasKey("parsers.test.lanes.0.queueDepth"));
+        assertThat(metricRegistry.getGauges(), hasKey("parsers.test.lanes.1.queueDepth"));
+        assertThat(metricRegistry.getTimers(), hasKey("parsers.test.lanes.0.latency"));
+        assertThat(metricRegistry.getGauges(), hasKey("parsers.test.lanes.activeThreads"));
+        assertThat(metricRegistry.getGauges().get("parsers.test.lanes.activeThreads").getValue(), is(0));
+
+        // Restarting must not fail because of already registered gauges
+        final ExporterLanes restarted = new ExporterLanes(2, 16, Executors.defaultThreadFactory(), metricRegistry, "parsers.test");
+        restarted.shutdown();
+        assertThat(metricRegistry.getGauges(), not(hasKey("parsers.test.lanes.0.queueDepth")));
+        assertThat(metricRegistry.getGauges(), not(hasKey("parsers.test.lanes.activeThreads")));
+
+        lanes.shutdown();
+    }
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.telemetry.protocols.netflow.parser.session;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ExpiryWheelTest {
+
+    @Test
+    public void testExpiry() {
+        final ExpiryWheel<String> wheel = new ExpiryWheel<>(1000, 8, 0);
+
+        wheel.schedule("a", 1500);
+        wheel.schedule("b", 3500);
+
+        final List<String> expired = new ArrayList<>();
+
+        assertThat(wheel.advance(1000, (e, now) -> { expired.add(e); return -1; }), is(0));
+        assertThat(expired, is(empty()));
+
+        assertThat(wheel.advance(2000, (e, now) -> { expired.add(e); return -1; }), is(1));
+        assertThat(expired, contains("a"));
+
+        assertThat(wheel.advance(4000, (e, now) -> { expired.add(e); return -1; }), is(1));
+        assertThat(expired, contains("a", "b"));
+
+        assertThat(wheel.size(), is(0));
+    }
+
+    @Test
+    public void testDeadlineBeyondRevolution() {
+        final ExpiryWheel<String> wheel = new ExpiryWheel<>(1000, 4, 0);
+
+        // Shares the bucket with tick 1 but must not expire before its round has come
+        wheel.schedule("a", 9500);
+
+        final List<String> expired = new ArrayList<>();
+        for (long now = 1000; now < 9000; now += 1000) {
+            wheel.advance(now, (e, t) -> { expired.add(e); return -1; });
+        }
+        assertThat(expired, is(empty()));
+
+        wheel.advance(10000, (e, t) -> { expired.add(e); return -1; });
+        assertThat(expired, contains("a"));
+    }
+
+    @Test
+    public void testReschedule() {
+        final ExpiryWheel<String> wheel = new ExpiryWheel<>(1000, 8, 0);
+
+        final Map<String, Long> deadlines = new HashMap<>();
+        deadlines.put("a", 1000L);
+        wheel.schedule("a", deadlines.get("a"));
+
+        // Entry was refreshed in the meantime
+        deadlines.put("a", 5000L);
+
+        assertThat(wheel.advance(2000, (e, now) -> deadlines.get(e) <= now ? -1 : deadlines.get(e)), is(0));
+        assertThat(wheel.size(), is(1));
+
+        assertThat(wheel.advance(5000, (e, now) -> deadlines.get(e) <= now ? -1 : deadlines.get(e)), is(1));
+        assertThat(wheel.size(), is(0));
+    }
+
+    @Test
+    public void testLongPause() {
+        final ExpiryWheel<String> wheel = new ExpiryWheel<>(1000, 8, 0);
+
+        for (int i = 0; i < 100; i++) {
+            wheel.schedule("e" + i, i * 1000L);
+        }
+
+        // All buckets must be visited exactly once even if the wheel has not been advanced for multiple revolutions
+        assertThat(wheel.advance(1000000, (e, now) -> -1), is(100));
+        assertThat(wheel.size(), is(0));
+    }
+}
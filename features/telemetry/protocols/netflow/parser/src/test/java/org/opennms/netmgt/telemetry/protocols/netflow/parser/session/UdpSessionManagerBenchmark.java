@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.telemetry.protocols.netflow.parser.session;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.opennms.netmgt.telemetry.protocols.netflow.parser.MissingTemplateException;
+import org.opennms.netmgt.telemetry.protocols.netflow.parser.Netflow9UdpParser;
+
+/**
+ * Use the Java Microbenchmarking Harness (JMH) to measure the cost of template lookups and sequence number tracking.
+ * <p>
+ * The session manager is populated with the given number of exporters, each using a couple of observation domains and
+ * templates. The lookup cost must not depend on the number of exporters.
+ */
+public class UdpSessionManagerBenchmark {
+
+    private static final int DOMAINS_PER_EXPORTER = 2;
+    private static final int TEMPLATES_PER_DOMAIN = 8;
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args);
+    }
+
+    @State(Scope.Benchmark)
+    public static class BState {
+
+        @Param({"100", "1000", "10000"})
+        public int exporters;
+
+        private UdpSessionManager sessionManager;
+        private UdpSessionManager.SessionKey[] sessionKeys;
+        private long[] sequenceNumbers;
+
+        @Setup
+        public void setup() throws UnknownHostException {
+            final InetSocketAddress localAddress = new InetSocketAddress("127.0.0.1", 4729);
+
+            sessionManager = new UdpSessionManager(Duration.ofMinutes(30), () -> new SequenceNumberTracker(32));
+            sessionKeys = new UdpSessionManager.SessionKey[exporters];
+            sequenceNumbers = new long[exporters];
+
+            for (int i = 0; i < exporters; i++) {
+                final InetAddress remoteAddress = InetAddress.getByAddress(new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+                sessionKeys[i] = new Netflow9UdpParser.SessionKey(remoteAddress, localAddress);
+
+                final Session session = sessionManager.getSession(sessionKeys[i]);
+                for (long domain = 0; domain < DOMAINS_PER_EXPORTER; domain++) {
+                    for (int template = 0; template < TEMPLATES_PER_DOMAIN; template++) {
+                        session.addTemplate(domain, Template.builder(256 + template, Template.Type.TEMPLATE)
+                                .withFields(Collections.emptyList())
+                                .withScopes(Collections.emptyList())
+                                .build());
+                    }
+                }
+            }
+        }
+
+        public int nextExporter() {
+            return ThreadLocalRandom.current().nextInt(exporters);
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 2)
+    public void lookupTemplate(BState state, Blackhole blackhole) throws MissingTemplateException {
+        final int exporter = state.nextExporter();
+        final Session session = state.sessionManager.getSession(state.sessionKeys[exporter]);
+
+        final Session.Resolver resolver = session.getResolver(exporter % DOMAINS_PER_EXPORTER);
+        blackhole.consume(resolver.lookupTemplate(256 + exporter % TEMPLATES_PER_DOMAIN));
+    }
+
+    @Benchmark
+    @Fork(value = 1)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 2)
+    public void verifySequenceNumber(BState state, Blackhole blackhole) {
+        final int exporter = state.nextExporter();
+        final Session session = state.sessionManager.getSession(state.sessionKeys[exporter]);
+
+        blackhole.consume(session.verifySequenceNumber(exporter % DOMAINS_PER_EXPORTER, state.sequenceNumbers[exporter]++));
+    }
+
+    @Benchmark
+    @Fork(value = 1)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 2)
+    public void housekeeping(BState state) {
+        state.sessionManager.doHousekeeping();
+    }
+}
@@ -43,11 +43,12 @@ import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.Matchers.empty;
-import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertThat;
 
 public class UdpSessionManagerTest {
@@ -166,7 +167,7 @@ public class UdpSessionManagerTest {
      * see NMS-13539
      */
     @Test
-    public void optionsRemovalTest() {
+    public void optionsRemovalTest() throws Exception {
         final UdpSessionManager.SessionKey sessionKey = new Netflow9UdpParser.SessionKey(remoteAddress1.getAddress(), localAddress1);
 
         final UdpSessionManager udpSessionManager = new UdpSessionManager(Duration.ofMinutes(0), () -> new SequenceNumberTracker(32));
@@ -193,13 +194,37 @@ public class UdpSessionManagerTest {
 
         session.addOptions(observationId1, templateId1, scopesValue, fieldsValue);
 
-        assertThat(udpSessionManager.templates.keySet(), hasItem(new UdpSessionManager.TemplateKey(sessionKey, observationId1, template.id)));
-        assertThat(udpSessionManager.templates.get(new UdpSessionManager.TemplateKey(sessionKey, observationId1, template.id)).wrapped.options.entrySet(), not(empty()));
+        assertThat(session.getResolver(observationId1).lookupTemplate(template.id), notNullValue());
+        assertThat(session.getResolver(observationId1).lookupOptions(scopesValue), not(empty()));
 
         udpSessionManager.doHousekeeping();
 
-        assertThat(udpSessionManager.templates.keySet(), not(hasItem(new UdpSessionManager.TemplateKey(sessionKey, observationId1, template.id))));
-        assertThat(udpSessionManager.templates.get(new UdpSessionManager.TemplateKey(sessionKey, observationId1, template.id)), nullValue());
+        assertThat(udpSessionManager.count(), is(0));
+        assertThat(udpSessionManager.getSession(sessionKey).getResolver(observationId1).lookupOptions(scopesValue), empty());
+    }
+
+    @Test
+    public void exporterRemovalTest() {
+        final UdpSessionManager.SessionKey sessionKey = new Netflow9UdpParser.SessionKey(remoteAddress1.getAddress(), localAddress1);
+
+        final AtomicInteger trackers = new AtomicInteger();
+        final UdpSessionManager udpSessionManager = new UdpSessionManager(Duration.ofMinutes(0), () -> {
+            trackers.incrementAndGet();
+            return new SequenceNumberTracker(32);
+        });
+
+        // Every new exporter state starts with a new sequence number tracker
+        udpSessionManager.getSession(sessionKey).verifySequenceNumber(observationId1, 1);
+        udpSessionManager.getSession(sessionKey).verifySequenceNumber(observationId1, 2);
+        assertThat(trackers.get(), is(1));
+
+        udpSessionManager.drop(sessionKey);
+        udpSessionManager.getSession(sessionKey).verifySequenceNumber(observationId1, 3);
+        assertThat(trackers.get(), is(2));
+
+        udpSessionManager.doHousekeeping();
+        udpSessionManager.getSession(sessionKey).verifySequenceNumber(observationId1, 4);
+        assertThat(trackers.get(), is(3));
     }
 
     @Test
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.telemetry.protocols.netflow.parser.transport;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.opennms.netmgt.telemetry.protocols.netflow.transport.FlowMessage;
+import org.opennms.netmgt.telemetry.protocols.netflow.transport.NetflowVersion;
+
+import com.google.common.base.Strings;
+import com.google.protobuf.UInt64Value;
+
+public class FlowMessageEncoderTest {
+
+    private static FlowMessage flow(final String hostname) {
+        return FlowMessage.newBuilder()
+                .setTimestamp(1611234567890L)
+                .setSrcAddress("192.168.1.1")
+                .setSrcHostname(hostname)
+                .setDstAddress("10.0.0.1")
+                .setNumBytes(UInt64Value.newBuilder().setValue(42L).build())
+                .setNetflowVersion(NetflowVersion.V9)
+                .build();
+    }
+
+    private static FlowMessage decode(final ByteBuffer buffer) throws Exception {
+        return FlowMessage.parseFrom(buffer.duplicate());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final FlowMessageEncoder encoder = new FlowMessageEncoder(4, 256);
+
+        final FlowMessage flow = flow("a.example.com");
+        final ByteBuffer buffer = encoder.encode(flow);
+
+        assertThat(buffer.remaining(), equalTo(flow.getSerializedSize()));
+        assertThat(decode(buffer), equalTo(flow));
+    }
+
+    @Test
+    public void testBuffersAreReused() throws Exception {
+        final FlowMessageEncoder encoder = new FlowMessageEncoder(4, 256);
+
+        final ByteBuffer first = encoder.encode(flow("a.example.com"));
+        encoder.release(first);
+        assertThat(encoder.getPooled(), equalTo(1));
+
+        final FlowMessage flow = flow("b.example.com");
+        final ByteBuffer second = encoder.encode(flow);
+        assertThat(second, sameInstance(first));
+        assertThat(encoder.getPooled(), equalTo(0));
+
+        // Content of the recycled buffer must only reflect the latest message
+        assertThat(decode(second), equalTo(flow));
+    }
+
+    @Test
+    public void testOversizedMessagesAreNotPooled() throws Exception {
+        final FlowMessageEncoder encoder = new FlowMessageEncoder(4, 64);
+
+        final FlowMessage flow = flow(Strings.repeat("x", 128));
+        final ByteBuffer buffer = encoder.encode(flow);
+        assertThat(buffer.capacity(), not(equalTo(encoder.getBufferSize())));
+        assertThat(decode(buffer), equalTo(flow));
+
+        encoder.release(buffer);
+        assertThat(encoder.getPooled(), equalTo(0));
+    }
+}
@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.netmgt.timeseries.sampleread;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+
+/**
+ * Caches the aggregated samples fetched by the {@link TimeseriesFetchStrategy}.
+ *
+ * Dashboards re-request nearly the same windows over and over again, so we keep the
+ * last fetched range of each metric, keyed by the metric, the aggregation and the resolution
+ * (step, interval and heartbeat). The index of ranges lives on the heap, whereas the samples
+ * themselves are stored off-heap in fixed size chunks of direct memory. Chunks are recycled
+ * when a range is replaced or evicted, and ranges are evicted in least recently used order
+ * once all of the chunks are in use.
+ *
+ * Only buckets that can no longer change are cached: the ones that end at least one heartbeat
+ * before both the end of the request and the current time. When a request starts within a
+ * cached range, but ends after it, only the missing tail is fetched. The tail is fetched
+ * starting one heartbeat and one step before the end of the cached range, so that the
+ * aggregation of the first missing bucket sees the same samples as it would in a full fetch.
+ */
+public class SampleRangeCache {
+
+    private static final int SAMPLE_SIZE = Long.BYTES + Double.BYTES;
+
+    @FunctionalInterface
+    public interface Fetcher {
+        List<Sample> fetch(Instant start, Instant end) throws StorageException;
+    }
+
+    public static class Key {
+        private final Metric metric;
+        private final Aggregation aggregation;
+        private final long step;
+        private final long interval;
+        private final long heartbeat;
+
+        public Key(Metric metric, Aggregation aggregation, LateAggregationParams lag) {
+            this.metric = Objects.requireNonNull(metric);
+            this.aggregation = Objects.requireNonNull(aggregation);
+            this.step = lag.getStep();
+            this.interval = lag.getInterval();
+            this.heartbeat = lag.getHeartbeat();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Key that = (Key) o;
+            return step == that.step
+                    && interval == that.interval
+                    && heartbeat == that.heartbeat
+                    && aggregation == that.aggregation
+                    && Objects.equals(metric, that.metric);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(metric, aggregation, step, interval, heartbeat);
+        }
+    }
+
+    private static class Range {
+        /** Timestamp of the first cached bucket. */
+        private final long start;
+        /** All buckets before this timestamp are cached. */
+        private final long end;
+        private final ByteBuffer[] chunks;
+        private final int size;
+
+        private Range(long start, long end, ByteBuffer[] chunks, int size) {
+            this.start = start;
+            this.end = end;
+            this.chunks = chunks;
+            this.size = size;
+        }
+    }
+
+    private final int chunkSize;
+    private final int samplesPerChunk;
+    private final int maxChunks;
+    private final LongSupplier clock;
+
+    private final LinkedHashMap<Key, Range> ranges = new LinkedHashMap<>(16, 0.75f, true);
+    private final Deque<ByteBuffer> freeChunks = new ArrayDeque<>();
+    private int allocatedChunks = 0;
+
+    private final Meter hits;
+    private final Meter partialHits;
+    private final Meter misses;
+    private final Meter evictions;
+
+    public SampleRangeCache(long maxSize, int chunkSize, MetricRegistry registry) {
+        this(maxSize, chunkSize, registry, System::currentTimeMillis);
+    }
+
+    SampleRangeCache(long maxSize, int chunkSize, MetricRegistry registry, LongSupplier clock) {
+        if (chunkSize < SAMPLE_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be at least " + SAMPLE_SIZE + " bytes, got " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.samplesPerChunk = chunkSize / SAMPLE_SIZE;
+        this.maxChunks = (int) Math.min(Integer.MAX_VALUE, maxSize / chunkSize);
+        this.clock = Objects.requireNonNull(clock);
+
+        hits = registry.meter("samples.read.cache.hits");
+        partialHits = registry.meter("samples.read.cache.partial-hits");
+        misses = registry.meter("samples.read.cache.misses");
+        evictions = registry.meter("samples.read.cache.evictions");
+        registry.register("samples.read.cache.hit-rate", new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                final long served = hits.getCount() + partialHits.getCount();
+                return Ratio.of(served, served + misses.getCount());
+            }
+        });
+        registry.register("samples.read.cache.size", (Gauge<Long>) this::getBytesHeld);
+        registry.register("samples.read.cache.entries", (Gauge<Integer>) this::getNumEntries);
+    }
+
+    /**
+     * Returns the samples for the given window, using the fetcher to retrieve
+     * the parts of the window that are not (yet) cached.
+     */
+    public List<Sample> get(Key key, Instant start, Instant end, Fetcher fetcher) throws StorageException {
+        final long first = floor(start.toEpochMilli(), key.step);
+        // A full fetch includes the bucket at, or immediately after, the end of the window
+        final long last = floor(end.toEpochMilli() + key.step - 1, key.step);
+
+        final List<Sample> cached;
+        final long cachedEnd;
+        synchronized (this) {
+            final Range range = ranges.get(key);
+            if (range != null && range.start <= first && first < range.end) {
+                cached = read(key.metric, range, first, Math.min(last + 1, range.end));
+                cachedEnd = range.end;
+            } else {
+                cached = null;
+                cachedEnd = 0;
+            }
+        }
+
+        if (cached == null) {
+            misses.mark();
+            final List<Sample> samples = fetcher.fetch(start, end);
+            store(key, first, settledEnd(key, end), samples);
+            return samples;
+        }
+
+        if (last < cachedEnd) {
+            hits.mark();
+            return cached;
+        }
+
+        partialHits.mark();
+        final long tailStart = floor(cachedEnd - key.heartbeat - key.step, key.step);
+        final List<Sample> tail = fetcher.fetch(Instant.ofEpochMilli(tailStart), end);
+        final List<Sample> samples = new ArrayList<>(cached.size() + tail.size());
+        samples.addAll(cached);
+        for (Sample sample : tail) {
+            if (sample.getTime().toEpochMilli() >= cachedEnd) {
+                samples.add(sample);
+            }
+        }
+        store(key, first, settledEnd(key, end), samples);
+        return samples;
+    }
+
+    public synchronized long getBytesHeld() {
+        return (long) (allocatedChunks - freeChunks.size()) * chunkSize;
+    }
+
+    public synchronized int getNumEntries() {
+        return ranges.size();
+    }
+
+    private long settledEnd(Key key, Instant end) {
+        return floor(Math.min(end.toEpochMilli(), clock.getAsLong()) - key.heartbeat, key.step);
+    }
+
+    private synchronized void store(Key key, long start, long end, List<Sample> samples) {
+        if (end <= start) {
+            return;
+        }
+        final Range existing = ranges.get(key);
+        if (existing != null && existing.start <= start && existing.end >= end) {
+            // Nothing new
+            return;
+        }
+
+        final List<Sample> settled = new ArrayList<>(samples.size());
+        for (Sample sample : samples) {
+            final long time = sample.getTime().toEpochMilli();
+            if (time >= start && time < end) {
+                settled.add(sample);
+            }
+        }
+        settled.sort(Comparator.comparing(Sample::getTime));
+
+        final int numChunks = (settled.size() + samplesPerChunk - 1) / samplesPerChunk;
+        if (numChunks > maxChunks) {
+            // Would never fit
+            return;
+        }
+        if (existing != null) {
+            release(ranges.remove(key));
+        }
+        while (freeChunks.size() + maxChunks - allocatedChunks < numChunks) {
+            final Iterator<Map.Entry<Key, Range>> it = ranges.entrySet().iterator();
+            release(it.next().getValue());
+            it.remove();
+            evictions.mark();
+        }
+
+        final ByteBuffer[] chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            chunks[i] = allocate();
+        }
+        for (int i = 0; i < settled.size(); i++) {
+            final Sample sample = settled.get(i);
+            final ByteBuffer chunk = chunks[i / samplesPerChunk];
+            final int offset = (i % samplesPerChunk) * SAMPLE_SIZE;
+            chunk.putLong(offset, sample.getTime().toEpochMilli());
+            chunk.putDouble(offset + Long.BYTES, sample.getValue() != null ? sample.getValue() : Double.NaN);
+        }
+        ranges.put(key, new Range(start, end, chunks, settled.size()));
+    }
+
+    private List<Sample> read(Metric metric, Range range, long from, long to) {
+        // Binary search for the first sample at, or after, the start
+        int lo = 0;
+        int hi = range.size;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (timeAt(range, mid) < from) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        final List<Sample> samples = new ArrayList<>();
+        for (int i = lo; i < range.size; i++) {
+            final long time = timeAt(range, i);
+            if (time >= to) {
+                break;
+            }
+            final ByteBuffer chunk = range.chunks[i / samplesPerChunk];
+            samples.add(ImmutableSample.builder()
+                    .metric(metric)
+                    .time(Instant.ofEpochMilli(time))
+                    .value(chunk.getDouble((i % samplesPerChunk) * SAMPLE_SIZE + Long.BYTES))
+                    .build());
+        }
+        return samples;
+    }
+
+    private long timeAt(Range range, int index) {
+        return range.chunks[index / samplesPerChunk].getLong((index % samplesPerChunk) * SAMPLE_SIZE);
+    }
+
+    private ByteBuffer allocate() {
+        final ByteBuffer chunk = freeChunks.poll();
+        if (chunk != null) {
+            return chunk;
+        }
+        allocatedChunks++;
+        return ByteBuffer.allocateDirect(chunkSize);
+    }
+
+    private void release(Range range) {
+        for (ByteBuffer chunk : range.chunks) {
+            freeChunks.push(chunk);
+        }
+    }
+
+    private static long floor(long timestamp, long step) {
+        return Math.floorDiv(timestamp, step) * step;
+    }
+}
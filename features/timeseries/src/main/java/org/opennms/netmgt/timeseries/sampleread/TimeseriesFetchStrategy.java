@@ -99,6 +99,10 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  * cores, but can be reduced if the operator wishes to ensure cores are available
  * for other purposes.
  *
+ * When "cache.max_size" is set, the aggregated samples are cached off-heap by the
+ * {@link SampleRangeCache}, so that subsequent requests for the same, or a partially
+ * overlapping window only need to fetch the missing tail.
+ *
  * @author jwhite
  */
 public class TimeseriesFetchStrategy implements MeasurementFetchStrategy {
@@ -107,6 +111,10 @@ public class TimeseriesFetchStrategy implements MeasurementFetchStrategy {
 
     public static final int PARALLELISM = SystemProperties.getInteger("org.opennms.timeseries.query.parallelism", Runtime.getRuntime().availableProcessors());
 
+    public static final long CACHE_MAX_SIZE = SystemProperties.getLong("org.opennms.timeseries.query.cache.max_size", 0L);
+
+    public static final int CACHE_CHUNK_SIZE = SystemProperties.getInteger("org.opennms.timeseries.query.cache.chunk_size", 64 * 1024);
+
     private ResourceDao resourceDao;
 
     private final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("TimeseriesFetchStrategy-%d").build();
@@ -119,6 +127,7 @@ public class TimeseriesFetchStrategy implements MeasurementFetchStrategy {
     private TimeseriesStorageManager storageManager;
     private Timer sampleReadTsTimer;
     private Timer sampleReadIntegrationTimer;
+    private SampleRangeCache sampleCache;
 
     // we can only have a non args constructor in order for MeasurementFetchStrategyFactory to instantiate us
     public TimeseriesFetchStrategy(){}
@@ -275,31 +284,41 @@ public class TimeseriesFetchStrategy implements MeasurementFetchStrategy {
                     .intrinsicTag(IntrinsicTagNames.name, metricName)
                     .build();
 
-            Aggregation aggregationToUse = shouldAggregateNatively ? aggregation : Aggregation.NONE;
-            TimeSeriesFetchRequest request = ImmutableTimeSeriesFetchRequest.builder()
-                    .metric(metric)
-                    .start(start)
-                    .end(end)
-                    .step(Duration.ofMillis(lag.getStep()))
-                    .aggregation(aggregationToUse)
-                    .build();
-
-            List<Sample> samples;
-            try (Timer.Context context = sampleReadTsTimer.time()) {
-                LOG.debug("Querying TimeseriesStorage for resource id {} with request: {}", resourceId, request);
-                samples = storageManager.get().getTimeseries(request);
-            }
-            // aggregate if timeseries implementation didn't do it natively
-            if (!shouldAggregateNatively) {
-                final List<Source> currentSources = Collections.singletonList(source);
-                samples = NewtsLikeSampleAggregator.builder()
-                        .resource(resourceId)
-                        .start(start)
-                        .end(end)
+            final Aggregation aggregationToUse = shouldAggregateNatively ? aggregation : Aggregation.NONE;
+            final SampleRangeCache.Fetcher fetcher = (fetchStart, fetchEnd) -> {
+                TimeSeriesFetchRequest request = ImmutableTimeSeriesFetchRequest.builder()
                         .metric(metric)
-                        .currentSources(currentSources)
-                        .lag(lag)
-                        .build().process(samplesToNewtsRowIterator(samples));
+                        .start(fetchStart)
+                        .end(fetchEnd)
+                        .step(Duration.ofMillis(lag.getStep()))
+                        .aggregation(aggregationToUse)
+                        .build();
+
+                List<Sample> samples;
+                try (Timer.Context context = sampleReadTsTimer.time()) {
+                    LOG.debug("Querying TimeseriesStorage for resource id {} with request: {}", resourceId, request);
+                    samples = storageManager.get().getTimeseries(request);
+                }
+                // aggregate if timeseries implementation didn't do it natively
+                if (!shouldAggregateNatively) {
+                    final List<Source> currentSources = Collections.singletonList(source);
+                    samples = NewtsLikeSampleAggregator.builder()
+                            .resource(resourceId)
+                            .start(fetchStart)
+                            .end(fetchEnd)
+                            .metric(metric)
+                            .currentSources(currentSources)
+                            .lag(lag)
+                            .build().process(samplesToNewtsRowIterator(samples));
+                }
+                return samples;
+            };
+
+            final List<Sample> samples;
+            if (sampleCache != null) {
+                samples = sampleCache.get(new SampleRangeCache.Key(metric, aggregation, lag), start, end, fetcher);
+            } else {
+                samples = fetcher.fetch(start, end);
             }
             allSamples.put(source, samples);
         }
@@ -347,6 +366,13 @@ public class TimeseriesFetchStrategy implements MeasurementFetchStrategy {
     protected void setMetricRegistry(@Named("timeseriesMetricRegistry") MetricRegistry registry) {
         this.sampleReadTsTimer = registry.timer("samples.read.ts");
         this.sampleReadIntegrationTimer = registry.timer("samples.read.integration");
+        if (CACHE_MAX_SIZE > 0) {
+            this.sampleCache = new SampleRangeCache(CACHE_MAX_SIZE, CACHE_CHUNK_SIZE, registry);
+        }
+    }
+
+    protected void setSampleCache(SampleRangeCache sampleCache) {
+        this.sampleCache = sampleCache;
     }
 
     private OnmsNode getNode(final OnmsResource resource, final Source source) {
@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.netmgt.timeseries.samplewrite;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.lmax.disruptor.BatchEventProcessor;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.FatalExceptionHandler;
+import com.lmax.disruptor.LifecycleAware;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutBlockingWaitStrategy;
+import com.lmax.disruptor.TimeoutHandler;
+
+/**
+ * A single lane of the {@link TimeseriesWriter} when running in coalescing mode.
+ *
+ * Each lane owns a ring buffer that is consumed by a single thread. The consumer does not
+ * write the batches it receives right away. Instead, it collects the samples of consecutive batches,
+ * grouped by their metric, and hands them to the storage in a single call once either the
+ * maximum number of pending samples is reached or the oldest pending sample has waited for the
+ * coalescing window.
+ *
+ * Since samples are assigned to lanes by their metric, all samples of a metric are written by the
+ * same lane and lanes never contend with each other.
+ */
+class CoalescingWriterLane implements EventHandler<SampleBatchEvent>, TimeoutHandler, LifecycleAware {
+
+    private static final EventTranslatorOneArg<SampleBatchEvent, List<Sample>> TRANSLATOR = (event, sequence, samples) -> event.setSamples(samples);
+
+    private final RingBuffer<SampleBatchEvent> ringBuffer;
+    private final BatchEventProcessor<SampleBatchEvent> processor;
+
+    private final long windowMs;
+    private final int maxBatchSize;
+    private final Consumer<List<Sample>> flusher;
+
+    private final AtomicLong numEntriesOnRingBuffer = new AtomicLong();
+    private final AtomicLong numPendingSamples = new AtomicLong();
+    private final AtomicLong lastFlushLatencyMs = new AtomicLong();
+    private final Timer flushTimer;
+
+    private final CountDownLatch shutdownLatch = new CountDownLatch(1);
+
+    // only accessed by the consumer thread
+    private final Map<Metric, List<Sample>> pending = new LinkedHashMap<>();
+    private int pendingSize = 0;
+    private long oldestPendingMs = 0;
+
+    CoalescingWriterLane(int index, int ringBufferSize, long windowMs, int maxBatchSize,
+                         Consumer<List<Sample>> flusher, MetricRegistry registry) {
+        this.windowMs = windowMs;
+        this.maxBatchSize = maxBatchSize;
+        this.flusher = flusher;
+
+        final String lane = "lane-" + index;
+        registry.register(MetricRegistry.name("ring-buffer", lane, "size"),
+                (Gauge<Long>) numEntriesOnRingBuffer::get);
+        registry.register(MetricRegistry.name("ring-buffer", lane, "pending-samples"),
+                (Gauge<Long>) numPendingSamples::get);
+        registry.register(MetricRegistry.name("ring-buffer", lane, "flush-latency"),
+                (Gauge<Long>) lastFlushLatencyMs::get);
+        flushTimer = registry.timer(MetricRegistry.name("samples.write.ts", lane));
+
+        ringBuffer = RingBuffer.createMultiProducer(SampleBatchEvent::new, ringBufferSize,
+                new TimeoutBlockingWaitStrategy(Math.max(1L, windowMs), TimeUnit.MILLISECONDS));
+        processor = new BatchEventProcessor<>(ringBuffer, ringBuffer.newBarrier(), this);
+        processor.setExceptionHandler(new FatalExceptionHandler());
+        ringBuffer.addGatingSequences(processor.getSequence());
+    }
+
+    void start(Executor executor) {
+        executor.execute(processor);
+    }
+
+    /**
+     * Publishes the given samples to the ring buffer of this lane.
+     *
+     * @return false if the ring buffer is full and the samples were not accepted
+     */
+    boolean publish(List<Sample> samples) {
+        if (!ringBuffer.tryPublishEvent(TRANSLATOR, samples)) {
+            return false;
+        }
+        numEntriesOnRingBuffer.incrementAndGet();
+        return true;
+    }
+
+    boolean hasCapacity() {
+        return ringBuffer.remainingCapacity() > 0;
+    }
+
+    long getNumEntriesOnRingBuffer() {
+        return numEntriesOnRingBuffer.get();
+    }
+
+    long getNumPendingSamples() {
+        return numPendingSamples.get();
+    }
+
+    /**
+     * Waits until all published batches were consumed, stops the consumer and flushes the remaining samples.
+     */
+    void drainAndHalt() {
+        while (processor.getSequence().get() < ringBuffer.getCursor()) {
+            Thread.yield();
+        }
+        processor.halt();
+        try {
+            shutdownLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onEvent(SampleBatchEvent event, long sequence, boolean endOfBatch) {
+        numEntriesOnRingBuffer.decrementAndGet();
+
+        final List<Sample> samples = event.getSamples();
+        event.setSamples(null);
+        if (pendingSize == 0) {
+            oldestPendingMs = System.currentTimeMillis();
+        }
+        for (Sample sample : samples) {
+            pending.computeIfAbsent(sample.getMetric(), m -> new ArrayList<>(4)).add(sample);
+        }
+        pendingSize += samples.size();
+        numPendingSamples.set(pendingSize);
+
+        if (pendingSize >= maxBatchSize || (endOfBatch && isWindowElapsed())) {
+            flush();
+        }
+    }
+
+    @Override
+    public void onTimeout(long sequence) {
+        if (pendingSize > 0 && isWindowElapsed()) {
+            flush();
+        }
+    }
+
+    @Override
+    public void onStart() {
+        // pass
+    }
+
+    @Override
+    public void onShutdown() {
+        flush();
+        shutdownLatch.countDown();
+    }
+
+    private boolean isWindowElapsed() {
+        return System.currentTimeMillis() - oldestPendingMs >= windowMs;
+    }
+
+    private void flush() {
+        if (pendingSize == 0) {
+            return;
+        }
+        // samples of the same metric are kept adjacent
+        final List<Sample> batch = new ArrayList<>(pendingSize);
+        for (List<Sample> samples : pending.values()) {
+            batch.addAll(samples);
+        }
+        pending.clear();
+        pendingSize = 0;
+        numPendingSamples.set(0);
+
+        final Timer.Context context = flushTimer.time();
+        try {
+            flusher.accept(batch);
+        } finally {
+            lastFlushLatencyMs.set(TimeUnit.NANOSECONDS.toMillis(context.stop()));
+        }
+    }
+}
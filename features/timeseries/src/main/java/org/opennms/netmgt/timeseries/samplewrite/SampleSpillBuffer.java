@@ -0,0 +1,331 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.netmgt.timeseries.samplewrite;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.RateLimiter;
+import com.swrve.ratelimitedlogger.RateLimitedLog;
+
+/**
+ * An optional disk-backed buffer for samples that can not be handed to the {@link TimeseriesWriter}'s
+ * ring buffer because the storage does not keep up.
+ *
+ * Spilled samples are appended to a {@link SpillLog}. A replay thread reads them back in order and
+ * offers them to the writer again once it has capacity, at most at the configured replay rate.
+ * While the buffer holds samples, the writer spills all new samples too, so that the order in which
+ * samples reach the storage is retained.
+ *
+ * The buffer is disabled if no directory is configured.
+ */
+public class SampleSpillBuffer implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SampleSpillBuffer.class);
+
+    private static final RateLimitedLog RATE_LIMITED_LOGGER = RateLimitedLog
+            .withRateLimit(LOG)
+            .maxRate(5).every(Duration.ofSeconds(30))
+            .build();
+
+    private static final long IDLE_WAIT_MS = 100;
+
+    private final SpillLog log;
+
+    private final RateLimiter replayRateLimiter;
+
+    private final Meter spilledSamples;
+
+    private final Meter replayedSamples;
+
+    private Thread replayThread;
+
+    private volatile boolean running = false;
+
+    @Inject
+    public SampleSpillBuffer(@Named("timeseries.spill.directory") String directory,
+                             @Named("timeseries.spill.segment_size") Integer segmentSize,
+                             @Named("timeseries.spill.max_segments") Integer maxSegments,
+                             @Named("timeseries.spill.replay_rate") Integer replayRate,
+                             @Named("timeseriesMetricRegistry") MetricRegistry registry) throws IOException {
+        Objects.requireNonNull(registry, "metric registry");
+        if (Strings.isNullOrEmpty(directory)) {
+            log = null;
+            replayRateLimiter = null;
+            spilledSamples = null;
+            replayedSamples = null;
+            return;
+        }
+        log = new SpillLog(Paths.get(directory), segmentSize, maxSegments);
+        replayRateLimiter = replayRate > 0 ? RateLimiter.create(replayRate) : null;
+
+        registry.register(MetricRegistry.name("spill", "capacity"),
+                (Gauge<Long>) log::getCapacity);
+        registry.register(MetricRegistry.name("spill", "size"),
+                (Gauge<Long>) log::getPendingBytes);
+        registry.register(MetricRegistry.name("spill", "segments"),
+                (Gauge<Integer>) log::getNumSegments);
+        registry.register(MetricRegistry.name("spill", "pending-samples"),
+                (Gauge<Long>) log::getPendingCount);
+        registry.register(MetricRegistry.name("spill", "lag"),
+                (Gauge<Long>) this::getLagMs);
+        spilledSamples = registry.meter(MetricRegistry.name("spill", "spilled-samples"));
+        replayedSamples = registry.meter(MetricRegistry.name("spill", "replayed-samples"));
+
+        LOG.debug("Spilling samples to {} using {} segments of {} bytes", directory, maxSegments, segmentSize);
+    }
+
+    public boolean isEnabled() {
+        return log != null;
+    }
+
+    /**
+     * @return true if there are samples that were not replayed yet
+     */
+    public boolean hasBacklog() {
+        return log != null && !log.isEmpty();
+    }
+
+    /**
+     * Appends the given samples to the buffer.
+     *
+     * @return false if the buffer is disabled or full
+     */
+    public boolean spill(List<Sample> samples) {
+        if (log == null) {
+            return false;
+        }
+        try {
+            if (!log.append(encode(samples), samples.size())) {
+                return false;
+            }
+        } catch (IOException e) {
+            RATE_LIMITED_LOGGER.error("Failed to spill samples.", e);
+            return false;
+        }
+        spilledSamples.mark(samples.size());
+        return true;
+    }
+
+    /**
+     * Starts replaying spilled samples.
+     *
+     * @param target accepts the replayed samples; returns false if it can not take them at the moment
+     */
+    public synchronized void start(Predicate<List<Sample>> target) {
+        if (log == null || running) {
+            return;
+        }
+        running = true;
+        replayThread = new Thread(() -> replay(target), "TimeseriesWriter-Spill-Replay");
+        replayThread.setDaemon(true);
+        replayThread.start();
+    }
+
+    private void replay(Predicate<List<Sample>> target) {
+        while (running) {
+            try {
+                final SpillLog.Record record = log.peek();
+                if (record == null) {
+                    Thread.sleep(IDLE_WAIT_MS);
+                    continue;
+                }
+                if (replayRateLimiter != null) {
+                    replayRateLimiter.acquire(Math.max(1, record.getCount()));
+                }
+                final List<Sample> samples = decode(record.getPayload());
+                while (running && !target.test(samples)) {
+                    Thread.sleep(IDLE_WAIT_MS);
+                }
+                if (running) {
+                    log.advance();
+                    replayedSamples.mark(samples.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                RATE_LIMITED_LOGGER.error("Failed to replay spilled samples.", e);
+                try {
+                    Thread.sleep(IDLE_WAIT_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the age of the oldest spilled samples in milliseconds or 0 if there are none
+     */
+    public long getLagMs() {
+        try {
+            final Long oldest = log != null ? log.getOldestTimestamp() : null;
+            return oldest != null ? Math.max(0, System.currentTimeMillis() - oldest) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public long getPendingSamples() {
+        return log != null ? log.getPendingCount() : 0;
+    }
+
+    /**
+     * Stops replaying spilled samples. Samples that were not replayed yet remain in the buffer.
+     */
+    public void stop() throws InterruptedException {
+        final Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = replayThread;
+            replayThread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        stop();
+        if (log != null) {
+            // remaining samples are replayed after the next start
+            log.close();
+        }
+    }
+
+    static byte[] encode(List<Sample> samples) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * samples.size());
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        // samples of a batch usually share their metrics -> write each metric only once
+        final Map<Metric, Integer> metrics = new HashMap<>();
+        final List<Metric> metricList = new ArrayList<>();
+        for (Sample sample : samples) {
+            metrics.computeIfAbsent(sample.getMetric(), m -> {
+                metricList.add(m);
+                return metricList.size() - 1;
+            });
+        }
+        out.writeInt(metricList.size());
+        for (Metric metric : metricList) {
+            writeTags(out, metric.getIntrinsicTags());
+            writeTags(out, metric.getMetaTags());
+            writeTags(out, metric.getExternalTags());
+        }
+        out.writeInt(samples.size());
+        for (Sample sample : samples) {
+            out.writeInt(metrics.get(sample.getMetric()));
+            out.writeLong(sample.getTime().getEpochSecond());
+            out.writeInt(sample.getTime().getNano());
+            out.writeDouble(sample.getValue() != null ? sample.getValue() : Double.NaN);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static List<Sample> decode(byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        final int numMetrics = in.readInt();
+        final List<Metric> metrics = new ArrayList<>(numMetrics);
+        for (int i = 0; i < numMetrics; i++) {
+            metrics.add(ImmutableMetric.builder()
+                    .intrinsicTags(readTags(in))
+                    .metaTags(readTags(in))
+                    .externalTags(readTags(in))
+                    .build());
+        }
+        final int numSamples = in.readInt();
+        final List<Sample> samples = new ArrayList<>(numSamples);
+        for (int i = 0; i < numSamples; i++) {
+            samples.add(ImmutableSample.builder()
+                    .metric(metrics.get(in.readInt()))
+                    .time(Instant.ofEpochSecond(in.readLong(), in.readInt()))
+                    .value(in.readDouble())
+                    .build());
+        }
+        return samples;
+    }
+
+    private static void writeTags(DataOutputStream out, Collection<Tag> tags) throws IOException {
+        out.writeInt(tags.size());
+        for (Tag tag : tags) {
+            // tags without a key only have a value
+            out.writeBoolean(tag.getKey() != null);
+            if (tag.getKey() != null) {
+                out.writeUTF(tag.getKey());
+            }
+            out.writeUTF(tag.getValue());
+        }
+    }
+
+    private static List<Tag> readTags(DataInputStream in) throws IOException {
+        final int numTags = in.readInt();
+        final List<Tag> tags = new ArrayList<>(numTags);
+        for (int i = 0; i < numTags; i++) {
+            final String key = in.readBoolean() ? in.readUTF() : null;
+            tags.add(new ImmutableTag(key, in.readUTF()));
+        }
+        return tags;
+    }
+}
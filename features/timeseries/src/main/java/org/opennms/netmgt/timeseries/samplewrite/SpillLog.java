@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.netmgt.timeseries.samplewrite;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A segmented, memory-mapped append log of opaque records.
+ *
+ * Records are appended to the tail segment and consumed in order from the head segment.
+ * Each segment is a file of fixed size that is mapped into memory when it is opened. The first
+ * bytes of a segment hold the read position, so that consumed records are skipped when the log
+ * is reopened after a restart. Fully consumed segments are deleted.
+ *
+ * Segment layout:
+ * <pre>
+ * | readPosition (8) | record | record | ... | 0 |
+ * </pre>
+ * Record layout:
+ * <pre>
+ * | length (4) | count (4) | timestamp (8) | payload (length) |
+ * </pre>
+ * The length of a record is written last. A zero length marks the end of the written part of a segment.
+ *
+ * All methods are synchronized. The log is designed for many appending threads and a single consumer.
+ */
+public class SpillLog implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpillLog.class);
+
+    private static final String SEGMENT_SUFFIX = ".spill";
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    /**
+     * A record read from the log.
+     */
+    public static class Record {
+        private final byte[] payload;
+        private final int count;
+        private final long timestamp;
+
+        private Record(byte[] payload, int count, long timestamp) {
+            this.payload = payload;
+            this.count = count;
+            this.timestamp = timestamp;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /**
+         * @return the number of elements in the record as given when it was appended
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the time in milliseconds at which the record was appended
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    private static class Segment {
+        private final long id;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int readPosition;
+        private int writePosition;
+
+        private Segment(long id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentId = 0;
+
+    private long pendingRecords = 0;
+    private long pendingCount = 0;
+    private long pendingBytes = 0;
+
+    public SpillLog(Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize is too small: " + segmentSize);
+        }
+        if (maxSegments <= 0) {
+            throw new IllegalArgumentException("maxSegments must be positive");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        final List<Path> paths;
+        try (Stream<Path> files = Files.list(directory)) {
+            paths = files.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted((a, b) -> Long.compare(segmentId(a), segmentId(b)))
+                    .collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            final long id = segmentId(path);
+            if (id < 0) {
+                continue;
+            }
+            final Segment segment = new Segment(id, path, map(path));
+            segment.readPosition = (int) Math.max(SEGMENT_HEADER_SIZE, segment.buffer.getLong(0));
+            segment.writePosition = segment.readPosition;
+            // find the end of the written records
+            while (segment.writePosition + RECORD_HEADER_SIZE <= segmentSize) {
+                final int length = segment.buffer.getInt(segment.writePosition);
+                if (length <= 0 || segment.writePosition + RECORD_HEADER_SIZE + length > segmentSize) {
+                    break;
+                }
+                pendingRecords++;
+                pendingCount += segment.buffer.getInt(segment.writePosition + 4);
+                pendingBytes += RECORD_HEADER_SIZE + length;
+                segment.writePosition += RECORD_HEADER_SIZE + length;
+            }
+            segments.addLast(segment);
+            nextSegmentId = id + 1;
+        }
+        if (!segments.isEmpty()) {
+            LOG.info("Recovered {} spill segment(s) with {} pending record(s) from {}.", segments.size(), pendingRecords, directory);
+        }
+    }
+
+    private static long segmentId(Path path) {
+        final String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * Appends a record to the log.
+     *
+     * @param payload the content of the record
+     * @param count the number of elements contained in the payload; used for bookkeeping only
+     * @return false if the log has reached its capacity or the payload does not fit into a segment
+     */
+    public synchronized boolean append(byte[] payload, int count) throws IOException {
+        final int size = RECORD_HEADER_SIZE + payload.length;
+        if (SEGMENT_HEADER_SIZE + size > segmentSize) {
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.writePosition + size > segmentSize) {
+            if (segments.size() >= maxSegments) {
+                return false;
+            }
+            tail = newSegment();
+        }
+        final ByteBuffer buffer = tail.buffer.duplicate();
+        buffer.position(tail.writePosition + RECORD_HEADER_SIZE);
+        buffer.put(payload);
+        buffer.putInt(tail.writePosition + 4, count);
+        buffer.putLong(tail.writePosition + 8, System.currentTimeMillis());
+        // the length is written last and marks the record as complete
+        buffer.putInt(tail.writePosition, payload.length);
+        tail.writePosition += size;
+
+        pendingRecords++;
+        pendingCount += count;
+        pendingBytes += size;
+        return true;
+    }
+
+    private Segment newSegment() throws IOException {
+        final long id = nextSegmentId++;
+        final Path path = directory.resolve(id + SEGMENT_SUFFIX);
+        // make sure that the segment does not contain stale records
+        Files.deleteIfExists(path);
+        final Segment segment = new Segment(id, path, map(path));
+        segment.buffer.putLong(0, SEGMENT_HEADER_SIZE);
+        segment.readPosition = SEGMENT_HEADER_SIZE;
+        segment.writePosition = SEGMENT_HEADER_SIZE;
+        segments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * Returns the oldest record without consuming it.
+     *
+     * @return the oldest record or null if the log is empty
+     */
+    public synchronized Record peek() throws IOException {
+        final Segment head = head();
+        if (head == null) {
+            return null;
+        }
+        final int length = head.buffer.getInt(head.readPosition);
+        final byte[] payload = new byte[length];
+        final ByteBuffer buffer = head.buffer.duplicate();
+        buffer.position(head.readPosition + RECORD_HEADER_SIZE);
+        buffer.get(payload);
+        return new Record(payload, head.buffer.getInt(head.readPosition + 4), head.buffer.getLong(head.readPosition + 8));
+    }
+
+    /**
+     * Consumes the oldest record.
+     */
+    public synchronized void advance() throws IOException {
+        final Segment head = head();
+        if (head == null) {
+            return;
+        }
+        final int length = head.buffer.getInt(head.readPosition);
+        pendingRecords--;
+        pendingCount -= head.buffer.getInt(head.readPosition + 4);
+        pendingBytes -= RECORD_HEADER_SIZE + length;
+        head.readPosition += RECORD_HEADER_SIZE + length;
+        head.buffer.putLong(0, head.readPosition);
+        if (head.readPosition >= head.writePosition) {
+            // remove consumed segments right away; new records go to a fresh segment
+            delete(segments.pollFirst());
+        }
+    }
+
+    /**
+     * @return the head segment if it contains unconsumed records; consumed segments are removed
+     */
+    private Segment head() throws IOException {
+        Segment head;
+        while ((head = segments.peekFirst()) != null && head.readPosition >= head.writePosition) {
+            delete(segments.pollFirst());
+        }
+        return head;
+    }
+
+    private void delete(Segment segment) throws IOException {
+        Files.deleteIfExists(segment.path);
+    }
+
+    /**
+     * @return the timestamp of the oldest record or null if the log is empty
+     */
+    public synchronized Long getOldestTimestamp() throws IOException {
+        final Segment head = head();
+        return head != null ? head.buffer.getLong(head.readPosition + 8) : null;
+    }
+
+    public synchronized boolean isEmpty() {
+        return pendingRecords == 0;
+    }
+
+    public synchronized long getPendingRecords() {
+        return pendingRecords;
+    }
+
+    /**
+     * @return the sum of the counts of all records that were not consumed yet
+     */
+    public synchronized long getPendingCount() {
+        return pendingCount;
+    }
+
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized int getNumSegments() {
+        return segments.size();
+    }
+
+    public long getCapacity() {
+        return (long) segmentSize * maxSegments;
+    }
+
+    @Override
+    public synchronized void close() {
+        final List<Segment> open = new ArrayList<>(segments);
+        for (Segment segment : open) {
+            segment.buffer.force();
+        }
+        segments.clear();
+    }
+}
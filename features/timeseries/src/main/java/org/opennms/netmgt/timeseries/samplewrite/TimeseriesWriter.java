@@ -29,6 +29,8 @@
 package org.opennms.netmgt.timeseries.samplewrite;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -69,6 +71,14 @@ import com.swrve.ratelimitedlogger.RateLimitedLog;
  * Calls to  publish the samples to a ring buffer so
  * that they don't block while the data is being persisted.
  *
+ * When the number of lanes is positive, the writer runs in coalescing mode: samples are sharded
+ * by their metric onto several independent {@link CoalescingWriterLane}s, each with its own ring buffer
+ * and consumer thread. The lanes coalesce the samples of consecutive batches and write them to the
+ * storage in bulk, either when the maximum batch size is reached or when the coalescing window elapsed.
+ *
+ * If a {@link SampleSpillBuffer} is enabled, samples that do not fit into the ring buffer(s) are spilled
+ * to disk instead of being dropped and replayed once the writer has capacity again.
+ *
  * @author jwhite
  */
 public class TimeseriesWriter implements WorkHandler<SampleBatchEvent>, DisposableBean {
@@ -84,11 +94,18 @@ public class TimeseriesWriter implements WorkHandler<SampleBatchEvent>, Disposab
 
     private RingBuffer<SampleBatchEvent> ringBuffer;
 
+    private CoalescingWriterLane[] lanes;
 
     private final int ringBufferSize;
 
     private final int numWriterThreads;
 
+    private final int numLanes;
+
+    private final long coalesceWindowMs;
+
+    private final int coalesceMaxBatchSize;
+
     private final Meter droppedSamples;
 
     private final Timer sampleWriteTsTimer;
@@ -99,26 +116,44 @@ public class TimeseriesWriter implements WorkHandler<SampleBatchEvent>, Disposab
     @Autowired
     private StatisticsCollector stats;
 
+    private SampleSpillBuffer spillBuffer;
+
     /**
      * The {@link RingBuffer} doesn't appear to expose any methods that indicate the number
      * of elements that are currently "queued", so we keep track of them with this atomic counter.
      */
     private final AtomicLong numEntriesOnRingBuffer = new AtomicLong();
 
+    public TimeseriesWriter(Integer ringBufferSize, Integer numWriterThreads, MetricRegistry registry) {
+        this(ringBufferSize, numWriterThreads, 0, 0L, 0, registry);
+    }
+
     @Inject
     public TimeseriesWriter(@Named("timeseries.ring_buffer_size") Integer ringBufferSize,
-                            @Named("timeseries.writer_threads") Integer numWriterThreads, @Named("timeseriesMetricRegistry") MetricRegistry registry) {
+                            @Named("timeseries.writer_threads") Integer numWriterThreads,
+                            @Named("timeseries.writer_lanes") Integer numLanes,
+                            @Named("timeseries.coalesce_window_ms") Long coalesceWindowMs,
+                            @Named("timeseries.coalesce_max_batch_size") Integer coalesceMaxBatchSize,
+                            @Named("timeseriesMetricRegistry") MetricRegistry registry) {
         Preconditions.checkArgument(ringBufferSize > 0, "ringBufferSize must be positive");
         Preconditions.checkArgument(DoubleMath.isMathematicalInteger(Math.log(ringBufferSize) / Math.log(2)), "ringBufferSize must be a power of two");
         Preconditions.checkArgument(numWriterThreads > 0, "numWriterThreads must be positive");
+        Preconditions.checkArgument(numLanes >= 0, "numLanes must be non-negative");
+        Preconditions.checkArgument(numLanes == 0 || coalesceWindowMs >= 0, "coalesceWindowMs must be non-negative");
+        Preconditions.checkArgument(numLanes == 0 || coalesceMaxBatchSize > 0, "coalesceMaxBatchSize must be positive");
         Preconditions.checkNotNull(registry, "metric registry");
 
         this.ringBufferSize = ringBufferSize;
         this.numWriterThreads = numWriterThreads;
+        this.numLanes = numLanes;
+        this.coalesceWindowMs = coalesceWindowMs;
+        this.coalesceMaxBatchSize = coalesceMaxBatchSize;
         numEntriesOnRingBuffer.set(0L);
 
         registry.register(MetricRegistry.name("ring-buffer", "size"),
-                (Gauge<Long>) numEntriesOnRingBuffer::get);
+                (Gauge<Long>) () -> lanes != null
+                        ? Arrays.stream(lanes).mapToLong(CoalescingWriterLane::getNumEntriesOnRingBuffer).sum()
+                        : numEntriesOnRingBuffer.get());
         registry.register(MetricRegistry.name("ring-buffer", "max-size"),
                 (Gauge<Long>) () -> (long) TimeseriesWriter.this.ringBufferSize);
 
@@ -126,10 +161,29 @@ public class TimeseriesWriter implements WorkHandler<SampleBatchEvent>, Disposab
         sampleWriteTsTimer = registry.timer("samples.write.ts");
 
         LOG.debug("Using ring_buffer_size: {}", this.ringBufferSize);
-        setUpWorkerPool();
+        if (numLanes > 0) {
+            LOG.debug("Using {} coalescing lanes with a window of {}ms and a maximum batch size of {}",
+                    this.numLanes, this.coalesceWindowMs, this.coalesceMaxBatchSize);
+            setUpLanes(registry);
+        } else {
+            setUpWorkerPool();
+        }
 
     }
 
+    private void setUpLanes(MetricRegistry registry) {
+        final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("TimeseriesWriter-Lane-%d").build();
+        final Executor executor = Executors.newFixedThreadPool(numLanes, namedThreadFactory);
+
+        lanes = new CoalescingWriterLane[numLanes];
+        for (int i = 0; i < numLanes; i++) {
+            lanes[i] = new CoalescingWriterLane(i, ringBufferSize, coalesceWindowMs, coalesceMaxBatchSize,
+                    this::write, registry);
+            lanes[i].start(executor);
+        }
+    }
+
     private void setUpWorkerPool() {
         // Executor that will be used to construct new threads for consumers
         final ThreadFactory namedThreadFactory = new ThreadFactoryBuilder()
@@ -155,37 +209,113 @@ public class TimeseriesWriter implements WorkHandler<SampleBatchEvent>, Disposab
 
     @Override
     public void destroy() {
+        if (spillBuffer != null) {
+            try {
+                spillBuffer.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         if (workerPool != null) {
             workerPool.drainAndHalt();
         }
+        if (lanes != null) {
+            for (CoalescingWriterLane lane : lanes) {
+                lane.drainAndHalt();
+            }
+        }
     }
 
     public void insert(List<Sample> samples) {
-        pushToRingBuffer(samples, TRANSLATOR);
+        if (spillBuffer != null && spillBuffer.hasBacklog()) {
+            // keep the order of the samples: they are written after the ones that are already spilled
+            onRingBufferFull(samples);
+            return;
+        }
+        publish(samples);
+    }
+
+    private void publish(List<Sample> samples) {
+        if (lanes != null) {
+            pushToLanes(samples);
+        } else {
+            pushToRingBuffer(samples, TRANSLATOR);
+        }
+    }
+
+    /**
+     * Publishes samples that are replayed by the spill buffer.
+     *
+     * @return false if there is currently no room for them
+     */
+    private boolean replay(List<Sample> samples) {
+        if (lanes != null) {
+            for (CoalescingWriterLane lane : lanes) {
+                if (!lane.hasCapacity()) {
+                    return false;
+                }
+            }
+        } else if (ringBuffer.remainingCapacity() == 0) {
+            return false;
+        }
+        publish(samples);
+        return true;
+    }
+
+    private void pushToLanes(List<Sample> samples) {
+        if (lanes.length == 1) {
+            if (!lanes[0].publish(samples)) {
+                onRingBufferFull(samples);
+            }
+            return;
+        }
+
+        // Shard the samples by their metric so that all samples of a metric are coalesced by the same lane
+        @SuppressWarnings("unchecked")
+        final List<Sample>[] shards = new List[lanes.length];
+        for (Sample sample : samples) {
+            final int lane = Math.floorMod(sample.getMetric().hashCode(), lanes.length);
+            if (shards[lane] == null) {
+                shards[lane] = new ArrayList<>();
+            }
+            shards[lane].add(sample);
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i] != null && !lanes[i].publish(shards[i])) {
+                onRingBufferFull(shards[i]);
+            }
+        }
     }
 
     private void pushToRingBuffer(List<Sample> samples, EventTranslatorOneArg<SampleBatchEvent, List<Sample>> translator) {
         // Add the samples to the ring buffer
         if (!ringBuffer.tryPublishEvent(translator, samples)) {
-            RATE_LIMITED_LOGGER.error("The ring buffer is full. {} samples associated with resource ids {} will be dropped.",
-                    samples.size(), new Object() {
-                        @Override
-                        public String toString() {
-                            // We wrap this in a toString() method to avoid build the string
-                            // unless the log message is actually printed
-                            return samples.stream()
-                                    .map(s -> s.getMetric().getFirstTagByKey(IntrinsicTagNames.resourceId).getValue())
-                                    .distinct()
-                                    .collect(Collectors.joining(", "));
-                        }
-                    });
-            droppedSamples.mark(samples.size());
+            onRingBufferFull(samples);
             return;
         }
         // Increase our entry counter
         numEntriesOnRingBuffer.incrementAndGet();
     }
 
+    private void onRingBufferFull(List<Sample> samples) {
+        if (spillBuffer != null && spillBuffer.spill(samples)) {
+            return;
+        }
+        RATE_LIMITED_LOGGER.error("The ring buffer is full. {} samples associated with resource ids {} will be dropped.",
+                samples.size(), new Object() {
+                    @Override
+                    public String toString() {
+                        // We wrap this in a toString() method to avoid build the string
+                        // unless the log message is actually printed
+                        return samples.stream()
+                                .map(s -> s.getMetric().getFirstTagByKey(IntrinsicTagNames.resourceId).getValue())
+                                .distinct()
+                                .collect(Collectors.joining(", "));
+                    }
+                });
+        droppedSamples.mark(samples.size());
+    }
+
     @Override
     public void onEvent(SampleBatchEvent event) {
         // We'd expect the logs from this thread to be in collectd.log
@@ -194,9 +324,13 @@ public class TimeseriesWriter implements WorkHandler<SampleBatchEvent>, Disposab
         // Decrement our entry counter
         numEntriesOnRingBuffer.decrementAndGet();
 
+        write(event.getSamples());
+    }
+
+    private void write(List<Sample> samples) {
         try(Timer.Context context = this.sampleWriteTsTimer.time()){
-            this.storage.get().store(event.getSamples());
-            this.stats.record(event.getSamples());
+            this.storage.get().store(samples);
+            this.stats.record(samples);
         } catch (Throwable t) {
             RATE_LIMITED_LOGGER.error("An error occurred while inserting samples. Some sample may be lost.", t);
         }
@@ -211,4 +345,14 @@ public class TimeseriesWriter implements WorkHandler<SampleBatchEvent>, Disposab
     public void setStats(StatisticsCollector stats) {
         this.stats = stats;
     }
+
+    @Autowired(required = false)
+    public void setSpillBuffer(SampleSpillBuffer spillBuffer) {
+        if (spillBuffer != null && spillBuffer.isEnabled()) {
+            this.spillBuffer = spillBuffer;
+            spillBuffer.start(this::replay);
+        } else {
+            this.spillBuffer = null;
+        }
+    }
 }
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.netmgt.timeseries.sampleread;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.netmgt.measurements.model.Source;
+import org.opennms.netmgt.timeseries.sampleread.aggregation.NewtsConverterUtils;
+import org.opennms.netmgt.timeseries.sampleread.aggregation.NewtsLikeSampleAggregator;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class SampleRangeCacheTest {
+
+    private static final long STEP = 300 * 1000L;
+    private static final long BASE = 1600000200000L;
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private final LateAggregationParams lag = LateAggregationParams.builder().step(STEP).build();
+
+    private final MetricRegistry registry = new MetricRegistry();
+
+    private final List<Instant[]> fetches = new ArrayList<>();
+
+    private long now = BASE + 24 * HOUR;
+
+    private SampleRangeCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new SampleRangeCache(1024 * 1024, 1024, registry, () -> now);
+    }
+
+    @Test
+    public void canServeRepeatedWindowsFromCache() throws Exception {
+        final Metric metric = metric("a");
+        final SampleRangeCache.Key key = new SampleRangeCache.Key(metric, Aggregation.AVERAGE, lag);
+        final Instant start = Instant.ofEpochMilli(BASE);
+        final Instant end = Instant.ofEpochMilli(BASE + 4 * HOUR);
+
+        final List<Sample> expected = cache.get(key, start, end, (s, e) -> fetch(metric, s, e));
+        assertEquals(1, fetches.size());
+
+        // Narrower windows are served without going back to the storage
+        assertEquals(expected.subList(0, 37), cache.get(key, start, end.minusMillis(HOUR), (s, e) -> fetch(metric, s, e)));
+        assertEquals(expected.subList(12, 25), cache.get(key, start.plusMillis(HOUR), end.minusMillis(2 * HOUR + 1), (s, e) -> fetch(metric, s, e)));
+        assertEquals(1, fetches.size());
+
+        assertEquals(1, registry.meter("samples.read.cache.misses").getCount());
+        assertEquals(2, registry.meter("samples.read.cache.hits").getCount());
+        assertEquals(2.0d / 3.0d, (Double) registry.getGauges().get("samples.read.cache.hit-rate").getValue(), 0.0001d);
+    }
+
+    @Test
+    public void fetchesOnlyTheMissingTail() throws Exception {
+        final Metric metric = metric("a");
+        final SampleRangeCache.Key key = new SampleRangeCache.Key(metric, Aggregation.AVERAGE, lag);
+
+        cache.get(key, Instant.ofEpochMilli(BASE), Instant.ofEpochMilli(BASE + 4 * HOUR), (s, e) -> fetch(metric, s, e));
+
+        // Slide the window by 30 minutes, as a dashboard would
+        final Instant start = Instant.ofEpochMilli(BASE + HOUR / 2);
+        final Instant end = Instant.ofEpochMilli(BASE + 4 * HOUR + HOUR / 2);
+        final List<Sample> samples = cache.get(key, start, end, (s, e) -> fetch(metric, s, e));
+        assertEquals(1, registry.meter("samples.read.cache.partial-hits").getCount());
+
+        // Only the buckets after the heartbeat, plus the look-back, should have been fetched
+        assertEquals(2, fetches.size());
+        final long cachedEnd = floor(BASE + 4 * HOUR - lag.getHeartbeat());
+        assertEquals(Instant.ofEpochMilli(floor(cachedEnd - lag.getHeartbeat() - lag.getStep())), fetches.get(1)[0]);
+        assertEquals(end, fetches.get(1)[1]);
+
+        // The merged samples should match those of a full fetch, with the exception
+        // of the first buckets which lack the look-back in the full fetch
+        final List<Sample> full = fetch(metric, start, end);
+        assertEquals(full.size(), samples.size());
+        assertEquals(full.subList(2, full.size()), samples.subList(2, samples.size()));
+    }
+
+    @Test
+    public void doesNotCacheBucketsThatMayStillChange() throws Exception {
+        final Metric metric = metric("a");
+        final SampleRangeCache.Key key = new SampleRangeCache.Key(metric, Aggregation.AVERAGE, lag);
+        final Instant start = Instant.ofEpochMilli(BASE);
+        final Instant end = Instant.ofEpochMilli(BASE + HOUR);
+
+        // The window ends now, so nothing is settled until a heartbeat has passed
+        now = BASE + lag.getHeartbeat() / 2;
+        cache.get(key, start, end, (s, e) -> fetch(metric, s, e));
+        assertEquals(0, cache.getNumEntries());
+
+        now = BASE + HOUR;
+        cache.get(key, start, end, (s, e) -> fetch(metric, s, e));
+        cache.get(key, start, end, (s, e) -> fetch(metric, s, e));
+        assertEquals(3, fetches.size());
+        assertEquals(1, cache.getNumEntries());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedRanges() throws Exception {
+        // Room for 4 chunks of 64 samples each
+        final MetricRegistry registry = new MetricRegistry();
+        cache = new SampleRangeCache(4 * 1024, 1024, registry, () -> now);
+        final Instant start = Instant.ofEpochMilli(BASE);
+        final Instant end = Instant.ofEpochMilli(BASE + 8 * HOUR);
+
+        final SampleRangeCache.Key a = new SampleRangeCache.Key(metric("a"), Aggregation.AVERAGE, lag);
+        final SampleRangeCache.Key b = new SampleRangeCache.Key(metric("b"), Aggregation.AVERAGE, lag);
+        final SampleRangeCache.Key c = new SampleRangeCache.Key(metric("c"), Aggregation.AVERAGE, lag);
+        cache.get(a, start, end, (s, e) -> fetch(metric("a"), s, e));
+        cache.get(b, start, end, (s, e) -> fetch(metric("b"), s, e));
+        assertEquals(2, cache.getNumEntries());
+        assertEquals(4 * 1024, cache.getBytesHeld());
+
+        // Touch a, so that b is evicted in favor of c
+        cache.get(a, start, end, (s, e) -> fetch(metric("a"), s, e));
+        cache.get(c, start, end, (s, e) -> fetch(metric("c"), s, e));
+        assertEquals(1, registry.meter("samples.read.cache.evictions").getCount());
+        assertThat(cache.getBytesHeld(), lessThanOrEqualTo(4 * 1024L));
+        assertEquals(4 * 1024L, registry.getGauges().get("samples.read.cache.size").getValue());
+
+        fetches.clear();
+        final Instant settled = end.minusMillis(HOUR);
+        cache.get(a, start, settled, (s, e) -> fetch(metric("a"), s, e));
+        cache.get(c, start, settled, (s, e) -> fetch(metric("c"), s, e));
+        assertEquals(0, fetches.size());
+        cache.get(b, start, settled, (s, e) -> fetch(metric("b"), s, e));
+        assertEquals(1, fetches.size());
+    }
+
+    private static long floor(long timestamp) {
+        return timestamp - timestamp % STEP;
+    }
+
+    private static Metric metric(String name) {
+        return ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, "snmp:1:cache")
+                .intrinsicTag(IntrinsicTagNames.name, name)
+                .intrinsicTag(IntrinsicTagNames.mtype, Metric.Mtype.gauge.name())
+                .build();
+    }
+
+    /**
+     * Aggregates a gauge that is collected every minute, the same
+     * way the fetch strategy does it for the storage.
+     */
+    private List<Sample> fetch(Metric metric, Instant start, Instant end) {
+        fetches.add(new Instant[]{start, end});
+        final List<Sample> raw = new ArrayList<>();
+        for (long time = BASE - HOUR + 7000; time <= end.toEpochMilli(); time += 60 * 1000L) {
+            if (time >= start.toEpochMilli()) {
+                raw.add(ImmutableSample.builder()
+                        .metric(metric)
+                        .time(Instant.ofEpochMilli(time))
+                        .value((double) (time / 60000L % 97))
+                        .build());
+            }
+        }
+        final Source source = new Source();
+        source.setAggregation("AVERAGE");
+        source.setAttribute(metric.getFirstTagByKey(IntrinsicTagNames.name).getValue());
+        source.setLabel(source.getAttribute());
+        return NewtsLikeSampleAggregator.builder()
+                .resource(metric.getFirstTagByKey(IntrinsicTagNames.resourceId).getValue())
+                .start(start)
+                .end(end)
+                .metric(metric)
+                .currentSources(Collections.singletonList(source))
+                .lag(lag)
+                .build().process(NewtsConverterUtils.samplesToNewtsRowIterator(raw));
+    }
+}
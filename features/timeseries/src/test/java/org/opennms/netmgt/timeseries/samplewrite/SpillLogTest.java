@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.netmgt.timeseries.samplewrite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import com.google.common.collect.Lists;
+
+public class SpillLogTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void canAppendAndConsumeRecordsInOrder() throws Exception {
+        try (SpillLog log = new SpillLog(tempFolder.getRoot().toPath(), 128, 4)) {
+            for (int i = 0; i < 10; i++) {
+                assertTrue(log.append(bytes("record" + i), i));
+            }
+            assertEquals(10, log.getPendingRecords());
+            assertEquals(45, log.getPendingCount());
+            // records are spread over several segments
+            assertTrue(log.getNumSegments() > 1);
+
+            for (int i = 0; i < 10; i++) {
+                SpillLog.Record record = log.peek();
+                assertArrayEquals(bytes("record" + i), record.getPayload());
+                assertEquals(i, record.getCount());
+                log.advance();
+            }
+            assertNull(log.peek());
+            assertTrue(log.isEmpty());
+            assertEquals(0, log.getNumSegments());
+            assertEquals(0, log.getPendingBytes());
+        }
+    }
+
+    @Test
+    public void rejectsRecordsWhenFull() throws Exception {
+        try (SpillLog log = new SpillLog(tempFolder.getRoot().toPath(), 64, 2)) {
+            // each segment holds a single record of this size
+            assertTrue(log.append(new byte[32], 1));
+            assertTrue(log.append(new byte[32], 1));
+            assertFalse(log.append(new byte[32], 1));
+            // records that exceed the segment size are rejected too
+            assertFalse(log.append(new byte[64], 1));
+
+            // consuming a record frees a segment
+            log.advance();
+            assertTrue(log.append(new byte[32], 1));
+        }
+    }
+
+    @Test
+    public void canRecoverPendingRecords() throws Exception {
+        try (SpillLog log = new SpillLog(tempFolder.getRoot().toPath(), 128, 4)) {
+            for (int i = 0; i < 6; i++) {
+                assertTrue(log.append(bytes("record" + i), 1));
+            }
+            log.advance();
+            log.advance();
+        }
+
+        try (SpillLog log = new SpillLog(tempFolder.getRoot().toPath(), 128, 4)) {
+            assertEquals(4, log.getPendingRecords());
+            for (int i = 2; i < 6; i++) {
+                assertArrayEquals(bytes("record" + i), log.peek().getPayload());
+                log.advance();
+            }
+            assertNull(log.peek());
+
+            // new records are appended after a restart as well
+            assertTrue(log.append(bytes("record6"), 1));
+            assertArrayEquals(bytes("record6"), log.peek().getPayload());
+        }
+    }
+
+    @Test
+    public void canEncodeAndDecodeSpilledSamples() throws Exception {
+        Metric metric = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, "a/b")
+                .intrinsicTag(IntrinsicTagNames.name, "c")
+                .intrinsicTag(IntrinsicTagNames.mtype, Metric.Mtype.counter.name())
+                .metaTag("x", "y")
+                .externalTag("z")
+                .build();
+        List<Sample> samples = Lists.newArrayList(
+                ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(1000)).value(1.0).build(),
+                ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(2000)).value(2.0).build());
+
+        assertEquals(samples, SampleSpillBuffer.decode(SampleSpillBuffer.encode(samples)));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -28,19 +28,28 @@
 
 package org.opennms.netmgt.timeseries.samplewrite;
 
+import static com.jayway.awaitility.Awaitility.await;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.when;
 
 import java.time.Instant;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mockito;
 import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
 import org.opennms.integration.api.v1.timeseries.Metric;
@@ -52,6 +61,7 @@ import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
 import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
 import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
 import org.opennms.netmgt.timeseries.TimeseriesStorageManager;
+import org.opennms.netmgt.timeseries.stats.StatisticsCollector;
 import org.opennms.newts.api.Resource;
 
 import com.codahale.metrics.MetricRegistry;
@@ -62,6 +72,9 @@ public class TimeseriesWriterTest {
 
     private TimeseriesStorageManager storageManager;
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     @Before
     public void setUp(){
         this.storageManager = Mockito.mock(TimeseriesStorageManager.class);
@@ -141,6 +154,133 @@ public class TimeseriesWriterTest {
         assertEquals(ringBufferSize, timeseriesStorage.getNumSamplesInserted());
     }
 
+    /**
+     * Fills the ring buffer while the storage is blocked and verifies that additional samples
+     * are spilled instead of being dropped and replayed once the storage is unblocked.
+     */
+    @Test
+    public void samplesAreSpilledWhenRingBufferIsFull() throws Exception {
+        int ringBufferSize = 1024;
+        int numWriterThreads = 8;
+
+        Lock lock = new ReentrantLock();
+        LockedTimeseriesStorage timeseriesStorage = new LockedTimeseriesStorage(lock);
+        MetricRegistry registry = new MetricRegistry();
+        TimeseriesWriter writer = new TimeseriesWriter(ringBufferSize, numWriterThreads, registry);
+        when(storageManager.get()).thenReturn(timeseriesStorage);
+        writer.setTimeSeriesStorage(storageManager);
+        SampleSpillBuffer spillBuffer = new SampleSpillBuffer(tempFolder.getRoot().getAbsolutePath(), 1024 * 1024, 4, 0, registry);
+        writer.setSpillBuffer(spillBuffer);
+
+        lock.lock();
+        Metric metric = createMetric().build();
+        for (int i = 0; i < ringBufferSize + 100; i++) {
+            Sample s = ImmutableSample.builder()
+                    .metric(metric)
+                    .time(Instant.now())
+                    .value((double)i).build();
+            writer.insert(Lists.newArrayList(s));
+        }
+
+        // Nothing was dropped
+        assertEquals(0, registry.meter(MetricRegistry.name("ring-buffer", "dropped-samples")).getCount());
+        assertThat(spillBuffer.getPendingSamples(), greaterThan(0L));
+
+        // Unlock the writer threads and wait for the spilled samples to be replayed
+        lock.unlock();
+        await().atMost(10, TimeUnit.SECONDS).until(timeseriesStorage::getNumSamplesInserted, equalTo(ringBufferSize + 100));
+        assertEquals(0, spillBuffer.getPendingSamples());
+
+        writer.destroy();
+        spillBuffer.destroy();
+    }
+
+    /**
+     * Verifies that the coalescing writer combines consecutive batches into fewer, larger writes
+     * and that samples of the same metric are always written by the same lane.
+     */
+    @Test
+    public void canCoalesceSamplesInLanes() {
+        int ringBufferSize = 1024;
+        int numLanes = 4;
+        int numMetrics = 16;
+        int numBatches = 100;
+
+        RecordingTimeseriesStorage store = new RecordingTimeseriesStorage();
+        MetricRegistry registry = new MetricRegistry();
+        TimeseriesWriter writer = new TimeseriesWriter(ringBufferSize, 1, numLanes, 60000L, 1000000, registry);
+        when(storageManager.get()).thenReturn(store);
+        writer.setTimeSeriesStorage(storageManager);
+        writer.setStats(Mockito.mock(StatisticsCollector.class));
+
+        for (int i = 0; i < numBatches; i++) {
+            List<Sample> batch = Lists.newArrayList();
+            for (int m = 0; m < numMetrics; m++) {
+                batch.add(ImmutableSample.builder()
+                        .metric(createMetric().intrinsicTag(IntrinsicTagNames.name, "m" + m).build())
+                        .time(Instant.ofEpochMilli(i))
+                        .value((double) i).build());
+            }
+            writer.insert(batch);
+        }
+
+        // nothing is written before the window elapsed or the writer is stopped
+        await().atMost(5, TimeUnit.SECONDS).until(() -> registry.getGauges().get("ring-buffer.size").getValue(), equalTo(0L));
+        assertEquals(0, store.getNumSamplesInserted());
+
+        writer.destroy();
+
+        assertEquals(numBatches * numMetrics, store.getNumSamplesInserted());
+        // each lane did a single write when it was stopped
+        assertThat(store.getWrites().size(), lessThan(numLanes + 1));
+        for (int m = 0; m < numMetrics; m++) {
+            Metric metric = createMetric().intrinsicTag(IntrinsicTagNames.name, "m" + m).build();
+            assertEquals(1, store.getWrites().stream().filter(w -> w.stream().anyMatch(s -> s.getMetric().equals(metric))).count());
+        }
+    }
+
+    /**
+     * Verifies that lanes flush on their own once the coalescing window elapsed.
+     */
+    @Test
+    public void lanesFlushWhenWindowElapsed() {
+        RecordingTimeseriesStorage store = new RecordingTimeseriesStorage();
+        MetricRegistry registry = new MetricRegistry();
+        TimeseriesWriter writer = new TimeseriesWriter(1024, 1, 2, 100L, 1000000, registry);
+        when(storageManager.get()).thenReturn(store);
+        writer.setTimeSeriesStorage(storageManager);
+        writer.setStats(Mockito.mock(StatisticsCollector.class));
+
+        Metric metric = createMetric().build();
+        for (int i = 0; i < 10; i++) {
+            writer.insert(Lists.newArrayList(ImmutableSample.builder()
+                    .metric(metric)
+                    .time(Instant.ofEpochMilli(i))
+                    .value((double) i).build()));
+        }
+
+        await().atMost(5, TimeUnit.SECONDS).until(store::getNumSamplesInserted, equalTo(10));
+        assertEquals(1, store.getWrites().size());
+        writer.destroy();
+    }
+
+    private static class RecordingTimeseriesStorage extends MockTimeSeriesStorage {
+        private final List<List<Sample>> writes = new CopyOnWriteArrayList<>();
+
+        public List<List<Sample>> getWrites() {
+            return writes;
+        }
+
+        public int getNumSamplesInserted() {
+            return writes.stream().mapToInt(List::size).sum();
+        }
+
+        @Override
+        public void store(List<Sample> samples) {
+            writes.add(samples);
+        }
+    }
+
     private static class LatchedTimeseriesStorage extends MockTimeSeriesStorage {
         private final CountDownLatch latch;
 
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.alarmd.api;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.opennms.netmgt.model.OnmsAlarm;
+
+/**
+ * Optional extension of the {@link AlarmLifecycleListener} interface for listeners
+ * that can synchronize their state using only the alarms that changed since
+ * the previous snapshot.
+ *
+ * Listeners implementing this interface are only given the complete set of alarms
+ * in {@link #handleAlarmSnapshot(List)} periodically, as a safety net. The snapshots
+ * in between are delivered to {@link #handleIncrementalAlarmSnapshot(List, Set, Date)}.
+ */
+public interface IncrementalAlarmLifecycleListener extends AlarmLifecycleListener {
+
+    /**
+     * Called periodically, in between calls to {@link #handleAlarmSnapshot(List)}, with the
+     * alarms that were created, reduced, acknowledged, unacknowledged or updated by an
+     * automation since the given time.
+     *
+     * The same considerations apply as for {@link #handleAlarmSnapshot(List)}, and the
+     * {@link #preHandleAlarmSnapshot()} and {@link #postHandleAlarmSnapshot()} callbacks
+     * are invoked in the same way.
+     *
+     * @param changedAlarms alarms in the database that changed since the given time
+     * @param alarmIds ids of all the alarms in the database, used to detect deleted alarms
+     * @param since the alarms that changed on or after this time are included
+     */
+    void handleIncrementalAlarmSnapshot(List<OnmsAlarm> changedAlarms, Set<Integer> alarmIds, Date since);
+
+}
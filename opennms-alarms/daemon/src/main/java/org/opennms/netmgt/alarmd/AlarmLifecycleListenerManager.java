@@ -28,21 +28,34 @@
 
 package org.opennms.netmgt.alarmd;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
+import org.opennms.core.criteria.Criteria;
+import org.opennms.core.criteria.CriteriaBuilder;
+import org.opennms.core.criteria.restrictions.Restriction;
+import org.opennms.core.criteria.restrictions.Restrictions;
 import org.opennms.core.sysprops.SystemProperties;
 import org.opennms.netmgt.alarmd.api.AlarmLifecycleListener;
+import org.opennms.netmgt.alarmd.api.IncrementalAlarmLifecycleListener;
+import org.opennms.netmgt.dao.api.AcknowledgmentDao;
 import org.opennms.netmgt.dao.api.AlarmDao;
 import org.opennms.netmgt.dao.api.AlarmEntityListener;
 import org.opennms.netmgt.dao.api.SessionUtils;
+import org.opennms.netmgt.model.OnmsAcknowledgment;
 import org.opennms.netmgt.model.OnmsAlarm;
 import org.opennms.netmgt.model.OnmsMemo;
 import org.opennms.netmgt.model.OnmsReductionKeyMemo;
@@ -63,12 +76,36 @@ public class AlarmLifecycleListenerManager implements AlarmEntityListener, Initi
     public static final String ALARM_SNAPSHOT_INTERVAL_MS_SYS_PROP = "org.opennms.alarms.snapshot.sync.ms";
     public static final long ALARM_SNAPSHOT_INTERVAL_MS = SystemProperties.getLong(ALARM_SNAPSHOT_INTERVAL_MS_SYS_PROP, TimeUnit.MINUTES.toMillis(2));
 
+    /**
+     * Listeners implementing {@link IncrementalAlarmLifecycleListener} are only given the complete
+     * set of alarms at this interval. The snapshots in between only include the alarms that changed.
+     * Set this to a value smaller than or equal to the snapshot interval to always perform complete snapshots.
+     */
+    public static final String ALARM_FULL_SNAPSHOT_INTERVAL_MS_SYS_PROP = "org.opennms.alarms.snapshot.full-sync.ms";
+    public static final long ALARM_FULL_SNAPSHOT_INTERVAL_MS = SystemProperties.getLong(ALARM_FULL_SNAPSHOT_INTERVAL_MS_SYS_PROP, TimeUnit.MINUTES.toMillis(30));
+
+    /**
+     * Incremental snapshots include the alarms that changed since the start of the previous snapshot,
+     * minus this margin, to account for transactions which were still in flight at that time.
+     */
+    public static final String ALARM_SNAPSHOT_OVERLAP_MS_SYS_PROP = "org.opennms.alarms.snapshot.overlap.ms";
+    public static final long ALARM_SNAPSHOT_OVERLAP_MS = SystemProperties.getLong(ALARM_SNAPSHOT_OVERLAP_MS_SYS_PROP, TimeUnit.MINUTES.toMillis(1));
+
     private final Set<AlarmLifecycleListener> listeners = Sets.newConcurrentHashSet();
     private Timer timer;
 
+    private long fullSnapshotIntervalMs = ALARM_FULL_SNAPSHOT_INTERVAL_MS;
+    private long snapshotOverlapMs = ALARM_SNAPSHOT_OVERLAP_MS;
+
+    // Snapshot progress of every registered listener, only used for the incremental ones
+    private final Map<AlarmLifecycleListener, SnapshotState> snapshotStates = new ConcurrentHashMap<>();
+
     @Autowired
     private AlarmDao alarmDao;
 
+    @Autowired
+    private AcknowledgmentDao acknowledgmentDao;
+
     @Autowired
     private SessionUtils sessionUtils;
 
@@ -96,6 +133,7 @@ public class AlarmLifecycleListenerManager implements AlarmEntityListener, Initi
     }
 
     protected void doSnapshot() {
+        final List<AlarmLifecycleListener> listeners = new ArrayList<>(this.listeners);
         if (listeners.size() < 1) {
             return;
         }
@@ -103,35 +141,155 @@ public class AlarmLifecycleListenerManager implements AlarmEntityListener, Initi
         final AtomicLong numAlarms = new AtomicLong(-1);
         final long systemMillisBeforeSnapshot = System.currentTimeMillis();
         final AtomicLong systemMillisAfterLoad = new AtomicLong(-1);
+
+        // Determine which listeners can be given an incremental snapshot, and since when
+        final Map<AlarmLifecycleListener, Date> incrementalSince = new HashMap<>();
+        for (AlarmLifecycleListener listener : listeners) {
+            final SnapshotState state = snapshotStates.get(listener);
+            if (listener instanceof IncrementalAlarmLifecycleListener && state != null && isIncremental(state, systemMillisBeforeSnapshot)) {
+                incrementalSince.put(listener, new Date(state.lastSnapshotMs - snapshotOverlapMs));
+            }
+        }
+        final boolean incremental = !incrementalSince.isEmpty();
+        final boolean full = incrementalSince.size() < listeners.size();
+        final Date since = incremental ? Collections.min(incrementalSince.values()) : null;
+
+        final Set<AlarmLifecycleListener> failed = new HashSet<>();
         try {
-            forEachListener(AlarmLifecycleListener::preHandleAlarmSnapshot);
+            failed.addAll(forEachListener(listeners, AlarmLifecycleListener::preHandleAlarmSnapshot));
             sessionUtils.withTransaction(() -> {
-               // Load all of the alarms
-               final List<OnmsAlarm> allAlarms = alarmDao.findAll();
-               numAlarms.set(allAlarms.size());
-               // Save the timestamp after the load, so we can differentiate between how long it took
-               // to load the alarms and how long it took to invoke the callbacks
-               systemMillisAfterLoad.set(System.currentTimeMillis());
-               forEachListener(l -> {
-                   LOG.debug("Calling handleAlarmSnapshot on listener: {}", l);
-                   l.handleAlarmSnapshot(allAlarms);
-                   LOG.debug("Done calling listener.");
-               });
-               return null;
+                // Only load all of the alarms if at least one of the listeners needs them
+                final List<OnmsAlarm> allAlarms = full ? alarmDao.findAll() : null;
+
+                final List<OnmsAcknowledgment> acks;
+                final List<OnmsAlarm> changedAlarms;
+                final Set<Integer> alarmIds;
+                if (!incremental) {
+                    acks = null;
+                    changedAlarms = null;
+                    alarmIds = null;
+                    numAlarms.set(allAlarms.size());
+                } else {
+                    // Alarms acknowledged or unacknowledged since the oldest snapshot of the listeners
+                    acks = acknowledgmentDao.findLatestAcks(since);
+                    final Set<Integer> ackedAlarmIds = acks.stream()
+                            .map(OnmsAcknowledgment::getRefId)
+                            .collect(Collectors.toSet());
+                    if (allAlarms != null) {
+                        alarmIds = allAlarms.stream().map(OnmsAlarm::getId).collect(Collectors.toSet());
+                        changedAlarms = allAlarms.stream()
+                                .filter(a -> isAlarmChangedSince(a, since, ackedAlarmIds))
+                                .collect(Collectors.toList());
+                    } else {
+                        alarmIds = new HashSet<>(alarmDao.getAlarmIds());
+                        changedAlarms = alarmDao.findMatching(getAlarmsChangedSinceCriteria(since, ackedAlarmIds));
+                    }
+                    numAlarms.set(full ? allAlarms.size() : changedAlarms.size());
+                }
+
+                // Save the timestamp after the load, so we can differentiate between how long it took
+                // to load the alarms and how long it took to invoke the callbacks
+                systemMillisAfterLoad.set(System.currentTimeMillis());
+                failed.addAll(forEachListener(listeners, l -> {
+                    final Date listenerSince = incrementalSince.get(l);
+                    if (listenerSince != null) {
+                        // Listeners which are further ahead only get the alarms changed since their own snapshot
+                        final List<OnmsAlarm> listenerChangedAlarms;
+                        if (listenerSince.equals(since)) {
+                            listenerChangedAlarms = changedAlarms;
+                        } else {
+                            final Set<Integer> ackedAlarmIds = getAckedAlarmIds(acks, listenerSince);
+                            listenerChangedAlarms = changedAlarms.stream()
+                                    .filter(a -> isAlarmChangedSince(a, listenerSince, ackedAlarmIds))
+                                    .collect(Collectors.toList());
+                        }
+                        LOG.debug("Calling handleIncrementalAlarmSnapshot on listener: {}", l);
+                        ((IncrementalAlarmLifecycleListener)l).handleIncrementalAlarmSnapshot(listenerChangedAlarms, alarmIds, listenerSince);
+                    } else {
+                        LOG.debug("Calling handleAlarmSnapshot on listener: {}", l);
+                        l.handleAlarmSnapshot(allAlarms);
+                    }
+                    LOG.debug("Done calling listener.");
+                }));
+                return null;
             });
+
+            // Listeners which failed to handle the snapshot may have missed changes, force a full snapshot next time
+            for (AlarmLifecycleListener listener : listeners) {
+                final SnapshotState state = snapshotStates.get(listener);
+                if (state == null) {
+                    continue;
+                }
+                if (failed.contains(listener)) {
+                    state.lastSnapshotMs = -1;
+                    state.lastFullSnapshotMs = -1;
+                } else {
+                    state.lastSnapshotMs = systemMillisBeforeSnapshot;
+                    if (!incrementalSince.containsKey(listener)) {
+                        state.lastFullSnapshotMs = systemMillisBeforeSnapshot;
+                    }
+                }
+            }
         } finally {
             if (LOG.isDebugEnabled()) {
                 final long now = System.currentTimeMillis();
-                LOG.debug("Alarm snapshot for {} alarms completed. Spent {}ms loading the alarms. " +
+                LOG.debug("{} alarm snapshot for {} alarms completed. Spent {}ms loading the alarms. " +
                                 "Snapshot processing took a total of of {}ms.",
+                        full ? "Full" : "Incremental",
                         numAlarms.get(),
                         systemMillisAfterLoad.get() - systemMillisBeforeSnapshot,
                         now - systemMillisBeforeSnapshot);
             }
-            forEachListener(AlarmLifecycleListener::postHandleAlarmSnapshot);
+            forEachListener(listeners, AlarmLifecycleListener::postHandleAlarmSnapshot);
         }
     }
 
+    /**
+     * Only perform an incremental snapshot if a previous snapshot succeeded, and the last full snapshot is recent enough.
+     */
+    private boolean isIncremental(SnapshotState state, long now) {
+        return state.lastSnapshotMs >= 0 && state.lastFullSnapshotMs >= 0
+                && fullSnapshotIntervalMs > ALARM_SNAPSHOT_INTERVAL_MS
+                && now - state.lastFullSnapshotMs < fullSnapshotIntervalMs;
+    }
+
+    private static Set<Integer> getAckedAlarmIds(List<OnmsAcknowledgment> acks, Date since) {
+        return acks.stream()
+                .filter(ack -> isOnOrAfter(ack.getAckTime(), since))
+                .map(OnmsAcknowledgment::getRefId)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Used to determine whether or not the given alarm should be included in an incremental
+     * snapshot. Must match the criteria built by {@link #getAlarmsChangedSinceCriteria(Date, Set)}.
+     */
+    protected static boolean isAlarmChangedSince(OnmsAlarm alarm, Date since, Set<Integer> ackedAlarmIds) {
+        return isOnOrAfter(alarm.getFirstEventTime(), since)
+                || isOnOrAfter(alarm.getLastEventTime(), since)
+                || isOnOrAfter(alarm.getAlarmAckTime(), since)
+                || isOnOrAfter(alarm.getLastAutomationTime(), since)
+                || ackedAlarmIds.contains(alarm.getId());
+    }
+
+    private static boolean isOnOrAfter(Date date, Date since) {
+        return date != null && !date.before(since);
+    }
+
+    private static Criteria getAlarmsChangedSinceCriteria(Date since, Set<Integer> ackedAlarmIds) {
+        final List<Restriction> restrictions = new ArrayList<>();
+        restrictions.add(Restrictions.ge("firstEventTime", since));
+        restrictions.add(Restrictions.ge("lastEventTime", since));
+        restrictions.add(Restrictions.ge("alarmAckTime", since));
+        restrictions.add(Restrictions.ge("lastAutomationTime", since));
+        if (!ackedAlarmIds.isEmpty()) {
+            restrictions.add(Restrictions.in("id", ackedAlarmIds));
+        }
+        return new CriteriaBuilder(OnmsAlarm.class)
+                .or(restrictions.toArray(new Restriction[0]))
+                .toCriteria();
+    }
+
     public void onNewOrUpdatedAlarm(OnmsAlarm alarm) {
         forEachListener(l -> l.handleNewOrUpdatedAlarm(alarm));
     }
@@ -207,23 +365,36 @@ public class AlarmLifecycleListenerManager implements AlarmEntityListener, Initi
     }
 
     private void forEachListener(Consumer<AlarmLifecycleListener> callback) {
+        forEachListener(listeners, callback);
+    }
+
+    /**
+     * @return the listeners which failed to handle the callback
+     */
+    private static Set<AlarmLifecycleListener> forEachListener(Iterable<AlarmLifecycleListener> listeners, Consumer<AlarmLifecycleListener> callback) {
+        final Set<AlarmLifecycleListener> failed = new HashSet<>();
         for (AlarmLifecycleListener listener : listeners) {
             try {
                 callback.accept(listener);
             } catch (Exception e) {
                 LOG.error("Error occurred while invoking listener: {}. Skipping.", listener, e);
+                failed.add(listener);
             }
         }
+        return failed;
     }
 
     public void onListenerRegistered(final AlarmLifecycleListener listener, final Map<String,String> properties) {
         LOG.debug("onListenerRegistered: {} with properties: {}", listener, properties);
+        // Newly registered listeners always start with a full snapshot
+        snapshotStates.put(listener, new SnapshotState());
         listeners.add(listener);
     }
 
     public void onListenerUnregistered(final AlarmLifecycleListener listener, final Map<String,String> properties) {
         LOG.debug("onListenerUnregistered: {} with properties: {}", listener, properties);
         listeners.remove(listener);
+        snapshotStates.remove(listener);
     }
 
     public void setAlarmDao(AlarmDao alarmDao) {
@@ -234,6 +405,18 @@ public class AlarmLifecycleListenerManager implements AlarmEntityListener, Initi
         this.sessionUtils = sessionUtils;
     }
 
+    public void setAcknowledgmentDao(AcknowledgmentDao acknowledgmentDao) {
+        this.acknowledgmentDao = acknowledgmentDao;
+    }
+
+    public void setFullSnapshotIntervalMs(long fullSnapshotIntervalMs) {
+        this.fullSnapshotIntervalMs = fullSnapshotIntervalMs;
+    }
+
+    public void setSnapshotOverlapMs(long snapshotOverlapMs) {
+        this.snapshotOverlapMs = snapshotOverlapMs;
+    }
+
     @Override
     public void afterPropertiesSet() {
         start();
@@ -244,4 +427,10 @@ public class AlarmLifecycleListenerManager implements AlarmEntityListener, Initi
         stop();
     }
 
+    private static class SnapshotState {
+        // Start time of the last successful snapshot, and of the last successful full snapshot
+        private long lastSnapshotMs = -1;
+        private long lastFullSnapshotMs = -1;
+    }
+
 }
@@ -33,6 +33,7 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -92,6 +93,9 @@ public class AlarmPersisterImpl implements AlarmPersister {
     @Autowired
     private AlarmEntityNotifier m_alarmEntityNotifier;
 
+    @Autowired(required = false)
+    private ReductionKeyIndex m_reductionKeyIndex;
+
     private Striped<Lock> lockStripes = StripedExt.fairLock(NUM_STRIPE_LOCKS);
 
     private final Set<AlarmPersisterExtension> extensions = Sets.newConcurrentHashSet();
@@ -114,12 +118,29 @@ public class AlarmPersisterImpl implements AlarmPersister {
         // Lock both the reduction and clear keys (if set) using a fair striped lock
         // We do this to ensure that clears and triggers are processed in the same order
         // as the calls are made
-        final Iterable<Lock> locks = lockStripes.bulkGet(getLockKeys(event));
+        final Collection<String> lockKeys = getLockKeys(event);
+        final Iterable<Lock> locks = lockStripes.bulkGet(lockKeys);
         final OnmsAlarm alarm;
         try {
             locks.forEach(Lock::lock);
             // Process the alarm inside a transaction
-            alarm = m_transactionOperations.execute((action) -> addOrReduceEventAsAlarm(event));
+            final Set<String> keysWithoutAlarms = new HashSet<>();
+            try {
+                alarm = m_transactionOperations.execute((action) -> addOrReduceEventAsAlarm(event, keysWithoutAlarms));
+            } catch (RuntimeException e) {
+                // We don't know which changes made it to the database, if any
+                if (isReductionKeyIndexReady()) {
+                    lockKeys.forEach(m_reductionKeyIndex::invalidate);
+                }
+                throw e;
+            }
+            // Update the index while we still hold the locks, no other alarms can be created with these keys
+            if (isReductionKeyIndexReady()) {
+                keysWithoutAlarms.stream().filter(lockKeys::contains).forEach(m_reductionKeyIndex::remove);
+                if (alarm != null && alarm.getId() != null) {
+                    m_reductionKeyIndex.put(alarm.getReductionKey(), alarm.getId());
+                }
+            }
         } finally {
             locks.forEach(Lock::unlock);
         }
@@ -127,7 +148,7 @@ public class AlarmPersisterImpl implements AlarmPersister {
         return alarm;
     }
 
-    private OnmsAlarm addOrReduceEventAsAlarm(Event event) throws IllegalStateException {
+    private OnmsAlarm addOrReduceEventAsAlarm(Event event, Set<String> keysWithoutAlarms) throws IllegalStateException {
         
         final OnmsEvent persistedEvent = m_eventDao.get(event.getDbid());
         if (persistedEvent == null) {
@@ -146,11 +167,11 @@ public class AlarmPersisterImpl implements AlarmPersister {
             didSwapReductionKeyWithClearKey = true;
         }
 
-        OnmsAlarm alarm = m_alarmDao.findByReductionKey(key);
+        OnmsAlarm alarm = findByReductionKey(key, keysWithoutAlarms);
 
         if (alarm == null && didSwapReductionKeyWithClearKey) {
             // if the clearKey returns null, still need to check the reductionKey
-            alarm = m_alarmDao.findByReductionKey(reductionKey);
+            alarm = findByReductionKey(reductionKey, keysWithoutAlarms);
         }
 
         if (alarm == null || (m_createNewAlarmIfClearedAlarmExists && OnmsSeverity.CLEARED.equals(alarm.getSeverity()))) {
@@ -392,7 +413,44 @@ public class AlarmPersisterImpl implements AlarmPersister {
         }
         Set<String> reductionKeys = list.stream().filter(AlarmPersisterImpl::isRelatedReductionKeyWithContent).map(p -> p.getValue().getContent()).collect(Collectors.toSet());
         // Only existing alarms are returned. Reduction Keys for non-existing alarms are dropped.
-        return reductionKeys.stream().map(reductionKey -> m_alarmDao.findByReductionKey(reductionKey)).filter(Objects::nonNull).collect(Collectors.toSet());
+        return reductionKeys.stream().map(reductionKey -> findByReductionKey(reductionKey, new HashSet<>())).filter(Objects::nonNull).collect(Collectors.toSet());
+    }
+
+    /**
+     * Retrieves the alarm with the given reduction key, using the {@link ReductionKeyIndex} when available.
+     *
+     * @param reductionKey the reduction key
+     * @param keysWithoutAlarms the reduction key is added to this set if we had to query
+     *                          the database, and no alarm was found
+     * @return the alarm, or null if there is no alarm with the given reduction key
+     */
+    private OnmsAlarm findByReductionKey(String reductionKey, Set<String> keysWithoutAlarms) {
+        if (!isReductionKeyIndexReady()) {
+            return m_alarmDao.findByReductionKey(reductionKey);
+        }
+
+        final Integer alarmId = m_reductionKeyIndex.get(reductionKey);
+        if (alarmId == null) {
+            // No alarm uses this key
+            return null;
+        } else if (alarmId != ReductionKeyIndex.UNKNOWN) {
+            // Load the alarm by id, making sure it still uses the same key
+            final OnmsAlarm alarm = m_alarmDao.get(alarmId);
+            if (alarm != null && reductionKey.equals(alarm.getReductionKey())) {
+                return alarm;
+            }
+        }
+
+        LOG.debug("findByReductionKey: reductionKey:{} is not indexed, querying the database", reductionKey);
+        final OnmsAlarm alarm = m_alarmDao.findByReductionKey(reductionKey);
+        if (alarm == null) {
+            keysWithoutAlarms.add(reductionKey);
+        }
+        return alarm;
+    }
+
+    private boolean isReductionKeyIndexReady() {
+        return m_reductionKeyIndex != null && m_reductionKeyIndex.isReady();
     }
 
     private static boolean isRelatedReductionKeyWithContent(Parm param) {
@@ -495,6 +553,14 @@ public class AlarmPersisterImpl implements AlarmPersister {
         return m_eventUtil;
     }
 
+    public ReductionKeyIndex getReductionKeyIndex() {
+        return m_reductionKeyIndex;
+    }
+
+    public void setReductionKeyIndex(ReductionKeyIndex reductionKeyIndex) {
+        m_reductionKeyIndex = reductionKeyIndex;
+    }
+
     public AlarmEntityNotifier getAlarmChangeListener() {
         return m_alarmEntityNotifier;
     }
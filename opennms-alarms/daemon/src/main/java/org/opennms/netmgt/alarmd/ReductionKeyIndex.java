@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.alarmd;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opennms.core.sysprops.SystemProperties;
+import org.opennms.netmgt.dao.api.AlarmDao;
+import org.opennms.netmgt.dao.api.DefaultAlarmEntityListener;
+import org.opennms.netmgt.model.OnmsAlarm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionOperations;
+
+/**
+ * Index of reduction keys to alarm ids, used by the {@link AlarmPersisterImpl} to avoid
+ * querying the alarms by reduction key for every alarm-bearing event.
+ *
+ * The index is populated with the existing alarms when it is initialized, and is then kept
+ * up to date by the persister, which records the alarm that was created or reduced once
+ * the transaction completed, while still holding the locks for the event's keys.
+ * Alarms that are archived or deleted elsewhere only invalidate their entry, so that the
+ * next lookup for that key goes to the database.
+ *
+ * Entries that reference an alarm are verified by the persister when the alarm is loaded,
+ * so a stale entry only costs the original query. Keys which are not in the index
+ * are known not to reference any alarm.
+ */
+public class ReductionKeyIndex extends DefaultAlarmEntityListener implements InitializingBean {
+    private static final Logger LOG = LoggerFactory.getLogger(ReductionKeyIndex.class);
+
+    public static final String ENABLED_SYS_PROP = "org.opennms.alarmd.reductionKeyIndex";
+
+    /**
+     * Value used for keys that may or may not reference an alarm.
+     */
+    public static final int UNKNOWN = -1;
+
+    private final Map<String, Integer> alarmIdsByReductionKey = new ConcurrentHashMap<>();
+
+    private volatile boolean ready = false;
+
+    private boolean enabled = SystemProperties.getBooleanWithDefaultAsTrue(ENABLED_SYS_PROP);
+
+    @Autowired
+    private AlarmDao alarmDao;
+
+    @Autowired
+    private TransactionOperations transactionOperations;
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            LOG.info("The reduction key index is disabled. Alarms will be looked up by reduction key.");
+            return;
+        }
+        try {
+            final Map<String, Integer> alarmIds = transactionOperations.execute(status -> alarmDao.getAlarmIdsByReductionKey());
+            // Keys that were invalidated while we were loading take precedence
+            alarmIds.forEach(alarmIdsByReductionKey::putIfAbsent);
+            ready = true;
+            LOG.info("Indexed the reduction keys of {} alarms.", alarmIds.size());
+        } catch (Exception e) {
+            LOG.warn("Failed to index the reduction keys of the existing alarms. Alarms will be looked up by reduction key.", e);
+        }
+    }
+
+    /**
+     * Used to determine whether or not the index can be used for lookups.
+     *
+     * @return true if the index was successfully populated, false otherwise
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Retrieves the id of the alarm with the given reduction key.
+     *
+     * @param reductionKey the reduction key
+     * @return the id of the alarm, {@link #UNKNOWN} if the database must be queried,
+     * or null if there is no alarm with the given reduction key
+     */
+    public Integer get(String reductionKey) {
+        return alarmIdsByReductionKey.get(reductionKey);
+    }
+
+    /**
+     * Records the alarm that currently uses the given reduction key.
+     */
+    public void put(String reductionKey, int alarmId) {
+        alarmIdsByReductionKey.put(reductionKey, alarmId);
+    }
+
+    /**
+     * Records that there is no alarm using the given reduction key.
+     */
+    public void remove(String reductionKey) {
+        alarmIdsByReductionKey.remove(reductionKey);
+    }
+
+    /**
+     * Forces the next lookup for the given reduction key to go to the database.
+     */
+    public void invalidate(String reductionKey) {
+        if (reductionKey != null) {
+            alarmIdsByReductionKey.put(reductionKey, UNKNOWN);
+        }
+    }
+
+    public int size() {
+        return alarmIdsByReductionKey.size();
+    }
+
+    @Override
+    public void onAlarmArchived(OnmsAlarm alarm, String previousReductionKey) {
+        invalidate(previousReductionKey);
+    }
+
+    @Override
+    public void onAlarmDeleted(OnmsAlarm alarm) {
+        invalidate(alarm.getReductionKey());
+    }
+
+    public void setAlarmDao(AlarmDao alarmDao) {
+        this.alarmDao = alarmDao;
+    }
+
+    public void setTransactionOperations(TransactionOperations transactionOperations) {
+        this.transactionOperations = transactionOperations;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+}
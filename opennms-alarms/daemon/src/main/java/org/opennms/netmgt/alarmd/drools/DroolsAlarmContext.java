@@ -43,6 +43,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
@@ -56,6 +57,7 @@ import org.opennms.core.utils.ConfigFileConstants;
 import org.opennms.netmgt.alarmd.Alarmd;
 import org.opennms.netmgt.alarmd.api.AlarmCallbackStateTracker;
 import org.opennms.netmgt.alarmd.api.AlarmLifecycleListener;
+import org.opennms.netmgt.alarmd.api.IncrementalAlarmLifecycleListener;
 import org.opennms.netmgt.dao.api.AcknowledgmentDao;
 import org.opennms.netmgt.dao.api.AlarmDao;
 import org.opennms.netmgt.model.AckAction;
@@ -87,7 +89,7 @@ import com.swrve.ratelimitedlogger.RateLimitedLog;
  *
  * @author jwhite
  */
-public class DroolsAlarmContext extends ManagedDroolsContext implements AlarmLifecycleListener {
+public class DroolsAlarmContext extends ManagedDroolsContext implements IncrementalAlarmLifecycleListener {
     private static final Logger LOG = LoggerFactory.getLogger(DroolsAlarmContext.class);
 
     private static final RateLimitedLog RATE_LIMITED_LOGGER = RateLimitedLog
@@ -116,7 +118,8 @@ public class DroolsAlarmContext extends ManagedDroolsContext implements AlarmLif
 
     private final AlarmCallbackStateTracker stateTracker = new AlarmCallbackStateTracker();
 
-    private final Map<Integer, AlarmAndFact> alarmsById = new HashMap<>();
+    // Only modified by atomic actions, but also read when preparing incremental snapshots
+    private final Map<Integer, AlarmAndFact> alarmsById = new ConcurrentHashMap<>();
 
     private final Map<Integer, AlarmAcknowledgementAndFact> acknowledgementsByAlarmId = new HashMap<>();
 
@@ -127,15 +130,22 @@ public class DroolsAlarmContext extends ManagedDroolsContext implements AlarmLif
     private final AtomicLong atomicActionsInFlight = new AtomicLong(-1);
     private final AtomicLong numAlarmsFromLastSnapshot = new AtomicLong(-1);
     private final AtomicLong numSituationsFromLastSnapshot = new AtomicLong(-1);
+    private final AtomicLong numChangedAlarmsFromLastSnapshot = new AtomicLong(-1);
     private final Meter atomicActionsDropped = new Meter();
     private final Meter atomicActionsQueued = new Meter();
 
+    private boolean seedOnStart = true;
+
     public DroolsAlarmContext() {
         this(getDefaultRulesFolder());
     }
 
     public DroolsAlarmContext(File rulesFolder) {
-        super(rulesFolder, Alarmd.NAME, "DroolsAlarmContext");
+        this(rulesFolder, Alarmd.NAME);
+    }
+
+    public DroolsAlarmContext(File rulesFolder, String kbaseName) {
+        super(rulesFolder, kbaseName, "DroolsAlarmContext");
         setOnNewKiewSessionCallback(kieSession -> {
             kieSession.setGlobal("alarmService", alarmService);
             kieSession.insert(alarmTicketerService);
@@ -165,12 +175,14 @@ public class DroolsAlarmContext extends ManagedDroolsContext implements AlarmLif
             atomicActionsInFlight.set(0L);
             numAlarmsFromLastSnapshot.set(-1L);
             numSituationsFromLastSnapshot.set(-1L);
+            numChangedAlarmsFromLastSnapshot.set(-1L);
         });
 
         // Register metrics
         getMetrics().register("atomicActionsInFlight", (Gauge<Long>) atomicActionsInFlight::get);
         getMetrics().register("numAlarmsFromLastSnapshot", (Gauge<Long>) numAlarmsFromLastSnapshot::get);
         getMetrics().register("numSituationsFromLastSnapshot", (Gauge<Long>) numSituationsFromLastSnapshot::get);
+        getMetrics().register("numChangedAlarmsFromLastSnapshot", (Gauge<Long>) numChangedAlarmsFromLastSnapshot::get);
         getMetrics().register("atomicActionsDropped", atomicActionsDropped);
         getMetrics().register("atomicActionsQueued", atomicActionsQueued);
     }
@@ -181,6 +193,11 @@ public class DroolsAlarmContext extends ManagedDroolsContext implements AlarmLif
 
     @Override
     public void onStart() {
+        if (!seedOnStart) {
+            // The alarms are provided by someone else
+            seedSubmittedLatch.countDown();
+            return;
+        }
         final Thread seedThread = new Thread(() -> {
             // Seed the engine with the current set of alarms asynchronously
             // We do this async since we don't want to block the whole system from starting up
@@ -288,6 +305,7 @@ public class DroolsAlarmContext extends ManagedDroolsContext implements AlarmLif
         final long numSituations = alarms.stream().filter(OnmsAlarm::isSituation).count();
         numAlarmsFromLastSnapshot.set(alarms.size() - numSituations);
         numSituationsFromLastSnapshot.set(numSituations);
+        numChangedAlarmsFromLastSnapshot.set(alarms.size());
 
         submitOrRun(kieSession -> {
             final Set<Integer> alarmIdsInDb = alarmsInDbById.keySet();
@@ -357,6 +375,82 @@ public class DroolsAlarmContext extends ManagedDroolsContext implements AlarmLif
         });
     }
 
+    @Override
+    public void handleIncrementalAlarmSnapshot(List<OnmsAlarm> changedAlarms, Set<Integer> alarmIds, Date since) {
+        if (!isStarted()) {
+            LOG.debug("Ignoring incremental alarm snapshot. Drools session is stopped.");
+            return;
+        }
+
+        LOG.debug("Handling incremental snapshot for {} changed alarms out of {} alarms.", changedAlarms.size(), alarmIds.size());
+        final Map<Integer, OnmsAlarm> changedAlarmsById = changedAlarms.stream()
+                .filter(a -> a.getId() != null)
+                .collect(Collectors.toMap(OnmsAlarm::getId, a -> a));
+
+        // Eagerly initialize the alarms
+        for (OnmsAlarm alarm : changedAlarms) {
+            eagerlyInitializeAlarm(alarm);
+        }
+
+        // Retrieve the acks that changed since the given time. The acks of the other alarms are
+        // unchanged, so we only need to retrieve these for alarms which are not yet in working memory.
+        final Map<Integer, OnmsAcknowledgment> acksByRefId = acknowledgmentDao.findLatestAcks(since).stream()
+                .filter(ack -> changedAlarmsById.containsKey(ack.getRefId()))
+                .collect(Collectors.toMap(OnmsAcknowledgment::getRefId, ack -> ack));
+        acksByRefId.putAll(fetchAcks(changedAlarms.stream()
+                .filter(a -> !acksByRefId.containsKey(a.getId()) && !alarmsById.containsKey(a.getId()))
+                .collect(Collectors.toList())));
+
+        numChangedAlarmsFromLastSnapshot.set(changedAlarmsById.size());
+
+        submitOrRun(kieSession -> {
+            final Set<Integer> alarmIdsInWorkingMem = alarmsById.keySet();
+
+            final Set<Integer> alarmIdsToRemove = Sets.difference(alarmIdsInWorkingMem, alarmIds).stream()
+                    // Same as for full snapshots, only remove alarms which were not updated since
+                    .filter(alarmId -> !stateTracker.wasAlarmWithIdUpdated(alarmId))
+                    .collect(Collectors.toSet());
+            final Set<OnmsAlarm> alarmsToUpdate = changedAlarmsById.values().stream()
+                    .filter(alarmInDb -> {
+                        final AlarmAndFact alarmAndFact = alarmsById.get(alarmInDb.getId());
+                        if (alarmAndFact == null) {
+                            // Only add the alarm if it was not explicitly deleted after the snapshot was taken
+                            return !stateTracker.wasAlarmWithIdDeleted(alarmInDb.getId());
+                        }
+                        // Don't bother updating the alarm in memory if the fact we have is more recent than the snapshot
+                        return !stateTracker.wasAlarmWithIdUpdated(alarmInDb.getId())
+                                && shouldUpdateAlarmForSnapshot(alarmAndFact.getAlarm(), alarmInDb);
+                    })
+                    .collect(Collectors.toSet());
+
+            if (LOG.isDebugEnabled()) {
+                if (!alarmIdsToRemove.isEmpty() || !alarmsToUpdate.isEmpty()) {
+                    LOG.debug("Removing {} alarms and adding or updating {} alarms for incremental snapshot.",
+                            alarmIdsToRemove.size(), alarmsToUpdate.size());
+                } else {
+                    LOG.debug("No actions to perform for incremental alarm snapshot.");
+                }
+            }
+
+            for (Integer alarmIdToRemove : alarmIdsToRemove) {
+                handleDeletedAlarmForAtomic(kieSession, alarmIdToRemove, alarmsById.get(alarmIdToRemove).getAlarm().getReductionKey());
+            }
+
+            for (OnmsAlarm alarm : alarmsToUpdate) {
+                OnmsAcknowledgment ack = acksByRefId.get(alarm.getId());
+                if (ack == null) {
+                    // The ack did not change, keep the one we have
+                    final AlarmAcknowledgementAndFact ackAndFact = acknowledgementsByAlarmId.get(alarm.getId());
+                    ack = ackAndFact != null ? ackAndFact.getAcknowledgement() : createDefaultAck(alarm);
+                }
+                handleNewOrUpdatedAlarmForAtomic(kieSession, alarm, ack);
+            }
+
+            stateTracker.resetStateAndStopTrackingAlarms();
+            LOG.debug("Done handling incremental snapshot.");
+        });
+    }
+
     @Override
     public void postHandleAlarmSnapshot() {
         // pass
@@ -433,19 +527,21 @@ public class DroolsAlarmContext extends ManagedDroolsContext implements AlarmLif
         // Handle all the alarms that no ack could be found for by generating a default ack
         acksById.putAll(alarms.stream()
                 .filter(alarm -> !acksById.containsKey(alarm.getId()))
-                .collect(Collectors.toMap(OnmsAlarm::getId, alarm -> {
-                    // For the purpose of making rule writing easier, we fake an
-                    // Un-Acknowledgment for Alarms that have never been Acknowledged.
-                    OnmsAcknowledgment ack = new OnmsAcknowledgment(alarm, DefaultAlarmService.DEFAULT_USER,
-                            alarm.getFirstEventTime());
-                    ack.setAckAction(AckAction.UNACKNOWLEDGE);
-                    ack.setId(0);
-                    return ack;
-                })));
+                .collect(Collectors.toMap(OnmsAlarm::getId, DroolsAlarmContext::createDefaultAck)));
 
         return acksById;
     }
 
+    private static OnmsAcknowledgment createDefaultAck(OnmsAlarm alarm) {
+        // For the purpose of making rule writing easier, we fake an
+        // Un-Acknowledgment for Alarms that have never been Acknowledged.
+        OnmsAcknowledgment ack = new OnmsAcknowledgment(alarm, DefaultAlarmService.DEFAULT_USER,
+                alarm.getFirstEventTime());
+        ack.setAckAction(AckAction.UNACKNOWLEDGE);
+        ack.setId(0);
+        return ack;
+    }
+
     private void eagerlyInitializeAlarm(OnmsAlarm alarm) {
         // Initialize any related objects that are needed for rule execution
         Hibernate.initialize(alarm.getAssociatedAlarms());
@@ -565,14 +661,26 @@ public class DroolsAlarmContext extends ManagedDroolsContext implements AlarmLif
         }
     }
 
+    public AlarmService getAlarmService() {
+        return alarmService;
+    }
+
     public void setAlarmService(AlarmService alarmService) {
         this.alarmService = alarmService;
     }
 
+    public AcknowledgmentDao getAcknowledgmentDao() {
+        return acknowledgmentDao;
+    }
+
     public void setAcknowledgmentDao(AcknowledgmentDao acknowledgmentDao) {
         this.acknowledgmentDao = acknowledgmentDao;
     }
 
+    public AlarmTicketerService getAlarmTicketerService() {
+        return alarmTicketerService;
+    }
+
     public void setAlarmTicketerService(AlarmTicketerService alarmTicketerService) {
         this.alarmTicketerService = alarmTicketerService;
     }
@@ -587,11 +695,26 @@ public class DroolsAlarmContext extends ManagedDroolsContext implements AlarmLif
         seedSubmittedLatch.await();
     }
 
+    public TransactionTemplate getTransactionTemplate() {
+        return template;
+    }
+
     public void setTransactionTemplate(TransactionTemplate template) {
         this.template = template;
     }
 
+    public AlarmDao getAlarmDao() {
+        return alarmDao;
+    }
+
     public void setAlarmDao(AlarmDao alarmDao) {
         this.alarmDao = alarmDao;
     }
+
+    /**
+     * Used to disable the initial seed, when the alarms are provided by someone else.
+     */
+    public void setSeedOnStart(boolean seedOnStart) {
+        this.seedOnStart = seedOnStart;
+    }
 }
@@ -403,6 +403,10 @@ public class ManagedDroolsContext {
         this.usePseudoClock = usePseudoClock;
     }
 
+    public boolean isUseManualTick() {
+        return useManualTick;
+    }
+
     public void setUseManualTick(boolean useManualTick) {
         this.useManualTick = useManualTick;
     }
@@ -0,0 +1,408 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.alarmd.drools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.opennms.core.sysprops.SystemProperties;
+import org.opennms.netmgt.alarmd.Alarmd;
+import org.opennms.netmgt.model.OnmsAlarm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * A {@link DroolsAlarmContext} that spreads the alarms over several Drools sessions,
+ * allowing the rules to be evaluated on several cores.
+ *
+ * Every partition is a complete {@link DroolsAlarmContext}, with its own session and thread,
+ * loaded with the same rules. The alarms are hashed to the partitions by node id, or
+ * by reduction key. When hashing by reduction key, alarms with a clear key are hashed using
+ * their clear key, so that problems and their resolutions end up in the same session. Alarms
+ * without a node are always hashed by key.
+ *
+ * The rules for situations join the facts of several alarms, so situations are kept in the
+ * session of this context, which acts as the coordinator, along with all of the alarms related
+ * to them. Alarms move to the coordinator when they are added to a situation, and move back to
+ * their partition on their next update, or on the next snapshot, once they are no longer
+ * related to any situation.
+ *
+ * Rules that join unrelated alarms across nodes (or keys) will only match when those alarms
+ * happen to be in the same partition.
+ *
+ * @see DroolsAlarmContext
+ */
+public class PartitionedDroolsAlarmContext extends DroolsAlarmContext {
+    private static final Logger LOG = LoggerFactory.getLogger(PartitionedDroolsAlarmContext.class);
+
+    public static final String NUM_PARTITIONS_SYS_PROP = "org.opennms.netmgt.alarmd.drools.partitions";
+
+    public static final String PARTITION_BY_SYS_PROP = "org.opennms.netmgt.alarmd.drools.partition_by";
+
+    public enum PartitionBy {
+        NODE,
+        REDUCTION_KEY
+    }
+
+    /**
+     * Used to identify the alarms that are in the session of the coordinator.
+     */
+    private static final int COORDINATOR = -1;
+
+    private final File rulesFolder;
+
+    private int numPartitions = SystemProperties.getInteger(NUM_PARTITIONS_SYS_PROP, Runtime.getRuntime().availableProcessors());
+
+    private PartitionBy partitionBy = PartitionBy.valueOf(System.getProperty(PARTITION_BY_SYS_PROP, PartitionBy.NODE.name()).toUpperCase());
+
+    private volatile List<DroolsAlarmContext> partitions = Collections.emptyList();
+
+    // Guards the maps below, which are used to route the alarms
+    private final Object routingLock = new Object();
+
+    private final Map<Integer, Set<Integer>> relatedAlarmIdsBySituationId = new HashMap<>();
+
+    private final Map<Integer, Set<Integer>> situationIdsByRelatedAlarmId = new HashMap<>();
+
+    private final Map<Integer, Integer> partitionByAlarmId = new HashMap<>();
+
+    public PartitionedDroolsAlarmContext() {
+        this(getDefaultRulesFolder());
+    }
+
+    public PartitionedDroolsAlarmContext(File rulesFolder) {
+        super(rulesFolder);
+        this.rulesFolder = Objects.requireNonNull(rulesFolder);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (partitions.isEmpty()) {
+            final List<DroolsAlarmContext> newPartitions = new ArrayList<>(numPartitions);
+            for (int i = 0; i < Math.max(numPartitions, 1); i++) {
+                final DroolsAlarmContext partition = new DroolsAlarmContext(rulesFolder, String.format("%s-partition%d", Alarmd.NAME, i));
+                partition.setAlarmService(getAlarmService());
+                partition.setAcknowledgmentDao(getAcknowledgmentDao());
+                partition.setAlarmTicketerService(getAlarmTicketerService());
+                partition.setTransactionTemplate(getTransactionTemplate());
+                partition.setAlarmDao(getAlarmDao());
+                partition.setUsePseudoClock(isUsePseudoClock());
+                partition.setUseManualTick(isUseManualTick());
+                // We seed the partitions ourselves
+                partition.setSeedOnStart(false);
+                newPartitions.add(partition);
+            }
+            partitions = Collections.unmodifiableList(newPartitions);
+            LOG.info("Using {} partitions for alarms, partitioned by {}.", partitions.size(), partitionBy);
+        }
+        // Start the partitions first, the coordinator seeds all of the sessions when it starts
+        partitions.forEach(DroolsAlarmContext::start);
+        super.start();
+    }
+
+    @Override
+    public synchronized void reload() {
+        if (!isStarted()) {
+            start();
+            return;
+        }
+        partitions.forEach(DroolsAlarmContext::reload);
+        super.reload();
+    }
+
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        partitions.forEach(DroolsAlarmContext::stop);
+    }
+
+    @Override
+    public void tick() {
+        super.tick();
+        partitions.forEach(DroolsAlarmContext::tick);
+    }
+
+    @Override
+    public void preHandleAlarmSnapshot() {
+        super.preHandleAlarmSnapshot();
+        partitions.forEach(DroolsAlarmContext::preHandleAlarmSnapshot);
+    }
+
+    @Override
+    public void postHandleAlarmSnapshot() {
+        super.postHandleAlarmSnapshot();
+        partitions.forEach(DroolsAlarmContext::postHandleAlarmSnapshot);
+    }
+
+    @Override
+    public void handleAlarmSnapshot(List<OnmsAlarm> alarms) {
+        if (!isStarted()) {
+            super.handleAlarmSnapshot(alarms);
+            return;
+        }
+
+        final List<List<OnmsAlarm>> alarmsByPartition = newListPerPartition();
+        final List<OnmsAlarm> alarmsForCoordinator = new ArrayList<>();
+        synchronized (routingLock) {
+            // Rebuild the routes from scratch
+            relatedAlarmIdsBySituationId.clear();
+            situationIdsByRelatedAlarmId.clear();
+            partitionByAlarmId.clear();
+            alarms.stream().filter(OnmsAlarm::isSituation).forEach(this::indexSituation);
+            for (OnmsAlarm alarm : alarms) {
+                final int partition = getPartitionFor(alarm);
+                partitionByAlarmId.put(alarm.getId(), partition);
+                (partition == COORDINATOR ? alarmsForCoordinator : alarmsByPartition.get(partition)).add(alarm);
+            }
+        }
+
+        // Each context removes the alarms that are not in its share of the snapshot
+        super.handleAlarmSnapshot(alarmsForCoordinator);
+        for (int i = 0; i < partitions.size(); i++) {
+            partitions.get(i).handleAlarmSnapshot(alarmsByPartition.get(i));
+        }
+    }
+
+    @Override
+    public void handleIncrementalAlarmSnapshot(List<OnmsAlarm> changedAlarms, Set<Integer> alarmIds, Date since) {
+        if (!isStarted()) {
+            super.handleIncrementalAlarmSnapshot(changedAlarms, alarmIds, since);
+            return;
+        }
+
+        final List<List<OnmsAlarm>> alarmsByPartition = newListPerPartition();
+        final List<OnmsAlarm> alarmsForCoordinator = new ArrayList<>();
+        final List<Set<Integer>> alarmIdsByPartition = new ArrayList<>(partitions.size());
+        final Set<Integer> alarmIdsForCoordinator = new HashSet<>();
+        synchronized (routingLock) {
+            // Forget about the alarms which no longer exist
+            partitionByAlarmId.keySet().retainAll(alarmIds);
+            new HashSet<>(relatedAlarmIdsBySituationId.keySet()).stream()
+                    .filter(situationId -> !alarmIds.contains(situationId))
+                    .forEach(this::unindexSituation);
+
+            final Map<Integer, OnmsAlarm> alarmsToRoute = new HashMap<>();
+            for (OnmsAlarm alarm : changedAlarms) {
+                alarmsToRoute.put(alarm.getId(), alarm);
+                if (alarm.isSituation()) {
+                    indexSituation(alarm);
+                    // Related alarms which did not change may still need to move to the coordinator
+                    alarm.getRelatedAlarms().stream()
+                            .filter(related -> !Objects.equals(partitionByAlarmId.get(related.getId()), COORDINATOR))
+                            .forEach(related -> alarmsToRoute.putIfAbsent(related.getId(), related));
+                }
+            }
+            for (OnmsAlarm alarm : alarmsToRoute.values()) {
+                final int partition = getPartitionFor(alarm);
+                partitionByAlarmId.put(alarm.getId(), partition);
+                (partition == COORDINATOR ? alarmsForCoordinator : alarmsByPartition.get(partition)).add(alarm);
+            }
+
+            // Only give each context the ids of the alarms it should have, so that alarms
+            // which moved elsewhere are removed from it
+            for (int i = 0; i < partitions.size(); i++) {
+                alarmIdsByPartition.add(new HashSet<>());
+            }
+            for (Integer alarmId : alarmIds) {
+                final Integer partition = partitionByAlarmId.get(alarmId);
+                if (partition == null) {
+                    alarmIdsForCoordinator.add(alarmId);
+                    alarmIdsByPartition.forEach(ids -> ids.add(alarmId));
+                } else if (partition == COORDINATOR) {
+                    alarmIdsForCoordinator.add(alarmId);
+                } else {
+                    alarmIdsByPartition.get(partition).add(alarmId);
+                }
+            }
+        }
+
+        super.handleIncrementalAlarmSnapshot(alarmsForCoordinator, alarmIdsForCoordinator, since);
+        for (int i = 0; i < partitions.size(); i++) {
+            partitions.get(i).handleIncrementalAlarmSnapshot(alarmsByPartition.get(i), alarmIdsByPartition.get(i), since);
+        }
+    }
+
+    @Override
+    public void handleNewOrUpdatedAlarm(OnmsAlarm alarm) {
+        if (!isStarted()) {
+            super.handleNewOrUpdatedAlarm(alarm);
+            return;
+        }
+
+        final List<Route> routes = new ArrayList<>();
+        synchronized (routingLock) {
+            if (alarm.isSituation()) {
+                indexSituation(alarm);
+                // Move the related alarms to the coordinator
+                for (OnmsAlarm related : alarm.getRelatedAlarms()) {
+                    final Integer previousPartition = partitionByAlarmId.put(related.getId(), COORDINATOR);
+                    if (!Objects.equals(previousPartition, COORDINATOR)) {
+                        routes.add(new Route(related, previousPartition, COORDINATOR));
+                    }
+                }
+            }
+            final int partition = getPartitionFor(alarm);
+            routes.add(new Route(alarm, partitionByAlarmId.put(alarm.getId(), partition), partition));
+        }
+
+        for (Route route : routes) {
+            if (route.from != null && route.from != route.to) {
+                LOG.debug("Moving alarm with id: {} from partition {} to {}.", route.alarm.getId(), route.from, route.to);
+                handleDeletedAlarm(route.from, route.alarm.getId(), route.alarm.getReductionKey());
+            }
+            if (route.to == COORDINATOR) {
+                super.handleNewOrUpdatedAlarm(route.alarm);
+            } else {
+                partitions.get(route.to).handleNewOrUpdatedAlarm(route.alarm);
+            }
+        }
+    }
+
+    @Override
+    public void handleDeletedAlarm(int alarmId, String reductionKey) {
+        if (!isStarted()) {
+            super.handleDeletedAlarm(alarmId, reductionKey);
+            return;
+        }
+
+        final Integer partition;
+        synchronized (routingLock) {
+            partition = partitionByAlarmId.remove(alarmId);
+            unindexSituation(alarmId);
+        }
+
+        if (partition == null) {
+            // We don't know where the alarm is, if anywhere
+            super.handleDeletedAlarm(alarmId, reductionKey);
+            partitions.forEach(p -> p.handleDeletedAlarm(alarmId, reductionKey));
+        } else {
+            handleDeletedAlarm(partition, alarmId, reductionKey);
+        }
+    }
+
+    private void handleDeletedAlarm(int partition, int alarmId, String reductionKey) {
+        if (partition == COORDINATOR) {
+            super.handleDeletedAlarm(alarmId, reductionKey);
+        } else {
+            partitions.get(partition).handleDeletedAlarm(alarmId, reductionKey);
+        }
+    }
+
+    /**
+     * Must be called while holding the routing lock.
+     */
+    private int getPartitionFor(OnmsAlarm alarm) {
+        if (alarm.isSituation() || situationIdsByRelatedAlarmId.containsKey(alarm.getId())) {
+            return COORDINATOR;
+        }
+        final Object key;
+        if (partitionBy == PartitionBy.NODE && alarm.getNodeId() != null) {
+            key = alarm.getNodeId();
+        } else if (alarm.getClearKey() != null) {
+            key = alarm.getClearKey();
+        } else {
+            key = alarm.getReductionKey();
+        }
+        return Math.floorMod(Objects.hashCode(key), partitions.size());
+    }
+
+    /**
+     * Must be called while holding the routing lock.
+     */
+    private void indexSituation(OnmsAlarm situation) {
+        unindexSituation(situation.getId());
+        final Set<Integer> relatedAlarmIds = situation.getRelatedAlarmIds();
+        relatedAlarmIdsBySituationId.put(situation.getId(), relatedAlarmIds);
+        for (Integer relatedAlarmId : relatedAlarmIds) {
+            situationIdsByRelatedAlarmId.computeIfAbsent(relatedAlarmId, id -> new HashSet<>()).add(situation.getId());
+        }
+    }
+
+    /**
+     * Must be called while holding the routing lock.
+     */
+    private void unindexSituation(Integer situationId) {
+        final Set<Integer> relatedAlarmIds = relatedAlarmIdsBySituationId.remove(situationId);
+        if (relatedAlarmIds == null) {
+            return;
+        }
+        for (Integer relatedAlarmId : relatedAlarmIds) {
+            final Set<Integer> situationIds = situationIdsByRelatedAlarmId.get(relatedAlarmId);
+            if (situationIds != null) {
+                situationIds.remove(situationId);
+                if (situationIds.isEmpty()) {
+                    situationIdsByRelatedAlarmId.remove(relatedAlarmId);
+                }
+            }
+        }
+    }
+
+    private List<List<OnmsAlarm>> newListPerPartition() {
+        final List<List<OnmsAlarm>> lists = new ArrayList<>(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            lists.add(new ArrayList<>());
+        }
+        return lists;
+    }
+
+    @VisibleForTesting
+    public List<DroolsAlarmContext> getPartitions() {
+        return partitions;
+    }
+
+    public void setNumPartitions(int numPartitions) {
+        this.numPartitions = numPartitions;
+    }
+
+    public void setPartitionBy(PartitionBy partitionBy) {
+        this.partitionBy = Objects.requireNonNull(partitionBy);
+    }
+
+    private static class Route {
+        private final OnmsAlarm alarm;
+        private final Integer from;
+        private final int to;
+
+        private Route(OnmsAlarm alarm, Integer from, int to) {
+            this.alarm = alarm;
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
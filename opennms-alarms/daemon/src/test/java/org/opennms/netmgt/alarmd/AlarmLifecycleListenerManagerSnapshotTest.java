@@ -29,20 +29,34 @@
 package org.opennms.netmgt.alarmd;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
+import org.opennms.core.criteria.Criteria;
 import org.opennms.netmgt.alarmd.api.AlarmLifecycleListener;
+import org.opennms.netmgt.alarmd.api.IncrementalAlarmLifecycleListener;
+import org.opennms.netmgt.dao.api.AcknowledgmentDao;
 import org.opennms.netmgt.dao.api.AlarmDao;
 import org.opennms.netmgt.dao.mock.MockSessionUtils;
+import org.opennms.netmgt.model.OnmsAcknowledgment;
 import org.opennms.netmgt.model.OnmsAlarm;
 
 import com.google.common.collect.Maps;
@@ -138,4 +152,199 @@ public class AlarmLifecycleListenerManagerSnapshotTest {
         assertThat(newUpdateOrDeleteAfterSnapshot.get(), equalTo(0));
         assertThat(newUpdateOrDeleteDuringSnapshot.get(), equalTo(2));
     }
+
+    /**
+     * Verifies that listeners implementing {@link IncrementalAlarmLifecycleListener} are
+     * given a complete snapshot first, and only the alarms that changed on subsequent
+     * snapshots, while other listeners keep receiving complete snapshots.
+     */
+    @Test
+    public void canIssueIncrementalSnapshots() {
+        final long now = System.currentTimeMillis();
+        final OnmsAlarm unchangedAlarm = createAlarm(1, new Date(now - TimeUnit.HOURS.toMillis(1)));
+        final OnmsAlarm reducedAlarm = createAlarm(2, new Date(now - TimeUnit.HOURS.toMillis(1)));
+        reducedAlarm.setLastEventTime(new Date(now));
+        final OnmsAlarm ackedAlarm = createAlarm(3, new Date(now - TimeUnit.HOURS.toMillis(1)));
+
+        final OnmsAcknowledgment ack = new OnmsAcknowledgment(ackedAlarm, "admin");
+        final AcknowledgmentDao acknowledgmentDao = mock(AcknowledgmentDao.class);
+        when(acknowledgmentDao.findLatestAcks(any(Date.class))).thenReturn(Collections.singletonList(ack));
+
+        final AlarmDao alarmDao = mock(AlarmDao.class);
+        when(alarmDao.findAll()).thenReturn(Arrays.asList(unchangedAlarm, reducedAlarm, ackedAlarm));
+
+        final RecordingListener listener = new RecordingListener();
+        final RecordingIncrementalListener incrementalListener = new RecordingIncrementalListener();
+
+        final AlarmLifecycleListenerManager alm = new AlarmLifecycleListenerManager();
+        alm.setAlarmDao(alarmDao);
+        alm.setAcknowledgmentDao(acknowledgmentDao);
+        alm.setSessionUtils(new MockSessionUtils());
+        alm.setFullSnapshotIntervalMs(TimeUnit.DAYS.toMillis(1));
+        alm.setSnapshotOverlapMs(TimeUnit.MINUTES.toMillis(1));
+        alm.onListenerRegistered(listener, Maps.newHashMap());
+        alm.onListenerRegistered(incrementalListener, Maps.newHashMap());
+
+        // The first snapshot is always a full snapshot
+        alm.doSnapshot();
+        assertThat(listener.snapshots, contains(Arrays.asList(unchangedAlarm, reducedAlarm, ackedAlarm)));
+        assertThat(incrementalListener.snapshots, contains(Arrays.asList(unchangedAlarm, reducedAlarm, ackedAlarm)));
+        assertThat(incrementalListener.incrementalSnapshots.size(), equalTo(0));
+
+        // The next snapshot is incremental for the incremental listener only
+        alm.doSnapshot();
+        assertThat(listener.snapshots.size(), equalTo(2));
+        assertThat(incrementalListener.snapshots.size(), equalTo(1));
+        assertThat(incrementalListener.incrementalSnapshots, contains(containsInAnyOrder(reducedAlarm, ackedAlarm)));
+        assertThat(incrementalListener.alarmIds, containsInAnyOrder(1, 2, 3));
+
+        // Full snapshots are issued once again when disabled
+        alm.setFullSnapshotIntervalMs(0);
+        alm.doSnapshot();
+        assertThat(listener.snapshots.size(), equalTo(3));
+        assertThat(incrementalListener.snapshots.size(), equalTo(2));
+        assertThat(incrementalListener.incrementalSnapshots.size(), equalTo(1));
+    }
+
+    /**
+     * Verifies that the changed alarms are loaded directly when all of
+     * the listeners support incremental snapshots.
+     */
+    @Test
+    public void canIssueIncrementalSnapshotsWithoutLoadingAllAlarms() {
+        final OnmsAlarm alarm = createAlarm(1, new Date());
+
+        final AcknowledgmentDao acknowledgmentDao = mock(AcknowledgmentDao.class);
+        when(acknowledgmentDao.findLatestAcks(any(Date.class))).thenReturn(Collections.emptyList());
+
+        final AlarmDao alarmDao = mock(AlarmDao.class);
+        when(alarmDao.findAll()).thenReturn(Collections.singletonList(alarm));
+        when(alarmDao.getAlarmIds()).thenReturn(Arrays.asList(1, 4));
+        when(alarmDao.findMatching(any(Criteria.class))).thenReturn(Collections.singletonList(alarm));
+
+        final RecordingIncrementalListener incrementalListener = new RecordingIncrementalListener();
+
+        final AlarmLifecycleListenerManager alm = new AlarmLifecycleListenerManager();
+        alm.setAlarmDao(alarmDao);
+        alm.setAcknowledgmentDao(acknowledgmentDao);
+        alm.setSessionUtils(new MockSessionUtils());
+        alm.setFullSnapshotIntervalMs(TimeUnit.DAYS.toMillis(1));
+        alm.onListenerRegistered(incrementalListener, Maps.newHashMap());
+
+        alm.doSnapshot();
+        alm.doSnapshot();
+        assertThat(incrementalListener.snapshots.size(), equalTo(1));
+        assertThat(incrementalListener.incrementalSnapshots, contains(contains(alarm)));
+        assertThat(incrementalListener.alarmIds, containsInAnyOrder(1, 4));
+        // Make sure we didn't fall back to loading all of the alarms
+        verify(alarmDao, times(1)).findAll();
+    }
+
+    /**
+     * Verifies that an incremental listener registered after the first snapshot, and
+     * an incremental listener which failed to handle a snapshot, are given a complete
+     * snapshot while the other listeners stay incremental.
+     */
+    @Test
+    public void canTrackSnapshotsPerListener() {
+        final OnmsAlarm alarm = createAlarm(1, new Date());
+
+        final AcknowledgmentDao acknowledgmentDao = mock(AcknowledgmentDao.class);
+        when(acknowledgmentDao.findLatestAcks(any(Date.class))).thenReturn(Collections.emptyList());
+
+        final AlarmDao alarmDao = mock(AlarmDao.class);
+        when(alarmDao.findAll()).thenReturn(Collections.singletonList(alarm));
+
+        final RecordingIncrementalListener listener = new RecordingIncrementalListener();
+        final AtomicBoolean fail = new AtomicBoolean(false);
+        final RecordingIncrementalListener failingListener = new RecordingIncrementalListener() {
+            @Override
+            public void handleIncrementalAlarmSnapshot(List<OnmsAlarm> changedAlarms, Set<Integer> alarmIds, Date since) {
+                if (fail.getAndSet(false)) {
+                    throw new IllegalStateException("failed");
+                }
+                super.handleIncrementalAlarmSnapshot(changedAlarms, alarmIds, since);
+            }
+        };
+
+        final AlarmLifecycleListenerManager alm = new AlarmLifecycleListenerManager();
+        alm.setAlarmDao(alarmDao);
+        alm.setAcknowledgmentDao(acknowledgmentDao);
+        alm.setSessionUtils(new MockSessionUtils());
+        alm.setFullSnapshotIntervalMs(TimeUnit.DAYS.toMillis(1));
+        alm.onListenerRegistered(listener, Maps.newHashMap());
+        alm.onListenerRegistered(failingListener, Maps.newHashMap());
+        alm.doSnapshot();
+
+        // A late listener starts with a full snapshot
+        final RecordingIncrementalListener lateListener = new RecordingIncrementalListener();
+        alm.onListenerRegistered(lateListener, Maps.newHashMap());
+        fail.set(true);
+        alm.doSnapshot();
+        assertThat(lateListener.snapshots.size(), equalTo(1));
+        assertThat(lateListener.incrementalSnapshots.size(), equalTo(0));
+        assertThat(listener.snapshots.size(), equalTo(1));
+        assertThat(listener.incrementalSnapshots.size(), equalTo(1));
+
+        // The listener which failed to handle the incremental snapshot is given a full snapshot again
+        alm.doSnapshot();
+        assertThat(failingListener.snapshots.size(), equalTo(2));
+        assertThat(failingListener.incrementalSnapshots.size(), equalTo(0));
+        assertThat(lateListener.snapshots.size(), equalTo(1));
+        assertThat(lateListener.incrementalSnapshots.size(), equalTo(1));
+        assertThat(listener.snapshots.size(), equalTo(1));
+        assertThat(listener.incrementalSnapshots.size(), equalTo(2));
+
+        alm.doSnapshot();
+        assertThat(failingListener.snapshots.size(), equalTo(2));
+        assertThat(failingListener.incrementalSnapshots.size(), equalTo(1));
+    }
+
+    private static OnmsAlarm createAlarm(int id, Date time) {
+        final OnmsAlarm alarm = new OnmsAlarm();
+        alarm.setId(id);
+        alarm.setFirstEventTime(time);
+        alarm.setLastEventTime(time);
+        return alarm;
+    }
+
+    private static class RecordingListener implements AlarmLifecycleListener {
+        final List<List<OnmsAlarm>> snapshots = new ArrayList<>();
+
+        @Override
+        public void handleAlarmSnapshot(List<OnmsAlarm> alarms) {
+            snapshots.add(alarms);
+        }
+
+        @Override
+        public void preHandleAlarmSnapshot() {
+            // pass
+        }
+
+        @Override
+        public void postHandleAlarmSnapshot() {
+            // pass
+        }
+
+        @Override
+        public void handleNewOrUpdatedAlarm(OnmsAlarm alarm) {
+            // pass
+        }
+
+        @Override
+        public void handleDeletedAlarm(int alarmId, String reductionKey) {
+            // pass
+        }
+    }
+
+    private static class RecordingIncrementalListener extends RecordingListener implements IncrementalAlarmLifecycleListener {
+        final List<List<OnmsAlarm>> incrementalSnapshots = new ArrayList<>();
+        Set<Integer> alarmIds;
+
+        @Override
+        public void handleIncrementalAlarmSnapshot(List<OnmsAlarm> changedAlarms, Set<Integer> alarmIds, Date since) {
+            incrementalSnapshots.add(changedAlarms);
+            this.alarmIds = alarmIds;
+        }
+    }
 }
@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.alarmd;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.opennms.netmgt.dao.mock.MockAlarmDao;
+import org.opennms.netmgt.dao.mock.MockEventDao;
+import org.opennms.netmgt.dao.mock.MockTransactionTemplate;
+import org.opennms.netmgt.dao.support.AlarmEntityNotifierImpl;
+import org.opennms.netmgt.model.OnmsAlarm;
+import org.opennms.netmgt.model.OnmsEvent;
+import org.opennms.netmgt.model.OnmsSeverity;
+import org.opennms.netmgt.xml.event.AlarmData;
+import org.opennms.netmgt.xml.event.Event;
+
+/**
+ * Use the Java Microbenchmarking Harness (JMH) to measure the number of reductions per second
+ * performed by the {@link AlarmPersisterImpl}, with and without the {@link ReductionKeyIndex}.
+ * <p>
+ * The alarms are kept in memory, and every statement issued against the DAOs burns a configurable
+ * amount of CPU to stand in for the database round trip. 100k problem alarms exist before the benchmark
+ * starts. Most events reduce one of these alarms, while the others are resolution events whose
+ * clear key does not match any alarm, and which reduce an alarm of their own.
+ */
+public class AlarmPersisterBenchmark {
+
+    // the number of events that are persisted in a single benchmark method call
+    private static final int BATCH_SIZE = 1000;
+
+    private static final int NUM_ALARMS = 100000;
+
+    private static final int NUM_UNMATCHED_RESOLUTIONS = 10000;
+
+    private static final String INDEXED_MODE = "indexed";
+    private static final String QUERY_MODE = "query";
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args);
+    }
+
+    @State(Scope.Benchmark)
+    public static class BState {
+
+        @Param({INDEXED_MODE, QUERY_MODE})
+        public String mode;
+
+        // tokens consumed for every statement issued against the DAOs
+        @Param({"0", "2000"})
+        public long statementCost;
+
+        // percentage of the events that are resolutions without any matching problem
+        @Param({"20"})
+        public int unmatchedResolutionPct;
+
+        private final AtomicInteger eventIds = new AtomicInteger();
+
+        private final List<Event> events = new ArrayList<>(BATCH_SIZE);
+
+        private AlarmPersisterImpl persister;
+
+        @Setup
+        public void setup() {
+            final BenchAlarmDao alarmDao = new BenchAlarmDao(statementCost);
+            final BenchEventDao eventDao = new BenchEventDao(statementCost);
+            final MockTransactionTemplate transactionTemplate = new MockTransactionTemplate();
+            transactionTemplate.afterPropertiesSet();
+
+            for (int i = 0; i < NUM_ALARMS; i++) {
+                final OnmsAlarm alarm = new OnmsAlarm();
+                alarm.setReductionKey(getProblemKey(i));
+                alarm.setAlarmType(OnmsAlarm.PROBLEM_TYPE);
+                alarm.setCounter(1);
+                alarm.setSeverity(OnmsSeverity.MAJOR);
+                alarmDao.store(alarm);
+            }
+
+            persister = new AlarmPersisterImpl();
+            persister.setAlarmDao(alarmDao);
+            persister.setEventDao(eventDao);
+            persister.setTransactionOperations(transactionTemplate);
+            persister.setAlarmChangeListener(new AlarmEntityNotifierImpl());
+
+            if (INDEXED_MODE.equals(mode)) {
+                final ReductionKeyIndex index = new ReductionKeyIndex();
+                index.setAlarmDao(alarmDao);
+                index.setTransactionOperations(transactionTemplate);
+                index.setEnabled(true);
+                index.afterPropertiesSet();
+                persister.setReductionKeyIndex(index);
+            }
+
+            final Random random = new Random(42);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                final AlarmData alarmData = new AlarmData();
+                if (random.nextInt(100) < unmatchedResolutionPct) {
+                    final int k = random.nextInt(NUM_UNMATCHED_RESOLUTIONS);
+                    alarmData.setReductionKey("uei.opennms.org/bench/up::" + k);
+                    alarmData.setClearKey(getProblemKey(NUM_ALARMS + k));
+                    alarmData.setAlarmType(OnmsAlarm.RESOLUTION_TYPE);
+                } else {
+                    alarmData.setReductionKey(getProblemKey(random.nextInt(NUM_ALARMS)));
+                    alarmData.setAlarmType(OnmsAlarm.PROBLEM_TYPE);
+                }
+                final Event event = new Event();
+                event.setUei("uei.opennms.org/bench");
+                event.setAlarmData(alarmData);
+                events.add(event);
+            }
+        }
+
+        private static String getProblemKey(int k) {
+            return "uei.opennms.org/bench/down::" + k;
+        }
+    }
+
+    /**
+     * Keeps the alarms in memory, indexed by id and reduction key, and charges
+     * for every statement that would hit the database.
+     */
+    private static class BenchAlarmDao extends MockAlarmDao {
+        private final Map<Integer, OnmsAlarm> alarmsById = new ConcurrentHashMap<>();
+        private final Map<String, OnmsAlarm> alarmsByReductionKey = new ConcurrentHashMap<>();
+        private final AtomicInteger alarmIds = new AtomicInteger();
+        private final long statementCost;
+
+        private BenchAlarmDao(long statementCost) {
+            this.statementCost = statementCost;
+        }
+
+        @Override
+        public OnmsAlarm get(Integer id) {
+            Blackhole.consumeCPU(statementCost);
+            return alarmsById.get(id);
+        }
+
+        @Override
+        public OnmsAlarm findByReductionKey(String reductionKey) {
+            Blackhole.consumeCPU(statementCost);
+            return alarmsByReductionKey.get(reductionKey);
+        }
+
+        @Override
+        public Integer save(OnmsAlarm alarm) {
+            Blackhole.consumeCPU(statementCost);
+            return store(alarm);
+        }
+
+        @Override
+        public void update(OnmsAlarm alarm) {
+            Blackhole.consumeCPU(statementCost);
+        }
+
+        @Override
+        public Map<String, Integer> getAlarmIdsByReductionKey() {
+            final Map<String, Integer> alarmIdsByReductionKey = new HashMap<>();
+            alarmsByReductionKey.forEach((reductionKey, alarm) -> alarmIdsByReductionKey.put(reductionKey, alarm.getId()));
+            return alarmIdsByReductionKey;
+        }
+
+        private Integer store(OnmsAlarm alarm) {
+            alarm.setId(alarmIds.incrementAndGet());
+            alarmsById.put(alarm.getId(), alarm);
+            alarmsByReductionKey.put(alarm.getReductionKey(), alarm);
+            return alarm.getId();
+        }
+    }
+
+    /**
+     * Creates the persisted events on demand, and charges for every statement.
+     */
+    private static class BenchEventDao extends MockEventDao {
+        private final long statementCost;
+
+        private BenchEventDao(long statementCost) {
+            this.statementCost = statementCost;
+        }
+
+        @Override
+        public OnmsEvent get(Integer id) {
+            Blackhole.consumeCPU(statementCost);
+            final OnmsEvent event = new OnmsEvent();
+            event.setId(id);
+            event.setEventUei("uei.opennms.org/bench");
+            event.setEventTime(new Date());
+            event.setEventSeverity(OnmsSeverity.MAJOR.getId());
+            return event;
+        }
+
+        @Override
+        public void update(OnmsEvent event) {
+            Blackhole.consumeCPU(statementCost);
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 2)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void persist(BState state, Blackhole blackhole) {
+        for (final Event event : state.events) {
+            event.setDbid(state.eventIds.incrementAndGet());
+            blackhole.consume(state.persister.persist(event));
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.alarmd;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.netmgt.dao.api.AlarmDao;
+import org.opennms.netmgt.dao.api.AlarmEntityNotifier;
+import org.opennms.netmgt.dao.api.EventDao;
+import org.opennms.netmgt.dao.mock.MockTransactionTemplate;
+import org.opennms.netmgt.model.OnmsAlarm;
+import org.opennms.netmgt.model.OnmsEvent;
+import org.opennms.netmgt.model.OnmsSeverity;
+import org.opennms.netmgt.xml.event.AlarmData;
+import org.opennms.netmgt.xml.event.Event;
+
+/**
+ * Verifies the lookups performed by the {@link AlarmPersisterImpl} when
+ * using the {@link ReductionKeyIndex}.
+ */
+public class ReductionKeyIndexTest {
+
+    private final Map<Integer, OnmsAlarm> alarmsById = new HashMap<>();
+
+    private AlarmDao alarmDao;
+    private ReductionKeyIndex index;
+    private AlarmPersisterImpl persister;
+
+    @Before
+    public void setUp() {
+        alarmDao = mock(AlarmDao.class);
+        when(alarmDao.get(anyInt())).thenAnswer(inv -> alarmsById.get(inv.<Integer>getArgument(0)));
+        when(alarmDao.findByReductionKey(anyString())).thenAnswer(inv -> alarmsById.values().stream()
+                .filter(a -> inv.getArgument(0).equals(a.getReductionKey()))
+                .findFirst().orElse(null));
+        when(alarmDao.save(any(OnmsAlarm.class))).thenAnswer(inv -> {
+            final OnmsAlarm alarm = inv.getArgument(0);
+            alarm.setId(alarmsById.size() + 1);
+            alarmsById.put(alarm.getId(), alarm);
+            return alarm.getId();
+        });
+        doAnswer(inv -> {
+            final OnmsAlarm alarm = inv.getArgument(0);
+            alarmsById.put(alarm.getId(), alarm);
+            return null;
+        }).when(alarmDao).update(any(OnmsAlarm.class));
+        when(alarmDao.getAlarmIdsByReductionKey()).thenAnswer(inv -> {
+            final Map<String, Integer> alarmIdsByReductionKey = new HashMap<>();
+            alarmsById.values().forEach(a -> alarmIdsByReductionKey.put(a.getReductionKey(), a.getId()));
+            return alarmIdsByReductionKey;
+        });
+
+        final EventDao eventDao = mock(EventDao.class);
+        when(eventDao.get(anyInt())).thenAnswer(inv -> {
+            final OnmsEvent event = new OnmsEvent();
+            event.setId(inv.getArgument(0));
+            event.setEventUei("uei.opennms.org/test");
+            event.setEventTime(new Date());
+            event.setEventSeverity(OnmsSeverity.MAJOR.getId());
+            return event;
+        });
+
+        final MockTransactionTemplate transactionTemplate = new MockTransactionTemplate();
+        transactionTemplate.afterPropertiesSet();
+
+        index = new ReductionKeyIndex();
+        index.setAlarmDao(alarmDao);
+        index.setTransactionOperations(transactionTemplate);
+        index.setEnabled(true);
+
+        persister = new AlarmPersisterImpl();
+        persister.setAlarmDao(alarmDao);
+        persister.setEventDao(eventDao);
+        persister.setTransactionOperations(transactionTemplate);
+        persister.setAlarmChangeListener(mock(AlarmEntityNotifier.class));
+        persister.setReductionKeyIndex(index);
+    }
+
+    @Test
+    public void canReduceIndexedAlarmsWithoutQueryingByReductionKey() {
+        final OnmsAlarm alarm = createAlarm("k1");
+        index.afterPropertiesSet();
+        assertThat(index.get("k1"), equalTo(alarm.getId()));
+
+        persister.persist(createEvent(1, "k1"));
+        persister.persist(createEvent(2, "k1"));
+
+        assertThat(alarm.getCounter(), equalTo(3));
+        verify(alarmDao, never()).findByReductionKey(anyString());
+        verify(alarmDao, times(2)).get(alarm.getId());
+    }
+
+    @Test
+    public void canCreateAlarmsForKeysThatAreNotIndexed() {
+        index.afterPropertiesSet();
+
+        final OnmsAlarm alarm = persister.persist(createEvent(1, "k1"));
+        assertThat(index.get("k1"), equalTo(alarm.getId()));
+        assertThat(persister.persist(createEvent(2, "k1")).getCounter(), equalTo(2));
+
+        verify(alarmDao, never()).findByReductionKey(anyString());
+        verify(alarmDao, times(1)).save(any(OnmsAlarm.class));
+    }
+
+    @Test
+    public void canRecoverFromStaleEntries() {
+        final OnmsAlarm alarm = createAlarm("k1");
+        index.afterPropertiesSet();
+        // Point the key to an alarm which no longer exists
+        index.put("k1", 99);
+
+        persister.persist(createEvent(1, "k1"));
+
+        assertThat(alarm.getCounter(), equalTo(2));
+        assertThat(index.get("k1"), equalTo(alarm.getId()));
+        verify(alarmDao, times(1)).findByReductionKey("k1");
+    }
+
+    @Test
+    public void canInvalidateDeletedAlarms() {
+        final OnmsAlarm alarm = createAlarm("k1");
+        index.afterPropertiesSet();
+
+        alarmsById.remove(alarm.getId());
+        index.onAlarmDeleted(alarm);
+        assertThat(index.get("k1"), equalTo(ReductionKeyIndex.UNKNOWN));
+
+        final OnmsAlarm newAlarm = persister.persist(createEvent(1, "k1"));
+        assertThat(newAlarm.getCounter(), equalTo(1));
+        assertThat(index.get("k1"), equalTo(newAlarm.getId()));
+        verify(alarmDao, times(1)).findByReductionKey("k1");
+    }
+
+    @Test
+    public void canLookupClearKeys() {
+        final OnmsAlarm problem = createAlarm("down");
+        index.afterPropertiesSet();
+
+        // The problem alarm is found using the clear key, the reduction key is never needed
+        final Event resolution = createEvent(1, "up");
+        resolution.getAlarmData().setAlarmType(OnmsAlarm.RESOLUTION_TYPE);
+        resolution.getAlarmData().setClearKey("down");
+        assertThat(persister.persist(resolution), equalTo(problem));
+        assertThat(problem.getSeverity(), equalTo(OnmsSeverity.CLEARED));
+        assertThat(index.get("up"), nullValue());
+
+        // Without a problem alarm, a new alarm is created using the reduction key
+        final Event otherResolution = createEvent(2, "up2");
+        otherResolution.getAlarmData().setAlarmType(OnmsAlarm.RESOLUTION_TYPE);
+        otherResolution.getAlarmData().setClearKey("down2");
+        final OnmsAlarm resolutionAlarm = persister.persist(otherResolution);
+        assertThat(resolutionAlarm.getReductionKey(), equalTo("up2"));
+        assertThat(index.get("up2"), equalTo(resolutionAlarm.getId()));
+        assertThat(index.get("down2"), nullValue());
+
+        verify(alarmDao, never()).findByReductionKey(anyString());
+    }
+
+    @Test
+    public void canFallbackToQueriesWhenDisabled() {
+        createAlarm("k1");
+        index.setEnabled(false);
+        index.afterPropertiesSet();
+
+        persister.persist(createEvent(1, "k1"));
+        persister.persist(createEvent(2, "k2"));
+
+        verify(alarmDao, times(1)).findByReductionKey("k1");
+        verify(alarmDao, times(1)).findByReductionKey("k2");
+        assertThat(index.size(), equalTo(0));
+    }
+
+    private OnmsAlarm createAlarm(String reductionKey) {
+        final OnmsAlarm alarm = new OnmsAlarm();
+        alarm.setId(alarmsById.size() + 1);
+        alarm.setReductionKey(reductionKey);
+        alarm.setAlarmType(OnmsAlarm.PROBLEM_TYPE);
+        alarm.setCounter(1);
+        alarm.setSeverity(OnmsSeverity.MAJOR);
+        alarmsById.put(alarm.getId(), alarm);
+        return alarm;
+    }
+
+    private static Event createEvent(int dbid, String reductionKey) {
+        final AlarmData alarmData = new AlarmData();
+        alarmData.setReductionKey(reductionKey);
+        alarmData.setAlarmType(OnmsAlarm.PROBLEM_TYPE);
+
+        final Event event = new Event();
+        event.setUei("uei.opennms.org/test");
+        event.setDbid(dbid);
+        event.setAlarmData(alarmData);
+        return event;
+    }
+}
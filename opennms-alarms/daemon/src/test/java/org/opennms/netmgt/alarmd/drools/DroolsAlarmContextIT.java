@@ -50,8 +50,10 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import org.junit.After;
 import org.junit.Before;
@@ -688,6 +690,48 @@ public class DroolsAlarmContextIT {
         assertThat(dac.getAckByAlarmId(alarm1.getId()).getAckAction(), equalTo(ack1.getAckAction()));
     }
 
+    /**
+     * Tests that incremental snapshots add, update and remove the alarms in working memory,
+     * and only fetch the acks that changed.
+     */
+    @Test
+    public void canHandleIncrementalSnapshots() {
+        OnmsAlarm alarm1 = generateAlarm(1);
+        OnmsAlarm alarm2 = generateAlarm(2);
+        dac.handleAlarmSnapshot(Arrays.asList(alarm1, alarm2));
+        dac.tick();
+        assertThat(getAlarmIdsInSession(), equalTo(Sets.newHashSet(1, 2)));
+
+        // Alarm 1 was deleted, alarm 2 was reduced and acknowledged, and alarm 3 was created
+        OnmsAlarm alarm2Updated = generateAlarm(2);
+        alarm2Updated.setLastEventTime(new Date(1000));
+        OnmsAcknowledgment ack2 = new OnmsAcknowledgment(alarm2Updated, DefaultAlarmService.DEFAULT_USER, new Date(1000));
+        ack2.setAckAction(AckAction.ACKNOWLEDGE);
+        OnmsAlarm alarm3 = generateAlarm(3);
+        when(acknowledgmentDao.findLatestAcks(new Date(500))).thenReturn(Collections.singletonList(ack2));
+
+        dac.handleIncrementalAlarmSnapshot(Arrays.asList(alarm2Updated, alarm3), Sets.newHashSet(2, 3), new Date(500));
+        dac.tick();
+
+        assertThat(getAlarmIdsInSession(), equalTo(Sets.newHashSet(2, 3)));
+        assertThat(dac.getAckByAlarmId(2).getAckAction(), equalTo(AckAction.ACKNOWLEDGE));
+        assertThat(dac.getAckByAlarmId(3).getAckAction(), equalTo(AckAction.UNACKNOWLEDGE));
+        assertThat(dac.getKieSession().getObjects(o -> o instanceof OnmsAlarm && ((OnmsAlarm)o).getId() == 2).iterator().next(),
+                equalTo(alarm2Updated));
+
+        // Nothing changed, the ack for alarm 2 is kept
+        dac.handleIncrementalAlarmSnapshot(Collections.emptyList(), Sets.newHashSet(2, 3), new Date(1500));
+        dac.tick();
+        assertThat(getAlarmIdsInSession(), equalTo(Sets.newHashSet(2, 3)));
+        assertThat(dac.getAckByAlarmId(2).getAckAction(), equalTo(AckAction.ACKNOWLEDGE));
+    }
+
+    private Set<Integer> getAlarmIdsInSession() {
+        return dac.getKieSession().getObjects(o -> o instanceof OnmsAlarm).stream()
+                .map(o -> ((OnmsAlarm)o).getId())
+                .collect(Collectors.toSet());
+    }
+
     public void canReloadEngine() {
         // Create a trigger alarm
         OnmsAlarm trigger = new OnmsAlarm();
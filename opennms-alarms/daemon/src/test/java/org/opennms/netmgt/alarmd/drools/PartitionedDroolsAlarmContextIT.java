@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.alarmd.drools;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.opennms.netmgt.alarmd.AlarmMatchers.hasSeverity;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opennms.core.test.OpenNMSJUnit4ClassRunner;
+import org.opennms.netmgt.dao.api.AcknowledgmentDao;
+import org.opennms.netmgt.dao.api.AlarmDao;
+import org.opennms.netmgt.dao.mock.MockTransactionTemplate;
+import org.opennms.netmgt.dao.support.AlarmEntityNotifierImpl;
+import org.opennms.netmgt.events.api.EventForwarder;
+import org.opennms.netmgt.model.OnmsAlarm;
+import org.opennms.netmgt.model.OnmsNode;
+import org.opennms.netmgt.model.OnmsSeverity;
+import org.opennms.test.JUnitConfigurationEnvironment;
+import org.springframework.test.context.ContextConfiguration;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Verifies that alarms are routed to the right sessions when using the {@link PartitionedDroolsAlarmContext}.
+ */
+@RunWith(OpenNMSJUnit4ClassRunner.class)
+@ContextConfiguration(locations={
+        "classpath:/META-INF/opennms/emptyContext.xml"
+})
+@JUnitConfigurationEnvironment
+public class PartitionedDroolsAlarmContextIT {
+
+    private static final int NUM_PARTITIONS = 4;
+
+    private PartitionedDroolsAlarmContext dac;
+    private AlarmDao alarmDao;
+
+    @Before
+    public void setUp() throws InterruptedException, IOException {
+        alarmDao = mock(AlarmDao.class);
+        when(alarmDao.findAll()).thenReturn(Collections.emptyList());
+        startContext(PartitionedDroolsAlarmContext.PartitionBy.REDUCTION_KEY);
+    }
+
+    private void startContext(PartitionedDroolsAlarmContext.PartitionBy partitionBy) throws InterruptedException, IOException {
+        dac = new PartitionedDroolsAlarmContext(AlarmdTestUtil.enableDisabledRules());
+        dac.setNumPartitions(NUM_PARTITIONS);
+        dac.setPartitionBy(partitionBy);
+        dac.setUsePseudoClock(true);
+        dac.setUseManualTick(true);
+        dac.setAlarmTicketerService(mock(AlarmTicketerService.class));
+
+        MockTransactionTemplate transactionTemplate = new MockTransactionTemplate();
+        transactionTemplate.afterPropertiesSet();
+        dac.setTransactionTemplate(transactionTemplate);
+        dac.setAlarmDao(alarmDao);
+
+        DefaultAlarmService alarmService = new DefaultAlarmService();
+        alarmService.setAlarmDao(alarmDao);
+
+        AcknowledgmentDao acknowledgmentDao = mock(AcknowledgmentDao.class);
+        when(acknowledgmentDao.findLatestAckForRefId(any(Integer.class))).thenReturn(Optional.empty());
+        alarmService.setAcknowledgmentDao(acknowledgmentDao);
+        alarmService.setEventForwarder(mock(EventForwarder.class));
+        alarmService.setAlarmEntityNotifier(mock(AlarmEntityNotifierImpl.class));
+        dac.setAlarmService(alarmService);
+        dac.setAcknowledgmentDao(acknowledgmentDao);
+
+        dac.start();
+
+        // Wait
+        dac.waitForInitialSeedToBeSubmitted();
+    }
+
+    @After
+    public void tearDown() {
+        if (dac != null) {
+            dac.stop();
+        }
+    }
+
+    @Test
+    public void canClearAlarmAcrossPartitions() {
+        OnmsAlarm trigger = new OnmsAlarm();
+        trigger.setId(1);
+        trigger.setAlarmType(1);
+        trigger.setSeverity(OnmsSeverity.WARNING);
+        trigger.setReductionKey("n1:oops");
+        trigger.setLastEventTime(new Date(100));
+        when(alarmDao.get(trigger.getId())).thenReturn(trigger);
+        advanceTime(100, TimeUnit.MILLISECONDS);
+        dac.handleNewOrUpdatedAlarm(trigger);
+        dac.tick();
+
+        // The clear is hashed using its clear key, and should land in the same session as the trigger
+        OnmsAlarm clear = new OnmsAlarm();
+        clear.setId(2);
+        clear.setAlarmType(2);
+        clear.setSeverity(OnmsSeverity.CLEARED);
+        clear.setReductionKey("clear:n1:oops");
+        clear.setClearKey("n1:oops");
+        clear.setLastEventTime(new Date(101));
+        when(alarmDao.get(clear.getId())).thenReturn(clear);
+        advanceTime(101, TimeUnit.MILLISECONDS);
+        dac.handleNewOrUpdatedAlarm(clear);
+        dac.tick();
+
+        assertThat(trigger, hasSeverity(OnmsSeverity.CLEARED));
+    }
+
+    @Test
+    public void canSpreadAlarmsAcrossPartitions() {
+        for (int i = 1; i <= 100; i++) {
+            dac.handleNewOrUpdatedAlarm(generateAlarm(i));
+        }
+        dac.tick();
+
+        // All of the alarms should be in exactly one session, and none of them in the coordinator
+        assertThat(getAlarmIdsInSession(dac), empty());
+        int total = 0;
+        for (DroolsAlarmContext partition : dac.getPartitions()) {
+            final Set<Integer> alarmIds = getAlarmIdsInSession(partition);
+            assertThat(alarmIds.size(), greaterThan(0));
+            total += alarmIds.size();
+        }
+        assertThat(total, equalTo(100));
+
+        // Delete them all
+        for (int i = 1; i <= 100; i++) {
+            dac.handleDeletedAlarm(i, "n" + i + ":oops");
+        }
+        dac.tick();
+        for (DroolsAlarmContext partition : dac.getPartitions()) {
+            assertThat(getAlarmIdsInSession(partition), empty());
+        }
+    }
+
+    @Test
+    public void canPartitionByNode() throws InterruptedException, IOException {
+        dac.stop();
+        startContext(PartitionedDroolsAlarmContext.PartitionBy.NODE);
+
+        final OnmsNode node = new OnmsNode();
+        node.setId(1);
+        for (int i = 1; i <= 20; i++) {
+            final OnmsAlarm alarm = generateAlarm(i);
+            alarm.setNode(node);
+            dac.handleNewOrUpdatedAlarm(alarm);
+        }
+        dac.tick();
+
+        // All of the alarms for the same node end up in the same session
+        final List<Integer> sizes = dac.getPartitions().stream()
+                .map(p -> getAlarmIdsInSession(p).size())
+                .filter(size -> size > 0)
+                .collect(Collectors.toList());
+        assertThat(sizes, equalTo(Collections.singletonList(20)));
+    }
+
+    @Test
+    public void canMoveRelatedAlarmsToCoordinator() {
+        final OnmsAlarm alarm1 = generateAlarm(1);
+        final OnmsAlarm alarm2 = generateAlarm(2);
+        final OnmsAlarm alarm3 = generateAlarm(3);
+        dac.handleNewOrUpdatedAlarm(alarm1);
+        dac.handleNewOrUpdatedAlarm(alarm2);
+        dac.handleNewOrUpdatedAlarm(alarm3);
+        dac.tick();
+        assertThat(getAlarmIdsInSession(dac), empty());
+
+        final OnmsAlarm situation = generateAlarm(4);
+        situation.setRelatedAlarms(Sets.newHashSet(alarm1, alarm2));
+        dac.handleNewOrUpdatedAlarm(situation);
+        dac.tick();
+
+        // The situation and its related alarms are now in the coordinator, and only there
+        assertThat(getAlarmIdsInSession(dac), equalTo(Sets.newHashSet(1, 2, 4)));
+        assertThat(getAlarmIdsInPartitions(), equalTo(Sets.newHashSet(3)));
+
+        // Remove the 2nd alarm from the situation, it moves back to its partition on the next update
+        situation.setRelatedAlarms(Sets.newHashSet(alarm1));
+        dac.handleNewOrUpdatedAlarm(situation);
+        dac.handleNewOrUpdatedAlarm(alarm2);
+        dac.tick();
+        assertThat(getAlarmIdsInSession(dac), equalTo(Sets.newHashSet(1, 4)));
+        assertThat(getAlarmIdsInPartitions(), equalTo(Sets.newHashSet(2, 3)));
+
+        // Delete the situation
+        dac.handleDeletedAlarm(situation.getId(), situation.getReductionKey());
+        dac.handleNewOrUpdatedAlarm(alarm1);
+        dac.tick();
+        assertThat(getAlarmIdsInSession(dac), empty());
+        assertThat(getAlarmIdsInPartitions(), equalTo(Sets.newHashSet(1, 2, 3)));
+    }
+
+    @Test
+    public void canRouteSnapshots() {
+        final OnmsAlarm alarm1 = generateAlarm(1);
+        final OnmsAlarm alarm2 = generateAlarm(2);
+        final OnmsAlarm alarm3 = generateAlarm(3);
+        final OnmsAlarm situation = generateAlarm(4);
+        situation.setRelatedAlarms(Sets.newHashSet(alarm1));
+
+        dac.handleAlarmSnapshot(Sets.newHashSet(alarm1, alarm2, alarm3, situation).stream().collect(Collectors.toList()));
+        dac.tick();
+        assertThat(getAlarmIdsInSession(dac), equalTo(Sets.newHashSet(1, 4)));
+        assertThat(getAlarmIdsInPartitions(), equalTo(Sets.newHashSet(2, 3)));
+
+        // The situation is gone, and alarm 2 was deleted
+        dac.handleIncrementalAlarmSnapshot(Collections.singletonList(alarm1), Sets.newHashSet(1, 3), new Date(0));
+        dac.tick();
+        assertThat(getAlarmIdsInSession(dac), empty());
+        assertThat(getAlarmIdsInPartitions(), equalTo(Sets.newHashSet(1, 3)));
+    }
+
+    private void advanceTime(long amount, TimeUnit unit) {
+        dac.getClock().advanceTime(amount, unit);
+        dac.getPartitions().forEach(p -> p.getClock().advanceTime(amount, unit));
+    }
+
+    private OnmsAlarm generateAlarm(int id) {
+        OnmsAlarm alarm = new OnmsAlarm();
+        alarm.setId(id);
+        alarm.setAlarmType(1);
+        alarm.setSeverity(OnmsSeverity.WARNING);
+        alarm.setReductionKey("n" + id + ":oops");
+        alarm.setLastEventTime(new Date(id));
+        when(alarmDao.get(alarm.getId())).thenReturn(alarm);
+        return alarm;
+    }
+
+    private Set<Integer> getAlarmIdsInPartitions() {
+        return dac.getPartitions().stream()
+                .flatMap(p -> getAlarmIdsInSession(p).stream())
+                .collect(Collectors.toSet());
+    }
+
+    private static Set<Integer> getAlarmIdsInSession(DroolsAlarmContext context) {
+        return context.getKieSession().getObjects(o -> o instanceof OnmsAlarm).stream()
+                .map(o -> ((OnmsAlarm)o).getId())
+                .collect(Collectors.toSet());
+    }
+}
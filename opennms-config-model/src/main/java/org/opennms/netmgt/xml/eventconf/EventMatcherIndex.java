@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.netmgt.xml.eventconf;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Narrows down the event definitions of an {@link Events} file that need to be
+ * tested against an event.
+ *
+ * The definitions are ranked in the order in which they were previously tested,
+ * by priority and then by index. For the UEI, the enterprise id, the generic and
+ * specific trap numbers and every varbind referenced by a mask, we keep the sets
+ * of definitions that accept a given value: exact values are kept in a map, and
+ * prefixes (values ending in '%') in a trie. Definitions that do not constrain the
+ * field, or that do so with a regular expression, are accepted for any value.
+ *
+ * The candidates for an event are the intersection of the accepted sets with the
+ * definitions from the event's partition. The full matchers are then evaluated
+ * for the candidates in rank order, so the first match is the same one we would
+ * find by testing all of the definitions.
+ */
+class EventMatcherIndex {
+
+    private static final String[] INDEXED_MASK_ELEMENTS = new String[] {
+            Maskelement.TAG_UEI,
+            Maskelement.TAG_SNMP_EID,
+            Maskelement.TAG_SNMP_GENERIC,
+            Maskelement.TAG_SNMP_SPECIFIC
+    };
+
+    private final Partition m_partition;
+
+    private final Event[] m_events;
+
+    private final BitSet m_nullPartition;
+
+    private final Map<String, BitSet> m_partitions = new HashMap<>();
+
+    private final List<FieldIndex> m_fieldIndexes = new ArrayList<>();
+
+    EventMatcherIndex(final Partition partition, final List<Event> nullPartitionedEvents, final Map<String, List<Event>> partitionedEvents) {
+        m_partition = partition;
+
+        // Rank the definitions
+        final List<Event> events = new ArrayList<>(nullPartitionedEvents);
+        partitionedEvents.values().forEach(events::addAll);
+        events.sort(null);
+        final Map<Event, Integer> ranks = new IdentityHashMap<>();
+        final List<Event> ranked = new ArrayList<>(events.size());
+        for (final Event event : events) {
+            if (!ranks.containsKey(event)) {
+                ranks.put(event, ranked.size());
+                ranked.add(event);
+            }
+        }
+        m_events = ranked.toArray(new Event[ranked.size()]);
+
+        m_nullPartition = new BitSet(m_events.length);
+        nullPartitionedEvents.forEach(e -> m_nullPartition.set(ranks.get(e)));
+        partitionedEvents.forEach((key, partitioned) -> {
+            final BitSet bits = new BitSet(m_events.length);
+            partitioned.forEach(e -> bits.set(ranks.get(e)));
+            m_partitions.put(key, bits);
+        });
+
+        // Index the fields, keyed by mask element name or varbind number
+        final Map<String, FieldIndex> maskElements = new LinkedHashMap<>();
+        maskElements.put(Maskelement.TAG_UEI, new FieldIndex(EventMatchers.field(Maskelement.TAG_UEI), m_events.length));
+        final Map<Integer, FieldIndex> varbinds = new TreeMap<>();
+        for (int rank = 0; rank < m_events.length; rank++) {
+            final Mask mask = m_events[rank].getMask();
+            if (mask == null || mask.getMaskelements().isEmpty()) {
+                // Only the UEI is matched, see Event#constructMatcher()
+                final String ueiValue = m_events[rank].getUei();
+                if (ueiValue != null) {
+                    maskElements.get(Maskelement.TAG_UEI).addEqualTo(ueiValue, rank);
+                }
+                continue;
+            }
+            for (final String name : INDEXED_MASK_ELEMENTS) {
+                if (mask.getMaskElement(name) == null) {
+                    continue;
+                }
+                final FieldIndex index = maskElements.computeIfAbsent(name, n -> new FieldIndex(EventMatchers.field(n), m_events.length));
+                for (final Maskelement maskElement : mask.getMaskelements()) {
+                    if (name.equals(maskElement.getMename())) {
+                        index.add(maskElement.getMevalues(), rank);
+                    }
+                }
+            }
+            for (final Varbind varbind : mask.getVarbinds()) {
+                if (varbind.getVbnumber() != null) {
+                    varbinds.computeIfAbsent(varbind.getVbnumber(), n -> new FieldIndex(EventMatchers.varbind(n), m_events.length))
+                            .add(varbind.getVbvalues(), rank);
+                }
+            }
+        }
+
+        // Definitions that are not constrained by a field accept any of its values
+        final BitSet withoutMask = new BitSet(m_events.length);
+        for (int rank = 0; rank < m_events.length; rank++) {
+            final Mask mask = m_events[rank].getMask();
+            if (mask == null || mask.getMaskelements().isEmpty()) {
+                withoutMask.set(rank);
+            }
+        }
+        for (final Map.Entry<String, FieldIndex> entry : maskElements.entrySet()) {
+            final FieldIndex index = entry.getValue();
+            for (int rank = 0; rank < m_events.length; rank++) {
+                if (withoutMask.get(rank)) {
+                    if (!Maskelement.TAG_UEI.equals(entry.getKey())) {
+                        index.addAny(rank);
+                    }
+                } else if (m_events[rank].getMask().getMaskElement(entry.getKey()) == null) {
+                    index.addAny(rank);
+                }
+            }
+            m_fieldIndexes.add(index);
+        }
+        for (final Map.Entry<Integer, FieldIndex> entry : varbinds.entrySet()) {
+            final FieldIndex index = entry.getValue();
+            for (int rank = 0; rank < m_events.length; rank++) {
+                if (withoutMask.get(rank) || !hasVarbind(m_events[rank].getMask(), entry.getKey())) {
+                    index.addAny(rank);
+                }
+            }
+            m_fieldIndexes.add(index);
+        }
+    }
+
+    Event findFirstMatch(final org.opennms.netmgt.xml.event.Event matchingEvent) {
+        final BitSet candidates = (BitSet) m_nullPartition.clone();
+        final String key = m_partition.group(matchingEvent);
+        if (key != null) {
+            final BitSet partitioned = m_partitions.get(key);
+            if (partitioned != null) {
+                candidates.or(partitioned);
+            }
+        }
+
+        for (final FieldIndex index : m_fieldIndexes) {
+            if (candidates.isEmpty()) {
+                return null;
+            }
+            index.retainAccepted(matchingEvent, candidates);
+        }
+
+        for (int rank = candidates.nextSetBit(0); rank >= 0; rank = candidates.nextSetBit(rank + 1)) {
+            if (m_events[rank].matches(matchingEvent).matched()) {
+                return m_events[rank];
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasVarbind(final Mask mask, final int vbnumber) {
+        for (final Varbind varbind : mask.getVarbinds()) {
+            if (varbind.getVbnumber() != null && varbind.getVbnumber() == vbnumber) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class FieldIndex {
+        private final Field m_field;
+        private final BitSet m_any;
+        private final Map<String, BitSet> m_equalTo = new HashMap<>();
+        private final PrefixTrie m_startsWith = new PrefixTrie();
+        private final int m_size;
+
+        private FieldIndex(final Field field, final int size) {
+            m_field = field;
+            m_any = new BitSet(size);
+            m_size = size;
+        }
+
+        /**
+         * Mirrors the value matchers built by {@link Maskelement#constructMatcher()}
+         * and {@link Varbind#constructMatcher()}.
+         */
+        private void add(final List<String> values, final int rank) {
+            for (final String value : values) {
+                if (value == null) {
+                    continue;
+                }
+                if (value.startsWith("~")) {
+                    // Can't index regular expressions
+                    addAny(rank);
+                } else if (value.endsWith("%")) {
+                    m_startsWith.add(value.substring(0, value.length() - 1), rank, m_size);
+                } else {
+                    addEqualTo(value, rank);
+                }
+            }
+        }
+
+        private void addEqualTo(final String value, final int rank) {
+            m_equalTo.computeIfAbsent(value, v -> new BitSet(m_size)).set(rank);
+        }
+
+        private void addAny(final int rank) {
+            m_any.set(rank);
+        }
+
+        private void retainAccepted(final org.opennms.netmgt.xml.event.Event matchingEvent, final BitSet candidates) {
+            final String value = m_field.get(matchingEvent);
+            if (value == null) {
+                candidates.and(m_any);
+                return;
+            }
+            final BitSet accepted = (BitSet) m_any.clone();
+            final BitSet equalTo = m_equalTo.get(value);
+            if (equalTo != null) {
+                accepted.or(equalTo);
+            }
+            m_startsWith.collect(value, accepted);
+            candidates.and(accepted);
+        }
+    }
+
+    private static class PrefixTrie {
+        private final Map<Character, PrefixTrie> m_children = new HashMap<>(4);
+        private BitSet m_ranks;
+
+        private void add(final String prefix, final int rank, final int size) {
+            PrefixTrie node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.m_children.computeIfAbsent(prefix.charAt(i), c -> new PrefixTrie());
+            }
+            if (node.m_ranks == null) {
+                node.m_ranks = new BitSet(size);
+            }
+            node.m_ranks.set(rank);
+        }
+
+        /**
+         * Gathers the ranks of all of the prefixes of the given value.
+         */
+        private void collect(final String value, final BitSet into) {
+            PrefixTrie node = this;
+            for (int i = 0; node != null; i++) {
+                if (node.m_ranks != null) {
+                    into.or(node.m_ranks);
+                }
+                if (i == value.length()) {
+                    break;
+                }
+                node = node.m_children.get(value.charAt(i));
+            }
+        }
+    }
+}
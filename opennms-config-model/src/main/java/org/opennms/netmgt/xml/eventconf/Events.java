@@ -38,7 +38,6 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -49,8 +48,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -87,6 +86,8 @@ public class Events implements Serializable {
 
     private static final long serialVersionUID = 2L;
 
+    private static final AtomicLong s_initializations = new AtomicLong();
+
     /**
      * Global settings for this configuration
      */
@@ -111,6 +112,9 @@ public class Events implements Serializable {
     @XmlTransient
     private List<Event> m_nullPartitionedEvents;
 
+    @XmlTransient
+    private EventMatcherIndex m_matcherIndex;
+
     @XmlTransient
     private Map<String, Event> m_eventsByUei = new ConcurrentSkipListMap<>();
 
@@ -120,6 +124,9 @@ public class Events implements Serializable {
     @XmlTransient
     private EventOrdering m_ordering;
 
+    @XmlTransient
+    private volatile long m_initializationStamp;
+
     public Global getGlobal() {
         return m_global;
     }
@@ -284,21 +291,11 @@ public class Events implements Serializable {
             }
         }
 
-        // If the UEI match failed, fallback to searching with the matchers through the partitions
-        final String key = m_partition.group(matchingEvent);
-        Collection<Event> potentialMatches = m_nullPartitionedEvents;
-        if (key != null) {
-            final List<Event> events = m_partitionedEvents.get(key);
-            if (events != null) {
-                potentialMatches = new TreeSet<Event>(m_nullPartitionedEvents);
-                potentialMatches.addAll(events);
-            }
-        }
-
-        for (final Event event : potentialMatches) {
-            if (event.matches(matchingEvent).matched()) {
-                return event;
-            }
+        // If the UEI match failed, fallback to searching with the matchers through the partitions,
+        // only testing the event definitions that can possibly match
+        final Event matchedEvent = m_matcherIndex.findFirstMatch(matchingEvent);
+        if (matchedEvent != null) {
+            return matchedEvent;
         }
 
         for (Events subEvents : m_loadedEventFiles.values()) {
@@ -368,7 +365,25 @@ public class Events implements Serializable {
         m_nullPartitionedEvents.addAll(prioritizedEvents);
         m_nullPartitionedEvents.sort(Comparator.naturalOrder());
 
+        m_matcherIndex = new EventMatcherIndex(m_partition, m_nullPartitionedEvents, m_partitionedEvents);
+
         indexEventsByUei();
+
+        m_initializationStamp = s_initializations.incrementAndGet();
+    }
+
+    /**
+     * Returns a value that changes every time these event definitions are (re-)initialized,
+     * either after being loaded or after being modified in place.
+     *
+     * Callers that cache the results of {@link #findFirstMatchingEvent(org.opennms.netmgt.xml.event.Event)}
+     * can compare stamps to detect when their cached results became stale. Stamps are unique across
+     * instances, so a reloaded configuration never reuses the stamp of the one it replaces.
+     *
+     * @return the stamp of the last initialization, or 0 if these definitions were never initialized
+     */
+    public long getInitializationStamp() {
+        return m_initializationStamp;
     }
 
     // Recurse through the configuration and return Event Definitions with priority > 0
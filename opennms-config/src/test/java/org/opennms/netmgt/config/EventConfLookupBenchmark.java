@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.netmgt.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.opennms.core.test.ConfigurationTestUtils;
+import org.opennms.netmgt.xml.eventconf.Event;
+import org.springframework.core.io.FileSystemResource;
+
+/**
+ * Use the Java Microbenchmarking Harness (JMH) to measure the performance of event
+ * configuration lookups.
+ * <p>
+ * The shipped event configuration is loaded and events are derived from the masks of randomly
+ * chosen event definitions, half of which are altered so that they match another definition,
+ * or none at all. The events are looked up with the indexed lookup of the {@link DefaultEventConfDao},
+ * and by testing all of the definitions in order. The benchmark reports the number of lookups per second.
+ */
+public class EventConfLookupBenchmark {
+
+    // the number of events that are looked up in a single benchmark method call
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String INDEXED_MODE = "indexed";
+    private static final String LINEAR_MODE = "linear";
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args);
+    }
+
+    @State(Scope.Benchmark)
+    public static class BState {
+
+        @Param({INDEXED_MODE, LINEAR_MODE})
+        public String mode;
+
+        private DefaultEventConfDao eventConfDao;
+
+        private final List<org.opennms.netmgt.xml.event.Event> events = new ArrayList<>(BATCH_SIZE);
+
+        @Setup
+        public void setup() throws Exception {
+            eventConfDao = new DefaultEventConfDao();
+            eventConfDao.setConfigResource(new FileSystemResource(ConfigurationTestUtils.getFileForConfigFile("eventconf.xml")));
+            eventConfDao.afterPropertiesSet();
+
+            final Random random = new Random(42);
+            final List<Event> definitions = new ArrayList<>(eventConfDao.getAllEvents());
+            Collections.shuffle(definitions, random);
+            for (final Event definition : definitions) {
+                if (events.size() >= BATCH_SIZE) {
+                    break;
+                }
+                events.addAll(EventConfLookupTest.eventsFor(definition, random));
+            }
+            events.subList(BATCH_SIZE, events.size()).clear();
+        }
+
+        private Event lookup(final org.opennms.netmgt.xml.event.Event event) {
+            if (INDEXED_MODE.equals(mode)) {
+                return eventConfDao.findByEvent(event);
+            } else {
+                return EventConfLookupTest.findFirstMatchingEvent(eventConfDao.getRootEvents(), event);
+            }
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 2)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void lookup(BState state, Blackhole blackhole) {
+        for (final org.opennms.netmgt.xml.event.Event event : state.events) {
+            blackhole.consume(state.lookup(event));
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.netmgt.config;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.core.test.ConfigurationTestUtils;
+import org.opennms.netmgt.model.events.EventBuilder;
+import org.opennms.netmgt.xml.eventconf.Event;
+import org.opennms.netmgt.xml.eventconf.Events;
+import org.opennms.netmgt.xml.eventconf.Mask;
+import org.opennms.netmgt.xml.eventconf.Maskelement;
+import org.opennms.netmgt.xml.eventconf.Varbind;
+import org.springframework.core.io.FileSystemResource;
+
+/**
+ * Verifies that the indexed lookup used by {@link DefaultEventConfDao#findByEvent}
+ * returns the same event definitions as testing all of the definitions in order,
+ * using events derived from the shipped event configuration.
+ */
+public class EventConfLookupTest {
+
+    private static DefaultEventConfDao eventConfDao;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        eventConfDao = new DefaultEventConfDao();
+        eventConfDao.setConfigResource(new FileSystemResource(ConfigurationTestUtils.getFileForConfigFile("eventconf.xml")));
+        eventConfDao.afterPropertiesSet();
+    }
+
+    @Test
+    public void canFindSameEventDefinitionsAsLinearSearch() {
+        final Random random = new Random(42);
+        final List<Event> definitions = new ArrayList<>(eventConfDao.getAllEvents());
+        Collections.shuffle(definitions, random);
+
+        int numMatched = 0;
+        for (final Event definition : definitions.subList(0, 1500)) {
+            for (final org.opennms.netmgt.xml.event.Event event : eventsFor(definition, random)) {
+                final Event expected = findFirstMatchingEvent(eventConfDao.getRootEvents(), event);
+                assertSame("Lookup of " + event + " for " + definition, expected, eventConfDao.findByEvent(event));
+                if (expected != null) {
+                    numMatched++;
+                }
+            }
+        }
+        assertThat(numMatched, greaterThan(1500));
+    }
+
+    /**
+     * The lookup as it was done before the definitions were indexed.
+     */
+    static Event findFirstMatchingEvent(final Events events, final org.opennms.netmgt.xml.event.Event event) {
+        if (event.getUei() != null) {
+            final Event definition = events.getEventByUeiOptimistic(event.getUei());
+            if (definition != null) {
+                return definition;
+            }
+        }
+        for (final Event definition : events.getEvents()) {
+            if (definition.matches(event).matched()) {
+                return definition;
+            }
+        }
+        for (final String eventFile : events.getEventFiles()) {
+            final Event definition = findFirstMatchingEvent(events.getLoadEventsByFile(eventFile), event);
+            if (definition != null) {
+                return definition;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds an event that satisfies the mask of the given definition, along with
+     * a variation in which one of the values has been altered.
+     */
+    static List<org.opennms.netmgt.xml.event.Event> eventsFor(final Event definition, final Random random) {
+        final List<org.opennms.netmgt.xml.event.Event> events = new ArrayList<>();
+        for (int variation = 0; variation < 2; variation++) {
+            final EventBuilder eb = new EventBuilder(random.nextBoolean() ? definition.getUei() : null, "trapd");
+            final Mask mask = definition.getMask();
+            final int altered = variation == 0 || mask == null ? -1 : random.nextInt(mask.getMaskelements().size() + mask.getVarbinds().size() + 1);
+            if (mask != null) {
+                int index = 0;
+                for (final Maskelement element : mask.getMaskelements()) {
+                    final String value = valueFor(element.getMevalues(), index++ == altered, random);
+                    if (value == null) {
+                        continue;
+                    }
+                    switch (element.getMename()) {
+                        case Maskelement.TAG_UEI:
+                            eb.setUei(value);
+                            break;
+                        case Maskelement.TAG_SNMP_EID:
+                            eb.setEnterpriseId(value);
+                            break;
+                        case Maskelement.TAG_SNMP_TRAPOID:
+                            eb.setTrapOID(value);
+                            break;
+                        case Maskelement.TAG_SNMP_GENERIC:
+                            eb.setGeneric(toInt(value, random));
+                            break;
+                        case Maskelement.TAG_SNMP_SPECIFIC:
+                            eb.setSpecific(toInt(value, random));
+                            break;
+                        case Maskelement.TAG_HOST:
+                            eb.setHost(value);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                final List<String> varbinds = new ArrayList<>();
+                for (final Varbind varbind : mask.getVarbinds()) {
+                    if (varbind.getVbnumber() == null) {
+                        continue;
+                    }
+                    while (varbinds.size() < varbind.getVbnumber()) {
+                        varbinds.add(Integer.toString(random.nextInt(10)));
+                    }
+                    final String value = valueFor(varbind.getVbvalues(), index++ == altered, random);
+                    if (value != null) {
+                        varbinds.set(varbind.getVbnumber() - 1, value);
+                    }
+                }
+                for (int i = 0; i < varbinds.size(); i++) {
+                    eb.addParam(".1.3.6.1.4.1.5813.20." + (i + 1), varbinds.get(i));
+                }
+            }
+            events.add(eb.getEvent());
+        }
+        return events;
+    }
+
+    private static String valueFor(final List<String> values, final boolean altered, final Random random) {
+        if (values.isEmpty()) {
+            return null;
+        }
+        final String value = values.get(random.nextInt(values.size()));
+        if (altered) {
+            return random.nextBoolean() ? value + "." + random.nextInt(10) : null;
+        } else if (value.startsWith("~")) {
+            // Can't reliably generate a value that matches a regular expression
+            return value.substring(1);
+        } else if (value.endsWith("%")) {
+            return value.substring(0, value.length() - 1) + random.nextInt(10);
+        }
+        return value;
+    }
+
+    private static int toInt(final String value, final Random random) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return random.nextInt(10);
+        }
+    }
+}
@@ -69,4 +69,19 @@ public interface AlarmDao extends LegacyOnmsDao<OnmsAlarm, Integer> {
     List<HeatMapElement> getHeatMapItemsForEntity(String entityNameColumn, String entityIdColumn, boolean processAcknowledgedAlarms, String restrictionColumn, String restrictionValue, String... groupByColumns);
 
     List<OnmsAlarm> getAlarmsForEventParameters(final Map<String, String> eventParameters);
+
+    /**
+     * Get the ids of all the alarms, without loading the alarms themselves.
+     *
+     * @return A list of alarm ids.
+     */
+    List<Integer> getAlarmIds();
+
+    /**
+     * Get the ids of all the alarms indexed by their reduction key, without loading
+     * the alarms themselves.
+     *
+     * @return A map of reduction keys to alarm ids.
+     */
+    Map<String, Integer> getAlarmIdsByReductionKey();
 }
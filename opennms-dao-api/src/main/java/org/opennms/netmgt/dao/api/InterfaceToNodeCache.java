@@ -29,6 +29,9 @@
 package org.opennms.netmgt.dao.api;
 
 import java.net.InetAddress;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 
 public interface InterfaceToNodeCache {
@@ -48,6 +51,21 @@ public interface InterfaceToNodeCache {
 
 	Optional<Integer> getFirstNodeId(String location, InetAddress ipAddr);
 
+	/**
+	 * Resolves the first node id of all the given addresses at once.
+	 *
+	 * Implementations should override this to avoid the per address overhead of {@link #getFirstNodeId(String, InetAddress)}.
+	 *
+	 * @return the node ids by address, addresses without a node are omitted
+	 */
+	default Map<InetAddress, Integer> getFirstNodeIds(String location, Collection<InetAddress> ipAddrs) {
+		final Map<InetAddress, Integer> nodeIds = new HashMap<>(ipAddrs.size());
+		for (final InetAddress ipAddr : ipAddrs) {
+			getFirstNodeId(location, ipAddr).ifPresent(nodeId -> nodeIds.put(ipAddr, nodeId));
+		}
+		return nodeIds;
+	}
+
 	void removeInterfacesForNode(int nodeId);
 
 }
@@ -125,4 +125,16 @@ public class MockAlarmDao extends AbstractMockDao<OnmsAlarm, Integer> implements
 
         return stream.distinct().collect(Collectors.toList());
     }
+
+    @Override
+    public List<Integer> getAlarmIds() {
+        return findAll().stream().map(OnmsAlarm::getId).collect(Collectors.toList());
+    }
+
+    @Override
+    public Map<String, Integer> getAlarmIdsByReductionKey() {
+        return findAll().stream()
+                .filter(a -> a.getReductionKey() != null)
+                .collect(Collectors.toMap(OnmsAlarm::getReductionKey, OnmsAlarm::getId, (a, b) -> b));
+    }
 }
@@ -32,6 +32,7 @@ import java.math.BigInteger;
 import java.sql.SQLException;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -227,4 +228,18 @@ public class AlarmDaoHibernate extends AbstractDaoHibernate<OnmsAlarm, Integer>
             }
         });
     }
+
+    @Override
+    public List<Integer> getAlarmIds() {
+        return findObjects(Integer.class, "select a.id from OnmsAlarm as a");
+    }
+
+    @Override
+    public Map<String, Integer> getAlarmIdsByReductionKey() {
+        final Map<String, Integer> alarmIdsByReductionKey = new HashMap<>();
+        for (final Object[] row : findObjects(Object[].class, "select a.reductionKey, a.id from OnmsAlarm as a where a.reductionKey is not null")) {
+            alarmIdsByReductionKey.put((String)row[0], (Integer)row[1]);
+        }
+        return alarmIdsByReductionKey;
+    }
 }
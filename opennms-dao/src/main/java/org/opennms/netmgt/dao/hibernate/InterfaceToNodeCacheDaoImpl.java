@@ -31,6 +31,8 @@ package org.opennms.netmgt.dao.hibernate;
 import static org.opennms.core.utils.InetAddressUtils.str;
 
 import java.net.InetAddress;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -334,6 +336,28 @@ public class InterfaceToNodeCacheDaoImpl extends AbstractInterfaceToNodeCache im
         }
     }
 
+    @Override
+    public Map<InetAddress, Integer> getFirstNodeIds(String location, Collection<InetAddress> ipAddrs) {
+        final Map<InetAddress, Integer> nodeIds = new HashMap<>(ipAddrs.size());
+        waitForInitialNodeSync();
+        // Resolve all addresses while holding the lock only once
+        m_lock.readLock().lock();
+        try {
+            for (final InetAddress ipAddr : ipAddrs) {
+                if (ipAddr == null) {
+                    continue;
+                }
+                var values = m_managedAddresses.get(new Key(location, ipAddr));
+                if (!values.isEmpty()) {
+                    nodeIds.put(ipAddr, values.first().nodeId);
+                }
+            }
+        } finally {
+            m_lock.readLock().unlock();
+        }
+        return nodeIds;
+    }
+
     private void waitForInitialNodeSync() {
         try {
             initialNodeSyncDone.await();
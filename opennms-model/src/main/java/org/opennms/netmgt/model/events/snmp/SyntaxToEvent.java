@@ -28,6 +28,8 @@
 
 package org.opennms.netmgt.model.events.snmp;
 
+import java.util.regex.Pattern;
+
 import org.opennms.netmgt.events.api.EventConstants;
 import org.opennms.netmgt.snmp.SnmpValue;
 import org.opennms.netmgt.xml.event.Parm;
@@ -37,6 +39,8 @@ import org.opennms.netmgt.xml.event.Value;
  * <p>SyntaxToEvent class.</p>
  */
 public class SyntaxToEvent {
+    private static final Pattern MAC_ADDRESS_NAME = Pattern.compile(".*[Mm][Aa][Cc].*");
+
     int m_typeId;
 
     String m_type;
@@ -104,6 +108,31 @@ public class SyntaxToEvent {
      * @return a {@link org.opennms.netmgt.xml.event.Parm} object.
      */
     public static Parm processSyntax(final String name, final SnmpValue value) {
+        return processSyntax(name, isMacAddressName(name), value);
+    }
+
+    /**
+     * <p>isMacAddressName</p>
+     *
+     * @param name a {@link java.lang.String} object.
+     * @return true if displayable values of the parameter with the given name are encoded as MAC addresses.
+     */
+    public static boolean isMacAddressName(final String name) {
+        return MAC_ADDRESS_NAME.matcher(name).matches();
+    }
+
+    /**
+     * <p>processSyntax</p>
+     *
+     * Variant of {@link #processSyntax(String, SnmpValue)} for callers that already
+     * know the result of {@link #isMacAddressName(String)} for the given name.
+     *
+     * @param name a {@link java.lang.String} object.
+     * @param macAddressName the result of {@link #isMacAddressName(String)} for the given name.
+     * @param value a {@link org.opennms.netmgt.snmp.SnmpValue} object.
+     * @return a {@link org.opennms.netmgt.xml.event.Parm} object.
+     */
+    public static Parm processSyntax(final String name, final boolean macAddressName, final SnmpValue value) {
     	final Value val = new Value();
 
         boolean found = false;
@@ -112,7 +141,7 @@ public class SyntaxToEvent {
                 val.setType(m_syntaxToEvents[i].getType());
                 String encoding = null;
                 if (value.isDisplayable()) {
-                    if (name.matches(".*[Mm][Aa][Cc].*")) {
+                    if (macAddressName) {
                         encoding = EventConstants.XML_ENCODING_MAC_ADDRESS;
                     } else {
                         encoding = EventConstants.XML_ENCODING_TEXT;
@@ -31,15 +31,18 @@ package org.opennms.netmgt.rrd;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.opennms.core.logging.Logging;
 import org.slf4j.Logger;
@@ -82,6 +85,10 @@ import org.slf4j.LoggerFactory;
  * org.opennms.rrd.queuing.writethreads: (default 2) The number of rrd write
  * threads that process the queue
  *
+ * org.opennms.rrd.queuing.lanes: (default 1) The number of lanes the queue is
+ * sharded into by the hash of the file names. Each lane is locked on its own
+ * and the write threads are spread over the lanes, with at least one per lane
+ *
  * org.opennms.rrd.queuing.queueCreates: (default false) indicates whether rrd
  * file creates should be queued or processed synchronously
  *
@@ -109,7 +116,7 @@ import org.slf4j.LoggerFactory;
  * @author ranger
  * @version $Id: $
  */
-public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.CreateOperation,String>, Runnable {
+public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.CreateOperation,String> {
 
     private Logger m_log = LoggerFactory.getLogger(QueuingRrdStrategy.class);
 
@@ -157,6 +164,8 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
 
     private long m_writeThreadExitDelay;
 
+    private int m_lanes = 1;
+
     /**
      * <p>getWriteThreads</p>
      *
@@ -357,41 +366,49 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
         m_writeThreadExitDelay = writeThreadExitDelay;
     }
 
-    LinkedList<String> filesWithSignificantWork = new LinkedList<String>();
-
-    LinkedList<String> filesWithInsignificantWork = new LinkedList<String>();
-
-    Map<String, LinkedList<Operation>> pendingFileOperations = new HashMap<String, LinkedList<Operation>>();
-
-    Map<Thread, String> fileAssignments = new HashMap<Thread, String>();
+    /**
+     * <p>getLanes</p>
+     *
+     * @return a int.
+     */
+    public int getLanes() {
+        return m_lanes;
+    }
 
-    Set<String> reservedFiles = new HashSet<String>();
+    /**
+     * <p>setLanes</p>
+     *
+     * @param lanes a int.
+     */
+    public void setLanes(int lanes) {
+        m_lanes = lanes;
+    }
 
-    private long m_totalOperationsPending = 0;
+    private volatile Lane[] m_queueLanes;
 
-    private long m_enqueuedOperations = 0;
+    private final AtomicLong m_totalOperationsPending = new AtomicLong();
 
-    private long m_dequeuedOperations = 0;
+    private final AtomicLong m_enqueuedOperations = new AtomicLong();
 
-    private long m_significantOpsEnqueued = 0;
+    private final AtomicLong m_dequeuedOperations = new AtomicLong();
 
-    private long m_significantOpsDequeued = 0;
+    private final AtomicLong m_significantOpsEnqueued = new AtomicLong();
 
-    private long m_significantOpsCompleted = 0;
+    private final AtomicLong m_significantOpsDequeued = new AtomicLong();
 
-    private long m_dequeuedItems = 0;
+    private final AtomicLong m_significantOpsCompleted = new AtomicLong();
 
-    private long m_createsCompleted = 0;
+    private final AtomicLong m_dequeuedItems = new AtomicLong();
 
-    private long m_updatesCompleted = 0;
+    private final AtomicLong m_createsCompleted = new AtomicLong();
 
-    private long m_errors = 0;
+    private final AtomicLong m_updatesCompleted = new AtomicLong();
 
-    int threadsRunning = 0;
+    private final AtomicLong m_errors = new AtomicLong();
 
-    private long m_startTime = 0;
+    private final AtomicLong m_startTime = new AtomicLong();
 
-    private long m_promotionCount = 0;
+    private final AtomicLong m_promotionCount = new AtomicLong();
 
     long lastLap = System.currentTimeMillis();
 
@@ -477,7 +494,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
             m_delegate.createFile(getData());
 
             // keep stats
-            setCreatesCompleted(getCreatesCompleted() + 1);
+            m_createsCompleted.incrementAndGet();
 
             // return the file
             return rrd;
@@ -516,8 +533,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
             }
 
             // keep stats
-            setUpdatesCompleted(getUpdatesCompleted() + 1);
-            if (getUpdatesCompleted() % m_modulus == 0) {
+            if (m_updatesCompleted.incrementAndGet() % m_modulus == 0) {
                 logStats();
             }
             // return the open rrd for further processing
@@ -563,8 +579,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
                 ts += getInterval();
 
                 // keep stats
-                setUpdatesCompleted(getUpdatesCompleted() + 1);
-                if (getUpdatesCompleted() % m_modulus == 0) {
+                if (m_updatesCompleted.incrementAndGet() % m_modulus == 0) {
                     logStats();
                 }
             }
@@ -673,7 +688,9 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
     //
     // Queue management functions.
     //
-    // TODO: Put this all in a class of its own. This is really ugly.
+    // Files are sharded by the hash of their path into lanes. Each lane has
+    // its own queues, its own monitor and its own write threads, so
+    // collection threads only contend with the writers of the same lane.
     //
 
     /**
@@ -682,31 +699,22 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @param op a {@link org.opennms.netmgt.rrd.QueuingRrdStrategy.Operation} object.
      */
     private void addOperation(final Operation op) {
-        synchronized (this) {
-            if (queueIsFull()) {
-                m_log.error("RRD Data Queue is Full!! Discarding operation for file {}", op.getFileName());
-                return;
-            }
-
-            if (op.isSignificant() && sigQueueIsFull()) {
-                m_log.error("RRD Data Significant Queue is Full!! Discarding operation for file {}", op.getFileName());
-                return;
-            }
-
-            if (!op.isSignificant() && inSigQueueIsFull()) {
-                m_log.error("RRD Insignificant Data Queue is Full!! Discarding operation for file {}", op.getFileName());
-                return;
-            }
+        if (queueIsFull()) {
+            m_log.error("RRD Data Queue is Full!! Discarding operation for file {}", op.getFileName());
+            return;
+        }
 
-            storeAssignment(op);
+        if (op.isSignificant() && sigQueueIsFull()) {
+            m_log.error("RRD Data Significant Queue is Full!! Discarding operation for file {}", op.getFileName());
+            return;
+        }
 
-            setTotalOperationsPending(getTotalOperationsPending() + 1);
-            setEnqueuedOperations(getEnqueuedOperations() + 1);
-            if (op.isSignificant())
-                setSignificantOpsEnqueued(getSignificantOpsEnqueued() + 1);
-            notifyAll();
-            ensureThreadsStarted();
+        if (!op.isSignificant() && inSigQueueIsFull()) {
+            m_log.error("RRD Insignificant Data Queue is Full!! Discarding operation for file {}", op.getFileName());
+            return;
         }
+
+        getLane(op.getFileName()).addOperation(op);
     }
 
 
@@ -732,136 +740,44 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
     }
 
     /**
-     * Ensure that we have threads started to process the queue.
-     */
-    private synchronized void ensureThreadsStarted() {
-        if (threadsRunning < m_writeThreads) {
-            threadsRunning++;
-            new Thread(this, this.getClass().getSimpleName() + "-" + threadsRunning).start();
-        }
-    }
-
-    /**
-     * Get the operations for the next file that should be worked on.
-     *
-     * @return a linkedList of operations to be processed all for the same file.
+     * Return the lanes of the queue, creating them on first use since the
+     * number of lanes is configured after construction.
      */
-    private LinkedList<Operation> getNext() {
-        LinkedList<Operation> ops = null;
-        synchronized (this) {
-
-            // turn in our previous assignment
-            completeAssignment();
-
-            String newAssignment;
-            // wait until there is work to do
-            while ((newAssignment = selectNewAssignment()) == null) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                }
-            }
-
-            // initialize start time for stats
-            if (getStartTime() == 0)
-                setStartTime(System.currentTimeMillis());
-
-            // reserve the assignment and take work items
-            ops = takeAssignment(newAssignment);
-
-            // keep stats
-            if (ops != null) {
-                for(Operation op : ops) {
-                    setTotalOperationsPending(getTotalOperationsPending()-op.getCount());
-                    setDequeuedOperations(getDequeuedOperations() + op.getCount());
-                    if (op.isSignificant()) {
-                        setSignificantOpsDequeued(getSignificantOpsDequeued() + op.getCount());
+    private Lane[] getQueueLanes() {
+        Lane[] lanes = m_queueLanes;
+        if (lanes == null) {
+            synchronized (this) {
+                lanes = m_queueLanes;
+                if (lanes == null) {
+                    lanes = new Lane[Math.max(1, m_lanes)];
+                    for (int i = 0; i < lanes.length; i++) {
+                        lanes[i] = new Lane(i);
                     }
+                    m_queueLanes = lanes;
                 }
-                setDequeuedItems(getDequeuedItems() + 1);
             }
         }
-
-        return ops;
-
-    }
-
-    /**
-     * We need to track which files are being processed by which threads so that
-     * we don't try to process updates for the same file on more than one
-     * thread.
-     */
-    private synchronized void storeAssignment(Operation op) {
-        // look and see if there a pending ops list for this file
-        LinkedList<Operation> pendingOperations = pendingFileOperations.get(op.getFileName());
-
-        // if not then we create an ops list for the file and add the file to
-        // the work items list
-        if (pendingOperations == null) {
-            pendingOperations = new LinkedList<Operation>();
-            pendingFileOperations.put(op.getFileName(), pendingOperations);
-
-            // add the file to the correct list based on what type of work we
-            // are adding.  (if we aren't prioritizing then every file is counted as
-            // signficant
-            if (!m_prioritizeSignificantUpdates || op.isSignificant())
-                filesWithSignificantWork.addLast(op.getFileName());
-            else
-                filesWithInsignificantWork.addLast(op.getFileName());
-        } else if (m_prioritizeSignificantUpdates && op.isSignificant() && hasOnlyInsignificant(pendingOperations)) {
-            // only do this when we are prioritizing as this bumps files from inSig
-            // up to insig
-            // promote the file to the significant list if this is the first
-            // significant
-            filesWithSignificantWork.addLast(op.getFileName());
-        }
-
-        promoteAgedFiles();
-
-        op.addToPendingList(pendingOperations);
+        return lanes;
     }
 
     /**
-     * Ensure that files with insignificant changes are getting promoted if
-     * necessary
-     *
+     * Return the lane of the given file.
      */
-    private synchronized void promoteAgedFiles() {
-
-        // no need to do this is we aren't prioritizing
-        if (!m_prioritizeSignificantUpdates) return;
-
-        // the num seconds to update files is 0 then use unfair prioritization
-        if (m_maxInsigUpdateSeconds == 0 || filesWithInsignificantWork.isEmpty())
-            return;
-
-        // calculate the elapsed time we first queued updates
-        long now = System.currentTimeMillis();
-        long elapsedMillis = Math.max(now - getStartTime(), 1);
-
-        // calculate the milliseconds between promotions necessary to age
-        // insignificant files into
-        // the significant queue
-        double millisPerPromotion = ((m_maxInsigUpdateSeconds * 1000.0) / filesWithInsignificantWork.size());
-
-        // calculate the number of millis since start until the next file needs
-        // to be promotoed
-        long nextPromotionMillis = (long) (millisPerPromotion * getPromotionCount());
-
-        // if more time has elapsed than the next promotion time then promote a
-        // file
-        if (elapsedMillis > nextPromotionMillis) {
-            String file = filesWithInsignificantWork.removeFirst();
-            filesWithSignificantWork.addFirst(file);
-            setPromotionCount(getPromotionCount() + 1);
-        }
-
+    private Lane getLane(final String fileName) {
+        final Lane[] lanes = getQueueLanes();
+        return lanes[Math.floorMod(fileName.hashCode(), lanes.length)];
     }
 
     /** {@inheritDoc} */
     @Override
-    public synchronized void promoteEnqueuedFiles(Collection<String> rrdFiles) {
-        filesWithSignificantWork.addAll(0, rrdFiles);
+    public void promoteEnqueuedFiles(Collection<String> rrdFiles) {
+        final Map<Lane, List<String>> filesByLane = new LinkedHashMap<Lane, List<String>>();
+        for (final String rrdFile : rrdFiles) {
+            filesByLane.computeIfAbsent(getLane(rrdFile), l -> new ArrayList<String>()).add(rrdFile);
+        }
+        for (final Map.Entry<Lane, List<String>> entry : filesByLane.entrySet()) {
+            entry.getKey().promoteEnqueuedFiles(entry.getValue());
+        }
         m_delegate.promoteEnqueuedFiles(rrdFiles);
     }
 
@@ -879,51 +795,271 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
     }
 
     /**
-     * register the file that the currentThread is be working on. This enables
-     * us to ensure that another thread doesn't try to work on operations for
-     * that file.  Note: this is not synchronized as it is called from getNext which
-     * is thread safe
+     * A shard of the queue.  All of the operations of a file are queued on the
+     * same lane, and processed by the write threads of that lane.
      */
-    private LinkedList<Operation> takeAssignment(String newAssignment) {
+    private class Lane implements Runnable {
 
-        // make the file as reserved by the current thread
-        fileAssignments.put(Thread.currentThread(), newAssignment);
-        reservedFiles.add(newAssignment);
+        private final int m_index;
 
-        // get the assignments work list and return it
-        return pendingFileOperations.remove(newAssignment);
-    }
+        private final LinkedList<String> filesWithSignificantWork = new LinkedList<String>();
 
-    /**
-     * Return the name of the next file with available work
-     */
-    private String selectNewAssignment() {
-        for (Iterator<String> it = filesWithSignificantWork.iterator(); it.hasNext();) {
-            String fn = it.next();
-            if (!reservedFiles.contains(fn)) {
-                it.remove();
-                return fn;
+        private final LinkedList<String> filesWithInsignificantWork = new LinkedList<String>();
+
+        private final Map<String, LinkedList<Operation>> pendingFileOperations = new HashMap<String, LinkedList<Operation>>();
+
+        private final Map<Thread, String> fileAssignments = new HashMap<Thread, String>();
+
+        private final Set<String> reservedFiles = new HashSet<String>();
+
+        private volatile long m_operationsPending = 0;
+
+        private long m_lanePromotionCount = 0;
+
+        private int threadsRunning = 0;
+
+        private Lane(int index) {
+            m_index = index;
+        }
+
+        private synchronized void addOperation(final Operation op) {
+            storeAssignment(op);
+
+            m_operationsPending++;
+            m_totalOperationsPending.incrementAndGet();
+            m_enqueuedOperations.incrementAndGet();
+            if (op.isSignificant())
+                m_significantOpsEnqueued.incrementAndGet();
+            notifyAll();
+            ensureThreadsStarted();
+        }
+
+        /**
+         * Ensure that we have threads started to process the lane.  The write
+         * threads are spread over the lanes, with at least one per lane.
+         */
+        private synchronized void ensureThreadsStarted() {
+            final int lanes = getQueueLanes().length;
+            final int writeThreads = (m_writeThreads + lanes - 1) / lanes;
+            if (threadsRunning < writeThreads) {
+                threadsRunning++;
+                final String name = QueuingRrdStrategy.class.getSimpleName() + (lanes > 1 ? "-" + m_index : "") + "-" + threadsRunning;
+                new Thread(this, name).start();
             }
         }
-        for (Iterator<String> it = filesWithInsignificantWork.iterator(); it.hasNext();) {
-            String fn = it.next();
-            if (!reservedFiles.contains(fn)) {
-                it.remove();
-                return fn;
+
+        /**
+         * Get the operations for the next file that should be worked on.
+         *
+         * @return a linkedList of operations to be processed all for the same file.
+         */
+        private LinkedList<Operation> getNext() {
+            LinkedList<Operation> ops = null;
+            synchronized (this) {
+
+                // turn in our previous assignment
+                completeAssignment();
+
+                String newAssignment;
+                // wait until there is work to do
+                while ((newAssignment = selectNewAssignment()) == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+
+                // initialize start time for stats
+                m_startTime.compareAndSet(0, System.currentTimeMillis());
+
+                // reserve the assignment and take work items
+                ops = takeAssignment(newAssignment);
+
+                // keep stats
+                if (ops != null) {
+                    for(Operation op : ops) {
+                        m_operationsPending -= op.getCount();
+                        m_totalOperationsPending.addAndGet(-op.getCount());
+                        m_dequeuedOperations.addAndGet(op.getCount());
+                        if (op.isSignificant()) {
+                            m_significantOpsDequeued.addAndGet(op.getCount());
+                        }
+                    }
+                    m_dequeuedItems.incrementAndGet();
+                }
             }
+
+            return ops;
+
         }
-        return null;
-    }
 
-    /**
-     * Record that fact that the current thread has finished process operations
-     * for its current assignment
-     */
-    private synchronized void completeAssignment() {
-        // remove any existing reservation of the current thread
-        String previousAssignment = fileAssignments.remove(Thread.currentThread());
-        if (previousAssignment != null)
-            reservedFiles.remove(previousAssignment);
+        /**
+         * We need to track which files are being processed by which threads so that
+         * we don't try to process updates for the same file on more than one
+         * thread.
+         */
+        private synchronized void storeAssignment(Operation op) {
+            // look and see if there a pending ops list for this file
+            LinkedList<Operation> pendingOperations = pendingFileOperations.get(op.getFileName());
+
+            // if not then we create an ops list for the file and add the file to
+            // the work items list
+            if (pendingOperations == null) {
+                pendingOperations = new LinkedList<Operation>();
+                pendingFileOperations.put(op.getFileName(), pendingOperations);
+
+                // add the file to the correct list based on what type of work we
+                // are adding.  (if we aren't prioritizing then every file is counted as
+                // signficant
+                if (!m_prioritizeSignificantUpdates || op.isSignificant())
+                    filesWithSignificantWork.addLast(op.getFileName());
+                else
+                    filesWithInsignificantWork.addLast(op.getFileName());
+            } else if (m_prioritizeSignificantUpdates && op.isSignificant() && hasOnlyInsignificant(pendingOperations)) {
+                // only do this when we are prioritizing as this bumps files from inSig
+                // up to insig
+                // promote the file to the significant list if this is the first
+                // significant
+                filesWithSignificantWork.addLast(op.getFileName());
+            }
+
+            promoteAgedFiles();
+
+            op.addToPendingList(pendingOperations);
+        }
+
+        /**
+         * Ensure that files with insignificant changes are getting promoted if
+         * necessary
+         *
+         */
+        private synchronized void promoteAgedFiles() {
+
+            // no need to do this is we aren't prioritizing
+            if (!m_prioritizeSignificantUpdates) return;
+
+            // the num seconds to update files is 0 then use unfair prioritization
+            if (m_maxInsigUpdateSeconds == 0 || filesWithInsignificantWork.isEmpty())
+                return;
+
+            // calculate the elapsed time we first queued updates
+            long now = System.currentTimeMillis();
+            long elapsedMillis = Math.max(now - getStartTime(), 1);
+
+            // calculate the milliseconds between promotions necessary to age
+            // insignificant files of this lane into
+            // the significant queue
+            double millisPerPromotion = ((m_maxInsigUpdateSeconds * 1000.0) / filesWithInsignificantWork.size());
+
+            // calculate the number of millis since start until the next file needs
+            // to be promotoed
+            long nextPromotionMillis = (long) (millisPerPromotion * m_lanePromotionCount);
+
+            // if more time has elapsed than the next promotion time then promote a
+            // file
+            if (elapsedMillis > nextPromotionMillis) {
+                String file = filesWithInsignificantWork.removeFirst();
+                filesWithSignificantWork.addFirst(file);
+                m_lanePromotionCount++;
+                m_promotionCount.incrementAndGet();
+            }
+
+        }
+
+        private synchronized void promoteEnqueuedFiles(Collection<String> rrdFiles) {
+            filesWithSignificantWork.addAll(0, rrdFiles);
+        }
+
+        /**
+         * register the file that the currentThread is be working on. This enables
+         * us to ensure that another thread doesn't try to work on operations for
+         * that file.  Note: this is not synchronized as it is called from getNext which
+         * is thread safe
+         */
+        private LinkedList<Operation> takeAssignment(String newAssignment) {
+
+            // make the file as reserved by the current thread
+            fileAssignments.put(Thread.currentThread(), newAssignment);
+            reservedFiles.add(newAssignment);
+
+            // get the assignments work list and return it
+            return pendingFileOperations.remove(newAssignment);
+        }
+
+        /**
+         * Return the name of the next file with available work
+         */
+        private String selectNewAssignment() {
+            for (Iterator<String> it = filesWithSignificantWork.iterator(); it.hasNext();) {
+                String fn = it.next();
+                if (!reservedFiles.contains(fn)) {
+                    it.remove();
+                    return fn;
+                }
+            }
+            for (Iterator<String> it = filesWithInsignificantWork.iterator(); it.hasNext();) {
+                String fn = it.next();
+                if (!reservedFiles.contains(fn)) {
+                    it.remove();
+                    return fn;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Record that fact that the current thread has finished process operations
+         * for its current assignment
+         */
+        private synchronized void completeAssignment() {
+            // remove any existing reservation of the current thread
+            String previousAssignment = fileAssignments.remove(Thread.currentThread());
+            if (previousAssignment != null)
+                reservedFiles.remove(previousAssignment);
+        }
+
+        private synchronized int getFilesWithSignificantWork() {
+            return filesWithSignificantWork.size();
+        }
+
+        private synchronized int getFilesWithInsignificantWork() {
+            return filesWithInsignificantWork.size();
+        }
+
+        /**
+         * The loop of the write threads of the lane.
+         */
+        @Override
+        public void run() {
+            try {
+
+                long waitStart = -1L;
+                long delayed = 0;
+                while (delayed < m_writeThreadExitDelay) {
+                    if (m_operationsPending > 0) {
+                        delayed = 0;
+                        waitStart = -1L;
+                        processPendingOperations(this);
+                    } else {
+                        if (waitStart < 0) {
+                            waitStart = System.currentTimeMillis();
+                        }
+                        try {
+                            Thread.sleep(m_writeThreadSleepTime);
+                        } catch (InterruptedException e) {
+                        }
+                        long now = System.currentTimeMillis();
+                        delayed = now - waitStart;
+                    }
+
+                }
+            } finally {
+                synchronized (this) {
+                    threadsRunning--;
+                    completeAssignment();
+                }
+            }
+        }
     }
 
     /**
@@ -1053,53 +1189,18 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
     // These methods are run by the write threads the process the queues.
     //
 
-    /**
-     * <p>run</p>
-     */
-    @Override
-    public void run() {
-        try {
-
-            long waitStart = -1L;
-            long delayed = 0;
-            while (delayed < m_writeThreadExitDelay) {
-                if (getTotalOperationsPending() > 0) {
-                    delayed = 0;
-                    waitStart = -1L;
-                    processPendingOperations();
-                } else {
-                    if (waitStart < 0) {
-                        waitStart = System.currentTimeMillis();
-                    }
-                    try {
-                        Thread.sleep(m_writeThreadSleepTime);
-                    } catch (InterruptedException e) {
-                    }
-                    long now = System.currentTimeMillis();
-                    delayed = now - waitStart;
-                }
-
-            }
-        } finally {
-            synchronized (this) {
-                threadsRunning--;
-                completeAssignment();
-            }
-        }
-    }
-
     /**
      * Actually process the operations be calling the underlying delegate
      * strategy
      */
-    private void processPendingOperations() {
+    private void processPendingOperations(final Lane lane) {
         Logging.withPrefix(m_category, new Runnable() {
             @Override public void run() {
                 Object rrd = null;
                 String fileName = null;
 
                 try {
-                    final LinkedList<Operation> ops = getNext();
+                    final LinkedList<Operation> ops = lane.getNext();
                     if (ops == null) {
                         return;
                     }
@@ -1107,7 +1208,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
                     // while we are processing
                     for (final Operation op : ops) {
                         if (op.isSignificant()) {
-                            setSignificantOpsCompleted(getSignificantOpsCompleted() + 1);
+                            m_significantOpsCompleted.incrementAndGet();
                         }
 
                     }
@@ -1117,7 +1218,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
                         rrd = op.process(rrd);
                     }
                 } catch (final Throwable e) {
-                    setErrors(getErrors() + 1);
+                    m_errors.incrementAndGet();
                     logLapTime("Error updating file " + fileName + ": " + e.getMessage());
                     m_log.debug("Error updating file {}: {}", fileName, e.getMessage(), e);
                 } finally {
@@ -1135,13 +1236,29 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
             try {
                 m_delegate.closeFile(rrd);
             } catch (final Throwable e) {
-                setErrors(getErrors() + 1);
+                m_errors.incrementAndGet();
                 logLapTime("Error closing rrd " + rrd + ": " + e.getMessage());
                 m_log.debug("Error closing rrd {}: {}", rrd, e.getMessage(), e);
             }
         }
     }
 
+    private int getFilesWithSignificantWork() {
+        int files = 0;
+        for (final Lane lane : getQueueLanes()) {
+            files += lane.getFilesWithSignificantWork();
+        }
+        return files;
+    }
+
+    private int getFilesWithInsignificantWork() {
+        int files = 0;
+        for (final Lane lane : getQueueLanes()) {
+            files += lane.getFilesWithInsignificantWork();
+        }
+        return files;
+    }
+
     /**
      * Print queue statistics.
      *
@@ -1181,8 +1298,8 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
 
         String stats = "\nQS:\t" + "totalOperationsPending=" + getTotalOperationsPending() +
                 ", significantOpsPending=" + (getSignificantOpsEnqueued() - getSignificantOpsCompleted()) +
-                ", filesWithSignificantWork=" + filesWithSignificantWork.size() +
-                ", filesWithInsignificantWork=" + filesWithInsignificantWork.size()
+                ", filesWithSignificantWork=" + getFilesWithSignificantWork() +
+                ", filesWithInsignificantWork=" + getFilesWithInsignificantWork()
 
                 + "\nQS:\t" + ", createsCompleted=" + getCreatesCompleted() +
                 ", updatesCompleted=" + getUpdatesCompleted() +
@@ -1297,7 +1414,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @return a long.
      */
     public long getTotalOperationsPending() {
-        return m_totalOperationsPending;
+        return m_totalOperationsPending.get();
     }
 
     /**
@@ -1306,7 +1423,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @param totalOperationsPending a long.
      */
     public void setTotalOperationsPending(long totalOperationsPending) {
-        m_totalOperationsPending = totalOperationsPending;
+        m_totalOperationsPending.set(totalOperationsPending);
     }
 
     /**
@@ -1315,7 +1432,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @return a long.
      */
     public long getCreatesCompleted() {
-        return m_createsCompleted;
+        return m_createsCompleted.get();
     }
 
     /**
@@ -1324,7 +1441,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @param createsCompleted a long.
      */
     public void setCreatesCompleted(long createsCompleted) {
-        m_createsCompleted = createsCompleted;
+        m_createsCompleted.set(createsCompleted);
     }
 
     /**
@@ -1333,7 +1450,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @return a long.
      */
     public long getUpdatesCompleted() {
-        return m_updatesCompleted;
+        return m_updatesCompleted.get();
     }
 
     /**
@@ -1342,7 +1459,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @param updatesCompleted a long.
      */
     public void setUpdatesCompleted(long updatesCompleted) {
-        m_updatesCompleted = updatesCompleted;
+        m_updatesCompleted.set(updatesCompleted);
     }
 
     /**
@@ -1351,7 +1468,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @return a long.
      */
     public long getErrors() {
-        return m_errors;
+        return m_errors.get();
     }
 
     /**
@@ -1360,7 +1477,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @param errors a long.
      */
     public void setErrors(long errors) {
-        m_errors = errors;
+        m_errors.set(errors);
     }
 
     /**
@@ -1369,7 +1486,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @return a long.
      */
     public long getPromotionCount() {
-        return m_promotionCount;
+        return m_promotionCount.get();
     }
 
     /**
@@ -1378,7 +1495,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @param promotionCount a long.
      */
     public void setPromotionCount(long promotionCount) {
-        m_promotionCount = promotionCount;
+        m_promotionCount.set(promotionCount);
     }
 
     /**
@@ -1387,7 +1504,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @return a long.
      */
     public long getSignificantOpsEnqueued() {
-        return m_significantOpsEnqueued;
+        return m_significantOpsEnqueued.get();
     }
 
     /**
@@ -1396,7 +1513,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @param significantOpsEnqueued a long.
      */
     public void setSignificantOpsEnqueued(long significantOpsEnqueued) {
-        m_significantOpsEnqueued = significantOpsEnqueued;
+        m_significantOpsEnqueued.set(significantOpsEnqueued);
     }
 
     /**
@@ -1405,7 +1522,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @return a long.
      */
     public long getSignificantOpsDequeued() {
-        return m_significantOpsDequeued;
+        return m_significantOpsDequeued.get();
     }
 
     /**
@@ -1414,7 +1531,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @param significantOpsDequeued a long.
      */
     public void setSignificantOpsDequeued(long significantOpsDequeued) {
-        m_significantOpsDequeued = significantOpsDequeued;
+        m_significantOpsDequeued.set(significantOpsDequeued);
     }
 
     /**
@@ -1423,7 +1540,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @return a long.
      */
     public long getEnqueuedOperations() {
-        return m_enqueuedOperations;
+        return m_enqueuedOperations.get();
     }
 
     /**
@@ -1432,7 +1549,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @param enqueuedOperations a long.
      */
     public void setEnqueuedOperations(long enqueuedOperations) {
-        m_enqueuedOperations = enqueuedOperations;
+        m_enqueuedOperations.set(enqueuedOperations);
     }
 
     /**
@@ -1441,7 +1558,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @return a long.
      */
     public long getDequeuedOperations() {
-        return m_dequeuedOperations;
+        return m_dequeuedOperations.get();
     }
 
     /**
@@ -1450,7 +1567,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @param dequeuedOperations a long.
      */
     public void setDequeuedOperations(long dequeuedOperations) {
-        m_dequeuedOperations = dequeuedOperations;
+        m_dequeuedOperations.set(dequeuedOperations);
     }
 
     /**
@@ -1459,7 +1576,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @return a long.
      */
     public long getDequeuedItems() {
-        return m_dequeuedItems;
+        return m_dequeuedItems.get();
     }
 
     /**
@@ -1468,7 +1585,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @param dequeuedItems a long.
      */
     public void setDequeuedItems(long dequeuedItems) {
-        m_dequeuedItems = dequeuedItems;
+        m_dequeuedItems.set(dequeuedItems);
     }
 
     /**
@@ -1477,7 +1594,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @return a long.
      */
     public long getSignificantOpsCompleted() {
-        return m_significantOpsCompleted;
+        return m_significantOpsCompleted.get();
     }
 
     /**
@@ -1486,7 +1603,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @param significantOpsCompleted a long.
      */
     public void setSignificantOpsCompleted(long significantOpsCompleted) {
-        m_significantOpsCompleted = significantOpsCompleted;
+        m_significantOpsCompleted.set(significantOpsCompleted);
     }
 
     /**
@@ -1495,7 +1612,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @return a long.
      */
     public long getStartTime() {
-        return m_startTime;
+        return m_startTime.get();
     }
 
     /**
@@ -1504,7 +1621,7 @@ public class QueuingRrdStrategy implements RrdStrategy<QueuingRrdStrategy.Create
      * @param updateStart a long.
      */
     public void setStartTime(long updateStart) {
-        m_startTime = updateStart;
+        m_startTime.set(updateStart);
     }
 
 
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Use the Java Microbenchmarking Harness (JMH) to measure the number of updates per second
+ * that the {@link QueuingRrdStrategy} can queue and dequeue, with one or more lanes.
+ * <p>
+ * Each invocation updates every one of a million files once, from several collection threads,
+ * and waits until the write threads handed all of the updates to a {@link NullRrdStrategy}. The
+ * measured throughput is the overhead of the queue, without any I/O.
+ */
+public class QueuingRrdStrategyBenchmark {
+
+    private static final int FILES = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args);
+    }
+
+    @State(Scope.Benchmark)
+    public static class QueueState {
+
+        @Param({"1", "16"})
+        public int lanes;
+
+        @Param({"16"})
+        public int writeThreads;
+
+        @Param({"8"})
+        public int collectionThreads;
+
+        private QueuingRrdStrategy m_strategy;
+
+        private ExecutorService m_collectors;
+
+        private String[] m_files;
+
+        @Setup(Level.Trial)
+        public void setUpFiles() {
+            m_files = new String[FILES];
+            for (int i = 0; i < FILES; i++) {
+                m_files[i] = "/opt/opennms/share/rrd/snmp/" + (i / 100) + "/ifInOctets-" + (i % 100) + ".jrb";
+            }
+            m_collectors = Executors.newFixedThreadPool(collectionThreads);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDownFiles() {
+            m_collectors.shutdown();
+        }
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            m_strategy = new QueuingRrdStrategy(new NullRrdStrategy());
+            m_strategy.setWriteThreads(writeThreads);
+            m_strategy.setLanes(lanes);
+            m_strategy.setModulus(Long.MAX_VALUE);
+            m_strategy.setWriteThreadSleepTime(1);
+            m_strategy.setWriteThreadExitDelay(100);
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(FILES)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void updateAllFiles(QueueState state) throws Exception {
+        final QueuingRrdStrategy strategy = state.m_strategy;
+        final String[] files = state.m_files;
+        final int collectors = state.collectionThreads;
+
+        final List<Future<?>> futures = new ArrayList<>(collectors);
+        for (int c = 0; c < collectors; c++) {
+            final int first = c;
+            futures.add(state.m_collectors.submit(() -> {
+                for (int i = first; i < files.length; i += collectors) {
+                    strategy.updateFile(files[i], "benchmark", "1500000000:" + i);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        while (strategy.getUpdatesCompleted() < files.length) {
+            Thread.sleep(1);
+        }
+    }
+}
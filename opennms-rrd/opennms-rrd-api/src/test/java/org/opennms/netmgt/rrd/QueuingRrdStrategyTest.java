@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+public class QueuingRrdStrategyTest {
+
+    @Test
+    public void canProcessUpdatesOnAllLanes() throws Exception {
+        final RecordingRrdStrategy delegate = new RecordingRrdStrategy();
+        final QueuingRrdStrategy strategy = createStrategy(delegate, 4, 4);
+
+        for (int update = 1; update <= 3; update++) {
+            for (int file = 0; file < 100; file++) {
+                strategy.updateFile("file" + file, "test", update + ":" + update);
+            }
+        }
+        waitForUpdates(strategy, 300);
+
+        // The updates of every file are processed in order
+        assertEquals(100, delegate.m_updates.size());
+        for (List<String> updates : delegate.m_updates.values()) {
+            assertEquals(Arrays.asList("1:1", "2:2", "3:3"), updates);
+        }
+        assertEquals(300, strategy.getDequeuedOperations());
+        assertEquals(0, strategy.getTotalOperationsPending());
+    }
+
+    @Test
+    public void canPrioritizeSignificantUpdates() throws Exception {
+        final RecordingRrdStrategy delegate = new RecordingRrdStrategy();
+        final QueuingRrdStrategy strategy = createStrategy(delegate, 0, 1);
+        strategy.setPrioritizeSignificantUpdates(true);
+
+        // Queue the updates without any write thread
+        strategy.updateFile("zero", "test", "1000:0");
+        strategy.updateFile("zero", "test", "1300:0");
+        strategy.updateFile("zero", "test", "1600:0");
+        strategy.updateFile("significant", "test", "1000:1");
+        assertEquals(4, strategy.getTotalOperationsPending());
+
+        strategy.setWriteThreads(1);
+        strategy.updateFile("promoted", "test", "1000:1");
+        waitForUpdates(strategy, 5);
+
+        // The files with significant updates are written first, and the zero updates are still written in order
+        assertEquals(Arrays.asList("significant", "promoted", "zero"), delegate.m_files);
+        assertEquals(Arrays.asList("1000:0", "1300:0", "1600:0"), delegate.m_updates.get("zero"));
+        assertEquals(3, strategy.getDequeuedItems());
+    }
+
+    private static QueuingRrdStrategy createStrategy(final RrdStrategy<Object, Object> delegate, final int writeThreads, final int lanes) {
+        final QueuingRrdStrategy strategy = new QueuingRrdStrategy(delegate);
+        strategy.setWriteThreads(writeThreads);
+        strategy.setLanes(lanes);
+        strategy.setModulus(10000);
+        strategy.setWriteThreadSleepTime(10);
+        strategy.setWriteThreadExitDelay(1000);
+        return strategy;
+    }
+
+    private static void waitForUpdates(final QueuingRrdStrategy strategy, final long updates) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10000;
+        while (strategy.getUpdatesCompleted() < updates && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(updates, strategy.getUpdatesCompleted());
+    }
+
+    private static class RecordingRrdStrategy extends NullRrdStrategy {
+        private final Map<String, List<String>> m_updates = new ConcurrentHashMap<>();
+        private final List<String> m_files = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public Object openFile(final String fileName) {
+            m_files.add(fileName);
+            return fileName;
+        }
+
+        @Override
+        public void updateFile(final Object rrd, final String owner, final String data) {
+            m_updates.computeIfAbsent((String) rrd, f -> Collections.synchronizedList(new ArrayList<>())).add(data);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2021 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2021 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.netmgt.rrd.jrobin;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of open JRobin files.
+ *
+ * Files are kept open after they have been updated, so that the next
+ * updates of the same file don't have to open it and parse its header
+ * again. When there are more open files than the capacity of the pool,
+ * the least recently used files that aren't in use are closed.
+ *
+ * Since the FILE backend writes through to the operating system, the files
+ * that are kept open can be read by other handles at any time. The fsync
+ * policy decides when the data is also forced to the disk.
+ *
+ * The pool must be closed once it is no longer used, so that the files
+ * that are still open are closed, and forced to the disk if the policy
+ * says so.
+ */
+final class JRobinFilePool {
+    private static final Logger LOG = LoggerFactory.getLogger(JRobinFilePool.class);
+
+    enum FsyncPolicy {
+        /** Leave it to the operating system */
+        NONE,
+        /** Force the data of a file to the disk when it is closed */
+        EVICT,
+        /**
+         * Force the data of a file to the disk after every update cycle. JRobin
+         * doesn't expose the channel of its backend, so every fsync opens and
+         * closes another channel on the file, on top of the fsync itself.
+         */
+        RELEASE;
+
+        static FsyncPolicy fromString(final String policy) {
+            return policy == null || policy.trim().isEmpty() ? NONE : valueOf(policy.trim().toUpperCase());
+        }
+    }
+
+    private static final class Entry {
+        private final String m_path;
+        private final RrdDb m_rrd;
+        private int m_usage = 0;
+
+        private Entry(final String path, final RrdDb rrd) {
+            m_path = path;
+            m_rrd = rrd;
+        }
+    }
+
+    private final int m_capacity;
+    private final FsyncPolicy m_fsyncPolicy;
+
+    private final Map<String, Entry> m_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<RrdDb, Entry> m_entriesByRrd = new IdentityHashMap<RrdDb, Entry>();
+
+    private long m_hits = 0;
+    private long m_misses = 0;
+    private long m_evictions = 0;
+    private boolean m_closed = false;
+
+    JRobinFilePool(final int capacity, final FsyncPolicy fsyncPolicy) {
+        m_capacity = capacity;
+        m_fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Returns the open file with the given path, opening it if necessary.
+     * Every file that is acquired must be released.
+     */
+    RrdDb acquire(final String path) throws IOException, RrdException {
+        synchronized (this) {
+            if (m_closed) {
+                // Not kept open, it is closed when it is released
+                return new RrdDb(path);
+            }
+            final Entry entry = m_entries.get(path);
+            if (entry != null) {
+                entry.m_usage++;
+                m_hits++;
+                return entry.m_rrd;
+            }
+            m_misses++;
+        }
+
+        final RrdDb rrd = new RrdDb(path);
+
+        final RrdDb acquired;
+        synchronized (this) {
+            if (m_closed) {
+                return rrd;
+            }
+            Entry entry = m_entries.get(path);
+            if (entry == null) {
+                entry = new Entry(path, rrd);
+                m_entries.put(path, entry);
+                m_entriesByRrd.put(rrd, entry);
+            }
+            entry.m_usage++;
+            acquired = entry.m_rrd;
+        }
+
+        if (acquired != rrd) {
+            // Another thread opened the same file in the meantime
+            close(path, rrd, false);
+        }
+        evict();
+        return acquired;
+    }
+
+    /**
+     * Releases a file that was acquired from the pool, and keeps it open
+     * unless the pool is full.
+     */
+    void release(final RrdDb rrd) throws IOException {
+        final Entry entry;
+        synchronized (this) {
+            entry = m_entriesByRrd.get(rrd);
+            if (entry != null) {
+                entry.m_usage--;
+            }
+        }
+
+        if (entry == null) {
+            // The file was removed from the pool, or the pool was closed, while it was in use
+            close(rrd.getPath(), rrd, m_fsyncPolicy != FsyncPolicy.NONE);
+            return;
+        }
+        if (m_fsyncPolicy == FsyncPolicy.RELEASE) {
+            fsync(entry.m_path);
+        }
+        evict();
+    }
+
+    /**
+     * Closes the file with the given path if it is open, i.e. before it is
+     * created again.
+     */
+    void remove(final String path) {
+        final Entry entry;
+        synchronized (this) {
+            entry = m_entries.remove(path);
+            if (entry == null) {
+                return;
+            }
+            m_entriesByRrd.remove(entry.m_rrd);
+            if (entry.m_usage > 0) {
+                // It will be closed when it is released
+                return;
+            }
+        }
+        close(entry.m_path, entry.m_rrd, m_fsyncPolicy != FsyncPolicy.NONE);
+    }
+
+    /**
+     * Closes the files that are open, and forces them to the disk unless the
+     * policy is {@link FsyncPolicy#NONE}. The files that are in use are closed
+     * when they are released.
+     */
+    void close() {
+        final List<Entry> closed = new ArrayList<Entry>();
+        synchronized (this) {
+            m_closed = true;
+            for (final Entry entry : m_entries.values()) {
+                if (entry.m_usage == 0) {
+                    closed.add(entry);
+                }
+            }
+            m_entries.clear();
+            m_entriesByRrd.clear();
+        }
+
+        LOG.debug("Closing {} JRobin files", closed.size());
+        for (final Entry entry : closed) {
+            close(entry.m_path, entry.m_rrd, m_fsyncPolicy != FsyncPolicy.NONE);
+        }
+    }
+
+    private void evict() {
+        final List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (this) {
+            final Iterator<Entry> it = m_entries.values().iterator();
+            while (m_entries.size() > m_capacity && it.hasNext()) {
+                final Entry entry = it.next();
+                if (entry.m_usage == 0) {
+                    it.remove();
+                    m_entriesByRrd.remove(entry.m_rrd);
+                    evicted.add(entry);
+                    m_evictions++;
+                }
+            }
+        }
+
+        for (final Entry entry : evicted) {
+            close(entry.m_path, entry.m_rrd, m_fsyncPolicy != FsyncPolicy.NONE);
+        }
+    }
+
+    private static void close(final String path, final RrdDb rrd, final boolean fsync) {
+        try {
+            rrd.close();
+            if (fsync) {
+                fsync(path);
+            }
+        } catch (final IOException e) {
+            LOG.error("Failed to close rrd file: {}", path, e);
+        }
+    }
+
+    private static void fsync(final String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    synchronized int getOpenFiles() {
+        return m_entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "openFiles=" + m_entries.size() +
+                ", capacity=" + m_capacity +
+                ", hits=" + m_hits +
+                ", misses=" + m_misses +
+                ", evictions=" + m_evictions +
+                ", fsyncPolicy=" + m_fsyncPolicy;
+    }
+}
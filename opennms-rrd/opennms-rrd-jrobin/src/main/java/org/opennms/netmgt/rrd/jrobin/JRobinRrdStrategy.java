@@ -57,6 +57,7 @@ import org.opennms.netmgt.rrd.RrdGraphDetails;
 import org.opennms.netmgt.rrd.RrdStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
 
 /**
@@ -67,10 +68,12 @@ import org.slf4j.LoggerFactory;
  * @author ranger
  * @version $Id: $
  */
-public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
+public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb>, DisposableBean {
     private static final Logger LOG = LoggerFactory.getLogger(JRobinRrdStrategy.class);
     private static final String BACKEND_FACTORY_PROPERTY = "org.jrobin.core.RrdBackendFactory";
     private static final String DEFAULT_BACKEND_FACTORY = "FILE";
+    private static final String MAX_OPEN_FILES_PROPERTY = "org.opennms.rrd.jrobin.maxOpenFiles";
+    private static final String FSYNC_PROPERTY = "org.opennms.rrd.jrobin.fsync";
 
     /*
      * Ensure that we only initialize certain things *once* per
@@ -80,6 +83,11 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
 
     private Properties m_configurationProperties;
 
+    /**
+     * The pool of open files, or null if every update cycle opens and closes its file.
+     */
+    private JRobinFilePool m_filePool;
+
     /**
      * An extremely simple Plottable for holding static datasources that
      * can't be represented with an SDEF -- currently used only for PERCENT
@@ -136,17 +144,45 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
                 LOG.error("Could not set default JRobin RRD factory", e);
             }
         }
+
+        final Properties properties = m_configurationProperties == null ? new Properties() : m_configurationProperties;
+        final int maxOpenFiles = Integer.parseInt(properties.getProperty(MAX_OPEN_FILES_PROPERTY, "0"));
+        if (m_filePool != null) {
+            m_filePool.close();
+        }
+        if (maxOpenFiles > 0) {
+            final JRobinFilePool.FsyncPolicy fsyncPolicy = JRobinFilePool.FsyncPolicy.fromString(properties.getProperty(FSYNC_PROPERTY));
+            LOG.info("Keeping up to {} JRobin files open, with fsync policy {}", maxOpenFiles, fsyncPolicy);
+            m_filePool = new JRobinFilePool(maxOpenFiles, fsyncPolicy);
+        } else {
+            m_filePool = null;
+        }
+    }
+
+    /**
+     * Closes the files that are kept open, if any.
+     */
+    @Override
+    public void destroy() {
+        final JRobinFilePool filePool = m_filePool;
+        if (filePool != null) {
+            filePool.close();
+        }
     }
 
     /**
-     * Closes the JRobin RrdDb.
+     * Closes the JRobin RrdDb, or returns it to the pool of open files.
      *
      * @param rrdFile a {@link org.jrobin.core.RrdDb} object.
      * @throws java.lang.Exception if any.
      */
     @Override
     public void closeFile(final RrdDb rrdFile) throws Exception {
-        rrdFile.close();
+        if (m_filePool != null) {
+            m_filePool.release(rrdFile);
+        } else {
+            rrdFile.close();
+        }
     }
 
     /** {@inheritDoc} */
@@ -201,6 +237,10 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
         }
         LOG.info("createRRD: creating RRD file {}", rrdDef.getPath());
 
+        if (m_filePool != null) {
+            m_filePool.remove(rrdDef.getPath());
+        }
+
         RrdDb rrd = new RrdDb(rrdDef);
         rrd.close();
     }
@@ -208,10 +248,14 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
     /**
      * {@inheritDoc}
      *
-     * Opens the JRobin RrdDb by name and returns it.
+     * Opens the JRobin RrdDb by name and returns it, or takes it from the
+     * pool of open files.
      */
     @Override
     public RrdDb openFile(final String fileName) throws Exception {
+        if (m_filePool != null) {
+            return m_filePool.acquire(fileName);
+        }
         return new RrdDb(fileName);
     }
 
@@ -860,13 +904,14 @@ public class JRobinRrdStrategy implements RrdStrategy<RrdDef,RrdDb> {
     }
 
     /**
-     * This implementation does not track any stats.
+     * Returns the stats of the pool of open files, if any.
      *
      * @return a {@link java.lang.String} object.
      */
     @Override
     public String getStats() {
-        return "";
+        final JRobinFilePool filePool = m_filePool;
+        return filePool == null ? "" : filePool.toString();
     }
 
     /*
@@ -31,6 +31,7 @@ package org.opennms.netmgt.rrd.jrobin;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -38,6 +39,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.Properties;
 
 import org.jrobin.core.RrdDb;
 import org.jrobin.core.RrdDef;
@@ -175,6 +177,65 @@ public class JRobinRrdStrategyTest {
         m_strategy.closeFile(openedFile);
     }
 
+    @Test
+    public void testUpdateWithPooledFiles() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("org.jrobin.core.RrdBackendFactory", "FILE");
+        properties.setProperty("org.opennms.rrd.jrobin.maxOpenFiles", "1");
+        properties.setProperty("org.opennms.rrd.jrobin.fsync", "evict");
+        m_strategy.setConfigurationProperties(properties);
+
+        File rrdFile = createRrdFile();
+
+        RrdDb openedFile = m_strategy.openFile(rrdFile.getAbsolutePath());
+        m_strategy.updateFile(openedFile, "huh?", "N:1.234234");
+        m_strategy.closeFile(openedFile);
+
+        // The file stays open for the next update cycle
+        RrdDb reopenedFile = m_strategy.openFile(rrdFile.getAbsolutePath());
+        assertSame(openedFile, reopenedFile);
+        assertFalse(reopenedFile.isClosed());
+        m_strategy.closeFile(reopenedFile);
+
+        // Until another file takes its place in the pool
+        List<RrdDataSource> dataSources = new ArrayList<>();
+        dataSources.add(new RrdDataSource("bar", RrdAttributeType.GAUGE, 3000, "U", "U"));
+        RrdDef def = m_strategy.createDefinition("hello!", m_fileAnticipator.getTempDir().getAbsolutePath(), "other", 300, dataSources, Arrays.asList("RRA:AVERAGE:0.5:1:2016"));
+        m_strategy.createFile(def);
+        File otherFile = m_fileAnticipator.expecting("other" + m_strategy.getDefaultFileExtension());
+
+        RrdDb otherOpenedFile = m_strategy.openFile(otherFile.getAbsolutePath());
+        m_strategy.closeFile(otherOpenedFile);
+        assertTrue(openedFile.isClosed());
+        assertFalse(otherOpenedFile.isClosed());
+    }
+
+    @Test
+    public void testDestroyClosesPooledFiles() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("org.jrobin.core.RrdBackendFactory", "FILE");
+        properties.setProperty("org.opennms.rrd.jrobin.maxOpenFiles", "10");
+        properties.setProperty("org.opennms.rrd.jrobin.fsync", "evict");
+        m_strategy.setConfigurationProperties(properties);
+
+        File rrdFile = createRrdFile();
+
+        RrdDb idleFile = m_strategy.openFile(rrdFile.getAbsolutePath());
+        m_strategy.closeFile(idleFile);
+        assertFalse(idleFile.isClosed());
+
+        // Replacing the pool closes the files of the previous one
+        m_strategy.setConfigurationProperties(properties);
+        assertTrue(idleFile.isClosed());
+
+        // Files in use are closed when they are released
+        RrdDb usedFile = m_strategy.openFile(rrdFile.getAbsolutePath());
+        m_strategy.destroy();
+        assertFalse(usedFile.isClosed());
+        m_strategy.closeFile(usedFile);
+        assertTrue(usedFile.isClosed());
+    }
+
     @Test
     public void testSampleSetFloatingPointValueGood() throws Exception {
         File rrdFile = createRrdFile();
@@ -63,6 +63,8 @@ import org.opennms.netmgt.poller.pollables.PollableVisitorAdaptor;
 import org.opennms.netmgt.scheduler.LegacyScheduler;
 import org.opennms.netmgt.scheduler.Schedule;
 import org.opennms.netmgt.scheduler.Scheduler;
+import org.opennms.netmgt.scheduler.TimingWheelScheduler;
+import org.opennms.netmgt.scheduler.VirtualThreadExecutor;
 import org.opennms.netmgt.threshd.api.ThresholdingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -86,9 +88,21 @@ public class Poller extends AbstractServiceDaemon {
 
     private static final String LOG4J_CATEGORY = "poller";
 
+    /**
+     * The system property used to select how the polls are executed. Set it to {@value #VIRTUAL_THREADS}
+     * to run each poll on a thread of its own, bounded by {@value #MAX_CONCURRENT_POLLS_PROPERTY}
+     * instead of the size of the thread pool.
+     */
+    public static final String EXECUTION_MODE_PROPERTY = "org.opennms.netmgt.poller.execution-mode";
+
+    public static final String VIRTUAL_THREADS = "virtual-threads";
+
+    /** The maximum number of polls that run concurrently when the polls run on virtual threads. */
+    public static final String MAX_CONCURRENT_POLLS_PROPERTY = "org.opennms.netmgt.poller.max-concurrent-polls";
+
     private boolean m_initialized = false;
 
-    private LegacyScheduler m_scheduler = null;
+    private Scheduler m_scheduler = null;
 
     private PollerEventProcessor m_eventProcessor;
 
@@ -270,9 +284,9 @@ public class Poller extends AbstractServiceDaemon {
     /**
      * <p>setScheduler</p>
      *
-     * @param scheduler a {@link org.opennms.netmgt.scheduler.LegacyScheduler} object.
+     * @param scheduler a {@link org.opennms.netmgt.scheduler.Scheduler} object.
      */
-    public void setScheduler(LegacyScheduler scheduler) {
+    public void setScheduler(Scheduler scheduler) {
         m_scheduler = scheduler;
     }
 
@@ -335,7 +349,17 @@ public class Poller extends AbstractServiceDaemon {
         try {
             LOG.debug("init: Creating poller scheduler");
 
-            setScheduler(new LegacyScheduler("Poller", getPollerConfig().getThreads()));
+            if (VIRTUAL_THREADS.equalsIgnoreCase(System.getProperty(EXECUTION_MODE_PROPERTY))) {
+                final VirtualThreadExecutor executor = new VirtualThreadExecutor("Poller", Integer.getInteger(MAX_CONCURRENT_POLLS_PROPERTY, 1000));
+                if (!executor.isVirtual()) {
+                    LOG.warn("init: Virtual threads are not supported by this runtime, the polls will run on platform threads.");
+                }
+                setScheduler(new TimingWheelScheduler(executor));
+            } else if (TimingWheelScheduler.isEnabled()) {
+                setScheduler(new TimingWheelScheduler("Poller", getPollerConfig().getThreads()));
+            } else {
+                setScheduler(new LegacyScheduler("Poller", getPollerConfig().getThreads()));
+            }
         } catch (RuntimeException e) {
             LOG.error("init: Failed to create poller scheduler", e);
             throw e;
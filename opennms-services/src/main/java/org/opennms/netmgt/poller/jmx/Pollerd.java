@@ -28,10 +28,13 @@
 
 package org.opennms.netmgt.poller.jmx;
 
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import org.opennms.netmgt.daemon.AbstractSpringContextJmxServiceDaemon;
 import org.opennms.netmgt.scheduler.LegacyScheduler;
+import org.opennms.netmgt.scheduler.TimingWheelScheduler;
+import org.opennms.netmgt.scheduler.VirtualThreadExecutor;
 
 /**
  * <p>Pollerd class.</p>
@@ -58,6 +61,8 @@ public class Pollerd extends AbstractSpringContextJmxServiceDaemon<org.opennms.n
     public long getActiveThreads() {
         if (getThreadPoolStatsStatus()) {
             return getExecutor().getActiveCount();
+        } else if (getRunner() instanceof VirtualThreadExecutor) {
+            return ((VirtualThreadExecutor) getRunner()).getActiveCount();
         } else {
             return 0L;
         }
@@ -68,6 +73,8 @@ public class Pollerd extends AbstractSpringContextJmxServiceDaemon<org.opennms.n
     public long getTasksTotal() {
         if (getThreadPoolStatsStatus()) {
             return getExecutor().getTaskCount();
+        } else if (getRunner() instanceof VirtualThreadExecutor) {
+            return ((VirtualThreadExecutor) getRunner()).getTaskCount();
         } else {
             return 0L;
         }
@@ -78,6 +85,8 @@ public class Pollerd extends AbstractSpringContextJmxServiceDaemon<org.opennms.n
     public long getTasksCompleted() {
         if (getThreadPoolStatsStatus()) {
             return getExecutor().getCompletedTaskCount();
+        } else if (getRunner() instanceof VirtualThreadExecutor) {
+            return ((VirtualThreadExecutor) getRunner()).getCompletedTaskCount();
         } else {
             return 0L;
         }
@@ -90,12 +99,8 @@ public class Pollerd extends AbstractSpringContextJmxServiceDaemon<org.opennms.n
     }
 
     public double getTaskCompletionRatio() {
-        if (getThreadPoolStatsStatus()) {
-            if (getExecutor().getTaskCount() > 0) {
-                return new Double(getExecutor().getCompletedTaskCount() / new Double(getExecutor().getTaskCount()));
-            } else {
-                return new Double(0);
-            }
+        if (getTasksTotal() > 0) {
+            return new Double(getTasksCompleted() / new Double(getTasksTotal()));
         } else {
             return new Double(0);
         }
@@ -159,11 +164,58 @@ public class Pollerd extends AbstractSpringContextJmxServiceDaemon<org.opennms.n
         }
     }
     
+    /** {@inheritDoc} */
+    @Override
+    public long getInFlightPolls() {
+        return getActiveThreads();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getMaxConcurrentPolls() {
+        if (getThreadPoolStatsStatus()) {
+            return getExecutor().getMaximumPoolSize();
+        } else if (getRunner() instanceof VirtualThreadExecutor) {
+            return ((VirtualThreadExecutor) getRunner()).getMaxConcurrency();
+        } else {
+            return 0L;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getScheduleLag() {
+        if (getDaemon().getScheduler() instanceof TimingWheelScheduler) {
+            return ((TimingWheelScheduler) getDaemon().getScheduler()).getScheduleLag();
+        } else {
+            return 0L;
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getTotalScheduleLag() {
+        if (getDaemon().getScheduler() instanceof TimingWheelScheduler) {
+            return ((TimingWheelScheduler) getDaemon().getScheduler()).getTotalScheduleLag();
+        } else {
+            return 0L;
+        }
+    }
+
+    private ExecutorService getRunner() {
+        if (getDaemon().getScheduler() instanceof TimingWheelScheduler) {
+            return ((TimingWheelScheduler) getDaemon().getScheduler()).getRunner();
+        } else if (getDaemon().getScheduler() instanceof LegacyScheduler) {
+            return ((LegacyScheduler) getDaemon().getScheduler()).getRunner();
+        }
+        return null;
+    }
+
     private ThreadPoolExecutor getExecutor() {
-        return (ThreadPoolExecutor) ((LegacyScheduler) getDaemon().getScheduler()).getRunner();
+        return (ThreadPoolExecutor) getRunner();
     }
     
     private boolean getThreadPoolStatsStatus() {
-        return (getDaemon().getScheduler() instanceof LegacyScheduler);
+        return getRunner() instanceof ThreadPoolExecutor;
     }
 }
@@ -93,4 +93,24 @@ public interface PollerdMBean extends BaseOnmsMBean {
      * @return The number of open slots on our ExecutorService queue.
      */
     public long getTaskQueueRemainingCapacity();
+
+    /**
+     * @return The number of polls that are currently running
+     */
+    public long getInFlightPolls();
+
+    /**
+     * @return The maximum number of polls that can run concurrently
+     */
+    public long getMaxConcurrentPolls();
+
+    /**
+     * @return The time between the moment the last poll was due and the moment it started, in milliseconds
+     */
+    public long getScheduleLag();
+
+    /**
+     * @return The sum of the schedule lags of the polls since poller startup, in milliseconds (counter)
+     */
+    public long getTotalScheduleLag();
 }